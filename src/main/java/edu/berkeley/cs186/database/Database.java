@@ -6,26 +6,65 @@ import edu.berkeley.cs186.database.table.*;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 import edu.berkeley.cs186.database.concurrency.*;
 import edu.berkeley.cs186.database.index.BPlusTree;
+import edu.berkeley.cs186.database.io.EvictionPolicy;
+import edu.berkeley.cs186.database.io.IOStats;
 import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.PageCache;
+import edu.berkeley.cs186.database.log.LogRecord;
+import edu.berkeley.cs186.database.log.WriteAheadLog;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.List;
 import java.util.Iterator;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import javax.management.ObjectName;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
 
+/**
+ * A directory of tables and the indices on their columns. Tables are opened when first used, and
+ * their changes are covered by a write-ahead log that is replayed when the database is opened.
+ * Transactions lock the records and tables they touch, or read a snapshot if begun with
+ * beginReadOnlyTransaction.
+ */
 public class Database {
-  private Map<String, Table> tableLookup;
-  private Map<String, BPlusTree> indexLookup;
+  // the snapshot of a transaction that is not read-only
+  private static final long NO_SNAPSHOT = -1;
+  // once a transaction holds more record locks than this on a table, they are traded for a lock on
+  // the whole table
+  public static final int LOCK_ESCALATION_THRESHOLD = 256;
+
+  private Map<String, CatalogEntry<Table>> tableLookup;
+  private Map<String, CatalogEntry<BPlusTree>> indexLookup;
   private long numTransactions;
   private String fileDir;
   private LockManager lockMan;
   private int numMemoryPages;
+  private PageCache bufferPool;
+  private Map<String, ObjectName> ioStatsNames;
+  private boolean readOnly;
+  private WriteAheadLog log;
+  // the LSN of the DROP record of each table deleted since the log was last emptied
+  private Map<String, Long> droppedAt;
+  private VersionClock versionClock;
+  // opens and prewarms, in the background, the files that had a hot list when the database opened;
+  // null if none did
+  private ExecutorService prewarmer;
+  private volatile boolean prewarmStopped;
 
   /**
    * Creates a new database.
@@ -47,35 +86,542 @@ public class Database {
    * @throws DatabaseException
    */
   public Database(String fileDir, int numMemoryPages) throws DatabaseException {
+    this(fileDir, numMemoryPages, PageAllocator.getSharedPageCache());
+  }
+
+  /**
+   * Creates a new database with a buffer pool of its own that uses the given replacement policy.
+   * The pool is as large as the shared one; its hit ratio is available from getBufferPool().
+   *
+   * @param fileDir the directory to put the table files in
+   * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
+   * @param policy the page replacement policy of this database's buffer pool
+   * @throws DatabaseException
+   */
+  public Database(String fileDir, int numMemoryPages, EvictionPolicy.Type policy) throws DatabaseException {
+    this(fileDir, numMemoryPages, new PageCache(PageAllocator.getBufferPoolBytes(), policy));
+  }
+
+  private Database(String fileDir, int numMemoryPages, PageCache bufferPool) throws DatabaseException {
+    this(fileDir, numMemoryPages, bufferPool, false);
+  }
+
+  /**
+   * Opens an existing database for reading only.
+   *
+   * @param fileDir the directory the table files are in
+   * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
+   * @return a Database whose files are never written
+   * @throws DatabaseException if fileDir is not a directory
+   */
+  public static Database openReadOnly(String fileDir, int numMemoryPages) throws DatabaseException {
+    return new Database(fileDir, numMemoryPages, PageAllocator.getSharedPageCache(), true);
+  }
+
+  private Database(String fileDir, int numMemoryPages, PageCache bufferPool, boolean readOnly)
+      throws DatabaseException {
+    this.readOnly = readOnly;
     this.numMemoryPages = numMemoryPages;
+    this.bufferPool = bufferPool;
     this.fileDir = fileDir;
     numTransactions = 0;
-    tableLookup = new ConcurrentHashMap<String, Table>();
-    indexLookup = new ConcurrentHashMap<String, BPlusTree>();
+    tableLookup = new ConcurrentHashMap<String, CatalogEntry<Table>>();
+    indexLookup = new ConcurrentHashMap<String, CatalogEntry<BPlusTree>>();
+    ioStatsNames = new ConcurrentHashMap<String, ObjectName>();
 
     File dir = new File(fileDir);
     lockMan = new LockManager();
 
+    if (readOnly && !dir.isDirectory()) {
+      throw new DatabaseException("No database in " + fileDir);
+    }
     if (!dir.exists()) {
       dir.mkdirs();
     }
 
     File[] files = dir.listFiles();
+    List<CatalogEntry<?>> hot = new ArrayList<CatalogEntry<?>>();
 
     for (File f : files) {
       String fName = f.getName();
+      CatalogEntry<?> entry = null;
       if (fName.endsWith(Table.FILENAME_EXTENSION)) {
         int lastIndex = fName.lastIndexOf(Table.FILENAME_EXTENSION);
         String tableName = fName.substring(0, lastIndex);
-        tableLookup.put(tableName, new Table(tableName, this.fileDir));
+        CatalogEntry<Table> table = new CatalogEntry<Table>(tableName) {
+          protected Table open() {
+            return attach(new Table(this.name, Database.this.fileDir, Database.this.bufferPool,
+                                    Database.this.readOnly));
+          }
+        };
+        tableLookup.put(tableName, table);
+        entry = table;
       } else if (fName.endsWith(BPlusTree.FILENAME_EXTENSION)) {
         int lastIndex = fName.lastIndexOf(BPlusTree.FILENAME_EXTENSION);
         String indexName = fName.substring(0, lastIndex);
-        indexLookup.put(indexName, new BPlusTree(indexName, this.fileDir));
+        CatalogEntry<BPlusTree> index = new CatalogEntry<BPlusTree>(indexName) {
+          protected BPlusTree open() {
+            return attach(new BPlusTree(this.name, Database.this.fileDir, Database.this.bufferPool,
+                                        Database.this.readOnly));
+          }
+        };
+        indexLookup.put(indexName, index);
+        entry = index;
+      }
+      if (entry != null && new File(f.getPath() + PageAllocator.HOT_LIST_EXTENSION).isFile()) {
+        hot.add(entry);
+      }
+    }
+
+    droppedAt = new ConcurrentHashMap<String, Long>();
+    versionClock = new VersionClock();
+    if (!readOnly) {
+      log = new WriteAheadLog(new File(dir, WriteAheadLog.FILENAME).getPath());
+      recover();
+    }
+    startPrewarm(hot);
+  }
+
+  /**
+   * Opens and prewarms the given tables and indices one at a time on a daemon thread, so that the
+   * pages they had in the buffer pool are read back in while the database already serves. A file
+   * that is dropped first is skipped, and one that fails to open is left for its first user to
+   * report.
+   */
+  private void startPrewarm(List<CatalogEntry<?>> hot) {
+    if (hot.isEmpty()) {
+      return;
+    }
+    this.prewarmer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "prewarm-" + Database.this.fileDir);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    for (final CatalogEntry<?> entry : hot) {
+      this.prewarmer.submit(new Runnable() {
+        public void run() {
+          Object opened;
+          synchronized (Database.this) {
+            if (prewarmStopped
+                || (tableLookup.get(entry.name) != entry && indexLookup.get(entry.name) != entry)) {
+              return;
+            }
+            try {
+              opened = entry.get();
+            } catch (RuntimeException e) {
+              return;
+            }
+          }
+          prewarm(opened);
+        }
+      });
+    }
+    this.prewarmer.shutdown();
+  }
+
+  /**
+   * Waits until the tables and indices that had pages in the buffer pool when the database was last
+   * closed have been opened and prewarmed in the background.
+   *
+   * @throws DatabaseException if interrupted while waiting
+   */
+  public void awaitPrewarm() throws DatabaseException {
+    if (this.prewarmer == null) {
+      return;
+    }
+    try {
+      while (!this.prewarmer.awaitTermination(1, TimeUnit.SECONDS)) {
+        // keep waiting
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatabaseException("Interrupted while prewarming tables");
     }
   }
 
+  /**
+   * Skips the files that are still to be prewarmed, and waits for the one being prewarmed.
+   */
+  private void stopPrewarm() {
+    this.prewarmStopped = true;
+    try {
+      awaitPrewarm();
+    } catch (DatabaseException e) {
+      // the interrupt is kept for the caller
+    }
+  }
+
+  private Table attach(Table t) {
+    if (this.log != null) {
+      t.setLog(this.log);
+    }
+    if (!this.readOnly) {
+      t.setVersionClock(this.versionClock);
+    }
+    return t;
+  }
+
+  private BPlusTree attach(BPlusTree index) {
+    if (this.log != null) {
+      index.setLog(this.log);
+    }
+    return index;
+  }
+
+  /**
+   * Replays the log: finds the last checkpoint, the transactions that ended and the indices whose
+   * last change a crash cut short, redoes every change logged after the checkpoint, rebuilds the
+   * indices that were cut short, rolls back the transactions that did not end, and takes a
+   * checkpoint, which empties the log.
+   */
+  private void recover() throws DatabaseException {
+    long redoLSN = 0;
+    Map<Long, Long> losers = new HashMap<Long, Long>();
+    // the indices with a change that began after the checkpoint and has not ended, and those whose
+    // change never ended
+    Set<String> changing = new HashSet<String>();
+    Set<String> torn = new HashSet<String>();
+    Iterator<LogRecord> iter = this.log.iterator(0);
+    if (!iter.hasNext()) {
+      return;
+    }
+    while (iter.hasNext()) {
+      LogRecord record = iter.next();
+      switch (record.getType()) {
+        case CHECKPOINT:
+          redoLSN = record.getLSN();
+          changing.clear();
+          torn.clear();
+          break;
+        case DROP:
+          this.droppedAt.put(record.getTableName(), record.getLSN());
+          break;
+        case COMMIT:
+        case ABORT:
+          losers.remove(record.getTransNum());
+          break;
+        case INDEX_BEGIN:
+          if (!changing.add(record.getTableName())) {
+            torn.add(record.getTableName());
+          }
+          break;
+        case INDEX_PAGES:
+          changing.remove(record.getTableName());
+          break;
+        default:
+          losers.put(record.getTransNum(), record.getLSN());
+          break;
+      }
+    }
+    torn.addAll(changing);
+
+    iter = this.log.iterator(redoLSN);
+    while (iter.hasNext()) {
+      LogRecord record = iter.next();
+      if (record.isChange()) {
+        apply(record);
+      } else if (record.getType() == LogRecord.Type.INDEX_PAGES && !torn.contains(record.getTableName())) {
+        BPlusTree index = indexChangedBy(record);
+        if (index != null) {
+          index.redo(record.getRedoImage());
+        }
+      }
+    }
+    for (String indexName : torn) {
+      rebuildIndex(indexName);
+    }
+    for (Map.Entry<Long, Long> loser : losers.entrySet()) {
+      rollback(loser.getKey(), loser.getValue());
+    }
+    checkpoint();
+  }
+
+  /**
+   * Rolls a transaction back by undoing its changes, newest first, from its last log record on,
+   * and then logs its ABORT.
+   *
+   * @param transNum the transaction
+   * @param lastLSN the LSN of the transaction's last record
+   */
+  private void rollback(long transNum, long lastLSN) throws DatabaseException {
+    long lsn = lastLSN;
+    while (lsn >= 0) {
+      LogRecord record = this.log.read(lsn);
+      if (record.getType() == LogRecord.Type.COMPENSATION) {
+        lsn = record.getUndoNextLSN();
+        continue;
+      }
+      undo(record);
+      lsn = record.getPrevLSN();
+    }
+    this.log.append(LogRecord.abort(transNum));
+  }
+
+  /**
+   * Puts the redo image of a logged change in the slot it was made to, or empties the slot if the
+   * image is null. The change is skipped if its table has been deleted since it was logged.
+   *
+   * @param record the change
+   */
+  private void apply(LogRecord record) throws DatabaseException {
+    Table table = tableChangedBy(record);
+    if (table == null) {
+      return;
+    }
+    synchronized (table) {
+      put(table, record.getRecordID(), record.getRedoImage());
+    }
+  }
+
+  /**
+   * Undoes a logged change to a slot, and the changes it made to the indices of its table, and logs
+   * a COMPENSATION record for it. The keys of the record it put in the slot are deleted, and those
+   * of the record it replaced are inserted again unless they are there already: the index changes
+   * are made, and logged, before the COMPENSATION record, so a crash in between leaves the change
+   * to be undone again. Only the COMPENSATION record is logged if the change's table has been
+   * deleted since.
+   *
+   * @param record the change
+   */
+  private void undo(LogRecord record) throws DatabaseException {
+    LogRecord compensation = LogRecord.compensation(record, record.getPrevLSN());
+    Table table = tableChangedBy(record);
+    if (table == null) {
+      this.log.append(compensation);
+      return;
+    }
+    String tableName = record.getTableName();
+    RecordID rid = record.getRecordID();
+    Schema s = table.getSchema();
+    List<String> colNames = s.getFieldNames();
+    byte[] redo = record.getRedoImage();
+    byte[] undo = record.getUndoImage();
+    synchronized (table) {
+      List<DataType> removed = redo == null ? null : s.decode(redo).getValues();
+      List<DataType> restored = undo == null ? null : s.decode(undo).getValues();
+      for (int i = 0; i < colNames.size(); i++) {
+        CatalogEntry<BPlusTree> entry = this.indexLookup.get(tableName + "," + colNames.get(i));
+        if (entry == null) {
+          continue;
+        }
+        BPlusTree index = entry.get();
+        if (removed != null) {
+          index.deleteKey(removed.get(i), rid);
+        }
+        if (restored != null && !index.containsEntry(restored.get(i), rid)) {
+          index.insertKey(restored.get(i), rid);
+        }
+      }
+      this.log.append(compensation);
+      put(table, rid, undo);
+    }
+  }
+
+  /**
+   * @return the table a logged change was made to, or null if it has been deleted since
+   */
+  private Table tableChangedBy(LogRecord record) {
+    String tableName = record.getTableName();
+    Long dropLSN = this.droppedAt.get(tableName);
+    CatalogEntry<Table> entry = this.tableLookup.get(tableName);
+    if (entry == null || (dropLSN != null && record.getLSN() < dropLSN)) {
+      return null;
+    }
+    return entry.get();
+  }
+
+  /**
+   * @return the index a logged index change was made to, or null if its table has been deleted
+   * since
+   */
+  private BPlusTree indexChangedBy(LogRecord record) {
+    String indexName = record.getTableName();
+    Long dropLSN = this.droppedAt.get(indexName.substring(0, indexName.lastIndexOf(',')));
+    CatalogEntry<BPlusTree> entry = this.indexLookup.get(indexName);
+    if (entry == null || (dropLSN != null && record.getLSN() < dropLSN)) {
+      return null;
+    }
+    return entry.get();
+  }
+
+  private static void put(Table table, RecordID rid, byte[] image) throws DatabaseException {
+    if (image == null) {
+      table.clearRecord(rid);
+    } else {
+      table.restoreRecord(rid, image);
+    }
+  }
+
+  /**
+   * Recreates an index from the records of its table, when a crash cut a change to it short and
+   * left its pages in no state the log can bring up to date. Only recovery needs this, and it runs
+   * before any transaction can change the table.
+   */
+  private void rebuildIndex(String indexName) throws DatabaseException {
+    int comma = indexName.lastIndexOf(',');
+    CatalogEntry<Table> entry = this.tableLookup.get(indexName.substring(0, comma));
+    if (entry == null || !this.indexLookup.containsKey(indexName)) {
+      return;
+    }
+    Table table = entry.get();
+    int col = table.getSchema().getFieldNames().indexOf(indexName.substring(comma + 1));
+    synchronized (table) {
+      BPlusTree old = this.indexLookup.get(indexName).getIfOpen();
+      if (old != null) {
+        old.close();
+      }
+      BPlusTree index = new BPlusTree(table.getSchema().getFieldTypes().get(col), indexName, this.fileDir,
+                                      this.bufferPool);
+      Iterator<RecordID> rids = table.recordIDIterator();
+      while (rids.hasNext()) {
+        RecordID rid = rids.next();
+        index.insertKey(table.getRecord(rid).getValues().get(col), rid);
+      }
+      this.indexLookup.put(indexName, created(indexName, attach(index)));
+    }
+  }
+
+  /**
+   * A table or index of the catalog, which is opened the first time it is asked for.
+   */
+  private abstract class CatalogEntry<T> {
+    protected final String name;
+    private volatile T opened;
+
+    CatalogEntry(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return the table or index, opened by this call if no one has asked for it before
+     */
+    T get() {
+      T t = this.opened;
+      if (t == null) {
+        synchronized (this) {
+          t = this.opened;
+          if (t == null) {
+            t = open();
+            registerIOStats(this.name, t instanceof Table ? "Table" : "BPlusTree", ioStatsOf(t));
+            this.opened = t;
+          }
+        }
+      }
+      return t;
+    }
+
+    /**
+     * @return the table or index if it has been opened, or null
+     */
+    T getIfOpen() {
+      return this.opened;
+    }
+
+    protected abstract T open();
+  }
+
+  /**
+   * A catalog entry for a table or index that was created, and so is already open.
+   */
+  private <T> CatalogEntry<T> created(String name, final T t) {
+    CatalogEntry<T> entry = new CatalogEntry<T>(name) {
+      protected T open() {
+        return t;
+      }
+    };
+    entry.get();
+    return entry;
+  }
+
+  private static IOStats ioStatsOf(Object tableOrIndex) {
+    if (tableOrIndex instanceof Table) {
+      return ((Table) tableOrIndex).getIOStats();
+    }
+    return ((BPlusTree) tableOrIndex).getIOStats();
+  }
+
+  private static void prewarm(Object tableOrIndex) {
+    if (tableOrIndex instanceof Table) {
+      ((Table) tableOrIndex).prewarm();
+    } else {
+      ((BPlusTree) tableOrIndex).prewarm();
+    }
+  }
+
+  /**
+   * Opens the given tables and the indices on their columns, on numThreads threads, so that the
+   * transactions that use them do not have to. Each file is prewarmed as it is opened: the pages it
+   * had in the buffer pool when it was last closed or checkpointed are read back in, in file order.
+   * Returns once every file is open and warm, so it can be called before serving. The files that
+   * had a hot list are prewarmed in the background from the moment the database opens anyway;
+   * see awaitPrewarm.
+   *
+   * @param tableNames the names of the tables to open
+   * @param numThreads the number of tables and indices to open at once
+   * @throws DatabaseException if a table does not exist, or a table or index fails to open
+   */
+  public void openTables(Collection<String> tableNames, int numThreads) throws DatabaseException {
+    final List<CatalogEntry<?>> toOpen = new ArrayList<CatalogEntry<?>>();
+    for (String tableName : tableNames) {
+      CatalogEntry<Table> table = this.tableLookup.get(tableName);
+      if (table == null) {
+        throw new DatabaseException("Table " + tableName + " does not exist");
+      }
+      toOpen.add(table);
+      for (Map.Entry<String, CatalogEntry<BPlusTree>> index : this.indexLookup.entrySet()) {
+        if (index.getKey().startsWith(tableName + ",")) {
+          toOpen.add(index.getValue());
+        }
+      }
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, toOpen.size())));
+    try {
+      List<Future<?>> opening = new ArrayList<Future<?>>();
+      for (final CatalogEntry<?> entry : toOpen) {
+        opening.add(pool.submit(new Runnable() {
+          public void run() {
+            prewarm(entry.get());
+          }
+        }));
+      }
+      for (Future<?> f : opening) {
+        f.get();
+      }
+    } catch (ExecutionException e) {
+      throw new DatabaseException("Could not open table: " + e.getCause().getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatabaseException("Interrupted while opening tables");
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * @return true if this database was opened with openReadOnly
+   */
+  public boolean isReadOnly() {
+    return this.readOnly;
+  }
+
+  private void checkWritable() throws DatabaseException {
+    if (this.readOnly) {
+      throw new DatabaseException("Database is read-only");
+    }
+  }
+
+  /**
+   * @param tableName the name of the table
+   * @return true if the table has been opened, false if it has only been found on disk so far
+   */
+  public boolean isTableOpen(String tableName) {
+    CatalogEntry<Table> table = this.tableLookup.get(tableName);
+    return table != null && table.getIfOpen() != null;
+  }
+
 
   /**
    * Create a new table in this database.
@@ -85,11 +631,58 @@ public class Database {
    * @throws DatabaseException
    */
   public synchronized void createTable(Schema s, String tableName) throws DatabaseException {
+    checkWritable();
     if (this.tableLookup.containsKey(tableName)) {
       throw new DatabaseException("Table name already exists");
     }
 
-    this.tableLookup.put(tableName, new Table(s, tableName, this.fileDir));
+    this.tableLookup.put(tableName, created(tableName, attach(new Table(s, tableName, this.fileDir,
+                                                                        this.bufferPool))));
+  }
+
+  /**
+   * Create a new table in this database whose pages are pageSize bytes. The page size is stored in
+   * the table's file, so the table keeps it when the database is reopened.
+   *
+   * @param s the table schema
+   * @param tableName the name of the table
+   * @param pageSize the size of the table's pages in bytes; a power of two from 4KB to 64KB
+   * @throws DatabaseException
+   */
+  public synchronized void createTable(Schema s, String tableName, int pageSize) throws DatabaseException {
+    checkWritable();
+    if (this.tableLookup.containsKey(tableName)) {
+      throw new DatabaseException("Table name already exists");
+    }
+    try {
+      Page.checkPageSize(pageSize);
+    } catch (IllegalArgumentException e) {
+      throw new DatabaseException(e.getMessage());
+    }
+
+    this.tableLookup.put(tableName, created(tableName, attach(new Table(s, tableName, this.fileDir,
+                                                                        this.bufferPool, pageSize))));
+  }
+
+  /**
+   * Create a new table in this database whose pages are stored compressed. This suits large tables
+   * that are mostly read: they take less disk space and fewer bytes are read to scan them, at the
+   * cost of decompressing every page brought into the buffer pool and compressing every page
+   * written back. The table stays compressed when the database is reopened.
+   *
+   * @param s the table schema
+   * @param tableName the name of the table
+   * @throws DatabaseException
+   */
+  public synchronized void createCompressedTable(Schema s, String tableName) throws DatabaseException {
+    checkWritable();
+    if (this.tableLookup.containsKey(tableName)) {
+      throw new DatabaseException("Table name already exists");
+    }
+
+    this.tableLookup.put(tableName, created(tableName, attach(new Table(s, tableName, this.fileDir,
+                                                                        this.bufferPool, Page.pageSize,
+                                                                        PageAllocator.Backend.COMPRESSED))));
   }
 
   /**
@@ -101,6 +694,7 @@ public class Database {
    * @throws DatabaseException
    */
   public synchronized void createTableWithIndices(Schema s, String tableName, List<String> indexColumns) throws DatabaseException {
+    checkWritable();
     if (this.tableLookup.containsKey(tableName)) {
       throw new DatabaseException("Table name already exists");
     }
@@ -122,12 +716,14 @@ public class Database {
       schemaColIndex.add(schemaColNames.indexOf(col));
     }
 
-    this.tableLookup.put(tableName, new Table(s, tableName, this.fileDir));
+    this.tableLookup.put(tableName, created(tableName, attach(new Table(s, tableName, this.fileDir,
+                                                                        this.bufferPool))));
     for (int i : schemaColIndex) {
       String colName = schemaColNames.get(i);
       DataType colType = schemaColType.get(i);
       String indexName = tableName + "," + colName;
-      this.indexLookup.put(indexName, new BPlusTree(colType, indexName, this.fileDir));
+      this.indexLookup.put(indexName, created(indexName, attach(new BPlusTree(colType, indexName, this.fileDir,
+                                                                              this.bufferPool))));
     }
   }
 
@@ -135,18 +731,25 @@ public class Database {
    * Delete a table in this database.
    *
    * @param tableName the name of the table
-   * @return true if the database was successfully deleted
+   * @return true if the database was successfully deleted; never for a read-only database
    */
   public synchronized boolean deleteTable(String tableName) {
-    if (!this.tableLookup.containsKey(tableName)) {
+    if (this.readOnly || !this.tableLookup.containsKey(tableName)) {
       return false;
     }
 
-    this.tableLookup.get(tableName).close();
-    this.tableLookup.remove(tableName);
+    if (this.log != null) {
+      this.droppedAt.put(tableName, this.log.append(LogRecord.drop(tableName)));
+    }
+    Table table = this.tableLookup.remove(tableName).getIfOpen();
+    if (table != null) {
+      table.close();
+    }
+    unregisterIOStats(tableName);
 
     File f = new File(fileDir + tableName + Table.FILENAME_EXTENSION);
     f.delete();
+    new File(f.getPath() + PageAllocator.HOT_LIST_EXTENSION).delete();
 
     return true;
   }
@@ -162,15 +765,138 @@ public class Database {
     }
   }
 
+  /**
+   * Writes every change made to the tables of this database and their indices to disk, along with
+   * the tables' statistics, so that they reopen without a scan even if the database is not closed.
+   * Once no change is in progress, the changes are forced, and the write-ahead log is emptied if no
+   * transaction has changes that are not committed yet.
+   */
+  public synchronized void checkpoint() {
+    if (this.log == null) {
+      checkpointFiles();
+      return;
+    }
+    boolean truncated = this.log.checkpoint(new Runnable() {
+      public void run() {
+        checkpointFiles();
+      }
+    });
+    if (truncated) {
+      this.droppedAt.clear();
+    }
+  }
+
+  private void checkpointFiles() {
+    for (CatalogEntry<Table> entry : this.tableLookup.values()) {
+      Table t = entry.getIfOpen();
+      if (t != null) {
+        t.checkpoint();
+      }
+    }
+    for (CatalogEntry<BPlusTree> entry : this.indexLookup.values()) {
+      BPlusTree index = entry.getIfOpen();
+      if (index != null) {
+        index.checkpoint();
+      }
+    }
+  }
+
+  /**
+   * Marks the start of a change to a logged table; see WriteAheadLog.beginChange.
+   */
+  private void beginChange() {
+    if (this.log != null) {
+      this.log.beginChange();
+    }
+  }
+
+  private void endChange() {
+    if (this.log != null) {
+      this.log.endChange();
+    }
+  }
+
   /**
    * Close this database.
    */
-  public synchronized void close() {
-    for (Table t : this.tableLookup.values()) {
-      t.close();
+  public void close() {
+    // prewarming opens files under the database's lock, so it is stopped before taking it
+    stopPrewarm();
+    synchronized (this) {
+      if (this.log != null) {
+        checkpoint();
+      }
+      for (CatalogEntry<Table> entry : this.tableLookup.values()) {
+        Table t = entry.getIfOpen();
+        if (t != null) {
+          t.close();
+        }
+      }
+
+      this.tableLookup.clear();
+      for (ObjectName name : this.ioStatsNames.values()) {
+        IOStats.unregister(name);
+      }
+      this.ioStatsNames.clear();
+      if (this.log != null) {
+        this.log.close();
+        this.log = null;
+      }
+    }
+  }
+
+  /**
+   * Returns the I/O done on a table's file and on the files of the indices on its columns. A table
+   * or index that has not been opened has done none.
+   *
+   * @param tableName the name of the table
+   * @return the sum of the I/O counters of the table and its indices
+   * @throws DatabaseException if there is no such table
+   */
+  public IOStats.Snapshot getIOStats(String tableName) throws DatabaseException {
+    CatalogEntry<Table> table = this.tableLookup.get(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table " + tableName + " does not exist");
     }
+    IOStats.Snapshot total = IOStats.Snapshot.EMPTY;
+    if (table.getIfOpen() != null) {
+      total = table.getIfOpen().getIOStats().snapshot();
+    }
+    for (Map.Entry<String, CatalogEntry<BPlusTree>> index : this.indexLookup.entrySet()) {
+      BPlusTree tree = index.getValue().getIfOpen();
+      if (tree != null && index.getKey().startsWith(tableName + ",")) {
+        total = total.plus(tree.getIOStats().snapshot());
+      }
+    }
+    return total;
+  }
 
-    this.tableLookup.clear();
+  /**
+   * Publishes the I/O counters of a table or index of this database over JMX, as
+   * edu.berkeley.cs186.database:type=Table (or BPlusTree),scope=fileDir,name=name, when it is
+   * opened.
+   */
+  private void registerIOStats(String name, String type, IOStats stats) {
+    synchronized (this.ioStatsNames) {
+      unregisterIOStats(name);
+      this.ioStatsNames.put(name, stats.register(type, this.fileDir, name));
+    }
+  }
+
+  private void unregisterIOStats(String name) {
+    synchronized (this.ioStatsNames) {
+      ObjectName registered = this.ioStatsNames.remove(name);
+      if (registered != null) {
+        IOStats.unregister(registered);
+      }
+    }
+  }
+
+  /**
+   * @return the buffer pool caching this database's pages, for inspecting its hit ratio
+   */
+  public PageCache getBufferPool() {
+    return this.bufferPool;
   }
 
   /**
@@ -179,34 +905,124 @@ public class Database {
    * @return the new Transaction
    */
   public synchronized Transaction beginTransaction() {
-    Transaction t = new Transaction(this.numTransactions);
+    Transaction t = new Transaction(this.numTransactions, NO_SNAPSHOT);
 
     this.numTransactions++;
     return t;
   }
 
+  /**
+   * Start a read-only transaction, which reads the tables as they were when it began: it sees the
+   * changes of the transactions that had committed by then, and none of the others. It takes no
+   * locks, so it neither waits for transactions that change the tables nor holds them up.
+   *
+   * Indices are not versioned, so a read-only transaction reads tables by scanning them. The pages
+   * it reads are copies whose records are resolved against the versions as of its snapshot. Its
+   * temp tables work as usual.
+   *
+   * @return the new Transaction
+   */
+  public synchronized Transaction beginReadOnlyTransaction() {
+    Transaction t = new Transaction(this.numTransactions, this.versionClock.beginSnapshot());
+
+    this.numTransactions++;
+    return t;
+  }
+
+  /**
+   * Drops the versions of records that no snapshot needs any more from the given open tables.
+   */
+  private void pruneVersions(Collection<String> tableNames) {
+    for (String tableName : tableNames) {
+      CatalogEntry<Table> entry = this.tableLookup.get(tableName);
+      Table t = entry == null ? null : entry.getIfOpen();
+      if (t != null) {
+        t.pruneVersions();
+      }
+    }
+  }
+
   public class Transaction {
     long transNum;
     boolean active;
+    // the mode of every table, page and record lock the transaction holds
     HashMap<String, LockManager.LockType> locksHeld;
+    // the number of record locks the transaction holds on each table
+    HashMap<String, Integer> numRecordLocks;
     HashMap<String, Table> tempTables;
     HashMap<String, String> aliasMaps;
-
-    private Transaction(long tNum) {
+    // the snapshot a read-only transaction reads, or NO_SNAPSHOT
+    long snapshot;
+    // the tables a read-only transaction has read, whose versions it may have kept
+    HashSet<String> snapshotTables;
+    // the resources of query iterators, which are closed when the transaction ends
+    List<Closeable> toClose;
+
+    private Transaction(long tNum, long snapshot) {
       this.transNum = tNum;
       this.active = true;
       this.locksHeld = new HashMap<String, LockManager.LockType>();
+      this.numRecordLocks = new HashMap<String, Integer>();
       this.tempTables = new HashMap<String, Table>();
       this.aliasMaps = new HashMap<String, String>();
+      this.snapshot = snapshot;
+      this.snapshotTables = new HashSet<String>();
+      this.toClose = new ArrayList<Closeable>();
+    }
+
+    /**
+     * @return true if this transaction reads a snapshot; see beginReadOnlyTransaction
+     */
+    public boolean isReadOnly() {
+      return this.snapshot != NO_SNAPSHOT;
     }
 
     public boolean isActive() {
       return this.active;
     }
 
+    /**
+     * Commits the transaction: once its changes are forced to the log, its locks are released.
+     */
     public void end() {
       assert(this.active);
 
+      if (this.isReadOnly()) {
+        versionClock.endSnapshot(this.snapshot);
+        pruneVersions(this.snapshotTables);
+      } else {
+        if (log != null && log.commit(this.transNum) && log.size() > WriteAheadLog.CHECKPOINT_BYTES) {
+          Database.this.checkpoint();
+        }
+        versionClock.commit(this.transNum);
+        pruneVersions(this.locksHeld.keySet());
+      }
+      closeAll();
+      releaseAllLocks();
+      deleteAllTempTables();
+      this.active = false;
+    }
+
+    /**
+     * Rolls back every change the transaction made to the tables and their indices, and ends it. A
+     * transaction that was aborted to break a deadlock has ended already, and is left alone.
+     */
+    public void abort() throws DatabaseException {
+      if (!this.active) {
+        return;
+      }
+
+      if (log != null && log.getLastLSN(this.transNum) >= 0) {
+        beginChange();
+        try {
+          rollback(this.transNum, log.getLastLSN(this.transNum));
+        } finally {
+          endChange();
+        }
+      }
+      versionClock.abort(this.transNum);
+      pruneVersions(this.locksHeld.keySet());
+      closeAll();
       releaseAllLocks();
       deleteAllTempTables();
       this.active = false;
@@ -252,7 +1068,9 @@ public class Database {
     }
 
     /**
-     * Create a temporary table within this transaction.
+     * Create a temporary table within this transaction. The table is held in memory, and only
+     * written to a file under the database's temp directory if temporary tables outgrow their
+     * memory budget; see PageAllocator.setTempMemoryBytes. It is dropped when the transaction ends.
      *
      * @param schema the table schema
      * @param tempTableName the name of the table
@@ -265,12 +1083,9 @@ public class Database {
         || this.tempTables.containsKey(tempTableName))  {
         throw new DatabaseException("Table name already exists");
       }
-      File f = new File(Database.this.fileDir + "temp/");
-      if (!f.exists()) {
-        f.mkdirs();
-      }
-
-      this.tempTables.put(tempTableName, new Table(schema, tempTableName, Database.this.fileDir + "temp/"));
+      this.tempTables.put(tempTableName, new Table(schema, tempTableName, Database.this.fileDir + "temp/",
+                                                   Database.this.bufferPool, Page.pageSize,
+                                                   PageAllocator.Backend.MEMORY));
       this.locksHeld.put(tempTableName, LockManager.LockType.EXCLUSIVE);
     }
 
@@ -317,19 +1132,32 @@ public class Database {
     public RecordID addRecord(String tableName, List<DataType> values) throws DatabaseException {
       assert(this.active);
 
-      checkAndGrabExclusiveLock(tableName);
-      Table tab = getTable(tableName);
-      RecordID rid = tab.addRecord(values);
-      Schema s = tab.getSchema();
-      List<String> colNames = s.getFieldNames();
-
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          resolveIndexFromName(tableName, col).insertKey(values.get(i), rid);
+      checkAndGrabTableLock(tableName, LockManager.LockType.INTENTION_EXCLUSIVE);
+      Table tab = lookupTable(tableName);
+      SlotLocks slots = new SlotLocks(tableName);
+      RecordID rid;
+      beginChange();
+      try {
+        synchronized (tab) {
+          // the slot is locked before the record is put in it; slots freed by transactions that
+          // still hold their locks are skipped, so that rolling those back cannot overwrite it
+          rid = tab.addRecord(values, this.transNum, slots);
+          Schema s = tab.getSchema();
+          List<String> colNames = s.getFieldNames();
+
+          for (int i = 0; i < colNames.size(); i++) {
+            String col = colNames.get(i);
+            if (indexExists(tableName, col)) {
+              resolveIndexFromName(tableName, col).insertKey(values.get(i), rid);
+            }
+          }
         }
+      } finally {
+        endChange();
+      }
+      if (slots.claimedNewLock) {
+        countRecordLock(slots.tableName);
       }
-
       return rid;
     }
 
@@ -343,32 +1171,48 @@ public class Database {
     public void deleteRecord(String tableName, RecordID rid) throws DatabaseException {
       assert(active);
 
-      checkAndGrabExclusiveLock(tableName);
-      Table tab = getTable(tableName);
+      checkAndGrabRecordLock(tableName, rid, LockManager.LockType.EXCLUSIVE);
+      Table tab = lookupTable(tableName);
       Schema s = tab.getSchema();
 
-      Record rec = tab.deleteRecord(rid);
-      List<DataType> values = rec.getValues();
-      List<String> colNames = s.getFieldNames();
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          resolveIndexFromName(tableName, col).deleteKey(values.get(i), rid);
+      beginChange();
+      try {
+        synchronized (tab) {
+          Record rec = tab.deleteRecord(rid, this.transNum);
+          List<DataType> values = rec.getValues();
+          List<String> colNames = s.getFieldNames();
+          for (int i = 0; i < colNames.size(); i++) {
+            String col = colNames.get(i);
+            if (indexExists(tableName, col)) {
+              resolveIndexFromName(tableName, col).deleteKey(values.get(i), rid);
+            }
+          }
         }
+      } finally {
+        endChange();
       }
     }
 
     public Record getRecord(String tableName, RecordID rid) throws DatabaseException {
       assert(active);
 
-      checkAndGrabSharedLock(tableName);
-      return getTable(tableName).getRecord(rid);
+      checkAndGrabRecordLock(tableName, rid, LockManager.LockType.SHARED);
+      Table tab = lookupTable(tableName);
+      if (readsSnapshot(tableName)) {
+        return tab.getRecord(rid, this.snapshot);
+      }
+      synchronized (tab) {
+        return tab.getRecord(rid);
+      }
     }
 
     public Iterator<Record> getRecordIterator(String tableName) throws DatabaseException {
       assert(this.active);
 
       checkAndGrabSharedLock(tableName);
+      if (readsSnapshot(tableName)) {
+        return getTable(tableName).snapshotIterator(this.snapshot);
+      }
       return getTable(tableName).iterator();
     }
 
@@ -376,27 +1220,37 @@ public class Database {
       assert(this.active);
 
       checkAndGrabSharedLock(tableName);
+      if (readsSnapshot(tableName)) {
+        return getTable(tableName).snapshotPageIterator(this.snapshot);
+      }
       return getTable(tableName).pageIterator();
     }
 
     public void updateRecord(String tableName, List<DataType> values, RecordID rid) throws DatabaseException {
       assert(this.active);
-      checkAndGrabExclusiveLock(tableName);
-      Table tab = getTable(tableName);
+      checkAndGrabRecordLock(tableName, rid, LockManager.LockType.EXCLUSIVE);
+      Table tab = lookupTable(tableName);
       Schema s = tab.getSchema();
 
-      Record rec = tab.updateRecord(values, rid);
-
-      List<DataType> oldValues = rec.getValues();
-      List<String> colNames = s.getFieldNames();
-
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          BPlusTree tree = resolveIndexFromName(tableName, col);
-          tree.deleteKey(oldValues.get(i), rid);
-          tree.insertKey(values.get(i), rid);
+      beginChange();
+      try {
+        synchronized (tab) {
+          Record rec = tab.updateRecord(values, rid, this.transNum);
+
+          List<DataType> oldValues = rec.getValues();
+          List<String> colNames = s.getFieldNames();
+
+          for (int i = 0; i < colNames.size(); i++) {
+            String col = colNames.get(i);
+            if (indexExists(tableName, col)) {
+              BPlusTree tree = resolveIndexFromName(tableName, col);
+              tree.deleteKey(oldValues.get(i), rid);
+              tree.insertKey(values.get(i), rid);
+            }
+          }
         }
+      } finally {
+        endChange();
       }
     }
 
@@ -480,6 +1334,9 @@ public class Database {
     }
 
     private BPlusTree resolveIndexFromName(String tableName, String columnName) throws DatabaseException {
+      if (this.isReadOnly()) {
+        throw new DatabaseException("Indices cannot be read in a snapshot");
+      }
       while (aliasMaps.containsKey(tableName)) {
         tableName = aliasMaps.get(tableName);
       }
@@ -495,12 +1352,21 @@ public class Database {
       }
       String indexName = tableName + "," + columnName;
       if (Database.this.indexLookup.containsKey(indexName)) {
-        return Database.this.indexLookup.get(indexName);
+        return Database.this.indexLookup.get(indexName).get();
       }
       throw new DatabaseException("Index does not exist");
     }
 
     private Table getTable(String tableName) throws DatabaseException {
+      Table table = lookupTable(tableName);
+      checkAndGrabSharedLock(tableName);
+      return table;
+    }
+
+    /**
+     * Like getTable, but leaves locking the table to the caller.
+     */
+    private Table lookupTable(String tableName) throws DatabaseException {
       if (this.tempTables.containsKey(tableName)) {
         return this.tempTables.get(tableName);
       }
@@ -512,54 +1378,232 @@ public class Database {
       if (!Database.this.tableLookup.containsKey(tableName)) {
         throw new DatabaseException("Table: " + tableName + "does not exist");
       }
-      checkAndGrabSharedLock(tableName);
-      return Database.this.tableLookup.get(tableName);
+      return Database.this.tableLookup.get(tableName).get();
     }
 
-    private void checkAndGrabSharedLock(String tableName) throws DatabaseException{
-      if (this.locksHeld.containsKey(tableName)) {
-        return;
+    /**
+     * Notes the tables whose snapshots are read, so that end() can prune their versions.
+     *
+     * @return true if tableName is a table of the database that this transaction reads a snapshot of
+     */
+    private boolean readsSnapshot(String tableName) {
+      if (!this.isReadOnly() || this.tempTables.containsKey(tableName)) {
+        return false;
+      }
+      while (aliasMaps.containsKey(tableName)) {
+        tableName = aliasMaps.get(tableName);
       }
+      this.snapshotTables.add(tableName);
+      return true;
+    }
+
+    private void checkAndGrabSharedLock(String tableName) throws DatabaseException {
+      checkAndGrabTableLock(tableName, LockManager.LockType.SHARED);
+    }
+
+    private void checkAndGrabExclusiveLock(String tableName) throws DatabaseException {
+      checkAndGrabTableLock(tableName, LockManager.LockType.EXCLUSIVE);
+    }
 
+    private void checkAndGrabTableLock(String tableName, LockManager.LockType lockType) throws DatabaseException {
       while (aliasMaps.containsKey(tableName)) {
         tableName = aliasMaps.get(tableName);
       }
 
+      if (this.holds(tableName, lockType)) {
+        return;
+      }
+
       if (!this.tempTables.containsKey(tableName) && !Database.this.tableLookup.containsKey(tableName)) {
         throw new DatabaseException("Table: " + tableName + " Does not exist");
       }
-
-      LockManager lockMan = Database.this.lockMan;
-      if (lockMan.holdsLock(tableName, this.transNum, LockManager.LockType.SHARED)) {
-        this.locksHeld.put(tableName, LockManager.LockType.SHARED);
-      } else {
-        lockMan.acquireLock(tableName, this.transNum, LockManager.LockType.SHARED);
+      if (lockType.allowsWrites()) {
+        Database.this.checkWritable();
+        if (this.isReadOnly()) {
+          throw new DatabaseException("Transaction " + this.transNum + " is read-only");
+        }
+      } else if (Database.this.readOnly || this.isReadOnly()) {
+        // nothing can change a read-only table, and a snapshot is not changed by writers, so
+        // readers need no lock
+        return;
       }
+
+      grab(tableName, lockType);
     }
 
-    private void checkAndGrabExclusiveLock(String tableName) throws DatabaseException {
+    /**
+     * Locks a record of a table in lockType, SHARED or EXCLUSIVE, after locking its table and page
+     * in the matching intention mode, unless the lock on the table already covers the record.
+     */
+    private void checkAndGrabRecordLock(String tableName, RecordID rid, LockManager.LockType lockType)
+        throws DatabaseException {
       while (aliasMaps.containsKey(tableName)) {
         tableName = aliasMaps.get(tableName);
       }
 
-      if (this.locksHeld.containsKey(tableName) && this.locksHeld.get(tableName).equals(LockManager.LockType.EXCLUSIVE)) {
+      checkAndGrabTableLock(tableName, lockType.getIntention());
+      if (!lockType.allowsWrites() && (Database.this.readOnly || this.isReadOnly())) {
+        return;
+      }
+      if (this.holds(tableName, lockType)) {
         return;
       }
 
-      if (!this.tempTables.containsKey(tableName) && !Database.this.tableLookup.containsKey(tableName)) {
-        throw new DatabaseException("Table: " + tableName + " Does not exist");
+      String recordName = LockManager.recordName(tableName, rid);
+      if (this.holds(recordName, lockType)) {
+        return;
+      }
+      boolean isNew = !this.locksHeld.containsKey(recordName);
+      grab(LockManager.pageName(tableName, rid.getPageNum()), lockType.getIntention());
+      grab(recordName, lockType);
+      if (isNew) {
+        countRecordLock(tableName);
+      }
+    }
+
+    /**
+     * Counts a record lock newly taken on a table, and escalates the transaction's locks on the
+     * table once it holds more than LOCK_ESCALATION_THRESHOLD of them.
+     */
+    private void countRecordLock(String tableName) {
+      Integer count = this.numRecordLocks.get(tableName);
+      count = count == null ? 1 : count + 1;
+      this.numRecordLocks.put(tableName, count);
+      if (count > LOCK_ESCALATION_THRESHOLD) {
+        escalate(tableName);
+      }
+    }
+
+    /**
+     * Claims free slots of a table for addRecord by locking them EXCLUSIVE, after their page in
+     * INTENTION_EXCLUSIVE, as checkAndGrabRecordLock does. The table is latched while slots are
+     * claimed, so a lock that would have to be waited for refuses the slot instead. The table must
+     * already be locked INTENTION_EXCLUSIVE; the claimed slot's lock is counted once the latch has
+     * been released, since escalating may wait.
+     */
+    private class SlotLocks implements Table.Slots {
+      private final String tableName;
+      // true if the claimed slot was not locked by the transaction before
+      private boolean claimedNewLock;
+
+      private SlotLocks(String tableName) {
+        while (aliasMaps.containsKey(tableName)) {
+          tableName = aliasMaps.get(tableName);
+        }
+        this.tableName = tableName;
       }
 
+      public boolean tryClaim(RecordID rid) {
+        if (holds(this.tableName, LockManager.LockType.EXCLUSIVE)) {
+          return true;
+        }
+        String recordName = LockManager.recordName(this.tableName, rid);
+        boolean isNew = !locksHeld.containsKey(recordName);
+        if (!tryGrab(LockManager.pageName(this.tableName, rid.getPageNum()),
+                     LockManager.LockType.INTENTION_EXCLUSIVE)
+            || !tryGrab(recordName, LockManager.LockType.EXCLUSIVE)) {
+          return false;
+        }
+        this.claimedNewLock = isNew;
+        return true;
+      }
+    }
+
+    /**
+     * Trades the page and record locks the transaction holds on a table for a SHARED or EXCLUSIVE
+     * lock on the whole table, whichever covers them.
+     */
+    private void escalate(String tableName) {
+      LockManager.LockType held = this.locksHeld.get(tableName);
+      grab(tableName, held.allowsWrites() ? LockManager.LockType.EXCLUSIVE : LockManager.LockType.SHARED);
+
       LockManager lockMan = Database.this.lockMan;
+      Iterator<String> names = this.locksHeld.keySet().iterator();
+      while (names.hasNext()) {
+        String name = names.next();
+        if (LockManager.isWithin(name, tableName)) {
+          lockMan.releaseLock(name, this.transNum);
+          names.remove();
+        }
+      }
+      this.numRecordLocks.remove(tableName);
+    }
 
-      if (lockMan.holdsLock(tableName, this.transNum, LockManager.LockType.EXCLUSIVE)) {
-        this.locksHeld.put(tableName, LockManager.LockType.EXCLUSIVE);
-      } else {
-        lockMan.acquireLock(tableName, this.transNum, LockManager.LockType.EXCLUSIVE);
+    /**
+     * @return true if the transaction holds a lock on name that covers lockType
+     */
+    private boolean holds(String name, LockManager.LockType lockType) {
+      LockManager.LockType held = this.locksHeld.get(name);
+      return held != null && held.covers(lockType);
+    }
+
+    /**
+     * Locks name in lockType, waiting for it if need be. If the wait is aborted to break a deadlock,
+     * the transaction is rolled back and its locks released before the DeadlockException is thrown,
+     * so that the other transactions of the deadlock can go on.
+     */
+    private void grab(String name, LockManager.LockType lockType) {
+      LockManager.LockType held = this.locksHeld.get(name);
+      if (held != null && held.covers(lockType)) {
+        return;
       }
+      try {
+        Database.this.lockMan.acquireLock(name, this.transNum, lockType);
+      } catch (DeadlockException e) {
+        try {
+          abort();
+        } catch (DatabaseException de) {
+          throw new DeadlockException(de);
+        }
+        throw e;
+      }
+      this.locksHeld.put(name, held == null ? lockType : held.combine(lockType));
+    }
+
+    /**
+     * Locks name in lockType like grab, unless the lock would have to be waited for.
+     *
+     * @return true if the transaction now holds a lock on name that covers lockType
+     */
+    private boolean tryGrab(String name, LockManager.LockType lockType) {
+      LockManager.LockType held = this.locksHeld.get(name);
+      if (held != null && held.covers(lockType)) {
+        return true;
+      }
+      if (!Database.this.lockMan.tryAcquireLock(name, this.transNum, lockType)) {
+        return false;
+      }
+      this.locksHeld.put(name, held == null ? lockType : held.combine(lockType));
+      return true;
+    }
+
+    /**
+     * Closes resource when the transaction ends or aborts. A query iterator that pins pages
+     * registers itself here, so that its pages are unpinned even if it is dropped before it is
+     * used up.
+     *
+     * @param resource a resource that may be closed more than once
+     */
+    public void closeAtEnd(Closeable resource) {
+      assert(this.active);
+      this.toClose.add(resource);
+    }
+
+    private void closeAll() {
+      for (Closeable resource : this.toClose) {
+        try {
+          resource.close();
+        } catch (IOException e) {
+          // the transaction ends regardless
+        }
+      }
+      this.toClose.clear();
     }
 
     private void releaseAllLocks() {
+      if (Database.this.readOnly) {
+        return;
+      }
       LockManager lockMan = Database.this.lockMan;
 
       for (String tableName : this.locksHeld.keySet()) {
@@ -574,11 +1618,9 @@ public class Database {
         return;
       }
 
+      // closing a temporary table drops its pages, and deletes its file if it spilled to one
       this.tempTables.get(tempTableName).close();
       Database.this.tableLookup.remove(tempTableName);
-
-      File f = new File(Database.this.fileDir + "temp/" + tempTableName + Table.FILENAME_EXTENSION);
-      f.delete();
     }
 
     private void deleteAllTempTables() {
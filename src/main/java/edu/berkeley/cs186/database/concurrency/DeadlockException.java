@@ -1,8 +1,9 @@
 package edu.berkeley.cs186.database.concurrency;
 
 /**
- * Should be thrown when a deadlock occurs (indicated by a cycle
- * in the WaitsForGraph of the LockManager)
+ * Thrown by a lock request that the LockManager's deadlock detector aborted
+ * to break a deadlock (indicated by a cycle in the WaitsForGraph of the
+ * LockManager)
  */
 public class DeadlockException extends RuntimeException {
   private String message;
@@ -1,192 +1,492 @@
 package edu.berkeley.cs186.database.concurrency;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.Iterator;
-import java.lang.*;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Each table will have a lock object associated with it in order
- * to implement table-level locking. The lock will keep track of its
- * transaction owners, type, and the waiting queue.
+ * Each lockable resource (a table, a page of a table or a record) has a lock
+ * object associated with it. The lock keeps track of the mode each of its
+ * transaction owners holds it in, and of the waiting queue.
+ *
+ * A request is granted once its mode is compatible with the modes of every
+ * other owner and of every request queued ahead of it, so that requests are
+ * served in FIFO order. A transaction that already owns the lock and asks for
+ * a stronger mode is upgraded to the combination of both modes, ahead of the
+ * queue.
+ *
+ * Waiting requests are granted by hand-off: a release walks the queue, makes
+ * the requests that have become grantable owners, and unparks just their
+ * threads. A waiter never re-checks the queue itself, so a release costs one
+ * walk of the queue however many transactions wait. The same walk brings the
+ * waits-for edges of the requests left waiting up to date.
  */
 public class Lock {
+  private static final AtomicLong nextRequestNum = new AtomicLong(0);
+  private static final LockManager.LockType[] MODES = LockManager.LockType.values();
 
+  private final ReentrantLock latch;
+  private final Map<Long, LockManager.LockType> transactionOwners;
+  private final LinkedList<LockRequest> transactionQueue;
+  // the number of acquireLock calls that have found this lock and not yet returned, or -1 once the
+  // lock has been dropped from its LockManager
+  private final AtomicInteger numUsers;
 
-  private Set<Long> transactionOwners;
-  private ConcurrentLinkedQueue<LockRequest> transactionQueue;
-  private LockManager.LockType type;
-
-  public Lock(LockManager.LockType type) {
-    this.transactionOwners = new HashSet<Long>();
-    this.transactionQueue = new ConcurrentLinkedQueue<LockRequest>();
-    this.type = type;
+  public Lock() {
+    this.latch = new ReentrantLock();
+    this.transactionOwners = new HashMap<Long, LockManager.LockType>();
+    this.transactionQueue = new LinkedList<LockRequest>();
+    this.numUsers = new AtomicInteger(0);
   }
 
-  protected Set<Long> getOwners() {
-    return this.transactionOwners;
+  /**
+   * @return a copy of the owners of this lock and the mode each holds it in
+   */
+  protected Map<Long, LockManager.LockType> getOwners() {
+    this.latch.lock();
+    try {
+      return new HashMap<Long, LockManager.LockType>(this.transactionOwners);
+    } finally {
+      this.latch.unlock();
+    }
   }
 
+  /**
+   * @return the combined mode of every owner, or null if the lock has no owner
+   */
   public LockManager.LockType getType() {
-    return this.type;
-  }
-
-  private void setType(LockManager.LockType newType) {
-    this.type = newType;
+    this.latch.lock();
+    try {
+      LockManager.LockType type = null;
+      for (LockManager.LockType held : this.transactionOwners.values()) {
+        type = type == null ? held : type.combine(held);
+      }
+      return type;
+    } finally {
+      this.latch.unlock();
+    }
   }
 
   public int getSize() {
-    return this.transactionOwners.size();
+    this.latch.lock();
+    try {
+      return this.transactionOwners.size();
+    } finally {
+      this.latch.unlock();
+    }
   }
 
   public boolean isEmpty() {
-    return this.transactionOwners.isEmpty();
-  }
-
-  private boolean containsTransaction(long transNum) {
-    return this.transactionOwners.contains(transNum);
+    return getSize() == 0;
   }
 
-  private void addToQueue(long transNum, LockManager.LockType lockType) {
-    LockRequest lockRequest = new LockRequest(transNum, lockType);
-    this.transactionQueue.add(lockRequest);
+  public int getQueueLength() {
+    this.latch.lock();
+    try {
+      return this.transactionQueue.size();
+    } finally {
+      this.latch.unlock();
+    }
   }
 
-  private void removeFromQueue(long transNum, LockManager.LockType lockType) {
-    LockRequest lockRequest = new LockRequest(transNum, lockType);
-    this.transactionQueue.remove(lockRequest);
+  /**
+   * Registers a caller that is about to ask for this lock, so that it is not dropped meanwhile.
+   *
+   * @return false if the lock has already been dropped, and a new one must be looked up
+   */
+  protected boolean pin() {
+    while (true) {
+      int users = this.numUsers.get();
+      if (users < 0) {
+        return false;
+      }
+      if (this.numUsers.compareAndSet(users, users + 1)) {
+        return true;
+      }
+    }
   }
 
-  private void addOwner(long transNum) {
-    this.transactionOwners.add(transNum);
+  protected void unpin() {
+    this.numUsers.decrementAndGet();
   }
 
-  private void removeOwner(long transNum) {
-    this.transactionOwners.remove(transNum);
+  /**
+   * Marks the lock as dropped if no transaction owns, waits for or is about to ask for it. A lock
+   * that is dropped can no longer be pinned.
+   *
+   * @return true if the lock was dropped, and must be removed from its LockManager
+   */
+  protected boolean retireIfIdle() {
+    this.latch.lock();
+    try {
+      return this.transactionOwners.isEmpty() && this.transactionQueue.isEmpty()
+             && this.numUsers.compareAndSet(0, -1);
+    } finally {
+      this.latch.unlock();
+    }
   }
 
-  private boolean checkCompatible(long transNum, LockManager.LockType lockType) {
-    //System.out.print(Thread.currentThread().getName() + " owner has " + transactionOwners.size());
-    LockRequest top = transactionQueue.peek();
-    LockRequest r = new LockRequest(transNum, lockType);
-    if (transactionOwners.size() == 0 && top.equals(r)) {
-      //System.out.println("empty owner im at the top true");
+  /**
+   * @param r a request, queued or about to be
+   * @param aheadModes the number of requests of each mode, by ordinal, queued
+   *                   ahead of r that are still waiting
+   * @return true if r can be granted now
+   */
+  private boolean isGrantable(LockRequest r, int[] aheadModes) {
+    for (Map.Entry<Long, LockManager.LockType> owner : this.transactionOwners.entrySet()) {
+      if (owner.getKey() != r.transNum && !owner.getValue().isCompatibleWith(r.lockType)) {
+        return false;
+      }
+    }
+    if (r.upgrade) {
       return true;
     }
-    if (transactionOwners.contains(transNum)) {
-      if (type == LockManager.LockType.EXCLUSIVE) {
-        //System.out.println("Same tranx same lock");
-        return true;
+    for (LockManager.LockType mode : MODES) {
+      if (aheadModes[mode.ordinal()] > 0 && !mode.isCompatibleWith(r.lockType)) {
+        return false;
       }
-      if (transactionOwners.size() == 1 &&
-          type == LockManager.LockType.SHARED && lockType == LockManager.LockType.EXCLUSIVE) {
-        //System.out.println("upgrade true");
-        return true;
+    }
+    return true;
+  }
+
+  private int[] countModes(List<LockRequest> requests) {
+    int[] modes = new int[MODES.length];
+    for (LockRequest r : requests) {
+      modes[r.lockType.ordinal()]++;
+    }
+    return modes;
+  }
+
+  /**
+   * @param r a request that cannot be granted
+   * @param ahead the requests queued ahead of r that are still waiting
+   * @return the other transactions r waits for: the owners it conflicts with,
+   * and, unless it is an upgrade, those of the conflicting requests ahead of it
+   */
+  private Set<Long> getBlockers(LockRequest r, List<LockRequest> ahead) {
+    Set<Long> blockers = new HashSet<Long>();
+    for (Map.Entry<Long, LockManager.LockType> owner : this.transactionOwners.entrySet()) {
+      if (owner.getKey() != r.transNum && !owner.getValue().isCompatibleWith(r.lockType)) {
+        blockers.add(owner.getKey());
       }
     }
-    if ((type != LockManager.LockType.SHARED) || (lockType != LockManager.LockType.SHARED)) {
-      //System.out.println("not all SHARED false");
-      return false;
+    if (!r.upgrade) {
+      for (LockRequest waiting : ahead) {
+        if (waiting.transNum != r.transNum && !waiting.lockType.isCompatibleWith(r.lockType)) {
+          blockers.add(waiting.transNum);
+        }
+      }
     }
+    return blockers;
+  }
 
-    if (r.equals(top)) {
-      //System.out.println("at the top true");
-      return true;
+  /**
+   * Makes graph show r as waiting for exactly the transactions in blockers.
+   */
+  private static void setEdges(LockRequest r, Set<Long> blockers, WaitsForGraph graph) {
+    for (Long holder : r.waitsFor) {
+      if (!blockers.contains(holder)) {
+        graph.removeEdge(r.transNum, holder);
+      }
+    }
+    for (Long holder : blockers) {
+      if (!r.waitsFor.contains(holder)) {
+        graph.addEdge(r.transNum, holder);
+      }
     }
-    Iterator<LockRequest> iter = transactionQueue.iterator();
+    r.waitsFor = blockers;
+  }
+
+  /**
+   * Walks the queue after a transaction has stopped owning or waiting for the
+   * lock: grants the requests that have become grantable, in queue order, and
+   * brings the edges of the others that waited for the transaction up to date.
+   * A request granted on the way keeps blocking the same requests behind it,
+   * now as an owner, so their edges stay as they are.
+   *
+   * @param gone the transaction that released the lock or stopped waiting
+   * @param graph the graph that holds the edges of the waiting requests
+   * @return the requests granted, whose threads must be unparked once the latch is released
+   */
+  private List<LockRequest> grantWaiters(long gone, WaitsForGraph graph) {
+    List<LockRequest> granted = new ArrayList<LockRequest>();
+    List<LockRequest> ahead = new ArrayList<LockRequest>();
+    int[] aheadModes = new int[MODES.length];
+    Iterator<LockRequest> iter = this.transactionQueue.iterator();
     while (iter.hasNext()) {
-      LockRequest el = iter.next();
-      if (el.equals(r)) {
-        //System.out.println("found self true");
-        return true;
-      } else if (el.getType() == LockManager.LockType.EXCLUSIVE) {
-        //System.out.println("EXCLUSIVE ahead false");
-        return false;
+      LockRequest r = iter.next();
+      if (isGrantable(r, aheadModes)) {
+        iter.remove();
+        this.transactionOwners.put(r.transNum, r.lockType);
+        setEdges(r, Collections.<Long>emptySet(), graph);
+        granted.add(r);
+      } else {
+        if (r.waitsFor.contains(gone)) {
+          setEdges(r, getBlockers(r, ahead), graph);
+        }
+        ahead.add(r);
+        aheadModes[r.lockType.ordinal()]++;
       }
     }
-    return true;
+    return granted;
   }
 
   /**
-   * Attempts to resolve the specified lockRequest. Adds the request to the queue
-   * and calls wait() until the request can be promoted and removed from the queue.
-   * It then modifies this lock's owners/type as necessary.
+   * Brings the edges of every waiting request up to date.
+   */
+  private void refreshEdges(WaitsForGraph graph) {
+    List<LockRequest> ahead = new ArrayList<LockRequest>();
+    for (LockRequest r : this.transactionQueue) {
+      setEdges(r, getBlockers(r, ahead), graph);
+      ahead.add(r);
+    }
+  }
+
+  /**
+   * Grants the specified lockRequest at once if it can be, and otherwise adds it
+   * to the queue and parks until a release hands the lock over. A request for a
+   * mode the transaction already holds, or a weaker one, returns at once.
+   *
+   * While a request waits, the manager's WaitsForGraph has an edge from its
+   * transaction to each transaction it waits for, and the manager's deadlock
+   * detector may abort it.
    * @param transNum transNum of the lock request
    * @param lockType lockType of the lock request
+   * @param manager the LockManager the lock belongs to
+   * @throws DeadlockException if the request is aborted to break a deadlock
    */
-  protected synchronized void acquire(long transNum, LockManager.LockType lockType) {
-    //TODO: Implement Me!!
-    LockRequest r = new LockRequest(transNum, lockType);
-    transactionQueue.add(r);
-    while (!checkCompatible(transNum, lockType)) {
-      try {
-        wait();
-        //System.out.println(Thread.currentThread().getName() + " waked");
-      } catch (Exception e) {
-        //System.out.println(e.getClass().toString() + " " + e.getMessage());
+  protected void acquire(long transNum, LockManager.LockType lockType, LockManager manager) {
+    LockRequest r;
+    this.latch.lock();
+    try {
+      LockManager.LockType held = this.transactionOwners.get(transNum);
+      if (held != null && held.covers(lockType)) {
+        return;
+      }
+      r = new LockRequest(transNum, held == null ? lockType : held.combine(lockType), held != null);
+      if (grantAtOnce(r, manager.getWaitsForGraph())) {
+        return;
       }
+      List<LockRequest> ahead = new ArrayList<LockRequest>(this.transactionQueue);
+      setEdges(r, getBlockers(r, ahead), manager.getWaitsForGraph());
+      if (r.upgrade) {
+        // upgrades are served before the requests of transactions that do not own the lock yet
+        int i = 0;
+        while (i < this.transactionQueue.size() && this.transactionQueue.get(i).upgrade) {
+          i++;
+        }
+        this.transactionQueue.add(i, r);
+      } else {
+        this.transactionQueue.add(r);
+      }
+    } finally {
+      this.latch.unlock();
+    }
+    manager.startDeadlockDetector();
+
+    boolean interrupted = false;
+    while (!r.granted && !r.aborted) {
+      LockSupport.park(this);
+      if (Thread.interrupted()) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (r.aborted) {
+      throw new DeadlockException("Transaction " + transNum + " was aborted to break a deadlock");
     }
-    transactionQueue.remove(r);
-    addOwner(transNum);
-    type = lockType;
   }
 
   /**
-   * transNum releases ownership of this lock
-   * @param transNum transNum of transaction that is releasing ownership of this lock
+   * Grants the specified lockRequest if it can be granted at once, as acquire does, and otherwise
+   * leaves the lock as it is instead of waiting.
+   * @param transNum transNum of the lock request
+   * @param lockType lockType of the lock request
+   * @param manager the LockManager the lock belongs to
+   * @return true if the transaction now holds the lock in a mode that covers lockType
    */
-  protected synchronized void release(long transNum) {
-    //TODO: Implement Me!!
-    removeOwner(transNum);
-    type = LockManager.LockType.SHARED;
-    //System.out.println("Release, remaning owner " + transactionOwners.size());
-    notifyAll();
-    return;
+  protected boolean tryAcquire(long transNum, LockManager.LockType lockType, LockManager manager) {
+    this.latch.lock();
+    try {
+      LockManager.LockType held = this.transactionOwners.get(transNum);
+      if (held != null && held.covers(lockType)) {
+        return true;
+      }
+      LockRequest r = new LockRequest(transNum, held == null ? lockType : held.combine(lockType),
+                                      held != null);
+      return grantAtOnce(r, manager.getWaitsForGraph());
+    } finally {
+      this.latch.unlock();
+    }
   }
 
   /**
-   * Checks if the specified transNum holds a lock of lockType on this lock object
-   * @param transNum transNum of lock request
-   * @param lockType lock type of lock request
-   * @return true if transNum holds the lock of type lockType
+   * Makes r's transaction an owner if r can be granted without waiting. Called with the latch held.
+   *
+   * @return true if r was granted
    */
-  protected synchronized boolean holds(long transNum, LockManager.LockType lockType) {
-    //TODO: Implement Me!!
-    return (transactionOwners.contains(transNum) && type == lockType);
+  private boolean grantAtOnce(LockRequest r, WaitsForGraph graph) {
+    if (!isGrantable(r, countModes(this.transactionQueue))) {
+      return false;
+    }
+    this.transactionOwners.put(r.transNum, r.lockType);
+    if (r.upgrade && !this.transactionQueue.isEmpty()) {
+      // the stronger mode may block requests that did not wait for the transaction before
+      refreshEdges(graph);
+    }
+    return true;
   }
 
   /**
-   * LockRequest objects keeps track of the transNum and lockType.
-   * Two LockRequests are equal if they have the same transNum and lockType.
+   * transNum releases ownership of this lock, which is handed to the waiting
+   * requests that become grantable.
+   * @param transNum transNum of transaction that is releasing ownership of this lock
+   * @param graph the waits-for graph of the LockManager
    */
-  private class LockRequest {
-      private long transNum;
-      private LockManager.LockType lockType;
-      private LockRequest(long transNum, LockManager.LockType lockType) {
-        this.transNum = transNum;
-        this.lockType = lockType;
+  protected void release(long transNum, WaitsForGraph graph) {
+    List<LockRequest> granted;
+    this.latch.lock();
+    try {
+      if (this.transactionOwners.remove(transNum) == null) {
+        return;
       }
+      granted = grantWaiters(transNum, graph);
+    } finally {
+      this.latch.unlock();
+    }
+    for (LockRequest r : granted) {
+      r.granted = true;
+      LockSupport.unpark(r.waiter);
+    }
+  }
 
-      @Override
-      public int hashCode() {
-        return (int) transNum;
+  /**
+   * Aborts the requests transNum is waiting for this lock with, whose threads
+   * then throw a DeadlockException. The locks transNum owns are kept.
+   * @param transNum the transaction chosen to break a deadlock
+   * @param graph the waits-for graph of the LockManager
+   * @return true if transNum had a request waiting
+   */
+  protected boolean abortWaiting(long transNum, WaitsForGraph graph) {
+    List<LockRequest> aborted = new ArrayList<LockRequest>();
+    List<LockRequest> granted;
+    this.latch.lock();
+    try {
+      Iterator<LockRequest> iter = this.transactionQueue.iterator();
+      while (iter.hasNext()) {
+        LockRequest r = iter.next();
+        if (r.transNum == transNum) {
+          iter.remove();
+          setEdges(r, Collections.<Long>emptySet(), graph);
+          aborted.add(r);
+        }
+      }
+      if (aborted.isEmpty()) {
+        return false;
       }
+      // the requests behind the aborted ones may no longer have to wait
+      granted = grantWaiters(transNum, graph);
+    } finally {
+      this.latch.unlock();
+    }
+    for (LockRequest r : aborted) {
+      r.aborted = true;
+      LockSupport.unpark(r.waiter);
+    }
+    for (LockRequest r : granted) {
+      r.granted = true;
+      LockSupport.unpark(r.waiter);
+    }
+    return true;
+  }
 
-      @Override
-      public boolean equals(Object obj) {
-        if (!(obj instanceof LockRequest))
-          return false;
-        if (obj == this)
-          return true;
+  /**
+   * @param transNum a transaction
+   * @return true if transNum owns this lock, in any mode
+   */
+  protected boolean isOwner(long transNum) {
+    this.latch.lock();
+    try {
+      return this.transactionOwners.containsKey(transNum);
+    } finally {
+      this.latch.unlock();
+    }
+  }
 
-        LockRequest rhs = (LockRequest) obj;
-        return (this.transNum == rhs.transNum) && (this.lockType == rhs.lockType);
+  /**
+   * @param transNum a transaction
+   * @return the sequence number of the last request transNum queued for this
+   * lock that is still waiting, or -1 if it has none; later requests have
+   * larger numbers, across all locks
+   */
+  protected long getLastWaitNum(long transNum) {
+    this.latch.lock();
+    try {
+      long last = -1;
+      for (LockRequest r : this.transactionQueue) {
+        if (r.transNum == transNum) {
+          last = Math.max(last, r.requestNum);
+        }
       }
+      return last;
+    } finally {
+      this.latch.unlock();
+    }
+  }
 
-      public LockManager.LockType getType() {
-        return lockType;
-      }
+  /**
+   * Checks if the specified transNum holds a lock of lockType on this lock object
+   * @param transNum transNum of lock request
+   * @param lockType lock type of lock request
+   * @return true if transNum holds the lock in exactly the mode lockType
+   */
+  protected boolean holds(long transNum, LockManager.LockType lockType) {
+    this.latch.lock();
+    try {
+      return this.transactionOwners.get(transNum) == lockType;
+    } finally {
+      this.latch.unlock();
+    }
   }
 
+  /**
+   * LockRequest objects keeps track of the transNum and lockType, and of the
+   * thread that waits for the request to be granted. Each request is a distinct
+   * object, even if a transaction asks for the same lock twice.
+   */
+  private static class LockRequest {
+    private final long transNum;
+    private final LockManager.LockType lockType;
+    // true if the transaction already owns the lock in a weaker mode
+    private final boolean upgrade;
+    private final long requestNum;
+    private final Thread waiter;
+    // the transactions this request has an edge to in the waits-for graph
+    private Set<Long> waitsFor;
+    private volatile boolean granted;
+    private volatile boolean aborted;
+
+    private LockRequest(long transNum, LockManager.LockType lockType, boolean upgrade) {
+      this.transNum = transNum;
+      this.lockType = lockType;
+      this.upgrade = upgrade;
+      this.requestNum = nextRequestNum.getAndIncrement();
+      this.waiter = Thread.currentThread();
+      this.waitsFor = Collections.emptySet();
+      this.granted = false;
+      this.aborted = false;
+    }
+  }
 }
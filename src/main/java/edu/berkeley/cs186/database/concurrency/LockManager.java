@@ -1,108 +1,353 @@
 package edu.berkeley.cs186.database.concurrency;
 
-import java.util.Set;
+import edu.berkeley.cs186.database.table.RecordID;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * The LockManager provides allows for table-level locking by keeping
- * track of which transactions own and are waiting for locks on specific tables.
+ * The LockManager provides multi-granularity locking by keeping track of which
+ * transactions own and are waiting for locks on specific resources.
+ *
+ * Resources form a hierarchy: a table, the pages of the table, and the records
+ * on each page, named by tableName, pageName and recordName. A transaction
+ * locks a record in SHARED or EXCLUSIVE mode after locking the page and table
+ * above it in the matching intention mode (see LockType#getIntention), so that
+ * a lock on a whole table conflicts with the locks on its records without
+ * looking at them. Locks on tables alone are used the same way as before.
+ *
+ * Locks are created and dropped without a lock on the whole table of locks:
+ * the lock of a resource is created on its first request with putIfAbsent, and
+ * dropped once no transaction holds, waits for or is looking it up, so that
+ * record locks do not pile up. A request that finds a lock just as it is
+ * dropped looks it up again.
+ *
+ * Acquiring a lock does not look for deadlocks. A request that has to wait
+ * is entered in the WaitsForGraph, and while any request waits, a background
+ * thread looks for cycles in the graph every DEADLOCK_CHECK_MILLIS and aborts
+ * the requests of a victim on each, which throw a DeadlockException.
  *
  * THIS CODE IS FOR PROJECT 3.
  */
 public class LockManager {
-  
-  public enum LockType {SHARED, EXCLUSIVE};
+
+  /**
+   * The lock modes, from weakest to strongest: INTENTION_SHARED (IS) and
+   * INTENTION_EXCLUSIVE (IX) announce S and X locks further down the hierarchy,
+   * and SHARED_INTENTION_EXCLUSIVE (SIX) is SHARED together with IX.
+   */
+  public enum LockType {
+    SHARED, EXCLUSIVE, INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE;
+
+    /**
+     * @param other another lock mode
+     * @return true if two transactions can hold the same lock in this mode and other
+     */
+    public boolean isCompatibleWith(LockType other) {
+      switch (this) {
+        case INTENTION_SHARED:
+          return other != EXCLUSIVE;
+        case INTENTION_EXCLUSIVE:
+          return other == INTENTION_SHARED || other == INTENTION_EXCLUSIVE;
+        case SHARED:
+          return other == INTENTION_SHARED || other == SHARED;
+        case SHARED_INTENTION_EXCLUSIVE:
+          return other == INTENTION_SHARED;
+        default:
+          return false;
+      }
+    }
+
+    /**
+     * @param other another lock mode
+     * @return true if holding this mode allows everything holding other does
+     */
+    public boolean covers(LockType other) {
+      switch (this) {
+        case EXCLUSIVE:
+          return true;
+        case SHARED_INTENTION_EXCLUSIVE:
+          return other != EXCLUSIVE;
+        case SHARED:
+          return other == SHARED || other == INTENTION_SHARED;
+        case INTENTION_EXCLUSIVE:
+          return other == INTENTION_EXCLUSIVE || other == INTENTION_SHARED;
+        default:
+          return other == INTENTION_SHARED;
+      }
+    }
+
+    /**
+     * @param other another lock mode
+     * @return the weakest mode that covers both this and other
+     */
+    public LockType combine(LockType other) {
+      if (this.covers(other)) {
+        return this;
+      }
+      if (other.covers(this)) {
+        return other;
+      }
+      // SHARED and INTENTION_EXCLUSIVE are the only modes neither of which covers the other
+      return SHARED_INTENTION_EXCLUSIVE;
+    }
+
+    /**
+     * @return the mode the parent of a resource must be locked in before the resource is locked in
+     * this mode
+     */
+    public LockType getIntention() {
+      if (this == SHARED || this == INTENTION_SHARED) {
+        return INTENTION_SHARED;
+      }
+      return INTENTION_EXCLUSIVE;
+    }
+
+    /**
+     * @return true if this mode allows changes to the resource or to the resources under it
+     */
+    public boolean allowsWrites() {
+      return this != SHARED && this != INTENTION_SHARED;
+    }
+  }
+
+  // how often the deadlock detector looks for cycles while requests wait
+  public static final long DEADLOCK_CHECK_MILLIS = 50;
+
   private ConcurrentHashMap<String, Lock> tableNameToLock;
   private WaitsForGraph waitsForGraph;
-  
+  // true while the deadlock detector thread runs
+  private final AtomicBoolean detecting;
+
   public LockManager() {
     tableNameToLock = new ConcurrentHashMap<String, Lock>();
     waitsForGraph = new WaitsForGraph();
+    detecting = new AtomicBoolean(false);
+  }
+
+  /**
+   * @param tableName a table
+   * @param pageNum a page of the table
+   * @return the name the page is locked under
+   */
+  public static String pageName(String tableName, int pageNum) {
+    return tableName + "/" + pageNum;
   }
 
   /**
-   * Acquires a lock on tableName of type lockType for transaction transNum.
+   * @param tableName a table
+   * @param rid a record of the table
+   * @return the name the record is locked under
+   */
+  public static String recordName(String tableName, RecordID rid) {
+    return pageName(tableName, rid.getPageNum()) + "/" + rid.getSlotNumber();
+  }
+
+  /**
+   * @param name the name of a resource
+   * @param tableName a table
+   * @return true if name is a page or record of tableName
+   */
+  public static boolean isWithin(String name, String tableName) {
+    return name.length() > tableName.length() && name.startsWith(tableName)
+           && name.charAt(tableName.length()) == '/';
+  }
+
+  /**
+   * Acquires a lock on tableName of type lockType for transaction transNum. If
+   * the transaction already holds the lock in a weaker mode, it is upgraded.
    *
-   * @param tableName the database to lock on
+   * @param tableName the resource to lock on
    * @param transNum the transactions id
    * @param lockType the type of lock
+   * @throws DeadlockException if the transaction is aborted to break a deadlock while it waits
    */
   public void acquireLock(String tableName, long transNum, LockType lockType) {
-    if (!this.tableNameToLock.containsKey(tableName)) {
-      this.tableNameToLock.put(tableName, new Lock(lockType));
+    Lock lock = pinLock(tableName);
+
+    try {
+      lock.acquire(transNum, lockType, this);
+    } finally {
+      lock.unpin();
+      dropIfIdle(tableName, lock);
     }
-    Lock lock = this.tableNameToLock.get(tableName);
+  }
 
-    handlePotentialDeadlock(lock, transNum, lockType);
+  /**
+   * Acquires a lock on tableName of type lockType for transaction transNum if it
+   * can be granted without waiting, as acquireLock would grant it.
+   *
+   * @param tableName the resource to lock on
+   * @param transNum the transactions id
+   * @param lockType the type of lock
+   * @return true if the transaction now holds the lock; false if it would have to
+   * wait, in which case nothing is queued
+   */
+  public boolean tryAcquireLock(String tableName, long transNum, LockType lockType) {
+    Lock lock = pinLock(tableName);
 
-    lock.acquire(transNum, lockType);
+    try {
+      return lock.tryAcquire(transNum, lockType, this);
+    } finally {
+      lock.unpin();
+      dropIfIdle(tableName, lock);
+    }
+  }
 
+  WaitsForGraph getWaitsForGraph() {
+    return this.waitsForGraph;
   }
 
   /**
-   * Adds any nodes/edges caused the by the specified LockRequest to
-   * this LockManager's WaitsForGraph
-   * @param lock the lock on the table that the LockRequest is for
-   * @param transNum the transNum of the lock request
-   * @param lockType the lockType of the lcok request
+   * Starts the deadlock detector thread, unless it is running. Called once a
+   * request has been queued; the thread stops by itself once nothing waits.
    */
-  private void handlePotentialDeadlock(Lock lock, long transNum, LockType lockType) {
-    //TODO: Implement Me!!
-    if(!waitsForGraph.containsNode(transNum)) {
-      waitsForGraph.addNode(transNum);
+  void startDeadlockDetector() {
+    if (!this.detecting.compareAndSet(false, true)) {
+      return;
     }
-    Set<Long> owners = lock.getOwners();
-    if (owners.contains(transNum)) {
-      if (lock.getType() == LockType.EXCLUSIVE) {
-        return;
-      } else if (lock.getType() == lockType) {
+    Thread detector = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(DEADLOCK_CHECK_MILLIS);
+          } catch (InterruptedException e) {
+            // checked again below
+          }
+          breakDeadlocks();
+          if (waitsForGraph.isEmpty()) {
+            detecting.set(false);
+            // a request may have been queued after the graph was checked, without starting a
+            // detector since this one was still running
+            if (waitsForGraph.isEmpty() || !detecting.compareAndSet(false, true)) {
+              return;
+            }
+          }
+        }
+      }
+    }, "Deadlock detector");
+    detector.setDaemon(true);
+    detector.start();
+  }
+
+  /**
+   * Aborts a waiting transaction on each cycle of the WaitsForGraph until there
+   * is none left. The victim of a cycle is the transaction that owns the fewest
+   * locks, as the cheapest to roll back, and among those the one that started
+   * waiting last.
+   */
+  void breakDeadlocks() {
+    List<Long> cycle;
+    while ((cycle = this.waitsForGraph.findCycle()) != null) {
+      long victim = chooseVictim(cycle);
+      boolean aborted = false;
+      for (Lock lock : this.tableNameToLock.values()) {
+        aborted |= lock.abortWaiting(victim, this.waitsForGraph);
+      }
+      if (!aborted) {
+        // the cycle was broken in the meantime, by a grant or release
         return;
       }
     }
-    for (Long h : owners) {
-      long holder = h.longValue();
-      if (holder == transNum) {
-        continue;
+  }
+
+  private long chooseVictim(List<Long> cycle) {
+    Map<Long, Integer> numOwned = new HashMap<Long, Integer>();
+    Map<Long, Long> lastWait = new HashMap<Long, Long>();
+    for (Long transNum : cycle) {
+      numOwned.put(transNum, 0);
+      lastWait.put(transNum, -1L);
+    }
+    for (Lock lock : this.tableNameToLock.values()) {
+      for (Long transNum : cycle) {
+        if (lock.isOwner(transNum)) {
+          numOwned.put(transNum, numOwned.get(transNum) + 1);
+        }
+        lastWait.put(transNum, Math.max(lastWait.get(transNum), lock.getLastWaitNum(transNum)));
       }
-      if (lock.getType() == LockType.SHARED && lockType == LockType.SHARED) {
-        //waitsForGraph.addEdge(transNum, holder);
-      } else if (waitsForGraph.edgeCausesCycle(transNum, holder)) {
-        throw new DeadlockException("");
-      } else {
-        waitsForGraph.addEdge(transNum, holder);
+    }
+    long victim = cycle.get(0);
+    for (Long transNum : cycle) {
+      int owned = numOwned.get(transNum);
+      int victimOwned = numOwned.get(victim);
+      if (owned < victimOwned || (owned == victimOwned && lastWait.get(transNum) > lastWait.get(victim))) {
+        victim = transNum;
       }
     }
-    return;
+    return victim;
   }
 
+  /**
+   * Finds the lock of a resource, creating it if there is none, and pins it so that it is not
+   * dropped before the caller is done with it.
+   */
+  private Lock pinLock(String tableName) {
+    while (true) {
+      Lock lock = this.tableNameToLock.get(tableName);
+      if (lock == null) {
+        Lock created = new Lock();
+        lock = this.tableNameToLock.putIfAbsent(tableName, created);
+        if (lock == null) {
+          lock = created;
+        }
+      }
+      if (lock.pin()) {
+        return lock;
+      }
+      // the lock was dropped while we looked it up; make sure it is gone and try again
+      this.tableNameToLock.remove(tableName, lock);
+    }
+  }
 
   /**
    * Releases transNum's lock on tableName.
    *
-   * @param tableName the table that was locked
+   * @param tableName the resource that was locked
    * @param transNum the transaction that held the lock
    */
   public void releaseLock(String tableName, long transNum) {
-    if (this.tableNameToLock.containsKey(tableName)) {
-      Lock lock = this.tableNameToLock.get(tableName);
-      lock.release(transNum);
+    Lock lock = this.tableNameToLock.get(tableName);
+    if (lock != null) {
+      lock.release(transNum, this.waitsForGraph);
+      dropIfIdle(tableName, lock);
     }
   }
 
   /**
    * Returns a boolean indicating whether or not transNum holds a lock of type lt on tableName.
    *
-   * @param tableName the table that we're checking
+   * @param tableName the resource that we're checking
    * @param transNum the transaction that we're checking for
    * @param lockType the lock type
    * @return whether the lock is held or not
    */
   public boolean holdsLock(String tableName, long transNum, LockType lockType) {
-    if (!this.tableNameToLock.containsKey(tableName)) {
-      return false;
-    }
+    Lock lock = this.tableNameToLock.get(tableName);
+    return lock != null && lock.holds(transNum, lockType);
+  }
 
+  /**
+   * @param tableName a resource
+   * @return the number of requests waiting for the resource's lock
+   */
+  public int getQueueLength(String tableName) {
     Lock lock = this.tableNameToLock.get(tableName);
-    return lock.holds(transNum, lockType);
+    return lock == null ? 0 : lock.getQueueLength();
+  }
+
+  /**
+   * @return the number of resources with a lock that is held or waited for
+   */
+  public int getNumLocks() {
+    return this.tableNameToLock.size();
+  }
+
+  private void dropIfIdle(String tableName, Lock lock) {
+    if (lock.retireIfIdle()) {
+      this.tableNameToLock.remove(tableName, lock);
+    }
   }
 }
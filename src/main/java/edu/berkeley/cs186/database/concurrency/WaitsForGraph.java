@@ -3,72 +3,113 @@ package edu.berkeley.cs186.database.concurrency;
 import java.util.*;
 
 /**
- * A waits for graph for the lock manager (used to detect if
- * deadlock will occur and throw a DeadlockException if it does).
+ * A waits for graph for the lock manager (used by its deadlock detector to
+ * find cycles of transactions waiting for each other).
+ *
+ * An edge is added for every waiting request and every owner it conflicts
+ * with, and removed when the request is granted, given up, or the owner
+ * releases the lock, so the graph only holds the waits that are current. A
+ * transaction can wait for another in more than one request, so each edge
+ * counts the requests it stands for. The graph is safe to use from several
+ * threads.
  */
 public class WaitsForGraph {
 
   // We store the directed graph as an adjacency list where each node (transaction) is
-  // mapped to a list of the nodes it has an edge to.
-  private Map<Long, ArrayList<Long>> graph;
+  // mapped to the nodes it has an edge to, and the number of requests behind each edge.
+  private Map<Long, Map<Long, Integer>> graph;
 
   public WaitsForGraph() {
-    graph = new HashMap<Long, ArrayList<Long>>();
+    graph = new HashMap<Long, Map<Long, Integer>>();
   }
 
-  public boolean containsNode(long transNum) {
+  public synchronized boolean containsNode(long transNum) {
     return graph.containsKey(transNum);
   }
 
-  protected void addNode(long transNum) {
-    if (!graph.containsKey(transNum)) {
-      graph.put(transNum, new ArrayList<Long>());
-    }
+  /**
+   * @return true if no transaction waits for another
+   */
+  public synchronized boolean isEmpty() {
+    return graph.isEmpty();
   }
 
-  protected void addEdge(long from, long to) {
-    if (!this.edgeExists(from, to)) {
-      ArrayList<Long> edges = graph.get(from);
-      edges.add(to);
+  protected synchronized void addEdge(long from, long to) {
+    Map<Long, Integer> edges = graph.get(from);
+    if (edges == null) {
+      edges = new HashMap<Long, Integer>();
+      graph.put(from, edges);
     }
+    Integer count = edges.get(to);
+    edges.put(to, count == null ? 1 : count + 1);
   }
 
-  protected void removeEdge(long from, long to) {
-    if (this.edgeExists(from, to)) {
-      ArrayList<Long> edges = graph.get(from);
-      edges.remove(to);
+  /**
+   * Removes one request's worth of the edge from from to to; the edge is gone
+   * once every request it stands for is.
+   */
+  protected synchronized void removeEdge(long from, long to) {
+    Map<Long, Integer> edges = graph.get(from);
+    if (edges == null || !edges.containsKey(to)) {
+      return;
+    }
+    int count = edges.get(to);
+    if (count > 1) {
+      edges.put(to, count - 1);
+      return;
+    }
+    edges.remove(to);
+    if (edges.isEmpty()) {
+      graph.remove(from);
     }
   }
 
-  protected boolean edgeExists(long from, long to) {
-    if (!graph.containsKey(from)) {
-      return false;
-    }
-    ArrayList<Long> edges = graph.get(from);
-    return edges.contains(to);
+  protected synchronized boolean edgeExists(long from, long to) {
+    Map<Long, Integer> edges = graph.get(from);
+    return edges != null && edges.containsKey(to);
   }
 
   /**
-   * Checks if adding the edge specified by to and from would cause a cycle in this
-   * WaitsForGraph. Does not actually modify the graph in any way.
-   * @param from the transNum from which the edge points
-   * @param to the transNum to which the edge points
-   * @return
+   * Looks for a cycle in this WaitsForGraph. Does not modify the graph in any way.
+   * @return the transactions on a cycle, each waiting for the next and the last
+   * for the first, or null if there is none
    */
-  protected boolean edgeCausesCycle(long from, long to) {
-    //TODO: Implement Me!!
-    Stack<Long> stk = new Stack<Long>();
-    stk.push(to);
-    while(!stk.empty()) {
-      Long next = stk.pop();
-      if (next.longValue() == from) {
-        return true;
+  protected synchronized List<Long> findCycle() {
+    // transactions whose edges have all been followed without finding a cycle
+    Set<Long> done = new HashSet<Long>();
+    for (Long start : graph.keySet()) {
+      if (done.contains(start)) {
+        continue;
+      }
+      // iterative depth-first search; path holds the transactions on the current path, and
+      // iters the edges of each still to be followed
+      List<Long> path = new ArrayList<Long>();
+      Set<Long> onPath = new HashSet<Long>();
+      Deque<Iterator<Long>> iters = new ArrayDeque<Iterator<Long>>();
+      path.add(start);
+      onPath.add(start);
+      iters.push(graph.get(start).keySet().iterator());
+      while (!iters.isEmpty()) {
+        Iterator<Long> iter = iters.peek();
+        if (!iter.hasNext()) {
+          iters.pop();
+          Long node = path.remove(path.size() - 1);
+          onPath.remove(node);
+          done.add(node);
+          continue;
+        }
+        Long next = iter.next();
+        if (onPath.contains(next)) {
+          return new ArrayList<Long>(path.subList(path.indexOf(next), path.size()));
+        }
+        if (done.contains(next) || !graph.containsKey(next)) {
+          continue;
+        }
+        path.add(next);
+        onPath.add(next);
+        iters.push(graph.get(next).keySet().iterator());
       }
-      ArrayList<Long> cur = graph.get(next);
-      for (Long edge : cur) {
-        stk.push(edge);
-      } 
     }
-    return false;
+    return null;
   }
 }
@@ -1,7 +1,11 @@
 package edu.berkeley.cs186.database.index;
 
 import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.datatypes.BoolDataType;
 import edu.berkeley.cs186.database.datatypes.DataType;
+import edu.berkeley.cs186.database.datatypes.FloatDataType;
+import edu.berkeley.cs186.database.datatypes.IntDataType;
+import edu.berkeley.cs186.database.datatypes.StringDataType;
 import edu.berkeley.cs186.database.table.RecordID;
 
 import java.util.Collections;
@@ -52,7 +56,7 @@ public abstract class BPlusNode {
       this.entrySize = keySchema.getSize() + 4;
     }
 
-    this.bitMapSize = (8 * (Page.pageSize - 13) / (1 + 8 * this.entrySize)) / 8;
+    this.bitMapSize = (8 * (tree.allocator.getPageSize() - 13) / (1 + 8 * this.entrySize)) / 8;
     this.numEntries = bitMapSize * 8;
   }
   
@@ -73,7 +77,7 @@ public abstract class BPlusNode {
    * @return BPlusNode object that exists on this Page
    */
   public static BPlusNode getBPlusNode(BPlusTree tree, int pageNum) {
-    if (tree.allocator.fetchPage(pageNum).readByte(0) == (byte) 0) {
+    if (tree.fetchPage(pageNum).readByte(0) == (byte) 0) {
       return new InnerNode(tree, pageNum);  
     }
     return new LeafNode(tree, pageNum);  
@@ -84,7 +88,7 @@ public abstract class BPlusNode {
    * @return the Page that this BPlusNode exists on
    */
   public Page getPage() {
-    return tree.allocator.fetchPage(this.pageNum);
+    return tree.fetchPage(this.pageNum);
   }
 
   public int getPageNum() {
@@ -116,15 +120,19 @@ public abstract class BPlusNode {
   }
 
   public int getParent() {
-    return getPage().readInt(1);
+    return getPage().getInt(1);
   }
 
   public void setParent(int val) {
-    getPage().writeInt(1, val);
+    getPage().putInt(1, val);
   }
   
-  private byte[] getBitMap() {
-    return getPage().readBytes(headerSize, bitMapSize);
+  /**
+   * Reads the valid bit of a slot straight from the page's bitmap.
+   */
+  private boolean isSlotValid(Page page, int slot) {
+    byte mask = (byte) (1 << (7 - (slot % 8)));
+    return (page.readByte(this.headerSize + slot/8) & mask) != 0;
   }
 
   private void setBitMap(byte[] bitMap) {
@@ -142,28 +150,44 @@ public abstract class BPlusNode {
    * @param ent the entry to write
    */
   private void writeEntry(int slot, BEntry ent) {
-    int byteOffset = slot/8;
+    int byteOffset = this.headerSize + slot/8;
     int bitOffset = 7 - (slot % 8);
     byte mask = (byte) (1 << bitOffset);
     
-    byte[] bitMap = getBitMap();
-    bitMap[byteOffset] = (byte) (bitMap[byteOffset] | mask);
-    setBitMap(bitMap); 
+    Page page = getPage();
+    page.writeByte(byteOffset, (byte) (page.readByte(byteOffset) | mask));
     int entryOffset = getOffset(slot);
-    getPage().writeBytes(entryOffset, entrySize, ent.toBytes());
+    page.writeBytes(entryOffset, entrySize, ent.toBytes());
   }
 
   /**
-   * Reads an entry from the given slot specified.
+   * Reads an entry from the given slot specified, decoding it in place on the page.
    *
+   * @param page the page of this node
    * @param slot the slot number to read from
    * @return the entry corresponding to the slot
    */
-  private BEntry readEntry(int slot) {
+  private BEntry readEntry(Page page, int slot) {
+    int offset = getOffset(slot);
+    DataType key = readKey(page, offset);
+    offset += this.keySchema.getSize();
     if (isLeaf()) {
-      return new LeafEntry(this.keySchema, getPage().readBytes(getOffset(slot), entrySize));
+      return new LeafEntry(key, new RecordID(page.getInt(offset), page.getShort(offset + 4)));
     } else {
-      return new InnerEntry(this.keySchema, getPage().readBytes(getOffset(slot), entrySize));
+      return new InnerEntry(key, page.getInt(offset));
+    }
+  }
+
+  private DataType readKey(Page page, int offset) {
+    switch (this.keySchema.type()) {
+    case INT:
+      return new IntDataType(page.getInt(offset));
+    case FLOAT:
+      return new FloatDataType(page.getFloat(offset));
+    case BOOL:
+      return new BoolDataType(page.readByte(offset) != 0);
+    default:
+      return new StringDataType(page.readBytes(offset, this.keySchema.getSize()));
     }
   }
   
@@ -173,14 +197,10 @@ public abstract class BPlusNode {
    * @return the first free slot, otherwise -1 if none exists
    */
   private int findFreeSlot() {
-    byte[] bitMap = this.getBitMap();
+    Page page = getPage();
 
     for (int i = 0; i < this.numEntries; i++) {
-      int byteOffset = i/8;
-      int bitOffset = 7 - (i % 8);
-      byte mask = (byte) (1 << bitOffset);
-      byte value = (byte) (bitMap[byteOffset] & mask);
-      if (value == 0) {
+      if (!isSlotValid(page, i)) {
         return i;
       }
     }
@@ -193,17 +213,11 @@ public abstract class BPlusNode {
    * @return a list of entries that have the valid bit set
    */
   protected List<BEntry> getAllValidEntries() {
-    byte[] bitMap = this.getBitMap();
+    Page page = getPage();
     List<BEntry> entries = new ArrayList<BEntry>(); 
     for (int i = 0; i < this.numEntries; i++) {
-      int byteOffset = i/8;
-      int bitOffset = 7 - (i % 8);
-      byte mask = (byte) (1 << bitOffset);
-      
-      byte value = (byte) (bitMap[byteOffset] & mask);
-      
-      if (value != 0) {
-        entries.add(readEntry(i));
+      if (isSlotValid(page, i)) {
+        entries.add(readEntry(page, i));
       }
     }
     return entries;
@@ -1,11 +1,21 @@
 package edu.berkeley.cs186.database.index;
 
+import edu.berkeley.cs186.database.io.IOStats;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.PageCache;
 import edu.berkeley.cs186.database.datatypes.DataType;
 import edu.berkeley.cs186.database.table.RecordID;
 import edu.berkeley.cs186.database.datatypes.*;
-
+import edu.berkeley.cs186.database.log.LogRecord;
+import edu.berkeley.cs186.database.log.WriteAheadLog;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Iterator;
 import java.nio.file.Paths;
@@ -17,6 +27,11 @@ import java.nio.file.Paths;
  * node page, and first leaf node page. Each subsequent page is a BPlusNode,
  * specifically either an InnerNode or LeafNode.
  *
+ * An index given a write-ahead log with setLog logs each insertKey and deleteKey: an INDEX_BEGIN
+ * record before the change starts, and an INDEX_PAGES record with the bytes of the pages it changed
+ * once it is done. Replaying the INDEX_PAGES records logged since the file was last checkpointed
+ * with redo brings every page up to date, whichever of them were written back before a crash.
+ *
  * Properties:
  * `allocator`: the PageAllocator for this index
  * `keySchema`: the DataType for this index's search key
@@ -31,6 +46,12 @@ public class BPlusTree {
   protected DataType keySchema;
   private int rootPageNum;
   private int firstLeafPageNum;
+  private String name;
+  private WriteAheadLog log;
+  // the thread changing the index, and the pages it has fetched since the change began, with their
+  // bytes from before it
+  private volatile Thread changer;
+  private Map<Integer, byte[]> changing;
 
   /**
    * This constructor is used for creating an empty BPlusTree.
@@ -44,8 +65,26 @@ public class BPlusTree {
   }
 
   public BPlusTree(DataType keySchema, String fName, String filePrefix) {
+    this(keySchema, fName, filePrefix, PageAllocator.getSharedPageCache());
+  }
+
+  public BPlusTree(DataType keySchema, String fName, String filePrefix, PageCache pageCache) {
+    this(keySchema, fName, filePrefix, pageCache, Page.pageSize);
+  }
+
+  /**
+   * This constructor is used for building an index whose nodes are pages of pageSize bytes.
+   *
+   * @param keySchema the schema of the index key
+   * @param fName the filename of where the index will be built
+   * @param filePrefix the directory of the index file
+   * @param pageCache the buffer pool for the index's pages
+   * @param pageSize the size of the index's pages in bytes; see Page.checkPageSize
+   */
+  public BPlusTree(DataType keySchema, String fName, String filePrefix, PageCache pageCache, int pageSize) {
     String pathname = Paths.get(filePrefix, fName + FILENAME_EXTENSION).toString();
-    this.allocator = new PageAllocator(pathname, true);
+    this.allocator = new PageAllocator(pathname, true, true, pageCache, PageAllocator.Backend.MMAP, pageSize);
+    this.name = fName;
     this.keySchema = keySchema;
     int headerPageNum = this.allocator.allocPage();
     assert(headerPageNum == 0);
@@ -66,8 +105,30 @@ public class BPlusTree {
   }
 
   public BPlusTree(String fName, String filePrefix) {
+    this(fName, filePrefix, PageAllocator.getSharedPageCache());
+  }
+
+  public BPlusTree(String fName, String filePrefix, PageCache pageCache) {
+    this(fName, filePrefix, pageCache, false);
+  }
+
+  /**
+   * Opens an existing index, possibly read-only; a read-only index can be scanned and looked up
+   * by any number of threads at once, but not changed.
+   *
+   * @param fName the name of the index
+   * @param filePrefix the prefix where the index's file is
+   * @param pageCache the buffer pool for this index's pages
+   * @param readOnly whether to open the index read-only; see PageAllocator.openReadOnly
+   */
+  public BPlusTree(String fName, String filePrefix, PageCache pageCache, boolean readOnly) {
     String pathname = Paths.get(filePrefix, fName + FILENAME_EXTENSION).toString();
-    this.allocator = new PageAllocator(pathname, false);
+    if (readOnly) {
+      this.allocator = PageAllocator.openReadOnly(pathname, pageCache);
+    } else {
+      this.allocator = new PageAllocator(pathname, false, true, pageCache);
+    }
+    this.name = fName;
     this.readHeader();
   }
 
@@ -117,19 +178,48 @@ public class BPlusTree {
    */
 
   public void insertKey(DataType key, RecordID rid) {
-    BPlusNode.getBPlusNode(this, rootPageNum).insertKey(key, rid);
+    beginChange();
+    try {
+      BPlusNode.getBPlusNode(this, rootPageNum).insertKey(key, rid);
+    } finally {
+      endChange();
+    }
   }
 
   /**
-   * Deletes an entry with the matching Key and RecordID
+   * Deletes an entry with the matching Key and RecordID. Nodes are never merged, so a leaf may be
+   * left empty; iterators pass over empty leaves.
    *
    * @param key the key to be deleted.
    * @param rid the RecordID of the key to be deleted
+   * @return true if the entry was found and deleted
    */
 
   public boolean deleteKey(DataType key, RecordID rid) {
-    /*You will not have to implement this in this project*/
-    throw new BPlusTreeException("BPlusTree#DeleteKey Not Implemented!");
+    beginChange();
+    try {
+      BPlusNode root = BPlusNode.getBPlusNode(this, rootPageNum);
+      return root.locateLeaf(key, true).deleteKey(key, rid);
+    } finally {
+      endChange();
+    }
+  }
+
+  /**
+   * Performs a lookup to see if the index contains an entry.
+   *
+   * @param key the key of the entry
+   * @param rid the RecordID of the entry
+   * @return true if the index holds the entry of key and rid
+   */
+  public boolean containsEntry(DataType key, RecordID rid) {
+    Iterator<RecordID> rids = lookupKey(key);
+    while (rids.hasNext()) {
+      if (rids.next().equals(rid)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -147,6 +237,140 @@ public class BPlusTree {
     return this.allocator.getNumPages();
   }
 
+  /**
+   * Sets the write-ahead log that the changes to this index are logged to from now on.
+   *
+   * @param log the log of the database the index belongs to
+   */
+  public void setLog(WriteAheadLog log) {
+    this.log = log;
+    this.allocator.setLog(log);
+  }
+
+  /**
+   * Repeats the changes to the pages of this index that an INDEX_PAGES record logged. The pages
+   * that are not allocated any more, because their allocation was lost in a crash, are allocated
+   * again first.
+   *
+   * @param pages the bytes of the changed pages, from LogRecord.getRedoImage
+   */
+  public void redo(byte[] pages) {
+    ByteBuffer buf = ByteBuffer.wrap(pages);
+    boolean headerChanged = false;
+    while (buf.hasRemaining()) {
+      int pageNum = buf.getInt();
+      int offset = buf.getInt();
+      byte[] bytes = new byte[buf.getInt()];
+      buf.get(bytes);
+      this.allocator.allocPageAt(pageNum);
+      this.allocator.fetchPage(pageNum).writeBytes(offset, bytes.length, bytes);
+      headerChanged |= pageNum == 0;
+    }
+    if (headerChanged) {
+      readHeader();
+    }
+  }
+
+  /**
+   * Fetches a page of this index for one of its nodes. While the index is being changed, the bytes
+   * of each page are kept from the first time the change fetches it, so that endChange can log
+   * what the change did to it.
+   *
+   * @param pageNum the page number
+   * @return the page
+   */
+  Page fetchPage(int pageNum) {
+    Page page = this.allocator.fetchPage(pageNum);
+    if (this.changer == Thread.currentThread() && !this.changing.containsKey(pageNum)) {
+      this.changing.put(pageNum, page.readBytes());
+    }
+    return page;
+  }
+
+  private void beginChange() {
+    if (this.log == null) {
+      return;
+    }
+    this.log.append(LogRecord.indexBegin(this.name));
+    this.changing = new LinkedHashMap<Integer, byte[]>();
+    this.changer = Thread.currentThread();
+  }
+
+  /**
+   * Logs the bytes the change that is ending wrote to each page it fetched: those from the first to
+   * the last byte of the page it changed. The pages are stamped with the record's LSN, so none of
+   * them is written back before the record is forced.
+   */
+  private void endChange() {
+    if (this.log == null) {
+      return;
+    }
+    this.changer = null;
+    List<Integer> changed = new ArrayList<Integer>();
+    List<ByteBuffer> ranges = new ArrayList<ByteBuffer>();
+    int length = 0;
+    for (Map.Entry<Integer, byte[]> e : this.changing.entrySet()) {
+      byte[] before = e.getValue();
+      byte[] after = this.allocator.fetchPage(e.getKey()).readBytes();
+      int first = 0;
+      while (first < after.length && before[first] == after[first]) {
+        first++;
+      }
+      if (first == after.length) {
+        continue;
+      }
+      int end = after.length;
+      while (before[end - 1] == after[end - 1]) {
+        end--;
+      }
+      ByteBuffer range = ByteBuffer.allocate(12 + end - first);
+      range.putInt(e.getKey()).putInt(first).putInt(end - first).put(after, first, end - first);
+      changed.add(e.getKey());
+      ranges.add(range);
+      length += range.capacity();
+    }
+    this.changing = null;
+    ByteBuffer pages = ByteBuffer.allocate(length);
+    for (ByteBuffer range : ranges) {
+      pages.put(range.array());
+    }
+    long lsn = this.log.append(LogRecord.indexPages(this.name, pages.array()));
+    for (int pageNum : changed) {
+      this.allocator.fetchPage(pageNum).setLSN(lsn);
+    }
+  }
+
+  /**
+   * Writes every change made to this index to its file and forces it to disk.
+   */
+  public void checkpoint() {
+    this.allocator.flush();
+    this.allocator.force();
+  }
+
+  /**
+   * Closes the index's file; the index cannot be used after.
+   */
+  public void close() {
+    this.allocator.close();
+  }
+
+  /**
+   * Reads the pages of this index that were in the buffer pool when it was last closed back in.
+   *
+   * @return the number of pages read
+   */
+  public int prewarm() {
+    return this.allocator.prewarm();
+  }
+
+  /**
+   * @return the I/O counters of this index's file
+   */
+  public IOStats getIOStats() {
+    return this.allocator.getIOStats();
+  }
+
   /**
    * Updates where the root page is. Should be called whenever the root node has been split
    *
@@ -160,7 +384,7 @@ public class BPlusTree {
 
 
   private void writeHeader() {
-    Page headerPage = allocator.fetchPage(0);
+    Page headerPage = fetchPage(0);
     int bytesWritten = 0;
 
     headerPage.writeInt(bytesWritten, this.rootPageNum);
@@ -233,6 +457,7 @@ public class BPlusTree {
       this.currLeaf = leaf;
       this.currLeafIter = leaf.scan();
       this.isScan = true;
+      advance();
     }
 
   /**
@@ -250,20 +475,28 @@ public class BPlusTree {
       this.lookupKey = key;
       if (scan) {
         this.currLeafIter = leaf.scanFrom(key);
-        if (!currLeafIter.hasNext() && currLeaf.getNextLeaf() > 0) {
-          int nextLeafPageNum = currLeaf.getNextLeaf();
-          this.currLeaf = new LeafNode(BPlusTree.this, nextLeafPageNum);
-          this.currLeafIter = currLeaf.scan();
-        }
+        prefetchNextLeaf();
       } else {
         this.currLeafIter = leaf.scanForKey(key);
       }
+      advance();
     }
 
     public boolean hasNext() {
       return this.currLeafIter.hasNext();
     }
 
+    /**
+     * Starts reading the leaf after the current one, so that it is in the buffer pool by the time
+     * the scan reaches it.
+     */
+    private void prefetchNextLeaf() {
+      int nextLeafPageNum = currLeaf.getNextLeaf();
+      if (nextLeafPageNum > 0) {
+        allocator.prefetch(Collections.singletonList(nextLeafPageNum));
+      }
+    }
+
     /**
      * Yields the next RecordID of this iterator.
      *
@@ -273,22 +506,34 @@ public class BPlusTree {
     public RecordID next() {
       if (hasNext()) {
         RecordID rid = currLeafIter.next();
-        if (!currLeafIter.hasNext()
-            && currLeaf.getNextLeaf() > 0) {
-          int nextLeafPageNum = currLeaf.getNextLeaf();
-          this.currLeaf = new LeafNode(BPlusTree.this, nextLeafPageNum);
-
-          if (isScan) {
-            this.currLeafIter = currLeaf.scan();
-          } else {
-            this.currLeafIter = currLeaf.scanForKey(lookupKey);
-          }
-        }
+        advance();
         return rid;
       }
       throw new NoSuchElementException();
     }
 
+    /**
+     * Moves on to the following leaves once the current one has nothing left to yield, until one
+     * does. Leaves emptied by deleteKey are passed over; a lookup stops at the first leaf that holds
+     * other keys only.
+     */
+    private void advance() {
+      while (!currLeafIter.hasNext() && currLeaf.getNextLeaf() > 0) {
+        int nextLeafPageNum = currLeaf.getNextLeaf();
+        this.currLeaf = new LeafNode(BPlusTree.this, nextLeafPageNum);
+
+        if (isScan) {
+          this.currLeafIter = currLeaf.scan();
+          prefetchNextLeaf();
+        } else {
+          this.currLeafIter = currLeaf.scanForKey(lookupKey);
+          if (!currLeafIter.hasNext() && !currLeaf.isEmpty()) {
+            return;
+          }
+        }
+      }
+    }
+
     public void remove() {
       throw new UnsupportedOperationException();
     }
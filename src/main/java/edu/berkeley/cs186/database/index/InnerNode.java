@@ -36,11 +36,11 @@ public class InnerNode extends BPlusNode {
   }
 
   public int getFirstChild() {
-    return getPage().readInt(5);
+    return getPage().getInt(5);
   }
   
   public void setFirstChild(int val) {
-    getPage().writeInt(5, val);
+    getPage().putInt(5, val);
   }
   
   public int findChildFromKey(DataType key) {
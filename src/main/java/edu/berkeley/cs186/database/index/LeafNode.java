@@ -47,22 +47,67 @@ public class LeafNode extends BPlusNode {
       return this;
     }
 
+    // a previous leaf may hold the key as long as its last key is not smaller; leaves emptied by
+    // deleteKey are passed over
     LeafNode lastLeaf = this;
-    LeafNode currLeaf = this; 
-    Iterator<RecordID> currIter = currLeaf.scanForKey(key);
+    LeafNode currLeaf = this;
 
-    while(currIter.hasNext()) {
-      lastLeaf = currLeaf;
+    while (true) {
       int prevLeafNum = currLeaf.getPrevLeaf();
       if (prevLeafNum <= 0) {
         break;
       }
       currLeaf = new LeafNode(getTree(), prevLeafNum);
-      currIter = currLeaf.scanForKey(key);
+      List<BEntry> entries = currLeaf.getAllValidEntries();
+      if (entries.isEmpty()) {
+        continue;
+      }
+      if (key.compareTo(entries.get(entries.size() - 1).getKey()) > 0) {
+        break;
+      }
+      lastLeaf = currLeaf;
     }
     return lastLeaf;
   }
 
+  /**
+   * Deletes the entry of key and rid from this leaf, or from one of the leaves after it that may
+   * hold key. The leaf is not merged with its neighbours, even if it is left empty.
+   *
+   * @param key the key of the entry
+   * @param rid the RecordID of the entry
+   * @return true if the entry was found and deleted
+   */
+  public boolean deleteKey(DataType key, RecordID rid) {
+    LeafNode leaf = this;
+    while (true) {
+      List<BEntry> entries = leaf.getAllValidEntries();
+      for (int i = 0; i < entries.size(); i++) {
+        BEntry ent = entries.get(i);
+        if (key.compareTo(ent.getKey()) == 0 && rid.equals(ent.getRecordID())) {
+          entries.remove(i);
+          leaf.overwriteBNodeEntries(entries);
+          return true;
+        }
+      }
+      if (!entries.isEmpty() && key.compareTo(entries.get(entries.size() - 1).getKey()) < 0) {
+        return false;
+      }
+      int nextLeafNum = leaf.getNextLeaf();
+      if (nextLeafNum <= 0) {
+        return false;
+      }
+      leaf = new LeafNode(getTree(), nextLeafNum);
+    }
+  }
+
+  /**
+   * @return true if this leaf holds no entries
+   */
+  public boolean isEmpty() {
+    return getAllValidEntries().isEmpty();
+  }
+
   /**
    * Splits this node and copies up the middle key. Note that we split this node
    * immediately after it becomes full rather than when trying to insert an
@@ -112,19 +157,19 @@ public class LeafNode extends BPlusNode {
   }
   
   public int getPrevLeaf() {
-    return getPage().readInt(5);
+    return getPage().getInt(5);
   }
 
   public int getNextLeaf() {
-    return getPage().readInt(9);
+    return getPage().getInt(9);
   }
   
   public void setPrevLeaf(int val) {
-    getPage().writeInt(5, val);
+    getPage().putInt(5, val);
   }
 
   public void setNextLeaf(int val) {
-    getPage().writeInt(9, val);
+    getPage().putInt(9, val);
   }
 
   /**
@@ -0,0 +1,196 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backs pages with direct ByteBuffer frames that are read and written with positional FileChannel
+ * reads and writes (pread/pwrite). Unlike a memory mapping, nothing reaches the file until a page
+ * is flushed, so every disk operation is explicit and counted.
+ *
+ * Frames of the default page size are recycled through a pool shared by all allocators once their
+ * page has left the buffer pool. A page whose frame has been recycled forwards to the page that is resident now, so callers
+ * that keep a page across evictions still see current data; callers that use a page while other
+ * threads may evict it should pin it.
+ */
+class ChannelBacking implements PageBacking {
+  private static final int maxPooledFrames = 1024;
+  private static final ConcurrentLinkedQueue<ByteBuffer> framePool = new ConcurrentLinkedQueue<ByteBuffer>();
+  private static final AtomicInteger numPooledFrames = new AtomicInteger(0);
+  private static final int maxCoalescedPages = 64;
+  private static final ThreadLocal<ByteBuffer> coalesceBuffer = new ThreadLocal<ByteBuffer>() {
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(maxCoalescedPages * Page.pageSize);
+    }
+  };
+
+  private final FileChannel fc;
+  private final int pageSize;
+  private final IOStats stats;
+
+  /**
+   * @param fc the file to read and write
+   * @param pageSize the size of the file's blocks and pages in bytes
+   * @param stats counts the reads and writes of the file
+   */
+  ChannelBacking(FileChannel fc, int pageSize, IOStats stats) {
+    this.fc = fc;
+    this.pageSize = pageSize;
+    this.stats = stats;
+  }
+
+  ChannelBacking(FileChannel fc) {
+    this(fc, Page.pageSize, new IOStats());
+  }
+
+  /**
+   * Reads block blockNum of the file into a frame and wraps it in a Page. Blocks past the end of the
+   * file read as zeros; the file only grows once such a page is flushed.
+   *
+   * @param blockNum the block in the file
+   * @param pageNum the virtual page number of the page
+   * @param durable whether flushes of the page are forced to disk
+   * @param owner the allocator that caches the page, or null if it is not cached
+   * @return a new Page
+   */
+  Page newPage(int blockNum, int pageNum, boolean durable, PageAllocator owner) {
+    long position = ((long) blockNum) * this.pageSize;
+    ByteBuffer frame = acquireFrame(this.pageSize);
+    try {
+      while (frame.hasRemaining()) {
+        if (this.fc.read(frame, position + frame.position()) < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      releaseFrame(frame);
+      throw new PageException("Can't read page: " + pageNum + " at block: " + blockNum + " ; " + e.getMessage());
+    }
+    while (frame.hasRemaining()) {
+      frame.put((byte) 0);
+    }
+    frame.clear();
+    this.stats.recordDiskRead();
+    return new Page(frame, this, position, pageNum, durable, owner);
+  }
+
+  /**
+   * Wraps a copy of block blockNum, already read by the IOScheduler, in a Page.
+   *
+   * @param block the contents of the block; its remaining bytes are copied
+   * @param blockNum the block in the file
+   * @param pageNum the virtual page number of the page
+   * @param durable whether flushes of the page are forced to disk
+   * @param owner the allocator that caches the page, or null if it is not cached
+   * @return a new Page
+   */
+  Page newPage(ByteBuffer block, int blockNum, int pageNum, boolean durable, PageAllocator owner) {
+    ByteBuffer frame = acquireFrame(this.pageSize);
+    frame.put(block);
+    while (frame.hasRemaining()) {
+      frame.put((byte) 0);
+    }
+    frame.clear();
+    return new Page(frame, this, ((long) blockNum) * this.pageSize, pageNum, durable, owner);
+  }
+
+  public boolean writesThrough() {
+    return false;
+  }
+
+  public void flush(ByteBuffer data, long position, boolean durable) {
+    ByteBuffer src = data.duplicate();
+    src.clear();
+    try {
+      while (src.hasRemaining()) {
+        this.fc.write(src, position + src.position());
+      }
+      this.stats.recordDiskWrite();
+      if (durable) {
+        this.fc.force(false);
+      }
+    } catch (IOException e) {
+      throw new PageException("Can't write page at: " + position + " ; " + e.getMessage());
+    }
+  }
+
+  public int flush(List<Page> pages, boolean durable) {
+    ByteBuffer run = coalesceBuffer.get();
+    List<Page> copied = new ArrayList<Page>();
+    int numWrites = 0;
+    int i = 0;
+    try {
+      while (i < pages.size()) {
+        long start = pages.get(i).getPosition();
+        run.clear();
+        while (i < pages.size() && run.remaining() >= this.pageSize
+               && pages.get(i).getPosition() == start + run.position()) {
+          Page p = pages.get(i++);
+          if (!p.copyForWrite(run)) {
+            break;
+          }
+          copied.add(p);
+        }
+        if (run.position() == 0) {
+          continue;
+        }
+        run.flip();
+        while (run.hasRemaining()) {
+          this.fc.write(run, start + run.position());
+        }
+        this.stats.recordDiskWrite();
+        numWrites++;
+        unpinAll(copied);
+      }
+      if (durable && numWrites > 0) {
+        this.fc.force(false);
+      }
+    } catch (IOException e) {
+      // the pages of the failed run were claimed, but never reached the file
+      for (Page p : copied) {
+        p.markDirty();
+      }
+      throw new PageException("Can't write pages ; " + e.getMessage());
+    } finally {
+      unpinAll(copied);
+    }
+    return numWrites;
+  }
+
+  private static void unpinAll(List<Page> pages) {
+    for (Page p : pages) {
+      p.unpin();
+    }
+    pages.clear();
+  }
+
+  public void release(ByteBuffer data) {
+    releaseFrame(data);
+  }
+
+  private static ByteBuffer acquireFrame(int pageSize) {
+    ByteBuffer frame = pageSize == Page.pageSize ? framePool.poll() : null;
+    if (frame == null) {
+      return ByteBuffer.allocateDirect(pageSize);
+    }
+    numPooledFrames.decrementAndGet();
+    frame.clear();
+    return frame;
+  }
+
+  private static void releaseFrame(ByteBuffer frame) {
+    if (frame.capacity() != Page.pageSize) {
+      return;
+    }
+    if (numPooledFrames.incrementAndGet() <= maxPooledFrames) {
+      framePool.offer(frame);
+    } else {
+      numPooledFrames.decrementAndGet();
+    }
+  }
+}
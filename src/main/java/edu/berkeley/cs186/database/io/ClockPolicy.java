@@ -0,0 +1,100 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The CLOCK approximation of LRU. Pages sit in a circular array of slots with a reference bit
+ * each; an access only sets the bit, and the clock hand gives every referenced page a second
+ * chance by clearing its bit before it becomes a candidate.
+ */
+class ClockPolicy implements EvictionPolicy {
+  private static final long EMPTY = -1L;
+
+  private long[] slots;
+  private boolean[] referenced;
+  private final Map<Long, Integer> slotOf;
+  private int[] freeSlots;
+  private int numFree;
+  private int numUsed;
+  private int hand;
+
+  ClockPolicy() {
+    this.slots = new long[16];
+    this.referenced = new boolean[16];
+    this.freeSlots = new int[16];
+    this.slotOf = new HashMap<Long, Integer>();
+    Arrays.fill(this.slots, EMPTY);
+    this.numFree = 0;
+    this.numUsed = 0;
+    this.hand = 0;
+  }
+
+  public void insert(long vPageNum) {
+    int slot;
+    if (this.numFree > 0) {
+      slot = this.freeSlots[--this.numFree];
+    } else {
+      if (this.numUsed == this.slots.length) {
+        grow();
+      }
+      slot = this.numUsed++;
+    }
+    this.slots[slot] = vPageNum;
+    this.referenced[slot] = false;
+    this.slotOf.put(vPageNum, slot);
+  }
+
+  public void access(long vPageNum) {
+    Integer slot = this.slotOf.get(vPageNum);
+    if (slot != null) {
+      this.referenced[slot] = true;
+    }
+  }
+
+  public void remove(long vPageNum) {
+    Integer slot = this.slotOf.remove(vPageNum);
+    if (slot != null) {
+      free(slot);
+    }
+  }
+
+  public Long evict(Victims victims) {
+    if (this.slotOf.isEmpty()) {
+      return null;
+    }
+    // Two full sweeps clear every reference bit, so a third can only fail on pinned pages.
+    for (int i = 0; i < 3 * this.numUsed; i++) {
+      int slot = this.hand;
+      this.hand = (this.hand + 1) % this.numUsed;
+      long vPageNum = this.slots[slot];
+      if (vPageNum == EMPTY) {
+        continue;
+      }
+      if (this.referenced[slot]) {
+        this.referenced[slot] = false;
+      } else if (victims.tryEvict(vPageNum)) {
+        this.slotOf.remove(vPageNum);
+        free(slot);
+        return vPageNum;
+      }
+    }
+    return null;
+  }
+
+  private void free(int slot) {
+    this.slots[slot] = EMPTY;
+    this.referenced[slot] = false;
+    this.freeSlots[this.numFree++] = slot;
+  }
+
+  private void grow() {
+    int size = this.slots.length * 2;
+    int oldSize = this.slots.length;
+    this.slots = Arrays.copyOf(this.slots, size);
+    this.referenced = Arrays.copyOf(this.referenced, size);
+    this.freeSlots = Arrays.copyOf(this.freeSlots, size);
+    Arrays.fill(this.slots, oldSize, size, EMPTY);
+  }
+}
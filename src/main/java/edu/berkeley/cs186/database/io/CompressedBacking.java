@@ -0,0 +1,397 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Backs pages with heap frames that are stored compressed, with LZCodec, in an append-only log.
+ *
+ * The file starts with a header holding a magic number and the page size, followed by records.
+ * Every record holds one version of one block: the block number, the length of the stored bytes,
+ * a CRC32 of the record, and the bytes. A block of zeros is stored with no bytes, and a block that does
+ * not compress is stored as is. Writing a block appends a record and points the block at it in an
+ * in-memory map from block number to record; the map is rebuilt by scanning the log when the file
+ * is opened, and the scan stops at the first torn record, so a crash loses at most the records
+ * that were being written.
+ *
+ * Older versions of rewritten blocks are garbage. When a file is closed with more garbage than
+ * live data, compact rewrites its live records into a new file that replaces it.
+ */
+class CompressedBacking implements PageBacking {
+  static final int MAGIC = 0x435A5047;
+  private static final int FILE_HEADER_BYTES = 16;
+  private static final int RECORD_HEADER_BYTES = 12;
+  private static final int SCAN_BYTES = 1 << 20;
+
+  private static final ThreadLocal<LZCodec> codecs = new ThreadLocal<LZCodec>() {
+    protected LZCodec initialValue() {
+      return new LZCodec();
+    }
+  };
+  private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+    protected byte[] initialValue() {
+      return new byte[0];
+    }
+  };
+
+  private final FileChannel fc;
+  private final int pageSize;
+  private final IOStats stats;
+  private final boolean readOnly;
+  // offset of the record of each block, or -1 if the block has never been written
+  private long[] offsets;
+  private int[] lengths;
+  private long end;
+  private long liveBytes;
+
+  /**
+   * Opens the compressed log in fc, or starts one if fc is empty.
+   *
+   * @param fc the file
+   * @param pageSize the page size of a new file; an existing file keeps its own
+   * @param stats counts the reads and writes of the file
+   * @param readOnly whether the file is only read, so that a torn tail is ignored rather than cut off
+   */
+  CompressedBacking(FileChannel fc, int pageSize, IOStats stats, boolean readOnly) {
+    this.fc = fc;
+    this.readOnly = readOnly;
+    this.stats = stats;
+    this.offsets = new long[0];
+    this.lengths = new int[0];
+    this.liveBytes = 0;
+    try {
+      if (fc.size() == 0) {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        header.putInt(0, MAGIC);
+        header.putInt(4, pageSize);
+        writeFully(fc, header, 0);
+        this.pageSize = pageSize;
+        this.end = FILE_HEADER_BYTES;
+      } else {
+        this.pageSize = readPageSize(fc);
+        if (this.pageSize < 0) {
+          throw new PageException("not a compressed page file");
+        }
+        scan();
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not open compressed file: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the page size stored in a compressed file, or -1 if fc does not hold one
+   */
+  static int readPageSize(FileChannel fc) {
+    ByteBuffer header = ByteBuffer.allocate(8);
+    try {
+      while (header.hasRemaining()) {
+        if (fc.read(header, header.position()) < 0) {
+          return -1;
+        }
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not read file header: " + e.getMessage());
+    }
+    if (header.getInt(0) != MAGIC) {
+      return -1;
+    }
+    return Page.checkPageSize(header.getInt(4));
+  }
+
+  int getPageSize() {
+    return this.pageSize;
+  }
+
+  /**
+   * @return the number of blocks that have been written; blocks past them read as zeros
+   */
+  synchronized long getNumBlocks() {
+    int n = this.offsets.length;
+    while (n > 0 && this.offsets[n - 1] < 0) {
+      n--;
+    }
+    return n;
+  }
+
+  /**
+   * @return the number of bytes of the file taken by the current version of every block
+   */
+  synchronized long getLiveBytes() {
+    return this.liveBytes;
+  }
+
+  /**
+   * Reads block blockNum of the file and decompresses it into a new frame.
+   *
+   * @param blockNum the block in the file
+   * @param pageNum the virtual page number of the page
+   * @param durable whether flushes of the page are forced to disk
+   * @param owner the allocator that caches the page, or null if it is not cached
+   * @return a new Page
+   */
+  Page newPage(int blockNum, int pageNum, boolean durable, PageAllocator owner) {
+    long offset;
+    int length;
+    synchronized (this) {
+      offset = blockNum < this.offsets.length ? this.offsets[blockNum] : -1;
+      length = offset < 0 ? 0 : this.lengths[blockNum];
+    }
+    ByteBuffer frame = ByteBuffer.allocate(this.pageSize);
+    if (length > 0) {
+      byte[] stored = scratch(length);
+      try {
+        ByteBuffer dst = ByteBuffer.wrap(stored, 0, length);
+        while (dst.hasRemaining()) {
+          if (this.fc.read(dst, offset + RECORD_HEADER_BYTES + dst.position()) < 0) {
+            throw new IOException("record past the end of the file");
+          }
+        }
+      } catch (IOException e) {
+        throw new PageException("Can't read page: " + pageNum + " at block: " + blockNum + " ; " + e.getMessage());
+      }
+      this.stats.recordDiskRead();
+      if (length == this.pageSize) {
+        System.arraycopy(stored, 0, frame.array(), 0, length);
+      } else {
+        LZCodec.decompress(stored, 0, length, frame.array(), this.pageSize);
+      }
+    }
+    return new Page(frame, this, ((long) blockNum) * this.pageSize, pageNum, durable, owner);
+  }
+
+  public boolean writesThrough() {
+    return false;
+  }
+
+  public void flush(ByteBuffer data, long position, boolean durable) {
+    synchronized (this) {
+      try {
+        append((int) (position / this.pageSize), data);
+        if (durable) {
+          this.fc.force(false);
+        }
+      } catch (IOException e) {
+        throw new PageException("Can't write page at: " + position + " ; " + e.getMessage());
+      }
+    }
+  }
+
+  public int flush(List<Page> pages, boolean durable) {
+    int numWrites = 0;
+    synchronized (this) {
+      // pages are claimed under the lock, so a page that is reread is never older than the file
+      for (Page p : pages) {
+        ByteBuffer data = p.claimWrite();
+        if (data == null) {
+          continue;
+        }
+        try {
+          append((int) (p.getPosition() / this.pageSize), data);
+        } catch (IOException e) {
+          p.markDirty();
+          throw new PageException("Can't write pages ; " + e.getMessage());
+        }
+        numWrites++;
+      }
+      if (durable && numWrites > 0) {
+        try {
+          this.fc.force(false);
+        } catch (IOException e) {
+          throw new PageException("Can't force pages ; " + e.getMessage());
+        }
+      }
+    }
+    return numWrites;
+  }
+
+  public void release(ByteBuffer data) {
+    // frames are on the heap
+  }
+
+  /**
+   * Compresses data and appends it as the new version of block blockNum. Must hold the lock.
+   */
+  private void append(int blockNum, ByteBuffer data) throws IOException {
+    byte[] page = pageBytes(data);
+    byte[] record = scratch(RECORD_HEADER_BYTES + LZCodec.maxCompressedLength(this.pageSize));
+    int length = 0;
+    if (!isZero(page)) {
+      length = codecs.get().compress(page, this.pageSize, record, RECORD_HEADER_BYTES, this.pageSize - 1);
+      if (length < 0) {
+        length = this.pageSize;
+        System.arraycopy(page, 0, record, RECORD_HEADER_BYTES, length);
+      }
+    }
+    ByteBuffer out = ByteBuffer.wrap(record, 0, RECORD_HEADER_BYTES + length);
+    out.putInt(0, blockNum);
+    out.putInt(4, length);
+    out.putInt(8, checksum(record, 0, length));
+    writeFully(this.fc, out, this.end);
+    this.stats.recordDiskWrite();
+    point(blockNum, this.end, length);
+    this.end += RECORD_HEADER_BYTES + length;
+  }
+
+  private void point(int blockNum, long offset, int length) {
+    if (blockNum >= this.offsets.length) {
+      int n = Math.max(blockNum + 1, this.offsets.length * 2);
+      int old = this.offsets.length;
+      this.offsets = Arrays.copyOf(this.offsets, n);
+      this.lengths = Arrays.copyOf(this.lengths, n);
+      Arrays.fill(this.offsets, old, n, -1L);
+    }
+    if (this.offsets[blockNum] >= 0) {
+      this.liveBytes -= RECORD_HEADER_BYTES + this.lengths[blockNum];
+    }
+    this.offsets[blockNum] = offset;
+    this.lengths[blockNum] = length;
+    this.liveBytes += RECORD_HEADER_BYTES + length;
+  }
+
+  /**
+   * Rebuilds the block map from the records of the file, and cuts the file off after the last
+   * complete one.
+   */
+  private void scan() throws IOException {
+    long size = this.fc.size();
+    long position = FILE_HEADER_BYTES;
+    ByteBuffer buffer = ByteBuffer.allocate(Math.max(SCAN_BYTES, RECORD_HEADER_BYTES + this.pageSize));
+    long bufferStart = position;
+    buffer.limit(0);
+    while (true) {
+      int at = (int) (position - bufferStart);
+      if (buffer.limit() - at < RECORD_HEADER_BYTES + this.pageSize && bufferStart + buffer.limit() < size) {
+        // slide the buffer to position and refill it, so that the next record is in it whole
+        buffer.position(at);
+        buffer.compact();
+        bufferStart = position;
+        while (buffer.hasRemaining()) {
+          if (this.fc.read(buffer, bufferStart + buffer.position()) < 0) {
+            break;
+          }
+        }
+        buffer.flip();
+        this.stats.recordDiskRead();
+        at = 0;
+      }
+      if (buffer.limit() - at < RECORD_HEADER_BYTES) {
+        break;
+      }
+      int blockNum = buffer.getInt(at);
+      int length = buffer.getInt(at + 4);
+      if (blockNum < 0 || length < 0 || length > this.pageSize || buffer.limit() - at - RECORD_HEADER_BYTES < length) {
+        break;
+      }
+      if (checksum(buffer.array(), at, length) != buffer.getInt(at + 8)) {
+        break;
+      }
+      point(blockNum, position, length);
+      position += RECORD_HEADER_BYTES + length;
+    }
+    this.end = position;
+    if (position < size && !this.readOnly) {
+      this.fc.truncate(position);
+    }
+  }
+
+  /**
+   * Writes the live records to a new compressed file at path if more than half of this file is
+   * garbage. Must be called after the last write; the caller moves the new file over the old one
+   * once this file is closed.
+   *
+   * @param path where to write the compacted file
+   * @return true if the compacted file was written
+   */
+  synchronized boolean compact(String path) {
+    if (this.end - FILE_HEADER_BYTES <= 2 * this.liveBytes) {
+      return false;
+    }
+    try {
+      RandomAccessFile file = new RandomAccessFile(path, "rw");
+      try {
+        FileChannel out = file.getChannel();
+        out.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        header.putInt(0, MAGIC);
+        header.putInt(4, this.pageSize);
+        writeFully(out, header, 0);
+        long position = FILE_HEADER_BYTES;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + this.pageSize);
+        for (int i = 0; i < this.offsets.length; i++) {
+          if (this.offsets[i] < 0) {
+            continue;
+          }
+          record.clear();
+          record.limit(RECORD_HEADER_BYTES + this.lengths[i]);
+          while (record.hasRemaining()) {
+            if (this.fc.read(record, this.offsets[i] + record.position()) < 0) {
+              throw new IOException("record past the end of the file");
+            }
+          }
+          record.flip();
+          position += writeFully(out, record, position);
+        }
+        out.force(false);
+      } finally {
+        file.close();
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not compact file: " + e.getMessage());
+    }
+    return true;
+  }
+
+  /**
+   * The checksum of a record covers its block number and length as well as its bytes, so a run of
+   * zeros, as left by a torn write, is never taken for a record.
+   */
+  private static int checksum(byte[] record, int at, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(record, at, 8);
+    crc.update(record, at + RECORD_HEADER_BYTES, length);
+    return (int) crc.getValue();
+  }
+
+  private byte[] pageBytes(ByteBuffer data) {
+    if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == this.pageSize) {
+      return data.array();
+    }
+    byte[] page = new byte[this.pageSize];
+    ByteBuffer src = data.duplicate();
+    src.clear();
+    src.get(page);
+    return page;
+  }
+
+  private static boolean isZero(byte[] page) {
+    for (byte b : page) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] scratch(int length) {
+    byte[] bytes = scratch.get();
+    if (bytes.length < length) {
+      bytes = new byte[length];
+      scratch.set(bytes);
+    }
+    return bytes;
+  }
+
+  private static int writeFully(FileChannel fc, ByteBuffer src, long position) throws IOException {
+    int written = 0;
+    while (src.hasRemaining()) {
+      written += fc.write(src, position + written);
+    }
+    return written;
+  }
+}
@@ -0,0 +1,79 @@
+package edu.berkeley.cs186.database.io;
+
+/**
+ * A page replacement policy for one shard of a PageCache. The policy only tracks virtual page
+ * numbers; the shard owns the pages themselves. Implementations need not be thread-safe: every
+ * method is called while the shard lock is held.
+ */
+public interface EvictionPolicy {
+  /**
+   * The replacement policies a PageCache can be configured with.
+   */
+  public enum Type {
+    LRU {
+      EvictionPolicy create() {
+        return new LRUPolicy();
+      }
+    },
+    CLOCK {
+      EvictionPolicy create() {
+        return new ClockPolicy();
+      }
+    },
+    TWO_Q {
+      EvictionPolicy create() {
+        return new TwoQueuePolicy();
+      }
+    },
+    LRU_K {
+      EvictionPolicy create() {
+        return new LRUKPolicy(LRUKPolicy.defaultK);
+      }
+    };
+
+    abstract EvictionPolicy create();
+  }
+
+  /**
+   * Callback used to evict the page a policy has chosen. Eviction fails if the page is pinned, in
+   * which case the policy should move on to its next candidate.
+   */
+  public interface Victims {
+    /**
+     * @param vPageNum the virtual page number of the candidate
+     * @return true if the page was evicted
+     */
+    boolean tryEvict(long vPageNum);
+  }
+
+  /**
+   * Called when a page is added to the shard.
+   *
+   * @param vPageNum the virtual page number
+   */
+  void insert(long vPageNum);
+
+  /**
+   * Called when a resident page is accessed.
+   *
+   * @param vPageNum the virtual page number
+   */
+  void access(long vPageNum);
+
+  /**
+   * Called when a page leaves the shard without being chosen as a victim, for example because its
+   * page was freed or its allocator closed.
+   *
+   * @param vPageNum the virtual page number
+   */
+  void remove(long vPageNum);
+
+  /**
+   * Chooses a victim and evicts it through victims, skipping candidates that cannot be evicted.
+   * The evicted page is no longer tracked as resident once this returns.
+   *
+   * @param victims used to evict the chosen page
+   * @return the virtual page number of the evicted page, or null if every page is pinned
+   */
+  Long evict(Victims victims);
+}
@@ -0,0 +1,384 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads pages of one file asynchronously, on an AsynchronousFileChannel, for PageAllocator's
+ * fetchPageAsync and prefetch. Requests from any number of threads are queued by block and issued
+ * elevator-style: each read starts at the lowest queued block at or after the end of the previous
+ * one, wrapping around to the start of the file, and takes in every queued block that follows it
+ * without a gap, up to maxRunBytes. Requests that arrive while reads are in flight are sorted and
+ * merged with each other, so a burst of random page requests is read in a few sequential runs.
+ *
+ * Each page that is read is handed to its PageAllocator, which puts it in the buffer pool, and the
+ * request's future completes with the page that is resident. A page that is requested again while
+ * it is queued or being read shares the first request.
+ */
+class IOScheduler {
+  private static final int maxRunBytes = 256 * 1024;
+  private static final int maxInFlight = 4;
+
+  private final PageAllocator owner;
+  private final String fName;
+  private final AsynchronousFileChannel afc;
+  private final int pageSize;
+  private final int maxRunPages;
+  private final IOStats stats;
+  // requests that have not been issued yet, by block
+  private final TreeMap<Integer, PageRead> queue;
+  // requests that are queued or in flight, by page number
+  private final Map<Integer, PageRead> outstanding;
+  private final AtomicLong numRuns;
+  private final AtomicLong numPagesRead;
+  // the block after the end of the last run issued
+  private int head;
+  private int numInFlight;
+  private boolean closed;
+
+  /**
+   * @param owner the allocator that the pages read are handed to
+   * @param fName the file to read
+   * @param pageSize the size of the file's blocks and pages in bytes
+   * @param stats counts the reads of the file
+   */
+  IOScheduler(PageAllocator owner, String fName, int pageSize, IOStats stats) {
+    this.owner = owner;
+    this.fName = fName;
+    this.pageSize = pageSize;
+    this.maxRunPages = Math.max(1, maxRunBytes / pageSize);
+    this.stats = stats;
+    this.queue = new TreeMap<Integer, PageRead>();
+    this.outstanding = new ConcurrentHashMap<Integer, PageRead>();
+    this.numRuns = new AtomicLong(0);
+    this.numPagesRead = new AtomicLong(0);
+    try {
+      this.afc = AsynchronousFileChannel.open(Paths.get(fName), StandardOpenOption.READ);
+    } catch (IOException e) {
+      throw new PageException("Could not open File: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Queues a read of block blockNum, which holds page pageNum.
+   *
+   * @return the request, which completes once the page is in the buffer pool
+   */
+  synchronized PageRead submit(int pageNum, int blockNum) {
+    PageRead r = enqueue(pageNum, blockNum);
+    dispatch();
+    return r;
+  }
+
+  /**
+   * Queues reads of several blocks before issuing any of them, so that adjacent blocks are read in
+   * the same run even when no read is in flight.
+   *
+   * @param blocksByPage the block that holds each page to read, by page number
+   */
+  synchronized void submitAll(Map<Integer, Integer> blocksByPage) {
+    for (Map.Entry<Integer, Integer> e : blocksByPage.entrySet()) {
+      enqueue(e.getKey(), e.getValue());
+    }
+    dispatch();
+  }
+
+  /**
+   * Queues a read of block blockNum unless page pageNum is queued or in flight already. Must hold
+   * the lock.
+   */
+  private PageRead enqueue(int pageNum, int blockNum) {
+    PageRead r = this.outstanding.get(pageNum);
+    if (r != null) {
+      return r;
+    }
+    r = new PageRead(pageNum, blockNum);
+    if (this.closed) {
+      r.fail(new PageException("Could not read page: " + pageNum + " ; " + this.fName + " is closed"));
+      return r;
+    }
+    this.queue.put(blockNum, r);
+    this.outstanding.put(pageNum, r);
+    return r;
+  }
+
+  /**
+   * @return the request for page pageNum if it is queued or in flight, and null otherwise
+   */
+  PageRead getOutstanding(int pageNum) {
+    return this.outstanding.get(pageNum);
+  }
+
+  /**
+   * @return the number of reads issued, each of a run of adjacent blocks
+   */
+  long getNumRuns() {
+    return this.numRuns.get();
+  }
+
+  /**
+   * @return the number of pages read
+   */
+  long getNumPagesRead() {
+    return this.numPagesRead.get();
+  }
+
+  /**
+   * Issues runs of queued blocks while fewer than maxInFlight reads are in flight. Must hold the
+   * lock.
+   */
+  private void dispatch() {
+    while (this.numInFlight < maxInFlight && !this.queue.isEmpty()) {
+      Map.Entry<Integer, PageRead> first = this.queue.ceilingEntry(this.head);
+      if (first == null) {
+        first = this.queue.firstEntry();
+      }
+      List<PageRead> run = new ArrayList<PageRead>();
+      int blockNum = first.getKey();
+      PageRead r = first.getValue();
+      while (r != null && run.size() < this.maxRunPages) {
+        this.queue.remove(blockNum);
+        run.add(r);
+        blockNum++;
+        r = this.queue.get(blockNum);
+      }
+      this.head = blockNum;
+      this.numInFlight++;
+      issue(run);
+    }
+  }
+
+  private void issue(List<PageRead> run) {
+    long position = ((long) run.get(0).blockNum) * this.pageSize;
+    ByteBuffer buf = ByteBuffer.allocate(run.size() * this.pageSize);
+    // taken before the read, so that a page whose evicted copy is written back meanwhile is refused
+    for (PageRead r : run) {
+      r.readStamp = this.owner.getReadStamp(r.pageNum);
+    }
+    try {
+      this.afc.read(buf, position, run, new RunHandler(buf, position));
+    } catch (RuntimeException e) {
+      finish(run, e);
+    }
+  }
+
+  /**
+   * Completes the requests of a run, and issues more runs.
+   *
+   * @param failure why the run could not be read, or null if it was
+   */
+  private void finish(List<PageRead> run, Throwable failure) {
+    try {
+      for (PageRead r : run) {
+        if (failure != null) {
+          r.fail(failure);
+        }
+      }
+    } finally {
+      synchronized (this) {
+        for (PageRead r : run) {
+          this.outstanding.remove(r.pageNum);
+        }
+        this.numInFlight--;
+        if (!this.closed) {
+          dispatch();
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Fails every request that has not been issued yet, waits for the reads in flight, and closes
+   * the channel.
+   */
+  void close() {
+    boolean interrupted = false;
+    synchronized (this) {
+      this.closed = true;
+      for (PageRead r : this.queue.values()) {
+        this.outstanding.remove(r.pageNum);
+        r.fail(new PageException("Could not read page: " + r.pageNum + " ; " + this.fName + " is closed"));
+      }
+      this.queue.clear();
+      while (this.numInFlight > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      this.afc.close();
+    } catch (IOException e) {
+      throw new PageException("Could not close " + this.fName + " ; " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads the rest of a run when the channel returns short, and hands its pages to the allocator.
+   */
+  private class RunHandler implements CompletionHandler<Integer, List<PageRead>> {
+    private final ByteBuffer buf;
+    private final long position;
+
+    RunHandler(ByteBuffer buf, long position) {
+      this.buf = buf;
+      this.position = position;
+    }
+
+    public void completed(Integer numRead, List<PageRead> run) {
+      if (numRead >= 0 && this.buf.hasRemaining()) {
+        try {
+          afc.read(this.buf, this.position + this.buf.position(), run, this);
+          return;
+        } catch (RuntimeException e) {
+          finish(run, e);
+          return;
+        }
+      }
+      // blocks past the end of the file read as zeros
+      while (this.buf.hasRemaining()) {
+        this.buf.put((byte) 0);
+      }
+      stats.recordDiskRead();
+      numRuns.incrementAndGet();
+      Throwable failure = null;
+      try {
+        for (int i = 0; i < run.size(); i++) {
+          PageRead r = run.get(i);
+          ByteBuffer block = this.buf.duplicate();
+          block.limit((i + 1) * pageSize);
+          block.position(i * pageSize);
+          try {
+            Page page = owner.installPage(r.pageNum, block, r.readStamp);
+            // counted before the waiters are woken, so that they see it
+            numPagesRead.incrementAndGet();
+            r.complete(page);
+          } catch (RuntimeException e) {
+            r.fail(e);
+          }
+        }
+      } catch (Throwable t) {
+        failure = t;
+      } finally {
+        finish(run, failure);
+      }
+    }
+
+    public void failed(Throwable exc, List<PageRead> run) {
+      finish(run, exc);
+    }
+  }
+
+  /**
+   * A request to read one page. It completes with the page resident in the buffer pool, or fails
+   * with the reason the page could not be read.
+   */
+  static class PageRead implements Future<Page> {
+    private final int pageNum;
+    private final int blockNum;
+    private final CountDownLatch done;
+    // the buffer pool's read stamp of the page when its run was issued
+    private long readStamp;
+    private volatile Page page;
+    private volatile Throwable failure;
+
+    PageRead(int pageNum, int blockNum) {
+      this.pageNum = pageNum;
+      this.blockNum = blockNum;
+      this.done = new CountDownLatch(1);
+    }
+
+    static PageRead completed(int pageNum, Page page) {
+      PageRead r = new PageRead(pageNum, -1);
+      r.complete(page);
+      return r;
+    }
+
+    void complete(Page page) {
+      if (this.done.getCount() > 0) {
+        this.page = page;
+        this.done.countDown();
+      }
+    }
+
+    void fail(Throwable failure) {
+      if (this.done.getCount() > 0) {
+        this.failure = failure;
+        this.done.countDown();
+      }
+    }
+
+    /**
+     * Waits for the request without throwing checked exceptions.
+     *
+     * @return the page, or null if it could not be read
+     */
+    Page await() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          this.done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return this.page;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return this.done.getCount() == 0;
+    }
+
+    public Page get() throws InterruptedException, ExecutionException {
+      this.done.await();
+      return result();
+    }
+
+    public Page get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      if (!this.done.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      return result();
+    }
+
+    private Page result() throws ExecutionException {
+      if (this.failure != null) {
+        throw new ExecutionException(this.failure);
+      }
+      return this.page;
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package edu.berkeley.cs186.database.io;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * I/O counters of one source of page accesses: buffer pool hits and misses, pages read from and
+ * written or forced to disk, bytes memory-mapped, and a histogram of page fetch latencies.
+ *
+ * Every PageAllocator keeps an IOStats for its file. I/O can also be attributed to whatever is
+ * running on a thread, such as a query operator: while an IOStats is attached to a thread, all
+ * I/O recorded on that thread is counted by it as well as by the file it belongs to.
+ *
+ * Counters are updated without locks; snapshot() copies them into an immutable Snapshot, which can
+ * be added to others to roll the I/O of several sources up. An IOStats can be published over JMX
+ * with register.
+ */
+public class IOStats implements IOStatsMBean {
+  public static final String JMX_DOMAIN = "edu.berkeley.cs186.database";
+  // fetch latencies are bucketed by powers of two: bucket i holds latencies in [2^i, 2^(i+1)) ns
+  public static final int NUM_LATENCY_BUCKETS = 40;
+
+  private static final int HITS = 0;
+  private static final int MISSES = 1;
+  private static final int DISK_READS = 2;
+  private static final int DISK_WRITES = 3;
+  private static final int BYTES_MAPPED = 4;
+  private static final int FETCH_NANOS = 5;
+  private static final int NUM_COUNTERS = 6;
+
+  private static final ThreadLocal<IOStats> threadStats = new ThreadLocal<IOStats>();
+
+  private final AtomicLongArray counters;
+  private final AtomicLongArray fetchLatencies;
+
+  public IOStats() {
+    this.counters = new AtomicLongArray(NUM_COUNTERS);
+    this.fetchLatencies = new AtomicLongArray(NUM_LATENCY_BUCKETS);
+  }
+
+  /**
+   * Attaches this IOStats to the calling thread, so that I/O on the thread is also counted here,
+   * until detach is called with the IOStats this returned.
+   *
+   * @return the IOStats that was attached to the thread before, possibly null
+   */
+  public IOStats attach() {
+    IOStats previous = threadStats.get();
+    threadStats.set(this);
+    return previous;
+  }
+
+  /**
+   * Restores the IOStats that was attached to the calling thread before the matching attach.
+   *
+   * @param previous the IOStats returned by attach
+   */
+  public static void detach(IOStats previous) {
+    if (previous == null) {
+      threadStats.remove();
+    } else {
+      threadStats.set(previous);
+    }
+  }
+
+  void recordFetch(boolean hit, long nanos) {
+    int bucket = bucketOf(nanos);
+    add(hit ? HITS : MISSES, 1);
+    add(FETCH_NANOS, nanos);
+    this.fetchLatencies.incrementAndGet(bucket);
+    IOStats attached = threadStats.get();
+    if (attached != null && attached != this) {
+      attached.fetchLatencies.incrementAndGet(bucket);
+    }
+  }
+
+  void recordDiskRead() {
+    PageAllocator.incrementNumDiskReads();
+    add(DISK_READS, 1);
+  }
+
+  void recordDiskWrite() {
+    PageAllocator.incrementNumDiskWrites();
+    add(DISK_WRITES, 1);
+  }
+
+  void recordBytesMapped(long bytes) {
+    add(BYTES_MAPPED, bytes);
+  }
+
+  private void add(int counter, long delta) {
+    this.counters.addAndGet(counter, delta);
+    IOStats attached = threadStats.get();
+    if (attached != null && attached != this) {
+      attached.counters.addAndGet(counter, delta);
+    }
+  }
+
+  private static int bucketOf(long nanos) {
+    if (nanos < 1) {
+      return 0;
+    }
+    return Math.min(NUM_LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+  }
+
+  /**
+   * @return a copy of the current values of the counters
+   */
+  public Snapshot snapshot() {
+    long[] values = new long[NUM_COUNTERS];
+    for (int i = 0; i < NUM_COUNTERS; i++) {
+      values[i] = this.counters.get(i);
+    }
+    long[] latencies = new long[NUM_LATENCY_BUCKETS];
+    for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+      latencies[i] = this.fetchLatencies.get(i);
+    }
+    return new Snapshot(values, latencies);
+  }
+
+  /**
+   * Sets every counter back to zero.
+   */
+  public void reset() {
+    for (int i = 0; i < NUM_COUNTERS; i++) {
+      this.counters.set(i, 0);
+    }
+    for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+      this.fetchLatencies.set(i, 0);
+    }
+  }
+
+  public long getNumHits() {
+    return this.counters.get(HITS);
+  }
+
+  public long getNumMisses() {
+    return this.counters.get(MISSES);
+  }
+
+  public double getHitRatio() {
+    return snapshot().getHitRatio();
+  }
+
+  public long getNumDiskReads() {
+    return this.counters.get(DISK_READS);
+  }
+
+  public long getNumDiskWrites() {
+    return this.counters.get(DISK_WRITES);
+  }
+
+  public long getBytesMapped() {
+    return this.counters.get(BYTES_MAPPED);
+  }
+
+  public double getMeanFetchNanos() {
+    return snapshot().getMeanFetchNanos();
+  }
+
+  public long getFetchNanosP50() {
+    return snapshot().getFetchNanosAtPercentile(0.5);
+  }
+
+  public long getFetchNanosP99() {
+    return snapshot().getFetchNanosAtPercentile(0.99);
+  }
+
+  /**
+   * Publishes this IOStats in the platform MBean server as
+   * edu.berkeley.cs186.database:type=type,scope=scope,name=name. An MBean that was registered
+   * under the same name before is replaced.
+   *
+   * @param type the kind of object whose I/O this counts, such as Table
+   * @param scope what the object belongs to, such as the directory of its database
+   * @param name the name of the object
+   * @return the name the MBean was registered under
+   */
+  public ObjectName register(String type, String scope, String name) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",scope=" + ObjectName.quote(scope)
+                                             + ",name=" + ObjectName.quote(name));
+      unregister(objectName);
+      server.registerMBean(this, objectName);
+      return objectName;
+    } catch (JMException e) {
+      throw new PageException("Can't register I/O statistics of " + name + " ; " + e.getMessage());
+    }
+  }
+
+  /**
+   * Removes an MBean registered by register; does nothing if there is none.
+   *
+   * @param objectName the name the MBean was registered under
+   */
+  public static void unregister(ObjectName objectName) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.unregisterMBean(objectName);
+    } catch (InstanceNotFoundException e) {
+      // already gone
+    } catch (JMException e) {
+      throw new PageException("Can't unregister " + objectName + " ; " + e.getMessage());
+    }
+  }
+
+  /**
+   * The values of the counters of one or more IOStats at some point in time.
+   */
+  public static final class Snapshot {
+    public static final Snapshot EMPTY = new Snapshot(new long[NUM_COUNTERS], new long[NUM_LATENCY_BUCKETS]);
+
+    private final long[] values;
+    private final long[] fetchLatencies;
+
+    private Snapshot(long[] values, long[] fetchLatencies) {
+      this.values = values;
+      this.fetchLatencies = fetchLatencies;
+    }
+
+    /**
+     * @param other another snapshot
+     * @return a snapshot holding the sums of the counters of this and other
+     */
+    public Snapshot plus(Snapshot other) {
+      long[] values = new long[NUM_COUNTERS];
+      for (int i = 0; i < NUM_COUNTERS; i++) {
+        values[i] = this.values[i] + other.values[i];
+      }
+      long[] latencies = new long[NUM_LATENCY_BUCKETS];
+      for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+        latencies[i] = this.fetchLatencies[i] + other.fetchLatencies[i];
+      }
+      return new Snapshot(values, latencies);
+    }
+
+    /**
+     * @param earlier a snapshot of the same IOStats taken before this one
+     * @return a snapshot of the I/O counted between earlier and this
+     */
+    public Snapshot minus(Snapshot earlier) {
+      long[] values = new long[NUM_COUNTERS];
+      for (int i = 0; i < NUM_COUNTERS; i++) {
+        values[i] = this.values[i] - earlier.values[i];
+      }
+      long[] latencies = new long[NUM_LATENCY_BUCKETS];
+      for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+        latencies[i] = this.fetchLatencies[i] - earlier.fetchLatencies[i];
+      }
+      return new Snapshot(values, latencies);
+    }
+
+    /**
+     * @return the number of page fetches served by the buffer pool
+     */
+    public long getNumHits() {
+      return this.values[HITS];
+    }
+
+    /**
+     * @return the number of page fetches that had to bring the page into the buffer pool
+     */
+    public long getNumMisses() {
+      return this.values[MISSES];
+    }
+
+    /**
+     * @return the number of page fetches
+     */
+    public long getNumFetches() {
+      return this.values[HITS] + this.values[MISSES];
+    }
+
+    /**
+     * @return the fraction of page fetches served by the buffer pool, or 0 if there were none
+     */
+    public double getHitRatio() {
+      long fetches = getNumFetches();
+      return fetches == 0 ? 0.0 : (double) this.values[HITS] / fetches;
+    }
+
+    /**
+     * @return the number of pages read from disk with explicit I/O
+     */
+    public long getNumDiskReads() {
+      return this.values[DISK_READS];
+    }
+
+    /**
+     * @return the number of writes and forces issued to disk
+     */
+    public long getNumDiskWrites() {
+      return this.values[DISK_WRITES];
+    }
+
+    /**
+     * @return the number of bytes of file memory-mapped
+     */
+    public long getBytesMapped() {
+      return this.values[BYTES_MAPPED];
+    }
+
+    /**
+     * @return the mean latency of a page fetch in nanoseconds, or 0 if there were none
+     */
+    public double getMeanFetchNanos() {
+      long fetches = getNumFetches();
+      return fetches == 0 ? 0.0 : (double) this.values[FETCH_NANOS] / fetches;
+    }
+
+    /**
+     * @return the fetch latency histogram; entry i counts the fetches that took [2^i, 2^(i+1)) ns
+     */
+    public long[] getFetchLatencyHistogram() {
+      return this.fetchLatencies.clone();
+    }
+
+    /**
+     * @param percentile a fraction between 0 and 1
+     * @return an upper bound, in nanoseconds, on the latency of that fraction of page fetches, or
+     * 0 if there were none
+     */
+    public long getFetchNanosAtPercentile(double percentile) {
+      long total = 0;
+      for (long count : this.fetchLatencies) {
+        total += count;
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long target = Math.max(1, (long) Math.ceil(percentile * total));
+      long seen = 0;
+      for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+        seen += this.fetchLatencies[i];
+        if (seen >= target) {
+          return 1L << (i + 1);
+        }
+      }
+      return 1L << NUM_LATENCY_BUCKETS;
+    }
+
+    public String toString() {
+      return "hits: " + getNumHits() + ", misses: " + getNumMisses() + ", disk reads: " + getNumDiskReads()
+             + ", disk writes: " + getNumDiskWrites() + ", bytes mapped: " + getBytesMapped()
+             + ", fetch p50/p99: " + getFetchNanosAtPercentile(0.5) + "/" + getFetchNanosAtPercentile(0.99) + " ns";
+    }
+  }
+}
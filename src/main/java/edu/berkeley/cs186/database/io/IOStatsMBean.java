@@ -0,0 +1,27 @@
+package edu.berkeley.cs186.database.io;
+
+/**
+ * The JMX view of an IOStats. Every attribute is read from the live counters, so it is current as
+ * of the call; see IOStats.Snapshot for a consistent set of values.
+ */
+public interface IOStatsMBean {
+  long getNumHits();
+
+  long getNumMisses();
+
+  double getHitRatio();
+
+  long getNumDiskReads();
+
+  long getNumDiskWrites();
+
+  long getBytesMapped();
+
+  double getMeanFetchNanos();
+
+  long getFetchNanosP50();
+
+  long getFetchNanosP99();
+
+  void reset();
+}
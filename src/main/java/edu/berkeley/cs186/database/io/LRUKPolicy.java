@@ -0,0 +1,107 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The LRU-K policy of O'Neil, O'Neil and Weikum. Each page remembers the logical times of its last
+ * K references, and the victim is the page whose K-th most recent reference is oldest. Pages that
+ * have been referenced fewer than K times are evicted first, oldest last reference first, so pages
+ * read once by a scan go before pages that are read repeatedly.
+ *
+ * The reference history of evicted pages is retained for as many pages as are resident, so a page
+ * that is evicted and quickly read again does not start over.
+ *
+ * Resident pages are kept ordered by their K-th and last reference times, so a victim is found
+ * without looking at every page; a page is moved within the order each time it is referenced.
+ */
+class LRUKPolicy implements EvictionPolicy {
+  static final int defaultK = 2;
+
+  private final int k;
+  private long clock;
+  private final Map<Long, long[]> resident;
+  // the resident pages, by history; no two pages share a last reference time, so none compare equal
+  private final TreeMap<long[], Long> order;
+  private final LinkedHashMap<Long, long[]> retained;
+
+  LRUKPolicy(int k) {
+    if (k < 1) {
+      throw new IllegalArgumentException("k must be positive");
+    }
+    this.k = k;
+    this.clock = 0;
+    this.resident = new HashMap<Long, long[]>();
+    this.order = new TreeMap<long[], Long>(new Comparator<long[]>() {
+      public int compare(long[] a, long[] b) {
+        int cmp = compareTimes(a[LRUKPolicy.this.k - 1], b[LRUKPolicy.this.k - 1]);
+        return cmp != 0 ? cmp : compareTimes(a[0], b[0]);
+      }
+    });
+    this.retained = new LinkedHashMap<Long, long[]>();
+  }
+
+  public void insert(long vPageNum) {
+    long[] history = this.retained.remove(vPageNum);
+    if (history == null) {
+      history = new long[this.k];
+    }
+    this.resident.put(vPageNum, history);
+    reference(history);
+    this.order.put(history, vPageNum);
+  }
+
+  public void access(long vPageNum) {
+    long[] history = this.resident.get(vPageNum);
+    if (history != null) {
+      // the history is the key of the page in the order, so it is taken out while it changes
+      this.order.remove(history);
+      reference(history);
+      this.order.put(history, vPageNum);
+    }
+  }
+
+  public void remove(long vPageNum) {
+    long[] history = this.resident.remove(vPageNum);
+    if (history != null) {
+      this.order.remove(history);
+    }
+  }
+
+  public Long evict(Victims victims) {
+    Iterator<Map.Entry<long[], Long>> iter = this.order.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<long[], Long> entry = iter.next();
+      Long vPageNum = entry.getValue();
+      if (victims.tryEvict(vPageNum)) {
+        iter.remove();
+        this.resident.remove(vPageNum);
+        retain(vPageNum, entry.getKey());
+        return vPageNum;
+      }
+    }
+    return null;
+  }
+
+  private void reference(long[] history) {
+    System.arraycopy(history, 0, history, 1, this.k - 1);
+    history[0] = ++this.clock;
+  }
+
+  private void retain(Long vPageNum, long[] history) {
+    this.retained.put(vPageNum, history);
+    Iterator<Long> iter = this.retained.keySet().iterator();
+    while (this.retained.size() > Math.max(1, this.resident.size())) {
+      iter.next();
+      iter.remove();
+    }
+  }
+
+  private static int compareTimes(long a, long b) {
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+}
@@ -0,0 +1,40 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least-recently used page. A single sequential scan larger than the cache will flush
+ * every other page out of it.
+ */
+class LRUPolicy implements EvictionPolicy {
+  private final LinkedHashMap<Long, Boolean> order;
+
+  LRUPolicy() {
+    this.order = new LinkedHashMap<Long, Boolean>(16, 0.75f, true);
+  }
+
+  public void insert(long vPageNum) {
+    this.order.put(vPageNum, Boolean.TRUE);
+  }
+
+  public void access(long vPageNum) {
+    this.order.get(vPageNum);
+  }
+
+  public void remove(long vPageNum) {
+    this.order.remove(vPageNum);
+  }
+
+  public Long evict(Victims victims) {
+    Iterator<Long> iter = this.order.keySet().iterator();
+    while (iter.hasNext()) {
+      Long vPageNum = iter.next();
+      if (victims.tryEvict(vPageNum)) {
+        iter.remove();
+        return vPageNum;
+      }
+    }
+    return null;
+  }
+}
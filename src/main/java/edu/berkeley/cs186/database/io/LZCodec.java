@@ -0,0 +1,183 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.Arrays;
+
+/**
+ * A small LZ77 codec in the style of LZ4, for compressing pages.
+ *
+ * Compressed data is a series of sequences. Each sequence is a token byte whose high nibble is the
+ * number of literals and whose low nibble is the match length minus 4, either nibble extended by
+ * 255-valued bytes when it is 15. The token is followed by the literals and then by the match: a
+ * 2-byte little-endian offset back into the output, copied for the match length. The last sequence
+ * has literals only. Matches may overlap their own output, so runs (such as the space padding of
+ * fixed-width strings) cost a few bytes.
+ *
+ * Compression is greedy, with a hash table of the last position of every 4-byte prefix. It is not
+ * thread-safe; use one codec per thread.
+ */
+class LZCodec {
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 65535;
+  private static final int HASH_BITS = 13;
+
+  private final int[] table = new int[1 << HASH_BITS];
+
+  /**
+   * @param srcLen the number of bytes to compress
+   * @return the size a destination buffer needs for compress to never run out of room
+   */
+  static int maxCompressedLength(int srcLen) {
+    return srcLen + srcLen / 255 + 16;
+  }
+
+  /**
+   * Compresses src[0, srcLen) into dst, starting at dstOff.
+   *
+   * @param src the bytes to compress
+   * @param srcLen the number of bytes to compress
+   * @param dst where to put the compressed bytes
+   * @param dstOff the offset in dst of the first compressed byte
+   * @param maxLen give up if the compressed bytes would take more than this
+   * @return the number of compressed bytes, or -1 if they would take more than maxLen
+   */
+  int compress(byte[] src, int srcLen, byte[] dst, int dstOff, int maxLen) {
+    Arrays.fill(this.table, -1);
+    int anchor = 0;
+    int ip = 0;
+    int op = dstOff;
+    int limit = (int) Math.min((long) dstOff + maxLen, dst.length);
+    while (ip + MIN_MATCH <= srcLen) {
+      int sequence = readInt(src, ip);
+      int h = (sequence * -1640531535) >>> (32 - HASH_BITS);
+      int ref = this.table[h];
+      this.table[h] = ip;
+      if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+        ip++;
+        continue;
+      }
+      int matchLen = MIN_MATCH;
+      while (ip + matchLen < srcLen && src[ref + matchLen] == src[ip + matchLen]) {
+        matchLen++;
+      }
+      op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dst, op, limit);
+      if (op < 0) {
+        return -1;
+      }
+      ip += matchLen;
+      anchor = ip;
+    }
+    if (anchor < srcLen) {
+      op = writeSequence(src, anchor, srcLen - anchor, 0, 0, dst, op, limit);
+      if (op < 0) {
+        return -1;
+      }
+    }
+    return op - dstOff;
+  }
+
+  /**
+   * Decompresses src[srcOff, srcOff + srcLen) into dst[0, dstLen).
+   *
+   * @throws PageException if the compressed bytes are corrupt
+   */
+  static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstLen) {
+    int ip = srcOff;
+    int end = srcOff + srcLen;
+    int op = 0;
+    try {
+      while (ip < end) {
+        int token = src[ip++] & 0xFF;
+        int literals = token >>> 4;
+        if (literals == 15) {
+          int b;
+          do {
+            if (ip >= end) {
+              throw new PageException("corrupt compressed page: truncated");
+            }
+            b = src[ip++] & 0xFF;
+            literals += b;
+          } while (b == 255);
+        }
+        if (op + literals > dstLen || ip + literals > end) {
+          throw new PageException("corrupt compressed page: literals out of bounds");
+        }
+        System.arraycopy(src, ip, dst, op, literals);
+        ip += literals;
+        op += literals;
+        if (ip == end) {
+          break;
+        }
+
+        if (ip + 2 > end) {
+          throw new PageException("corrupt compressed page: truncated");
+        }
+        int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+        ip += 2;
+        int matchLen = token & 0x0F;
+        if (matchLen == 15) {
+          int b;
+          do {
+            if (ip >= end) {
+              throw new PageException("corrupt compressed page: truncated");
+            }
+            b = src[ip++] & 0xFF;
+            matchLen += b;
+          } while (b == 255);
+        }
+        matchLen += MIN_MATCH;
+        if (offset == 0 || offset > op || op + matchLen > dstLen) {
+          throw new PageException("corrupt compressed page: match out of bounds");
+        }
+        for (int i = 0; i < matchLen; i++) {
+          dst[op] = dst[op - offset];
+          op++;
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new PageException("corrupt compressed page: truncated");
+    }
+    if (op != dstLen) {
+      throw new PageException("corrupt compressed page: decompressed to " + op + " bytes, not " + dstLen);
+    }
+  }
+
+  private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLen,
+                                   byte[] dst, int op, int limit) {
+    // token, literal length bytes, literals, offset, match length bytes
+    int worst = 1 + literals / 255 + 1 + literals + 2 + matchLen / 255 + 1;
+    if (op + worst > limit) {
+      return -1;
+    }
+    int matchCode = matchLen == 0 ? 0 : matchLen - MIN_MATCH;
+    int tokenPos = op++;
+    int token = (Math.min(literals, 15) << 4) | Math.min(matchCode, 15);
+    dst[tokenPos] = (byte) token;
+    if (literals >= 15) {
+      op = writeLength(literals - 15, dst, op);
+    }
+    System.arraycopy(src, literalStart, dst, op, literals);
+    op += literals;
+    if (matchLen == 0) {
+      return op;
+    }
+    dst[op++] = (byte) offset;
+    dst[op++] = (byte) (offset >>> 8);
+    if (matchCode >= 15) {
+      op = writeLength(matchCode - 15, dst, op);
+    }
+    return op;
+  }
+
+  private static int writeLength(int length, byte[] dst, int op) {
+    while (length >= 255) {
+      dst[op++] = (byte) 255;
+      length -= 255;
+    }
+    dst[op++] = (byte) length;
+    return op;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+  }
+}
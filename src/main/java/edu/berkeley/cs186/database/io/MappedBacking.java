@@ -0,0 +1,52 @@
+package edu.berkeley.cs186.database.io;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+
+/**
+ * Backs pages with a memory mapping of their file. Writes reach the file through the mapping, so a
+ * flush only has to force the mapping when the page is durable.
+ */
+class MappedBacking implements PageBacking {
+  private final MappedByteBuffer mapping;
+  private final IOStats stats;
+
+  MappedBacking(MappedByteBuffer mapping, IOStats stats) {
+    this.mapping = mapping;
+    this.stats = stats;
+  }
+
+  MappedBacking(MappedByteBuffer mapping) {
+    this(mapping, new IOStats());
+  }
+
+  public boolean writesThrough() {
+    return true;
+  }
+
+  public void flush(ByteBuffer data, long position, boolean durable) {
+    if (durable) {
+      this.stats.recordDiskWrite();
+      this.mapping.force();
+    }
+  }
+
+  public int flush(List<Page> pages, boolean durable) {
+    boolean claimed = false;
+    for (Page p : pages) {
+      claimed |= p.claimWrite() != null;
+    }
+    if (!claimed || !durable) {
+      return 0;
+    }
+    // one force covers every page of the mapping
+    this.stats.recordDiskWrite();
+    this.mapping.force();
+    return 1;
+  }
+
+  public void release(ByteBuffer data) {
+    // the mapping is unmapped once no page refers to it any more
+  }
+}
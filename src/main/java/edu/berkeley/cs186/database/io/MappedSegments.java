@@ -0,0 +1,189 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-maps a file in large, aligned segments and hands out Pages that are slices of those
+ * segments, so that a cache miss on a block that is already mapped costs a slice instead of an
+ * mmap system call.
+ *
+ * Mapping a region that extends past the end of a file grows the file, so a segment only ever
+ * covers bytes that already exist. A block past the mapped part of its segment is mapped on its
+ * own, exactly as a Page does, which keeps file sizes identical to one mapping per page. Once the
+ * file has grown past the mapped part of a segment by at least as much as is mapped (and at least
+ * minRemapPages pages), the segment is remapped to cover it, so a growing file is remapped a logarithmic
+ * number of times per segment.
+ *
+ * Pages keep a reference to the mapping they were sliced from; an older mapping of a segment stays
+ * valid for as long as its pages are reachable, and writes through either mapping reach the same
+ * file.
+ */
+class MappedSegments {
+  static final long defaultSegmentBytes = 64L * 1024 * 1024;
+  private static final int minRemapPages = 16;
+
+  private final FileChannel fc;
+  private final long segmentBytes;
+  private final int pageSize;
+  private final IOStats stats;
+  private final FileChannel.MapMode mode;
+  private volatile Segment[] segments;
+
+  /**
+   * @param fc the file to map
+   * @param segmentBytes the size of a segment in bytes; a multiple of the page size
+   * @param pageSize the size of the file's blocks and pages in bytes
+   * @param stats counts the bytes mapped and the forces of the file
+   * @param readOnly whether to map the file READ_ONLY, so that no page can be written
+   */
+  MappedSegments(FileChannel fc, long segmentBytes, int pageSize, IOStats stats, boolean readOnly) {
+    if (segmentBytes < pageSize || segmentBytes % pageSize != 0) {
+      throw new IllegalArgumentException("segment size must be a positive multiple of the page size");
+    }
+    this.fc = fc;
+    this.segmentBytes = segmentBytes;
+    this.pageSize = pageSize;
+    this.stats = stats;
+    this.mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+    this.segments = new Segment[0];
+  }
+
+  MappedSegments(FileChannel fc, long segmentBytes, int pageSize, IOStats stats) {
+    this(fc, segmentBytes, pageSize, stats, false);
+  }
+
+  MappedSegments(FileChannel fc, long segmentBytes) {
+    this(fc, segmentBytes, Page.pageSize, new IOStats());
+  }
+
+  MappedSegments(FileChannel fc) {
+    this(fc, defaultSegmentBytes);
+  }
+
+  /**
+   * Creates a Page over block blockNum of the file.
+   *
+   * @param blockNum the block in the file
+   * @param pageNum the virtual page number of the page
+   * @param durable whether flushes of the page are forced to disk
+   * @return a new Page
+   */
+  Page newPage(int blockNum, int pageNum, boolean durable) {
+    long position = ((long) blockNum) * this.pageSize;
+    int index = (int) (position / this.segmentBytes);
+    long offset = position - index * this.segmentBytes;
+
+    Mapping m = segment(index).mappingFor(offset);
+    if (m == null) {
+      MappedByteBuffer block;
+      try {
+        block = this.fc.map(this.mode, position, this.pageSize);
+      } catch (IOException e) {
+        throw new PageException("Can't mmap page: " + pageNum + " at block: " + blockNum + " ; " + e.getMessage());
+      }
+      this.stats.recordBytesMapped(this.pageSize);
+      return new Page(block, new MappedBacking(block, this.stats), position, pageNum, durable, null);
+    }
+    ByteBuffer slice = m.buffer.duplicate();
+    slice.limit((int) offset + this.pageSize);
+    slice.position((int) offset);
+    return new Page(slice.slice(), m.backing, position, pageNum, durable, null);
+  }
+
+  /**
+   * @return the number of segment mappings created so far
+   */
+  int getNumMappings() {
+    int count = 0;
+    for (Segment s : this.segments) {
+      count += s.numMappings;
+    }
+    return count;
+  }
+
+  private Segment segment(int index) {
+    Segment[] current = this.segments;
+    if (index < current.length) {
+      return current[index];
+    }
+    synchronized (this) {
+      current = this.segments;
+      if (index >= current.length) {
+        Segment[] grown = new Segment[index + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        for (int i = current.length; i < grown.length; i++) {
+          grown[i] = new Segment(i * this.segmentBytes);
+        }
+        this.segments = grown;
+        current = grown;
+      }
+      return current[index];
+    }
+  }
+
+  private static class Mapping {
+    private final MappedByteBuffer buffer;
+    private final MappedBacking backing;
+    private final long length;
+
+    private Mapping(MappedByteBuffer buffer, long length, IOStats stats) {
+      this.buffer = buffer;
+      this.backing = new MappedBacking(buffer, stats);
+      this.length = length;
+    }
+  }
+
+  private class Segment {
+    private final long start;
+    private volatile Mapping mapping;
+    private int numMappings;
+
+    private Segment(long start) {
+      this.start = start;
+      this.mapping = null;
+      this.numMappings = 0;
+    }
+
+    /**
+     * @return a mapping of this segment that covers the page at offset, or null if the page
+     * should be mapped on its own
+     */
+    private Mapping mappingFor(long offset) {
+      Mapping m = this.mapping;
+      if (m != null && offset + pageSize <= m.length) {
+        return m;
+      }
+      synchronized (this) {
+        m = this.mapping;
+        long mapped = m == null ? 0 : m.length;
+        if (offset + pageSize <= mapped) {
+          return m;
+        }
+
+        long available;
+        try {
+          available = Math.min(segmentBytes, fc.size() - this.start);
+        } catch (IOException e) {
+          throw new PageException("Can't size file: " + e.getMessage());
+        }
+        if (offset + pageSize > available || available - mapped < Math.max(minRemapPages * (long) pageSize, mapped)) {
+          return null;
+        }
+
+        try {
+          MappedByteBuffer buffer = fc.map(mode, this.start, available);
+          m = new Mapping(buffer, available, stats);
+          stats.recordBytesMapped(available);
+        } catch (IOException e) {
+          throw new PageException("Can't mmap segment at: " + this.start + " ; " + e.getMessage());
+        }
+        this.mapping = m;
+        this.numMappings++;
+        return m;
+      }
+    }
+  }
+}
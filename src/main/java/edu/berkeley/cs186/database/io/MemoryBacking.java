@@ -0,0 +1,229 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backs the pages of a temporary file with direct frames that are the only copy of its blocks, so
+ * that the file costs no file-system work at all while it fits in memory. Pages write through to
+ * their frame, and are never flushed.
+ *
+ * All memory-resident files share one budget. When a file needs a new block and the budget is
+ * used up, it spills: every block is written to a real file, the frames are dropped, and from then
+ * on the pages are read and written with positional FileChannel I/O, as with ChannelBacking. Pages
+ * that are in the buffer pool at the time keep their frame and are written back when they are
+ * evicted; a page that is neither cached nor pinned must not be kept across an allocation.
+ *
+ * A memory-resident file is never reopened: discard drops its blocks and deletes its file, if it
+ * spilled.
+ */
+class MemoryBacking implements PageBacking {
+  private static final AtomicLong memoryBytes = new AtomicLong(0);
+  // frames are direct buffers, which the JVM limits to the size of the heap by default, so they may
+  // take an eighth of that, up to 4MB
+  private static volatile long budgetBytes = Math.min(1024L * Page.pageSize, Runtime.getRuntime().maxMemory() / 8);
+
+  private final String fName;
+  private final int pageSize;
+  private final IOStats stats;
+  // frames of the blocks, until the file spills
+  private ByteBuffer[] blocks;
+  private int numBlocks;
+  private volatile FileChannel fc;
+
+  /**
+   * @param fName the file to spill to; it is only created if the blocks outgrow the budget
+   * @param pageSize the size of the file's blocks and pages in bytes
+   * @param stats counts the reads and writes of the file once it has spilled
+   */
+  MemoryBacking(String fName, int pageSize, IOStats stats) {
+    this.fName = fName;
+    this.pageSize = pageSize;
+    this.stats = stats;
+    this.blocks = new ByteBuffer[16];
+    this.numBlocks = 0;
+  }
+
+  /**
+   * @return the number of bytes that memory-resident files may hold in all before they spill
+   */
+  static long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  static void setBudgetBytes(long bytes) {
+    budgetBytes = bytes;
+  }
+
+  /**
+   * @return the number of bytes held by memory-resident files
+   */
+  static long getMemoryBytes() {
+    return memoryBytes.get();
+  }
+
+  boolean isSpilled() {
+    return this.fc != null;
+  }
+
+  /**
+   * @return the number of blocks of the file
+   */
+  synchronized long getNumBlocks() {
+    return this.numBlocks;
+  }
+
+  /**
+   * Wraps block blockNum in a Page: its frame while the file is in memory, and a frame read from
+   * the file once it has spilled. A block past the end of the file is added to it, which spills the
+   * file if there is no room for it in the budget.
+   *
+   * @param blockNum the block in the file
+   * @param pageNum the virtual page number of the page
+   * @param owner the allocator that caches the page, or null if it is not cached
+   * @return a new Page
+   */
+  synchronized Page newPage(int blockNum, int pageNum, PageAllocator owner) {
+    long position = ((long) blockNum) * this.pageSize;
+    if (this.fc == null) {
+      if (blockNum < this.numBlocks && this.blocks[blockNum] != null) {
+        return new Page(this.blocks[blockNum], this, position, pageNum, false, owner);
+      }
+      if (memoryBytes.addAndGet(this.pageSize) <= budgetBytes) {
+        if (blockNum >= this.blocks.length) {
+          this.blocks = Arrays.copyOf(this.blocks, Math.max(blockNum + 1, this.blocks.length * 2));
+        }
+        ByteBuffer frame = ByteBuffer.allocateDirect(this.pageSize);
+        this.blocks[blockNum] = frame;
+        this.numBlocks = Math.max(this.numBlocks, blockNum + 1);
+        return new Page(frame, this, position, pageNum, false, owner);
+      }
+      memoryBytes.addAndGet(-this.pageSize);
+      spill();
+    }
+
+    this.numBlocks = Math.max(this.numBlocks, blockNum + 1);
+    ByteBuffer frame = ByteBuffer.allocateDirect(this.pageSize);
+    try {
+      while (frame.hasRemaining()) {
+        if (this.fc.read(frame, position + frame.position()) < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      throw new PageException("Can't read page: " + pageNum + " at block: " + blockNum + " ; " + e.getMessage());
+    }
+    frame.clear();
+    this.stats.recordDiskRead();
+    return new Page(frame, this, position, pageNum, false, owner);
+  }
+
+  /**
+   * Writes every block to the file and drops the frames. Must hold the lock.
+   */
+  private void spill() {
+    File file = new File(this.fName);
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.exists()) {
+      dir.mkdirs();
+    }
+    try {
+      FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+      channel.truncate(0);
+      for (int i = 0; i < this.numBlocks; i++) {
+        if (this.blocks[i] == null) {
+          continue;
+        }
+        ByteBuffer src = this.blocks[i].duplicate();
+        src.clear();
+        long position = ((long) i) * this.pageSize;
+        while (src.hasRemaining()) {
+          channel.write(src, position + src.position());
+        }
+        this.stats.recordDiskWrite();
+      }
+      this.fc = channel;
+    } catch (IOException e) {
+      throw new PageException("Can't spill " + this.fName + " to disk ; " + e.getMessage());
+    }
+    memoryBytes.addAndGet(-countFrames() * this.pageSize);
+    this.blocks = null;
+  }
+
+  private long countFrames() {
+    long n = 0;
+    for (int i = 0; i < this.numBlocks; i++) {
+      if (this.blocks[i] != null) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  public boolean writesThrough() {
+    return this.fc == null;
+  }
+
+  public synchronized void flush(ByteBuffer data, long position, boolean durable) {
+    if (this.fc == null) {
+      // the frame is the block
+      return;
+    }
+    ByteBuffer src = data.duplicate();
+    src.clear();
+    try {
+      while (src.hasRemaining()) {
+        this.fc.write(src, position + src.position());
+      }
+    } catch (IOException e) {
+      throw new PageException("Can't write page at: " + position + " ; " + e.getMessage());
+    }
+    this.stats.recordDiskWrite();
+  }
+
+  public synchronized int flush(List<Page> pages, boolean durable) {
+    int numWrites = 0;
+    for (Page p : pages) {
+      ByteBuffer data = p.claimWrite();
+      if (data == null) {
+        continue;
+      }
+      try {
+        flush(data, p.getPosition(), durable);
+      } catch (PageException e) {
+        p.markDirty();
+        throw e;
+      }
+      numWrites++;
+    }
+    return numWrites;
+  }
+
+  public void release(ByteBuffer data) {
+    // frames are left to the garbage collector
+  }
+
+  /**
+   * Drops every block of the file, and deletes the file if it spilled.
+   */
+  synchronized void discard() {
+    if (this.fc == null) {
+      memoryBytes.addAndGet(-countFrames() * this.pageSize);
+      this.blocks = null;
+      this.numBlocks = 0;
+      return;
+    }
+    try {
+      this.fc.close();
+    } catch (IOException e) {
+      throw new PageException("Could not close " + this.fName + " ; " + e.getMessage());
+    }
+    new File(this.fName).delete();
+  }
+}
@@ -4,18 +4,38 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * General-purpose wrapper for interacting with the memory-mapped bytes on a page.
- *
- * YOU SHOULD NOT NEED TO CHANGE ANY OF THE CODE IN THIS PACKAGE.
+ * General-purpose wrapper for interacting with the bytes on a page, which are memory-mapped or held
+ * in a frame that its PageBacking reads and writes. A page cached by a PageAllocator is a buffer
+ * pool frame that can be pinned, and that tracks whether it is dirty.
  */
 public class Page {
+  /**
+   * The default page size, and the size of pages in files that were created without one.
+   */
   public static final int pageSize = 4096;
-  
-  private MappedByteBuffer pageData;
+  public static final int minPageSize = 4096;
+  public static final int maxPageSize = 65536;
+
+  private static final int EVICTED = -1;
+  // copies up to this size are done byte by byte rather than through a duplicate buffer
+  private static final int smallCopyBytes = 64;
+
+  private volatile ByteBuffer pageData;
+  private final PageBacking backing;
+  private final long position;
+  private final PageAllocator owner;
+  private final int size;
   private int pageNum;
   private boolean durable;
+  private volatile boolean dirty;
+  private final AtomicInteger pinCount;
+  // the LSN of the last logged change to the page that has not been written back, or -1
+  private final AtomicLong lsn;
 
   /**
    * Create a new page using fc with at offset blockNum with virtual page number pageNum
@@ -29,11 +49,55 @@ public class Page {
   }
   
   public Page(FileChannel fc, int blockNum, int pageNum, boolean durable) {
+    this(fc, blockNum, pageNum, durable, Page.pageSize);
+  }
+
+  /**
+   * Create a new page of pageSize bytes using fc at offset blockNum, where blocks are pageSize
+   * bytes long.
+   *
+   * @param fc the file channel for this Page
+   * @param blockNum the block in the file for this page
+   * @param pageNum the virtual page number
+   * @param durable whether flushes are forced to disk
+   * @param pageSize the size of the page in bytes; see checkPageSize
+   */
+  public Page(FileChannel fc, int blockNum, int pageNum, boolean durable, int pageSize) {
+    this(mapBlock(fc, blockNum, pageNum, checkPageSize(pageSize)), pageNum, durable);
+  }
+
+  /**
+   * Create a new page over bytes provided by backing.
+   *
+   * @param pageData the bytes of this page; the page is as large as its capacity
+   * @param backing moves pageData to and from the file
+   * @param position the offset of this page in its file
+   * @param pageNum the virtual page number
+   * @param durable whether flushes are forced to disk
+   * @param owner the allocator caching this page, which a released page forwards to; may be null
+   */
+  Page(ByteBuffer pageData, PageBacking backing, long position, int pageNum, boolean durable,
+       PageAllocator owner) {
     this.pageNum = pageNum;
     this.durable = durable;
+    this.dirty = false;
+    this.pinCount = new AtomicInteger(0);
+    this.lsn = new AtomicLong(-1);
+    this.pageData = pageData;
+    this.backing = backing;
+    this.position = position;
+    this.owner = owner;
+    this.size = pageData.capacity();
     PageAllocator.incrementCacheMisses();
+  }
+
+  private Page(MappedByteBuffer mapping, int pageNum, boolean durable) {
+    this(mapping, new MappedBacking(mapping), 0, pageNum, durable, null);
+  }
+
+  private static MappedByteBuffer mapBlock(FileChannel fc, int blockNum, int pageNum, int pageSize) {
     try {
-      this.pageData = fc.map(FileChannel.MapMode.READ_WRITE, blockNum*Page.pageSize, Page.pageSize);    
+      return fc.map(FileChannel.MapMode.READ_WRITE, ((long) blockNum)*pageSize, pageSize);
     } catch (IOException e) {
       throw new PageException("Can't mmap page: " + pageNum + "at block: " + blockNum + " ; " + e.getMessage());
     }
@@ -47,14 +111,27 @@ public class Page {
    * @param buf the buffer to put the bytes into
    */
   public void readBytes(int position, int num, byte[] buf) {
-    if (Page.pageSize < position + num) {
+    if (this.size < position + num) {
       throw new PageException("readBytes is out of bounds");
     }
     if (buf.length < num) {
       throw new PageException("num bytes to read is longer than buffer");
     }
-    pageData.position(position);
-    pageData.get(buf, 0, num);
+    Page p = pinForAccess();
+    try {
+      ByteBuffer data = p.pageData;
+      if (num <= smallCopyBytes) {
+        for (int i = 0; i < num; i++) {
+          buf[i] = data.get(position + i);
+        }
+      } else {
+        ByteBuffer src = data.duplicate();
+        src.position(position);
+        src.get(buf, 0, num);
+      }
+    } finally {
+      p.unpinAfterAccess();
+    }
   }
 
   /**
@@ -65,7 +142,7 @@ public class Page {
    * @return a new byte array with the bytes read
    */
   public byte[] readBytes(int position, int num) {
-    if (Page.pageSize < position + num) {
+    if (this.size < position + num) {
       throw new PageException("readBytes is out of bounds");
     }
     byte[] data = new byte[num];
@@ -79,7 +156,7 @@ public class Page {
    * @return a new byte array with all the bytes in the file
    */
   public byte[] readBytes() {
-    return readBytes(0, Page.pageSize);
+    return readBytes(0, this.size);
   }
 
   /**
@@ -89,10 +166,15 @@ public class Page {
    * @return the byte at offset position
    */
   public byte readByte(int position) {
-    if (position < 0 || position >= Page.pageSize) {
+    if (position < 0 || position >= this.size) {
       throw new PageException("readByte is out of bounds of page");
     }
-    return pageData.get(position);
+    Page p = pinForAccess();
+    try {
+      return p.pageData.get(position);
+    } finally {
+      p.unpinAfterAccess();
+    }
   }
 
   /**
@@ -111,12 +193,26 @@ public class Page {
       throw new PageException("position or num can't be negative");
     }
 
-    if (Page.pageSize < num + position) {
+    if (this.size < num + position) {
       throw new PageException("writeBytes would go out of bounds");
     }
 
-    pageData.position(position);
-    pageData.put(buf, 0, num);
+    Page p = pinForAccess();
+    try {
+      ByteBuffer data = p.pageData;
+      if (num <= smallCopyBytes) {
+        for (int i = 0; i < num; i++) {
+          data.put(position + i, buf[i]);
+        }
+      } else {
+        ByteBuffer dst = data.duplicate();
+        dst.position(position);
+        dst.put(buf, 0, num);
+      }
+      p.dirty = true;
+    } finally {
+      p.unpinAfterAccess();
+    }
   }
 
   /**
@@ -126,10 +222,16 @@ public class Page {
    * @param b the byte to write
    */
   public void writeByte(int position, byte b) {
-    if (position < 0 || position >= Page.pageSize) {
+    if (position < 0 || position >= this.size) {
       throw new PageException("readByte is out of bounds of page");
     }
-    pageData.put(position, b);
+    Page p = pinForAccess();
+    try {
+      p.pageData.put(position, b);
+      p.dirty = true;
+    } finally {
+      p.unpinAfterAccess();
+    }
   }
 
   /**
@@ -139,7 +241,7 @@ public class Page {
    * @param value the value to write
    */
   public void writeInt(int startPos, int value) {
-    this.writeBytes(startPos, 4, ByteBuffer.allocate(4).putInt(value).array());
+    putInt(startPos, value);
   }
 
   /**
@@ -149,24 +251,448 @@ public class Page {
    * @return the 4-byte integer at startPos
    */
   public int readInt(int startPos) {
-    return ByteBuffer.wrap(this.readBytes(startPos, 4)).getInt();
+    return getInt(startPos);
+  }
+
+  /**
+   * @param offset the offset in the page to read from
+   * @return the 2-byte short at offset
+   */
+  public short getShort(int offset) {
+    checkBounds(offset, 2);
+    Page p = pinForAccess();
+    try {
+      return p.pageData.getShort(offset);
+    } finally {
+      p.unpinAfterAccess();
+    }
+  }
+
+  /**
+   * @param offset the offset in the page to read from
+   * @return the 4-byte integer at offset
+   */
+  public int getInt(int offset) {
+    checkBounds(offset, 4);
+    Page p = pinForAccess();
+    try {
+      return p.pageData.getInt(offset);
+    } finally {
+      p.unpinAfterAccess();
+    }
+  }
+
+  /**
+   * @param offset the offset in the page to read from
+   * @return the 8-byte long at offset
+   */
+  public long getLong(int offset) {
+    checkBounds(offset, 8);
+    Page p = pinForAccess();
+    try {
+      return p.pageData.getLong(offset);
+    } finally {
+      p.unpinAfterAccess();
+    }
+  }
+
+  /**
+   * @param offset the offset in the page to read from
+   * @return the 4-byte float at offset
+   */
+  public float getFloat(int offset) {
+    checkBounds(offset, 4);
+    Page p = pinForAccess();
+    try {
+      return p.pageData.getFloat(offset);
+    } finally {
+      p.unpinAfterAccess();
+    }
+  }
+
+  /**
+   * @param offset the offset in the page to write to
+   * @param value the value to write
+   */
+  public void putShort(int offset, short value) {
+    checkBounds(offset, 2);
+    Page p = pinForAccess();
+    try {
+      p.pageData.putShort(offset, value);
+      p.dirty = true;
+    } finally {
+      p.unpinAfterAccess();
+    }
+  }
+
+  /**
+   * @param offset the offset in the page to write to
+   * @param value the value to write
+   */
+  public void putInt(int offset, int value) {
+    checkBounds(offset, 4);
+    Page p = pinForAccess();
+    try {
+      p.pageData.putInt(offset, value);
+      p.dirty = true;
+    } finally {
+      p.unpinAfterAccess();
+    }
+  }
+
+  /**
+   * @param offset the offset in the page to write to
+   * @param value the value to write
+   */
+  public void putLong(int offset, long value) {
+    checkBounds(offset, 8);
+    Page p = pinForAccess();
+    try {
+      p.pageData.putLong(offset, value);
+      p.dirty = true;
+    } finally {
+      p.unpinAfterAccess();
+    }
+  }
+
+  /**
+   * @param offset the offset in the page to write to
+   * @param value the value to write
+   */
+  public void putFloat(int offset, float value) {
+    checkBounds(offset, 4);
+    Page p = pinForAccess();
+    try {
+      p.pageData.putFloat(offset, value);
+      p.dirty = true;
+    } finally {
+      p.unpinAfterAccess();
+    }
+  }
+
+  /**
+   * Returns a read-only view of num bytes of the page starting at offset, without copying them.
+   * The view has its own position and limit, so reading it does not disturb other readers. It
+   * reflects later writes to the page while the page stays in the buffer pool; pin the page for
+   * as long as the view is used if the page may otherwise be evicted.
+   *
+   * @param offset the offset in the page where the view starts
+   * @param num the number of bytes in the view
+   * @return a read-only ByteBuffer over the bytes
+   */
+  public ByteBuffer slice(int offset, int num) {
+    checkBounds(offset, num);
+    Page p = pinForAccess();
+    try {
+      ByteBuffer view = p.pageData.asReadOnlyBuffer();
+      view.position(offset);
+      view.limit(offset + num);
+      return view.slice();
+    } finally {
+      p.unpinAfterAccess();
+    }
   }
 
   /**
    * Completely wipe (zero out) the page.
    */
   public void wipe() {
-    byte[] zeros = new byte[Page.pageSize];
-    this.writeBytes(0, Page.pageSize, zeros);
+    Page p = pinForAccess();
+    try {
+      ByteBuffer data = p.pageData;
+      for (int i = 0; i < this.size; i += 8) {
+        data.putLong(i, 0L);
+      }
+      p.dirty = true;
+    } finally {
+      p.unpinAfterAccess();
+    }
+  }
+
+  private void checkBounds(int offset, int num) {
+    if (offset < 0 || num < 0 || this.size < offset + num) {
+      throw new PageException("access of " + num + " bytes at " + offset + " is out of bounds of page");
+    }
   }
 
   /**
-   * Force the page to disk.
+   * Write the page back to its file if it has been modified since it was last flushed, and force
+   * it to disk if the page is durable. Pages whose writes reach the file directly, such as memory
+   * mapped pages, are only forced.
    */
   public void flush() {
-    if (this.durable) { 
+    ByteBuffer data = claimWrite();
+    if (data != null) {
       PageAllocator.incrementCacheMisses();
-      this.pageData.force();
+      this.backing.flush(data, this.position, this.durable);
+    }
+  }
+
+  /**
+   * Claims the page for a write back by the caller, clearing its dirty flag. A write to the page
+   * after this marks it dirty again, so it is never lost. If the page has been stamped with an LSN,
+   * the write-ahead log of its allocator is forced up to it first.
+   *
+   * @return the bytes to write back, or null if the page does not need to be written
+   */
+  ByteBuffer claimWrite() {
+    ByteBuffer data = this.pageData;
+    if (data != null && needsWrite()) {
+      this.dirty = false;
+      long lsn = this.lsn.get();
+      if (lsn >= 0 && this.owner != null) {
+        this.owner.forceLog(lsn);
+        // a change stamped since keeps its own LSN for the next write back
+        this.lsn.compareAndSet(lsn, -1);
+      }
+      return data;
+    }
+    return null;
+  }
+
+  /**
+   * Pins the page, claims it for a write back and copies its bytes to dst. The page stays pinned,
+   * so that it can't be evicted and reread before the copy reaches the file; the caller unpins it
+   * once the write is done.
+   *
+   * @param dst the buffer to copy the page into
+   * @return true if the page was copied and pinned; false if it was clean or is being evicted
+   */
+  boolean copyForWrite(ByteBuffer dst) {
+    if (!pin()) {
+      return false;
+    }
+    ByteBuffer data = claimWrite();
+    if (data == null) {
+      unpin();
+      return false;
+    }
+    ByteBuffer src = data.duplicate();
+    src.clear();
+    dst.put(src);
+    return true;
+  }
+
+  void markDirty() {
+    this.dirty = true;
+  }
+
+  /**
+   * @return true if the page is dirty and a flush of it would have to write or force it
+   */
+  boolean needsWrite() {
+    return this.dirty && (this.durable || !this.backing.writesThrough());
+  }
+
+  PageBacking getBacking() {
+    return this.backing;
+  }
+
+  long getPosition() {
+    return this.position;
+  }
+
+  boolean isDurable() {
+    return this.durable;
+  }
+
+  /**
+   * Hands the bytes of a page that has left the buffer pool back to its backing. The page must have
+   * been flushed; afterwards it forwards every access to the page that is resident now. A page that
+   * is still pinned keeps its bytes, since its frame could otherwise be reused under an access.
+   */
+  void release() {
+    ByteBuffer data = this.pageData;
+    if (data != null && !this.backing.writesThrough()
+        && (this.pinCount.get() == EVICTED || tryEvict())) {
+      this.pageData = null;
+      this.backing.release(data);
+    }
+  }
+
+  private Page resident() {
+    if (this.pageData != null) {
+      return this;
+    }
+    return forward();
+  }
+
+  private Page forward() {
+    if (this.owner == null) {
+      throw new PageException("page " + this.pageNum + " has been released");
+    }
+    return this.owner.fetchPage(this.pageNum);
+  }
+
+  /**
+   * Finds the resident copy of this page and pins it for the length of one access, so that it
+   * can't be evicted and its frame handed to another page before the access is done. Pages whose
+   * writes reach the file directly keep their bytes once evicted, and are not pinned.
+   *
+   * @return the page to access, to be passed back through unpinAfterAccess
+   */
+  private Page pinForAccess() {
+    Page p = this;
+    while (!p.backing.writesThrough() && !p.pin()) {
+      p = p.forward();
+    }
+    return p;
+  }
+
+  private void unpinAfterAccess() {
+    if (!this.backing.writesThrough()) {
+      unpin();
+    }
+  }
+
+  /**
+   * @return the size of this page in bytes
+   */
+  public int getPageSize() {
+    return this.size;
+  }
+
+  /**
+   * Checks that pageSize is a supported page size: a power of two between minPageSize and
+   * maxPageSize.
+   *
+   * @param pageSize the page size in bytes
+   * @return pageSize
+   */
+  public static int checkPageSize(int pageSize) {
+    if (pageSize < minPageSize || pageSize > maxPageSize || Integer.bitCount(pageSize) != 1) {
+      throw new IllegalArgumentException("page size must be a power of two between "
+                                         + minPageSize + " and " + maxPageSize + ": " + pageSize);
+    }
+    return pageSize;
+  }
+
+  /**
+   * Stamps the page with the LSN of the log record of a change about to be made to it. The page is
+   * not written back until the log has been forced up to the highest LSN it was stamped with.
+   *
+   * @param lsn the LSN of the record describing the change
+   */
+  public void setLSN(long lsn) {
+    Page p = resident();
+    if (p != this) {
+      p.setLSN(lsn);
+      return;
+    }
+    while (true) {
+      long current = this.lsn.get();
+      if (current >= lsn || this.lsn.compareAndSet(current, lsn)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the LSN of the last logged change to the page that has not been written back, or -1
+   */
+  public long getLSN() {
+    return resident().lsn.get();
+  }
+
+  /**
+   * @return true if the page has been written to since it was last flushed
+   */
+  public boolean isDirty() {
+    return this.dirty;
+  }
+
+  /**
+   * Pin the page so that the buffer pool will not evict it. Every successful pin must be matched
+   * by a call to unpin.
+   *
+   * @return false if the page has already been evicted, in which case it should be fetched again
+   */
+  public boolean pin() {
+    while (true) {
+      int count = this.pinCount.get();
+      if (count == EVICTED) {
+        return false;
+      }
+      if (this.pinCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Pins this page like pin, fetching it back into the buffer pool first if it has been evicted.
+   *
+   * @return the resident copy of this page, which is pinned and is the one to unpin
+   */
+  public Page pinResident() {
+    Page p = this;
+    while (!p.pin()) {
+      p = p.forward();
+    }
+    return p;
+  }
+
+  /**
+   * Release a pin taken by pin().
+   */
+  public void unpin() {
+    while (true) {
+      int count = this.pinCount.get();
+      if (count <= 0) {
+        throw new PageException("unpin called on page " + this.pageNum + " that is not pinned");
+      }
+      if (this.pinCount.compareAndSet(count, count - 1)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return true if the page is currently pinned
+   */
+  public boolean isPinned() {
+    return this.pinCount.get() > 0;
+  }
+
+  /**
+   * Marks an unpinned page as evicted so that it can no longer be pinned. Called by the buffer
+   * pool while it holds the lock of the shard that owns this page.
+   *
+   * @return true if the page was unpinned and is now evicted
+   */
+  boolean tryEvict() {
+    return this.pinCount.compareAndSet(0, EVICTED);
+  }
+
+  /**
+   * Copies this page into a page of its own that no allocator caches and no file backs. Writes to
+   * the copy change only the copy, and are never flushed.
+   *
+   * @return a copy of this page with the same page number
+   */
+  public Page copy() {
+    ByteBuffer data = ByteBuffer.wrap(readBytes());
+    return new Page(data, DetachedBacking.INSTANCE, 0, this.pageNum, false, null);
+  }
+
+  /**
+   * Backs a copied page, whose bytes live only in its own buffer.
+   */
+  private static class DetachedBacking implements PageBacking {
+    static final DetachedBacking INSTANCE = new DetachedBacking();
+
+    public boolean writesThrough() {
+      return true;
+    }
+
+    public void flush(ByteBuffer data, long position, boolean durable) {
+    }
+
+    public int flush(List<Page> pages, boolean durable) {
+      return 0;
+    }
+
+    public void release(ByteBuffer data) {
     }
   }
 
@@ -8,38 +8,124 @@ import java.nio.ByteOrder;
 import java.util.LinkedHashMap;
 import java.lang.IllegalArgumentException;
 import java.util.Arrays;
+import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.NoSuchElementException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 /**
- * A PageAllocation system for an OS paging system. Provides memory-mapped paging from the OS, an
- * interface to individual pages with the Page objects, an LRU cache for pages, 16GB worth of paging,
- * and virtual page translation.
- *
- * YOU SHOULD NOT NEED TO CHANGE ANY OF THE CODE IN THIS PACKAGE.
+ * A PageAllocation system for an OS paging system. Provides paging from the OS through a
+ * memory-mapped, channel, compressed or memory-resident backend, an interface to individual pages
+ * with the Page objects, a shared buffer pool for pages, 16GB worth of paging, and virtual page
+ * translation.
  */
 public class PageAllocator implements Iterable<Page>, Closeable {
+  /**
+   * How pages move between a file and memory. MMAP maps the file and lets the OS write pages back;
+   * CHANNEL reads and writes pages explicitly with positional FileChannel I/O into reusable direct
+   * buffers. COMPRESSED stores every page compressed in an append-only log, which suits large,
+   * mostly-read files; see CompressedBacking. MEMORY keeps the pages of a temporary file in memory,
+   * and only writes them to the file if memory-resident files outgrow their budget; see
+   * setTempMemoryBytes.
+   */
+  public enum Backend {MMAP, CHANNEL, COMPRESSED, MEMORY}
+
+  public static final String HOT_LIST_EXTENSION = ".hot";
+  public static final int MIN_READ_AHEAD = 4;
+  public static final int MAX_READ_AHEAD = 64;
+
   private static final int numHeaderPages = 1024;
-  private static final int cacheSize = 1024;
+  private static final long defaultBufferPoolBytes = 1024L * Page.pageSize;
+  private static final int metadataBatchSize = 512;
+  private static final int pageSizeOffset = numHeaderPages * 4;
+  private static final int pageSizeMagic = 0x50475A45;
+  private static final int hotListMagic = 0x484F5450;
+  private static final long defaultHotListSaveMillis = 30000;
+  // the OS page size, which prewarm touches every one of for mapped files
+  private static final int osPageSize = 4096;
+  private static final ByteBuffer preallocateBuffer = ByteBuffer.allocateDirect(64 * Page.pageSize);
+
+  private static final ExecutorService readAheadPool = Executors.newFixedThreadPool(2, new ThreadFactory() {
+    private final AtomicInteger numThreads = new AtomicInteger(0);
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "page-read-ahead-" + numThreads.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private static final ScheduledExecutorService hotListSaver = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "hot-list-saver");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  private static volatile long hotListSaveMillis = defaultHotListSaveMillis;
 
   private static AtomicInteger pACounter = new AtomicInteger(0);
-  private static LRUCache<Long, Page> pageLRU = new LRUCache<Long, Page>(cacheSize);
+  private static PageCache sharedPageCache = new PageCache(defaultBufferPoolBytes);
+  static {
+    sharedPageCache.startWriter();
+  }
   private static AtomicLong numIOs = new AtomicLong(0);
   private static AtomicLong cacheMisses = new AtomicLong(0);
+  private static AtomicLong numDiskReads = new AtomicLong(0);
+  private static AtomicLong numDiskWrites = new AtomicLong(0);
 
   private Page masterPage;
   private FileChannel fc;
+  private MappedSegments segments;
+  private ChannelBacking channel;
+  private CompressedBacking compressed;
+  private MemoryBacking memory;
+  private String fName;
   private int numPages;
+  private int[] headerCounts;
+  private long[][] validBits;
+  private int firstFreeHeader;
+  private int extentNext;
+  private int extentEnd;
+  private int maxExtentPages;
   private int allocID;
   private boolean durable;
+  private int pageSize;
+  private final IOStats ioStats = new IOStats();
+  private PageCache pageCache;
+  private TreeMap<Integer, Page> pendingHeaders;
+  private int numPendingChanges;
+  // read-aheads submitted and not finished yet; close waits for them
+  private final AtomicInteger numReadAheads = new AtomicInteger(0);
+  private final AtomicLong numPagesReadAhead = new AtomicLong(0);
+  private volatile boolean closing;
+  private final boolean readOnly;
+  private volatile IOScheduler scheduler;
+  private volatile PageLog log;
+  private ScheduledFuture<?> hotListSave;
+  // held while the hot list is written, so that a periodic save and close never write it at once
+  private final Object hotListLock = new Object();
 
   /**
    * Creates a new PageAllocator that writes its bytes into a file named fName.
@@ -53,102 +139,507 @@ public class PageAllocator implements Iterable<Page>, Closeable {
   }
 
   public PageAllocator(String fName, boolean wipe, boolean durable) {
+    this(fName, wipe, durable, sharedPageCache);
+  }
+
+  /**
+   * Creates a new PageAllocator whose pages are cached in the given buffer pool rather than the
+   * shared one.
+   *
+   * @param fName the name of the file for this PageAllocator
+   * @param wipe a boolean specifying whether to wipe the file
+   * @param durable whether pages are forced to disk when flushed
+   * @param pageCache the buffer pool to cache pages in
+   */
+  public PageAllocator(String fName, boolean wipe, boolean durable, PageCache pageCache) {
+    this(fName, wipe, durable, pageCache, Backend.MMAP);
+  }
+
+  /**
+   * Creates a new PageAllocator that moves pages to and from its file with the given backend.
+   *
+   * @param fName the name of the file for this PageAllocator
+   * @param wipe a boolean specifying whether to wipe the file
+   * @param durable whether pages are forced to disk when flushed
+   * @param backend the I/O backend for this PageAllocator
+   */
+  public PageAllocator(String fName, boolean wipe, boolean durable, Backend backend) {
+    this(fName, wipe, durable, sharedPageCache, backend);
+  }
+
+  /**
+   * Creates a new PageAllocator whose pages are cached in the given buffer pool and moved to and
+   * from its file with the given backend.
+   *
+   * @param fName the name of the file for this PageAllocator
+   * @param wipe a boolean specifying whether to wipe the file
+   * @param durable whether pages are forced to disk when flushed
+   * @param pageCache the buffer pool to cache pages in
+   * @param backend the I/O backend for this PageAllocator
+   */
+  public PageAllocator(String fName, boolean wipe, boolean durable, PageCache pageCache, Backend backend) {
+    this(fName, wipe, durable, pageCache, backend, Page.pageSize);
+  }
+
+  /**
+   * Creates a new PageAllocator whose file has pages of pageSize bytes. The page size of a file is
+   * fixed when it is created (or wiped) and stored in its master page; when an existing file is
+   * opened without wiping it, its stored page size is used and pageSize is ignored.
+   *
+   * @param fName the name of the file for this PageAllocator
+   * @param wipe a boolean specifying whether to wipe the file
+   * @param durable whether pages are forced to disk when flushed
+   * @param pageCache the buffer pool to cache pages in
+   * @param backend the I/O backend for this PageAllocator
+   * @param pageSize the size of the file's pages in bytes; see Page.checkPageSize
+   */
+  public PageAllocator(String fName, boolean wipe, boolean durable, PageCache pageCache, Backend backend,
+                       int pageSize) {
+    this(fName, wipe, durable, pageCache, backend, pageSize, false);
+  }
+
+  /**
+   * Opens an existing file for reading only. The file is mapped READ_ONLY, whatever it was created
+   * with (compressed files are read through their log), and no byte of it is ever written; writing
+   * to one of its pages fails.
+   *
+   * @param fName the name of the file
+   * @param pageCache the buffer pool to cache pages in
+   * @return a PageAllocator that can only read the file
+   * @throws PageException if the file does not exist or is empty
+   */
+  public static PageAllocator openReadOnly(String fName, PageCache pageCache) {
+    return new PageAllocator(fName, false, false, pageCache, Backend.MMAP, Page.pageSize, true);
+  }
+
+  private PageAllocator(String fName, boolean wipe, boolean durable, PageCache pageCache, Backend backend,
+                        int pageSize, boolean readOnly) {
+    Page.checkPageSize(pageSize);
+    this.readOnly = readOnly;
     this.durable = durable;
+    this.pageCache = pageCache;
+    this.pendingHeaders = new TreeMap<Integer, Page>();
+    this.numPendingChanges = 0;
+    this.maxExtentPages = 1;
+    this.fName = fName;
+    if (backend == Backend.MEMORY) {
+      // a memory-resident file always starts empty, and its contents are never forced to disk
+      this.durable = false;
+      this.pageSize = pageSize;
+      this.memory = new MemoryBacking(fName, pageSize, this.ioStats);
+      this.masterPage = newPage(0, -1, false);
+      this.allocID = pACounter.getAndIncrement();
+      loadAllocationState();
+      return;
+    }
     try {
-      this.fc = new RandomAccessFile(fName, "rw").getChannel();
+      this.fc = new RandomAccessFile(fName, readOnly ? "r" : "rw").getChannel();
     } catch (IOException e) {
       throw new PageException("Could not open File: " + e.getMessage());
     }
+    if (readOnly && fileIsEmpty()) {
+      closeChannel();
+      throw new PageException("Could not open File: " + fName + " is empty");
+    }
 
-    this.masterPage = new Page(this.fc, 0, -1);
-    this.allocID = pACounter.getAndIncrement();
-
+    // whether a file is compressed is fixed when it is created, and recognized when it is reopened
+    int compressedPageSize = CompressedBacking.readPageSize(this.fc);
+    if (wipe && (compressedPageSize > 0 || backend == Backend.COMPRESSED)) {
+      truncateFile();
+      compressedPageSize = -1;
+    }
     if (wipe) {
-      // Nukes masterPage and headerPages
-      byte[] masterBytes = this.masterPage.readBytes();
-      IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
+      new File(fName + HOT_LIST_EXTENSION).delete();
+    }
+    if (fileIsEmpty() ? backend == Backend.COMPRESSED : compressedPageSize > 0) {
+      this.compressed = new CompressedBacking(this.fc, pageSize, this.ioStats, readOnly);
+      this.pageSize = this.compressed.getPageSize();
+    } else {
+      int storedPageSize = readStoredPageSize();
+      if (wipe) {
+        // Nukes masterPage and headerPages, as laid out with the page size the file had
+        this.pageSize = storedPageSize;
+        wipeMetadata();
+        this.pageSize = pageSize;
+      } else {
+        this.pageSize = fileIsEmpty() ? pageSize : storedPageSize;
+      }
+    }
 
-      int[] pageCounts = new int[ib.capacity()];
-      ib.get(pageCounts);
+    if (this.compressed != null) {
+      // pages are moved by the compressed backing
+    } else if (backend == Backend.CHANNEL) {
+      this.channel = new ChannelBacking(this.fc, this.pageSize, this.ioStats);
+    } else {
+      this.segments = new MappedSegments(this.fc, MappedSegments.defaultSegmentBytes, this.pageSize, this.ioStats,
+                                         readOnly);
+    }
+    this.masterPage = newPage(0, -1, false);
+    this.allocID = pACounter.getAndIncrement();
 
-      this.numPages = 0;
+    if (!readOnly && this.pageSize != Page.pageSize && this.masterPage.getInt(pageSizeOffset) != pageSizeMagic) {
+      this.masterPage.putInt(pageSizeOffset, pageSizeMagic);
+      this.masterPage.putInt(pageSizeOffset + 4, this.pageSize);
+      this.masterPage.flush();
+    }
 
-      for (int i = 0; i < numHeaderPages; i++) {
-        if (pageCounts[i] > 0) {
-          getHeadPage(i).wipe();
+    loadAllocationState();
+    if (!readOnly) {
+      scheduleHotListSave();
+    }
+  }
+
+  /**
+   * Reads the page size stored in the master page, straight from the file. Files with the default
+   * page size store none: their master page is exactly as large as the 1024 header counts, and the
+   * bytes after it are valid flags of the first header page, which are never the magic number.
+   *
+   * @return the page size of the file, or the default page size if it stores none
+   */
+  private int readStoredPageSize() {
+    ByteBuffer bb = ByteBuffer.allocate(8);
+    try {
+      while (bb.hasRemaining()) {
+        if (this.fc.read(bb, pageSizeOffset + bb.position()) < 0) {
+          return Page.pageSize;
         }
       }
+    } catch (IOException e) {
+      throw new PageException("Could not read page size: " + e.getMessage());
+    }
+    if (bb.getInt(0) != pageSizeMagic) {
+      return Page.pageSize;
+    }
+    return Page.checkPageSize(bb.getInt(4));
+  }
 
-      this.masterPage.wipe();
+  private void truncateFile() {
+    try {
+      this.fc.truncate(0);
+    } catch (IOException e) {
+      throw new PageException("Could not wipe file: " + e.getMessage());
     }
+  }
 
-    byte[] masterBytes = masterPage.readBytes();
-    IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
-    int[] pageCounts = new int[ib.capacity()];
-    ib.get(pageCounts);
+  private boolean fileIsEmpty() {
+    try {
+      return this.fc.size() == 0;
+    } catch (IOException e) {
+      throw new PageException("Could not read size of file: " + e.getMessage());
+    }
+  }
 
+  /**
+   * Zeroes the master page and every header page in the file with plain writes, so that the file
+   * can be laid out again with any page size.
+   */
+  private void wipeMetadata() {
+    try {
+      long size = this.fc.size();
+      int numHeaders = numHeadersInFile();
+      for (int i = -1; i < numHeaders; i++) {
+        long position = (i < 0 ? 0L : 1L + i * (this.pageSize + 1L)) * this.pageSize;
+        long end = Math.min(size, position + this.pageSize);
+        while (position < end) {
+          ByteBuffer zeros = preallocateBuffer.duplicate();
+          zeros.limit((int) Math.min(zeros.capacity(), end - position));
+          while (zeros.hasRemaining()) {
+            position += this.fc.write(zeros, position);
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not wipe file: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads the valid bytes of every header page in the file into an in-memory bitmap, and counts
+   * the allocated pages of each header from it. The counts in the master page are only checked
+   * against the bitmap, and rewritten if a batch of changes was torn by a crash. After this,
+   * allocation and translation never read the master or header pages again; they only write them
+   * to keep the file current.
+   */
+  private void loadAllocationState() {
+    int[] pageCounts = readHeaderCounts();
+    int numHeaders = numHeadersInFile();
+    int[] counts = new int[Math.max(1, numHeaders)];
+    long[][] bits = new long[counts.length][];
+    int numUsed = 1;
     this.numPages = 0;
+    this.firstFreeHeader = 0;
+
+    for (int i = 0; i < numHeaders; i++) {
+      Page headPage = getHeadPage(i);
+      byte[] headerBytes = headPage.readBytes();
+      releaseHeadPage(headPage);
+
+      long[] headerBits = new long[this.pageSize / 64];
+      for (int j = 0; j < this.pageSize; j++) {
+        if (headerBytes[j] != 0) {
+          headerBits[j / 64] |= 1L << (j % 64);
+          counts[i]++;
+        }
+      }
+      if (counts[i] > 0) {
+        bits[i] = headerBits;
+        numUsed = i + 1;
+      }
+      this.numPages += counts[i];
+    }
+    this.headerCounts = Arrays.copyOf(counts, numUsed);
+    this.validBits = Arrays.copyOf(bits, numUsed);
+
+    boolean repaired = false;
     for (int i = 0; i < numHeaderPages; i++) {
-      this.numPages += pageCounts[i];
+      int count = i < numUsed ? this.headerCounts[i] : 0;
+      // a read-only file keeps stale counts; they are rebuilt from the headers whenever it is opened
+      if (pageCounts[i] != count && !this.readOnly) {
+        this.masterPage.writeBytes(i*4, 4, ByteBuffer.allocate(4).putInt(count).array());
+        repaired = true;
+      }
+    }
+    if (repaired) {
+      this.masterPage.flush();
+    }
+  }
+
+  private void closeChannel() {
+    try {
+      this.fc.close();
+    } catch (IOException e) {
+      // nothing has been written, so nothing is lost
     }
   }
 
   /**
-   * Allocates a new page in the file.
-   *
-   * @return the virtual page number of the page
+   * @return the number of header pages that lie within the file
    */
-  public int allocPage() {
+  private int numHeadersInFile() {
+    long numBlocks;
+    try {
+      if (this.memory != null) {
+        numBlocks = this.memory.getNumBlocks();
+      } else if (this.compressed != null) {
+        numBlocks = this.compressed.getNumBlocks();
+      } else {
+        numBlocks = this.fc.size() / this.pageSize;
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not read size of file: " + e.getMessage());
+    }
+    if (numBlocks < 2) {
+      return 0;
+    }
+    // header page i is block 1 + i*(pageSize + 1)
+    return (int) Math.min(numHeaderPages, (numBlocks - 2) / (this.pageSize + 1) + 1);
+  }
+
+  private int[] readHeaderCounts() {
     byte[] masterBytes = this.masterPage.readBytes();
     IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
-    int[] pageCounts = new int[ib.capacity()];
+    int[] pageCounts = new int[numHeaderPages];
     ib.get(pageCounts);
+    return pageCounts;
+  }
 
-    Page headerPage = null;
-    int headerIndex = -1;
-    for (int i = 0; i < numHeaderPages; i++) {
-      if (pageCounts[i] < Page.pageSize) {
-        // Found header page with space
-        headerPage = getHeadPage(i);
-        headerIndex = i;
-        break;
+  /**
+   * Allocates an extent: reserves a run of n free pages that are contiguous in the file, and
+   * preallocates the file to hold them, so that pages allocated one after another land
+   * sequentially on disk. The pages of the extent are handed out in order by the next n calls to
+   * allocPage; they count as allocated only once they have been handed out, and a reservation that
+   * is not used up is dropped by the next allocExtent or by close.
+   *
+   * @param n the number of pages in the extent; at most the number of pages of a header page
+   * @return the virtual page number of the first page of the extent
+   */
+  public int allocExtent(int n) {
+    if (n < 1 || n > this.pageSize) {
+      throw new IllegalArgumentException("extent must hold between 1 and " + this.pageSize + " pages");
+    }
+    int headerIndex = firstHeaderWithFreePages();
+    while (headerIndex < numHeaderPages) {
+      int pageIndex = findFreeRun(trackHeader(headerIndex), n);
+      if (pageIndex >= 0) {
+        int first = headerIndex * this.pageSize + pageIndex;
+        this.extentNext = first;
+        this.extentEnd = first + n;
+        preallocate(2L + headerIndex * (this.pageSize + 1L) + pageIndex + n);
+        return first;
       }
+      headerIndex++;
+    }
+    throw new PageException("No free extent of " + n + " pages available");
+  }
+
+  /**
+   * Sets the size of the largest extent that allocPage reserves by itself. Extents start at one
+   * page and double with the number of allocated pages up to this size, so small files stay small.
+   * A size of 1, the default, allocates a page at a time.
+   *
+   * @param maxPages the number of pages in the largest extent
+   */
+  public void setMaxExtentPages(int maxPages) {
+    if (maxPages < 1 || maxPages > this.pageSize) {
+      throw new IllegalArgumentException("extent must hold between 1 and " + this.pageSize + " pages");
+    }
+    this.maxExtentPages = maxPages;
+  }
+
+  private int firstHeaderWithFreePages() {
+    int headerIndex = this.firstFreeHeader;
+    while (headerIndex < this.headerCounts.length && this.headerCounts[headerIndex] >= this.pageSize) {
+      headerIndex++;
     }
+    this.firstFreeHeader = headerIndex;
 
-    if (headerPage == null) {
+    if (headerIndex == numHeaderPages) {
       throw new PageException("No free Pages Available");
     }
+    return headerIndex;
+  }
 
-    byte[] headerBytes = headerPage.readBytes();
-    int pageIndex = -1;
+  /**
+   * @return the bitmap of a header page, which is tracked from now on if it was unused
+   */
+  private long[] trackHeader(int headerIndex) {
+    if (headerIndex >= this.headerCounts.length) {
+      // only headers that have been used are tracked, to keep small files cheap
+      this.headerCounts = Arrays.copyOf(this.headerCounts, headerIndex + 1);
+      this.validBits = Arrays.copyOf(this.validBits, headerIndex + 1);
+    }
+    long[] bits = this.validBits[headerIndex];
+    if (bits == null) {
+      bits = new long[this.pageSize / 64];
+      this.validBits[headerIndex] = bits;
+    }
+    return bits;
+  }
 
-    for (int i = 0; i < Page.pageSize; i++) {
-      if (headerBytes[i] == 0) {
-        pageIndex = i;
-        break;
+  /**
+   * @return the index of the first of n consecutive free pages in bits, or -1 if there are none
+   */
+  private static int findFreeRun(long[] bits, int n) {
+    int runStart = 0;
+    for (int i = 0; i < bits.length * 64; i++) {
+      if ((bits[i / 64] & (1L << (i % 64))) != 0) {
+        runStart = i + 1;
+      } else if (i - runStart + 1 == n) {
+        return runStart;
       }
     }
+    return -1;
+  }
 
-    if (pageIndex == -1) {
-     throw new PageException("Header page should have free page but doesnt");
+  /**
+   * Grows the file with zeros until it holds numBlocks blocks, in large writes, so that the blocks
+   * are laid out together on disk before any of them is used.
+   */
+  private void preallocate(long numBlocks) {
+    if (this.compressed != null || this.memory != null) {
+      // a compressed file has no fixed layout to preallocate, and a memory-resident one no file
+      return;
     }
+    try {
+      long position = this.fc.size();
+      long end = numBlocks * this.pageSize;
+      while (position < end) {
+        ByteBuffer zeros = preallocateBuffer.duplicate();
+        zeros.limit((int) Math.min(zeros.capacity(), end - position));
+        while (zeros.hasRemaining()) {
+          position += this.fc.write(zeros, position);
+        }
+        this.ioStats.recordDiskWrite();
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not preallocate file: " + e.getMessage());
+    }
+  }
 
-    int newCount = pageCounts[headerIndex] + 1;
-    byte[] newCountBytes = ByteBuffer.allocate(4).putInt(newCount).array();
-    this.masterPage.writeBytes(headerIndex*4, 4, newCountBytes);
-    headerPage.writeByte(pageIndex, (byte) 1);
+  private boolean isAllocated(int pageNum) {
+    if (pageNum / this.pageSize >= this.validBits.length) {
+      return false;
+    }
+    long[] bits = this.validBits[pageNum / this.pageSize];
+    int index = pageNum % this.pageSize;
+    return bits != null && (bits[index / 64] & (1L << (index % 64))) != 0;
+  }
 
-    if (this.durable) {
-      this.masterPage.flush();
-      headerPage.flush();
+  /**
+   * Allocates a new page in the file. Pages of the current extent are handed out first, in order;
+   * once it is used up, a new extent is reserved if extents are enabled (see setMaxExtentPages),
+   * and otherwise the lowest free page is taken.
+   *
+   * @return the virtual page number of the page
+   */
+  public int allocPage() {
+    checkWritable();
+    if (this.extentNext == this.extentEnd && this.maxExtentPages > 1) {
+      allocExtent(Math.min(this.maxExtentPages, Math.max(1, this.numPages)));
+    }
+    int headerIndex;
+    int pageIndex;
+    if (this.extentNext < this.extentEnd) {
+      headerIndex = this.extentNext / this.pageSize;
+      pageIndex = this.extentNext % this.pageSize;
+      this.extentNext++;
+    } else {
+      headerIndex = firstHeaderWithFreePages();
+      long[] bits = trackHeader(headerIndex);
+      pageIndex = -1;
+      for (int i = 0; i < bits.length; i++) {
+        if (bits[i] != -1L) {
+          pageIndex = i * 64 + Long.numberOfTrailingZeros(~bits[i]);
+          break;
+        }
+      }
+      if (pageIndex == -1) {
+       throw new PageException("Header page should have free page but doesnt");
+      }
     }
 
-    int pageNum = headerIndex * Page.pageSize + pageIndex;
+    long[] bits = this.validBits[headerIndex];
+    bits[pageIndex / 64] |= 1L << (pageIndex % 64);
+    ++this.headerCounts[headerIndex];
+    updateHeader(headerIndex, pageIndex, (byte) 1);
+
+    int pageNum = headerIndex * this.pageSize + pageIndex;
     fetchPage(pageNum).wipe();
     this.numPages += 1;
     return pageNum;
   }
 
+  /**
+   * Allocates page pageNum if it is free, as when a logged change to the page is redone after a
+   * crash lost its allocation. A page allocated this way is wiped, and drops the reservation of an
+   * extent it falls in.
+   *
+   * @param pageNum the virtual page number
+   * @return true if the page was free and is now allocated, false if it was allocated already
+   */
+  public boolean allocPageAt(int pageNum) {
+    checkWritable();
+    if (pageNum < 0 || pageNum / this.pageSize >= numHeaderPages) {
+      throw new PageException("invalid page number -- out of bounds");
+    }
+    if (isAllocated(pageNum)) {
+      return false;
+    }
+    if (pageNum >= this.extentNext && pageNum < this.extentEnd) {
+      this.extentNext = this.extentEnd;
+    }
+    int headerIndex = pageNum / this.pageSize;
+    int pageIndex = pageNum % this.pageSize;
+    long[] bits = trackHeader(headerIndex);
+    bits[pageIndex / 64] |= 1L << (pageIndex % 64);
+    ++this.headerCounts[headerIndex];
+    updateHeader(headerIndex, pageIndex, (byte) 1);
+
+    fetchPage(pageNum).wipe();
+    this.numPages += 1;
+    return true;
+  }
+
   /**
    * Fetches the page corresponding to virtual page number pageNum.
    *
@@ -162,43 +653,190 @@ public class PageAllocator implements Iterable<Page>, Closeable {
 
     numIOs.getAndIncrement();
 
-    synchronized(PageAllocator.class) {
-      if (pageLRU.containsKey(translatePageNum(pageNum))) {
-        return pageLRU.get(translatePageNum(pageNum));
-      }
+    long start = System.nanoTime();
+    long vPageNum = translatePageNum(pageNum);
+    Page cached = this.pageCache.get(vPageNum);
+    if (cached != null) {
+      this.ioStats.recordFetch(true, System.nanoTime() - start);
+      return cached;
     }
 
-    int headPageIndex = pageNum/Page.pageSize;
+    int headPageIndex = pageNum/this.pageSize;
 
     if (headPageIndex >= numHeaderPages) {
       throw new PageException("invalid page number -- out of bounds");
     }
 
-    byte[] headCountBytes = this.masterPage.readBytes(headPageIndex*4, 4);
-    int headCount = ByteBuffer.wrap(headCountBytes).getInt();
-
-    if (headCount < 1) {
+    if (!isAllocated(pageNum)) {
       throw new PageException("invalid page number -- page not allocated");
     }
 
-    Page headPage = getHeadPage(headPageIndex);
+    IOScheduler s = this.scheduler;
+    IOScheduler.PageRead pending = s == null ? null : s.getOutstanding(pageNum);
+    Page dataPage = pending == null ? null : pending.await();
+    if (dataPage != null) {
+      this.ioStats.recordFetch(false, System.nanoTime() - start);
+      return dataPage;
+    }
+
+    Page resident = readPage(pageNum);
+    this.ioStats.recordFetch(false, System.nanoTime() - start);
+    return resident;
+  }
+
+  /**
+   * Reads a page from its file into the buffer pool. If a dirty copy of the page was evicted and is
+   * being written back, the page is read once the write is done, and read again if it was written
+   * back while it was being read.
+   *
+   * @param pageNum the virtual page number
+   * @return the page that is resident
+   */
+  private Page readPage(int pageNum) {
+    long vPageNum = translatePageNum(pageNum);
+    while (true) {
+      this.pageCache.awaitWriteBack(vPageNum);
+      long readStamp = this.pageCache.getReadStamp(vPageNum);
+      Page p = newPage(dataBlockOf(pageNum), pageNum, true);
+      Page resident = this.pageCache.putIfAbsent(vPageNum, p, readStamp);
+      if (resident != p) {
+        p.release();
+      }
+      if (resident != null) {
+        return resident;
+      }
+    }
+  }
 
-    int dataPageIndex = pageNum % Page.pageSize;
+  /**
+   * Starts reading the page corresponding to virtual page number pageNum into the buffer pool,
+   * without waiting for it. The page is read by the IOScheduler, along with the other pages that
+   * are requested in the meantime; see prefetch. A page that is cached, or of a compressed or
+   * memory-resident file, is fetched at once.
+   *
+   * @param pageNum the virtual page number
+   * @return a future that completes with the page once it is resident
+   */
+  public Future<Page> fetchPageAsync(int pageNum) {
+    checkPageNum(pageNum);
+    IOScheduler s = getScheduler();
+    if (s == null || this.pageCache.contains(translatePageNum(pageNum))) {
+      return IOScheduler.PageRead.completed(pageNum, fetchPage(pageNum));
+    }
+    return s.submit(pageNum, dataBlockOf(pageNum));
+  }
 
-    byte validByte = headPage.readByte(dataPageIndex);
+  /**
+   * Queues reads of the given pages that are neither cached nor being read already, and returns
+   * without waiting for them. The reads are sorted by block and adjacent blocks are merged, so the
+   * pages are best requested together. Fetching a page that is being read waits for its read.
+   * Pages that are not allocated are skipped, and nothing is read for compressed or
+   * memory-resident files.
+   *
+   * @param pageNums the virtual page numbers, in any order
+   * @return the number of pages queued
+   */
+  public int prefetch(Collection<Integer> pageNums) {
+    IOScheduler s = getScheduler();
+    if (s == null) {
+      return 0;
+    }
+    Map<Integer, Integer> blocksByPage = new LinkedHashMap<Integer, Integer>();
+    for (int pageNum : pageNums) {
+      if (pageNum < 0 || !isAllocated(pageNum) || this.pageCache.contains(translatePageNum(pageNum))
+          || s.getOutstanding(pageNum) != null) {
+        continue;
+      }
+      blocksByPage.put(pageNum, dataBlockOf(pageNum));
+    }
+    s.submitAll(blocksByPage);
+    return blocksByPage.size();
+  }
 
-    if (validByte == 0) {
+  private void checkPageNum(int pageNum) {
+    if (pageNum < 0 || pageNum / this.pageSize >= numHeaderPages) {
+      throw new PageException("invalid page number -- out of bounds");
+    }
+    if (!isAllocated(pageNum)) {
       throw new PageException("invalid page number -- page not allocated");
     }
+  }
 
-    int dataBlockID = 2 + headPageIndex*(Page.pageSize + 1) + dataPageIndex;
-    Page dataPage = new Page(this.fc, dataBlockID, pageNum, this.durable);
+  /**
+   * @return the scheduler of asynchronous reads, opened on first use, or null if the file's pages
+   * are not read from blocks at fixed offsets
+   */
+  private IOScheduler getScheduler() {
+    if (this.scheduler == null && this.memory == null && this.compressed == null) {
+      synchronized (this.numReadAheads) {
+        if (this.scheduler == null && !this.closing) {
+          this.scheduler = new IOScheduler(this, this.fName, this.pageSize, this.ioStats);
+        }
+      }
+    }
+    return this.scheduler;
+  }
 
-    synchronized(PageAllocator.class) {
-      pageLRU.put(translatePageNum(pageNum), dataPage);
+  /**
+   * Puts a page read by the IOScheduler in the buffer pool. The contents of a mapped page are
+   * ignored: reading them was only to have the OS cache the block, which the mapping then shares.
+   * A page whose evicted copy was written back while it was read is read again.
+   *
+   * @param pageNum the virtual page number
+   * @param block the contents of the page's block
+   * @param readStamp the buffer pool's read stamp of the page, taken before the block was read
+   * @return the page that is resident
+   */
+  Page installPage(int pageNum, ByteBuffer block, long readStamp) {
+    if (this.channel == null) {
+      return readPage(pageNum);
     }
+    Page p = this.channel.newPage(block, dataBlockOf(pageNum), pageNum, this.durable, this);
+    Page resident = this.pageCache.putIfAbsent(translatePageNum(pageNum), p, readStamp);
+    if (resident != p) {
+      p.release();
+    }
+    return resident == null ? readPage(pageNum) : resident;
+  }
+
+  /**
+   * @return the buffer pool's read stamp of page pageNum; see PageCache.getReadStamp
+   */
+  long getReadStamp(int pageNum) {
+    return this.pageCache.getReadStamp(translatePageNum(pageNum));
+  }
+
+  /**
+   * @return the number of reads the IOScheduler has issued for this file, each of one or more
+   * adjacent pages
+   */
+  public long getNumAsyncReads() {
+    IOScheduler s = this.scheduler;
+    return s == null ? 0 : s.getNumRuns();
+  }
 
-    return dataPage;
+  /**
+   * @return the number of pages the IOScheduler has read for this file
+   */
+  public long getNumPagesReadAsync() {
+    IOScheduler s = this.scheduler;
+    return s == null ? 0 : s.getNumPagesRead();
+  }
+
+  /**
+   * Fetches the page corresponding to virtual page number pageNum and pins it in the buffer pool.
+   * The caller must unpin the page once it no longer needs it to stay resident.
+   *
+   * @param pageNum the virtual page number
+   * @return a pinned Page object wrapping the page corresponding to pageNum
+   */
+  public Page fetchPinnedPage(int pageNum) {
+    while (true) {
+      Page p = fetchPage(pageNum);
+      if (p.pin()) {
+        return p;
+      }
+    }
   }
 
   /**
@@ -209,37 +847,26 @@ public class PageAllocator implements Iterable<Page>, Closeable {
    * @return whether or not the page was freed
    */
   public boolean freePage(Page p) {
+    checkWritable();
     if (this.durable) {
       p.flush();
     }
     int pageNum = p.getPageNum();
-    int headPageIndex = pageNum/Page.pageSize;
-    int dataPageIndex = pageNum % Page.pageSize;
-
-    Page headPage = getHeadPage(headPageIndex);
-
-    if (headPage.readByte(dataPageIndex) == 0) {
+    if (pageNum < 0 || !isAllocated(pageNum)) {
       return false;
     }
+    int headPageIndex = pageNum/this.pageSize;
+    int dataPageIndex = pageNum % this.pageSize;
 
-    headPage.writeByte(dataPageIndex, (byte) 0);
-    if (this.durable) {
-      headPage.flush();
-    }
-    byte[] countBytes = masterPage.readBytes(4*headPageIndex,4);
-    int oldCount = ByteBuffer.wrap(countBytes).getInt();
+    this.validBits[headPageIndex][dataPageIndex / 64] &= ~(1L << (dataPageIndex % 64));
+    --this.headerCounts[headPageIndex];
+    this.firstFreeHeader = Math.min(this.firstFreeHeader, headPageIndex);
 
-    int newCount = oldCount - 1;
-    byte[] newCountBytes = ByteBuffer.allocate(4).putInt(newCount).array();
-    masterPage.writeBytes(headPageIndex*4, 4, newCountBytes);
-    if (this.durable) {
-      masterPage.flush();
-    }
+    updateHeader(headPageIndex, dataPageIndex, (byte) 0);
 
-    synchronized(PageAllocator.class) {
-      if (pageLRU.containsKey(translatePageNum(pageNum))) {
-        pageLRU.remove(translatePageNum(pageNum));
-      }
+    Page removed = this.pageCache.remove(translatePageNum(pageNum));
+    if (removed != null) {
+      removed.release();
     }
 
     this.numPages -= 1;
@@ -263,6 +890,19 @@ public class PageAllocator implements Iterable<Page>, Closeable {
     return freePage(p);
   }
 
+  private void checkWritable() {
+    if (this.readOnly) {
+      throw new PageException("file is open read-only: " + this.fName);
+    }
+  }
+
+  /**
+   * @return true if this allocator was opened with openReadOnly
+   */
+  public boolean isReadOnly() {
+    return this.readOnly;
+  }
+
   /**
    * Close this PageAllocator.
    */
@@ -270,53 +910,582 @@ public class PageAllocator implements Iterable<Page>, Closeable {
     if (this.masterPage == null) {
       return;
     }
-    if (this.durable) {
-      this.masterPage.flush();
+    this.closing = true;
+    awaitReadAheads();
+    closeScheduler();
+    if (this.readOnly) {
+      // no page of the file can have been changed
+      for (Page p : this.pageCache.removeAll(this.allocID)) {
+        p.release();
+      }
+      this.masterPage.release();
+      this.masterPage = null;
+      this.segments = null;
+      this.compressed = null;
+      closeChannel();
+      return;
+    }
+    if (this.memory != null) {
+      discard();
+      return;
+    }
+    syncMetadata();
+    this.extentNext = this.extentEnd;
+    this.masterPage.flush();
+    this.masterPage.release();
+    this.hotListSave.cancel(false);
+    saveHotList();
+    List<Page> toFlush = this.pageCache.removeAll(this.allocID);
+    PageWriter.writeAll(toFlush);
+    for (Page p : toFlush) {
+      p.release();
+    }
+    String compactedName = this.fName + ".compact";
+    boolean compacted = this.compressed != null && this.compressed.compact(compactedName);
+    this.masterPage = null;
+    this.segments = null;
+    this.channel = null;
+    this.compressed = null;
+    try {
+      this.fc.close();
+      if (compacted) {
+        Files.move(Paths.get(compactedName), Paths.get(this.fName), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not close Page Alloc " + e.getMessage());
+    }
+  }
+
+  /**
+   * Writes every dirty cached page of the file back, followed by the allocation changes, without
+   * closing it.
+   */
+  public void flush() {
+    if (this.masterPage == null || this.memory != null || this.readOnly) {
+      return;
+    }
+    PageWriter.writeAll(this.pageCache.getDirtyPages(this.allocID));
+    syncMetadata();
+    saveHotList();
+  }
+
+  /**
+   * Forces everything written to the file so far to disk, including the pages of a file that is not
+   * durable, whose writes are otherwise left to the OS. Dirty cached pages are not written; see
+   * flush.
+   */
+  public void force() {
+    if (this.masterPage == null || this.memory != null || this.readOnly) {
+      return;
+    }
+    try {
+      this.fc.force(true);
+    } catch (IOException e) {
+      throw new PageException("Could not force " + this.fName + " ; " + e.getMessage());
     }
-    List<Long> toRemove = new ArrayList<Long>();
-    Set<Long> vPageNums = null;
-    List<Page> toFlush = new ArrayList<Page>();
+  }
 
-    synchronized(PageAllocator.class) {
-      vPageNums = pageLRU.keySet();
+  /**
+   * Sets whether pages of the file that are fetched from now on are forced to disk whenever they
+   * are written back. A file whose changes are covered by a write-ahead log need not be: its pages
+   * can be written back lazily, and forced once at a checkpoint.
+   *
+   * @param durable whether flushes of pages fetched from now on are forced
+   */
+  public void setDurable(boolean durable) {
+    if (this.memory == null) {
+      this.durable = durable;
     }
+  }
+
+  /**
+   * Sets the write-ahead log that covers the pages of this file. A page stamped with an LSN (see
+   * Page.setLSN) is only written back once the log has been forced up to that LSN.
+   *
+   * @param log the log, or null if the file is not logged
+   */
+  public void setLog(PageLog log) {
+    this.log = log;
+  }
 
-    for (Long l : vPageNums) {
-      if (translateAllocator(l) == this.allocID) {
-        toRemove.add(l);
+  /**
+   * Forces the write-ahead log of this file, if it has one, up to the record at lsn.
+   *
+   * @param lsn the LSN of the last change made to a page that is about to be written back
+   */
+  void forceLog(long lsn) {
+    PageLog log = this.log;
+    if (log != null) {
+      log.force(lsn);
+    }
+  }
+
+  /**
+   * Saves the numbers of the pages of this file that are resident in the buffer pool, in file order,
+   * for prewarm. The list is written to a temporary file and moved over the previous one, so it is
+   * never seen half written.
+   */
+  private void saveHotList() {
+    synchronized (this.hotListLock) {
+      writeHotList();
+    }
+  }
+
+  /**
+   * Saves the hot list every hotListSaveMillis on the saver thread, until the file is closed, so
+   * that a restart after a crash still finds a recent list. A failed save is skipped; the next one,
+   * or close, writes the list again.
+   */
+  private void scheduleHotListSave() {
+    long millis = hotListSaveMillis;
+    this.hotListSave = hotListSaver.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        synchronized (hotListLock) {
+          if (closing) {
+            return;
+          }
+          try {
+            writeHotList();
+          } catch (PageException e) {
+            // the list is only a hint
+          }
+        }
       }
+    }, millis, millis, TimeUnit.MILLISECONDS);
+  }
+
+  private void writeHotList() {
+    List<Integer> resident = this.pageCache.getResidentPages(this.allocID);
+    Collections.sort(resident);
+    ByteBuffer bb = ByteBuffer.allocate(8 + 4 * resident.size());
+    bb.putInt(hotListMagic);
+    bb.putInt(resident.size());
+    for (int pageNum : resident) {
+      bb.putInt(pageNum);
     }
+    bb.flip();
 
-    synchronized(PageAllocator.class) {
-      for (Long vPageNum : toRemove) {
-        if (pageLRU.containsKey(vPageNum)) {
-          toFlush.add(pageLRU.get(vPageNum));
-          pageLRU.remove(vPageNum);
+    String tempName = this.fName + HOT_LIST_EXTENSION + ".tmp";
+    try {
+      FileChannel out = new RandomAccessFile(tempName, "rw").getChannel();
+      try {
+        out.truncate(0);
+        while (bb.hasRemaining()) {
+          out.write(bb, bb.position());
         }
+      } finally {
+        out.close();
       }
+      Files.move(Paths.get(tempName), Paths.get(this.fName + HOT_LIST_EXTENSION),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new PageException("Could not save hot pages of " + this.fName + ": " + e.getMessage());
     }
-    if (this.durable) {
-      for (Page p : toFlush) {
-        p.flush();
+  }
+
+  /**
+   * Reads the pages that were resident in the buffer pool when this file was last closed or
+   * flushed back into the pool, in file order, so that they are hits from the start. Pages that
+   * have since been freed are skipped, and no page is read once the pool is full, so that prewarm
+   * never evicts a page to make room.
+   *
+   * @return the number of pages read into the buffer pool
+   */
+  public int prewarm() {
+    if (this.masterPage == null || this.memory != null) {
+      return 0;
+    }
+    List<Integer> hot = loadHotList();
+    int numLoaded = 0;
+    for (int pageNum : hot) {
+      if (this.pageCache.getBytesUsed() + this.pageSize > this.pageCache.getBudget()) {
+        break;
       }
+      if (pageNum < 0 || !isAllocated(pageNum)) {
+        continue;
+      }
+      Page p = fetchPage(pageNum);
+      if (this.segments != null) {
+        // a mapped page is only read when it is touched
+        for (int offset = 0; offset < this.pageSize; offset += osPageSize) {
+          p.readByte(offset);
+        }
+      }
+      numLoaded++;
+    }
+    return numLoaded;
+  }
+
+  /**
+   * @return the page numbers saved by saveHotList, in file order, or none if there is no valid list
+   */
+  private List<Integer> loadHotList() {
+    List<Integer> hot = new ArrayList<Integer>();
+    File file = new File(this.fName + HOT_LIST_EXTENSION);
+    if (!file.exists()) {
+      return hot;
     }
-    this.masterPage = null;
     try {
-      this.fc.close();
+      byte[] bytes = Files.readAllBytes(file.toPath());
+      ByteBuffer bb = ByteBuffer.wrap(bytes);
+      if (bytes.length < 8 || bb.getInt() != hotListMagic) {
+        return hot;
+      }
+      int count = bb.getInt();
+      if (count < 0 || count > bb.remaining() / 4) {
+        return hot;
+      }
+      for (int i = 0; i < count; i++) {
+        hot.add(bb.getInt());
+      }
     } catch (IOException e) {
-      throw new PageException("Could not close Page Alloc " + e.getMessage());
+      // the list is only a hint
+      hot.clear();
+    }
+    Collections.sort(hot);
+    return hot;
+  }
+
+  /**
+   * @return the block of the file that holds data page pageNum
+   */
+  private int dataBlockOf(int pageNum) {
+    return 2 + (pageNum / this.pageSize) * (this.pageSize + 1) + pageNum % this.pageSize;
+  }
+
+  /**
+   * @return the first allocated page number at or after from, or -1 if there is none
+   */
+  private int nextAllocated(int from) {
+    long[][] bits = this.validBits;
+    for (int h = from / this.pageSize; h < bits.length; h++) {
+      long[] headerBits = bits[h];
+      if (headerBits == null) {
+        continue;
+      }
+      int start = h == from / this.pageSize ? from % this.pageSize : 0;
+      for (int w = start / 64; w < headerBits.length; w++) {
+        long word = headerBits[w];
+        if (w == start / 64) {
+          word &= -1L << (start % 64);
+        }
+        if (word != 0) {
+          return h * this.pageSize + w * 64 + Long.numberOfTrailingZeros(word);
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the allocation bits of the pages in [from, to): bit i of the result is set if page
+   * from + i is allocated
+   */
+  private long[] allocatedBits(int from, int to) {
+    long[] bits = new long[(to - from + 63) / 64];
+    for (int pageNum = nextAllocated(from); pageNum >= 0 && pageNum < to;
+         pageNum = nextAllocated(pageNum + 1)) {
+      int i = pageNum - from;
+      bits[i / 64] |= 1L << (i % 64);
+    }
+    return bits;
+  }
+
+  /**
+   * Reads the allocated pages in [from, to) that are not cached into the buffer pool, on a
+   * background thread. Mapped pages are touched, so that the OS reads them. Nothing is read ahead
+   * for a memory-resident file, or once the file is being closed.
+   *
+   * The bitmap of allocated pages is changed in place by allocPage and freePage, so the background
+   * thread does not read it: the bits of the window are copied first, on the caller's thread.
+   */
+  private void readAhead(final int from, final int to) {
+    if (this.memory != null) {
+      return;
+    }
+    // counted before closing is checked, so that close either sees the read-ahead or stops it
+    this.numReadAheads.incrementAndGet();
+    if (this.closing) {
+      readAheadDone();
+      return;
+    }
+    final long[] allocated = allocatedBits(from, to);
+    readAheadPool.execute(new Runnable() {
+      public void run() {
+        try {
+          for (int i = 0; i < to - from && !closing; i++) {
+            if ((allocated[i / 64] & (1L << (i % 64))) == 0) {
+              continue;
+            }
+            int pageNum = from + i;
+            long vPageNum = translatePageNum(pageNum);
+            if (pageCache.contains(vPageNum)) {
+              continue;
+            }
+            // a page whose evicted copy is written back while it is read is dropped, not waited for
+            long readStamp = pageCache.getReadStamp(vPageNum);
+            Page p = newPage(dataBlockOf(pageNum), pageNum, true);
+            if (segments != null) {
+              for (int offset = 0; offset < pageSize; offset += osPageSize) {
+                p.readByte(offset);
+              }
+            }
+            Page resident = pageCache.putIfAbsent(vPageNum, p, readStamp);
+            if (resident != p) {
+              p.release();
+            }
+            if (resident != null) {
+              numPagesReadAhead.incrementAndGet();
+            }
+          }
+        } catch (PageException e) {
+          // reading ahead is only a hint; the pages are read again when they are fetched
+        } finally {
+          readAheadDone();
+        }
+      }
+    });
+  }
+
+  private void readAheadDone() {
+    if (this.numReadAheads.decrementAndGet() == 0) {
+      synchronized (this.numReadAheads) {
+        this.numReadAheads.notifyAll();
+      }
+    }
+  }
+
+  private void awaitReadAheads() {
+    boolean interrupted = false;
+    synchronized (this.numReadAheads) {
+      while (this.numReadAheads.get() > 0) {
+        try {
+          this.numReadAheads.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits for the asynchronous reads in flight, drops the queued ones, and closes the scheduler.
+   */
+  private void closeScheduler() {
+    IOScheduler s;
+    synchronized (this.numReadAheads) {
+      s = this.scheduler;
+    }
+    if (s != null) {
+      s.close();
+    }
+  }
+
+  /**
+   * @return the number of pages that page iterators have read ahead of themselves
+   */
+  public long getNumPagesReadAhead() {
+    return this.numPagesReadAhead.get();
+  }
+
+  /**
+   * Drops the pages of a memory-resident file without writing any of them back.
+   */
+  private void discard() {
+    for (Page p : this.pageCache.removeAll(this.allocID)) {
+      p.release();
+    }
+    this.pendingHeaders.clear();
+    this.numPendingChanges = 0;
+    this.masterPage = null;
+    this.memory.discard();
+    this.memory = null;
+  }
+
+  /**
+   * Writes the allocation changes made since the last batch back to the file: the header pages
+   * first, in file order, and then the master page. In durable mode both are forced to disk, so
+   * the changes survive a crash once this returns. The current extent is kept, since its unused
+   * pages were never marked in the header pages.
+   */
+  public void syncMetadata() {
+    if (this.numPendingChanges == 0) {
+      return;
+    }
+    List<Page> headers = new ArrayList<Page>(this.pendingHeaders.values());
+    PageWriter.writeAll(headers);
+    for (Page p : headers) {
+      p.release();
+    }
+    this.pendingHeaders.clear();
+    this.numPendingChanges = 0;
+    this.masterPage.flush();
+  }
+
+  /**
+   * Records the valid byte of a page in its header page, and the header's new count in the master
+   * page. The header page is kept until the batch is written back by syncMetadata.
+   */
+  private void updateHeader(int headIndex, int pageIndex, byte valid) {
+    Page headPage = this.pendingHeaders.get(headIndex);
+    if (headPage == null) {
+      headPage = getHeadPage(headIndex);
+      this.pendingHeaders.put(headIndex, headPage);
+    }
+    headPage.writeByte(pageIndex, valid);
+    byte[] countBytes = ByteBuffer.allocate(4).putInt(this.headerCounts[headIndex]).array();
+    this.masterPage.writeBytes(headIndex*4, 4, countBytes);
+    if (++this.numPendingChanges >= metadataBatchSize) {
+      syncMetadata();
     }
   }
 
   private Page getHeadPage(int headIndex) {
-    int headBlockID = 1 + headIndex*(Page.pageSize + 1);
-    return new Page(this.fc, headBlockID, -1);
+    int headBlockID = 1 + headIndex*(this.pageSize + 1);
+    return newPage(headBlockID, -1, false);
+  }
+
+  /**
+   * Writes back a header page if it was modified, and releases it; header pages are not cached.
+   */
+  private void releaseHeadPage(Page headPage) {
+    headPage.flush();
+    headPage.release();
+  }
+
+  private Page newPage(int blockNum, int pageNum, boolean cached) {
+    if (this.memory != null) {
+      return this.memory.newPage(blockNum, pageNum, cached ? this : null);
+    }
+    if (this.compressed != null) {
+      return this.compressed.newPage(blockNum, pageNum, this.durable, cached ? this : null);
+    }
+    if (this.channel != null) {
+      return this.channel.newPage(blockNum, pageNum, this.durable, cached ? this : null);
+    }
+    return this.segments.newPage(blockNum, pageNum, this.durable);
   }
 
   public int getNumPages() {
     return this.numPages;
   }
 
+  /**
+   * @return the size of this allocator's pages in bytes
+   */
+  public int getPageSize() {
+    return this.pageSize;
+  }
+
+  /**
+   * @return true if this allocator's file stores its pages compressed
+   */
+  public boolean isCompressed() {
+    return this.compressed != null;
+  }
+
+  /**
+   * @return true if this allocator's pages are held in memory only, and have not spilled to its file
+   */
+  public boolean isMemoryResident() {
+    return this.memory != null && !this.memory.isSpilled();
+  }
+
+  /**
+   * @return the I/O counters of this allocator's file
+   */
+  public IOStats getIOStats() {
+    return this.ioStats;
+  }
+
+  /**
+   * @return the buffer pool this PageAllocator caches its pages in
+   */
+  public PageCache getPageCache() {
+    return this.pageCache;
+  }
+
+  /**
+   * @return the buffer pool shared by PageAllocators that were not given one of their own
+   */
+  public static PageCache getSharedPageCache() {
+    return sharedPageCache;
+  }
+
+  /**
+   * Resizes the shared buffer pool. Shrinking the pool evicts unpinned pages
+   * immediately, writing back the ones that are dirty.
+   *
+   * @param bytes the new size of the buffer pool in bytes
+   * @throws IllegalArgumentException if bytes holds fewer pages than the pool has shards
+   */
+  public static void setBufferPoolBytes(long bytes) {
+    sharedPageCache.setBudget(bytes);
+  }
+
+  /**
+   * @return the size of the shared buffer pool in bytes
+   */
+  public static long getBufferPoolBytes() {
+    return sharedPageCache.getBudget();
+  }
+
+  /**
+   * Sets how often the files opened from now on save their hot lists while they are open, in
+   * addition to on close and flush.
+   *
+   * @param millis the time between saves in milliseconds
+   * @throws IllegalArgumentException if millis is not positive
+   */
+  public static void setHotListSaveMillis(long millis) {
+    if (millis < 1) {
+      throw new IllegalArgumentException("interval must be positive");
+    }
+    hotListSaveMillis = millis;
+  }
+
+  /**
+   * @return the time between periodic saves of the hot list in milliseconds
+   */
+  public static long getHotListSaveMillis() {
+    return hotListSaveMillis;
+  }
+
+  /**
+   * Sets how many bytes of pages the allocators with the MEMORY backend may hold in all. An
+   * allocator that needs a new page once they hold this much spills its pages to its file.
+   *
+   * @param bytes the memory budget of memory-resident files in bytes
+   */
+  public static void setTempMemoryBytes(long bytes) {
+    MemoryBacking.setBudgetBytes(bytes);
+  }
+
+  /**
+   * @return the memory budget of memory-resident files in bytes
+   */
+  public static long getTempMemoryBytes() {
+    return MemoryBacking.getBudgetBytes();
+  }
+
+  /**
+   * @return the number of bytes of pages held by memory-resident files
+   */
+  public static long getTempMemoryUsed() {
+    return MemoryBacking.getMemoryBytes();
+  }
+
+  /**
+   * @return the number of dirty pages written back on eviction from the shared buffer pool
+   */
+  public static long getNumWriteBacks() {
+    return sharedPageCache.getNumWriteBacks();
+  }
+
   public static long getNumIOs() {
     return PageAllocator.numIOs.get();
   }
@@ -325,6 +1494,28 @@ public class PageAllocator implements Iterable<Page>, Closeable {
     PageAllocator.numIOs.getAndIncrement();
   }
 
+  /**
+   * @return the number of pages read from disk with explicit I/O
+   */
+  public static long getNumDiskReads() {
+    return PageAllocator.numDiskReads.get();
+  }
+
+  /**
+   * @return the number of pages written or forced to disk
+   */
+  public static long getNumDiskWrites() {
+    return PageAllocator.numDiskWrites.get();
+  }
+
+  static void incrementNumDiskReads() {
+    PageAllocator.numDiskReads.getAndIncrement();
+  }
+
+  static void incrementNumDiskWrites() {
+    PageAllocator.numDiskWrites.getAndIncrement();
+  }
+
   static void incrementCacheMisses() {
     PageAllocator.cacheMisses.getAndIncrement();
   }
@@ -333,14 +1524,10 @@ public class PageAllocator implements Iterable<Page>, Closeable {
     return PageAllocator.cacheMisses.get();
   }
 
-  private long translatePageNum(int pageNum) {
+  long translatePageNum(int pageNum) {
     return (((long) this.allocID) << 32) | (((long) pageNum) & 0xFFFFFFFFL);
   }
 
-  static private int translateAllocator(long vPageNum) {
-    return (int) ((vPageNum & 0xFFFFFFFF00000000L) >> 32);
-  }
-
   /**
    * @return an iterator of the valid pages managed by this PageAllocator.
    */
@@ -349,33 +1536,48 @@ public class PageAllocator implements Iterable<Page>, Closeable {
   }
 
   private class PageIterator implements Iterator<Page> {
-    private int pageNum;
+    // the page number after the last page returned
     private int cursor;
+    private int numReturned;
+    private int window;
+    // the pages before this page number have been read ahead
+    private int readAheadEnd;
 
     public PageIterator() {
-      this.pageNum = 0;
       this.cursor = 0;
+      this.numReturned = 0;
+      this.window = MIN_READ_AHEAD;
+      this.readAheadEnd = 0;
     }
 
     public boolean hasNext() {
-      return this.pageNum < PageAllocator.this.numPages;
+      return PageAllocator.this.nextAllocated(this.cursor) >= 0;
     }
 
     public Page next() {
-      if (this.hasNext()) {
-        while (true) {
-          Page p;
-          try {
-            p = PageAllocator.this.fetchPage(cursor);
-            cursor++;
-            pageNum++;
-            return p;
-          } catch (PageException e) {
-            cursor++;
-          }
+      int pageNum = PageAllocator.this.nextAllocated(this.cursor);
+      if (pageNum < 0) {
+        throw new NoSuchElementException();
+      }
+      if (pageNum < this.readAheadEnd && !pageCache.contains(translatePageNum(pageNum))) {
+        // the page was read ahead too early, and evicted before it was reached
+        this.window = Math.max(MIN_READ_AHEAD, this.window / 2);
+      }
+      Page p = PageAllocator.this.fetchPage(pageNum);
+      this.cursor = pageNum + 1;
+      this.numReturned++;
+
+      int maxWindow = (int) Math.min(MAX_READ_AHEAD, pageCache.getBudget() / pageSize / 4);
+      if (this.numReturned >= 2 && maxWindow >= 2 && pageNum + this.window / 2 >= this.readAheadEnd) {
+        if (this.readAheadEnd > 0) {
+          this.window = Math.min(maxWindow, this.window * 2);
         }
+        this.window = Math.min(maxWindow, this.window);
+        int from = Math.max(this.cursor, this.readAheadEnd);
+        this.readAheadEnd = this.cursor + this.window;
+        PageAllocator.this.readAhead(from, this.readAheadEnd);
       }
-      throw new NoSuchElementException();
+      return p;
     }
 
     public void remove() {
@@ -0,0 +1,43 @@
+package edu.berkeley.cs186.database.io;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Moves the bytes of a Page between memory and its file. A backing is shared by many pages; the
+ * page passes its own bytes and file position to every call.
+ */
+interface PageBacking {
+  /**
+   * @return true if writes to a page's bytes reach the file without being flushed, as they do for
+   * a memory mapping
+   */
+  boolean writesThrough();
+
+  /**
+   * Writes a page back to its file, and forces it to disk if durable.
+   *
+   * @param data the bytes of the page
+   * @param position the offset of the page in its file
+   * @param durable whether to force the page to disk
+   */
+  void flush(ByteBuffer data, long position, boolean durable);
+
+  /**
+   * Writes back the dirty pages among several pages of this backing, coalescing pages that are
+   * adjacent in the file into a single write, and forces them to disk once if durable.
+   *
+   * @param pages pages of this backing, in ascending order of file position
+   * @param durable whether to force the pages to disk
+   * @return the number of write operations issued
+   */
+  int flush(List<Page> pages, boolean durable);
+
+  /**
+   * Called once a page has left the buffer pool, after it has been flushed, so that its memory can
+   * be reused.
+   *
+   * @param data the bytes of the page
+   */
+  void release(ByteBuffer data);
+}
@@ -0,0 +1,653 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A sharded buffer pool used for buffer management, keyed by virtual page number. The key space
+ * is striped across a fixed number of shards. Each shard keeps its pages in a ConcurrentHashMap
+ * so that a cache hit never takes a lock, and keeps its own replacement state and lock so that
+ * misses and evictions only serialize with other pages that map to the same shard.
+ *
+ * The pool is sized by a memory budget in bytes, split evenly between the shards; every page is
+ * charged its own size, so files with different page sizes can share a pool. A small budget gets
+ * fewer shards, so that each share holds at least one page of the default size. A shard always
+ * has room for one page, so a page larger than its shard's share (a file with large pages in a
+ * small pool) takes the shard over its share while it is cached. Victims are
+ * chosen by an EvictionPolicy (LRU by default) that skips pinned pages; if every page in the shard
+ * is pinned the request fails rather than exceeding the budget. Evicted pages are only written back
+ * when they are dirty.
+ *
+ * A dirty page is written back after it has left the shard, so until the write is done its file
+ * still holds older bytes. A page read from its file is therefore installed with the stamp taken
+ * before the read (see getReadStamp), and is refused if a write back of the same page was in flight
+ * or finished in the meantime; the reader waits for the write (see awaitWriteBack) and reads again.
+ *
+ * A PageWriter can be started to write dirty pages back in the background, ahead of eviction;
+ * see startWriter.
+ *
+ * Access updates on the hit path are best effort: if the shard lock is busy the hit is simply not
+ * recorded by the policy, which keeps hits wait-free at the cost of slightly less precise
+ * replacement decisions. Hits and misses are counted so that policies can be compared.
+ */
+public class PageCache {
+  private static final int defaultNumShards = 16;
+
+  private final Shard[] shards;
+  private final int shardMask;
+  private final EvictionPolicy.Type policyType;
+  private final AtomicLong numEvictions;
+  private final AtomicLong numWriteBacks;
+  private volatile long budget;
+  private volatile PageWriter writer;
+
+  /**
+   * Creates a new LRU PageCache that may hold up to budgetBytes worth of pages, striped across the
+   * default number of shards.
+   *
+   * @param budgetBytes the memory budget of this cache in bytes
+   */
+  public PageCache(long budgetBytes) {
+    this(budgetBytes, defaultNumShards, EvictionPolicy.Type.LRU);
+  }
+
+  /**
+   * Creates a new PageCache that may hold up to budgetBytes worth of pages, striped across the
+   * default number of shards.
+   *
+   * @param budgetBytes the memory budget of this cache in bytes
+   * @param policyType the replacement policy used by each shard
+   */
+  public PageCache(long budgetBytes, EvictionPolicy.Type policyType) {
+    this(budgetBytes, defaultNumShards, policyType);
+  }
+
+  /**
+   * Creates a new LRU PageCache that may hold up to budgetBytes worth of pages, striped across
+   * numShards shards.
+   *
+   * @param budgetBytes the memory budget of this cache in bytes
+   * @param numShards the number of shards; rounded up to a power of two, and lowered for a budget
+   *                  of fewer than numShards pages
+   */
+  public PageCache(long budgetBytes, int numShards) {
+    this(budgetBytes, numShards, EvictionPolicy.Type.LRU);
+  }
+
+  /**
+   * Creates a new PageCache that may hold up to budgetBytes worth of pages, striped across
+   * numShards shards.
+   *
+   * @param budgetBytes the memory budget of this cache in bytes
+   * @param numShards the number of shards; rounded up to a power of two, and lowered for a budget
+   *                  of fewer than numShards pages
+   * @param policyType the replacement policy used by each shard
+   */
+  public PageCache(long budgetBytes, int numShards, EvictionPolicy.Type policyType) {
+    if (budgetBytes < Page.pageSize || numShards < 1) {
+      throw new IllegalArgumentException("budget must hold at least one page and numShards must be positive");
+    }
+    int n = 1;
+    while (n < numShards) {
+      n <<= 1;
+    }
+    while (budgetBytes / n < Page.pageSize) {
+      n >>= 1;
+    }
+    this.shards = new Shard[n];
+    this.shardMask = n - 1;
+    this.policyType = policyType;
+    this.numEvictions = new AtomicLong(0);
+    this.numWriteBacks = new AtomicLong(0);
+    this.budget = budgetBytes;
+
+    for (int i = 0; i < n; i++) {
+      this.shards[i] = new Shard(shardBudget(budgetBytes, n, i), policyType.create());
+    }
+  }
+
+  /**
+   * Looks up a page. Never blocks.
+   *
+   * @param vPageNum the virtual page number
+   * @return the cached Page, or null if it is not resident
+   */
+  public Page get(long vPageNum) {
+    return shardFor(vPageNum).get(vPageNum);
+  }
+
+  /**
+   * Checks whether a page is cached, without counting a hit or a miss or touching the replacement
+   * policy.
+   *
+   * @param vPageNum the virtual page number
+   * @return true if the page is cached
+   */
+  boolean contains(long vPageNum) {
+    return shardFor(vPageNum).pages.containsKey(vPageNum);
+  }
+
+  /**
+   * Inserts a page unless another thread has already cached one for the same virtual page number,
+   * evicting unpinned, least-recently used pages of the same shard as necessary. Evicted pages are
+   * written back, if dirty, after the shard lock has been released.
+   *
+   * @param vPageNum the virtual page number
+   * @param page the page to cache
+   * @return the page that is resident after the call; either page or the one cached before it
+   * @throws PageException if the shard has no unpinned page left to evict
+   */
+  public Page putIfAbsent(long vPageNum, Page page) {
+    return putIfAbsent(vPageNum, page, -1);
+  }
+
+  /**
+   * Inserts a page read from its file, like putIfAbsent(long, Page), unless the bytes read may be
+   * older than the file: that is, if a dirty page with the same number was evicted and its write
+   * back was still in flight, or has finished, since readStamp was taken.
+   *
+   * @param vPageNum the virtual page number
+   * @param page the page to cache
+   * @param readStamp the stamp returned by getReadStamp before the page was read, or -1 if the
+   *                  page was not read from its file
+   * @return the page that is resident after the call, or null if page was refused, in which case
+   * the caller should wait for the write back and read the page again
+   * @throws PageException if the shard has no unpinned page left to evict
+   */
+  public Page putIfAbsent(long vPageNum, Page page, long readStamp) {
+    Map<Long, Page> evicted = new LinkedHashMap<Long, Page>();
+    try {
+      return shardFor(vPageNum).putIfAbsent(vPageNum, page, readStamp, evicted);
+    } finally {
+      writeBack(evicted);
+    }
+  }
+
+  /**
+   * Takes the stamp a page has to be read from its file under; see putIfAbsent(long, Page, long).
+   * Never blocks.
+   *
+   * @param vPageNum the virtual page number
+   * @return the stamp
+   */
+  public long getReadStamp(long vPageNum) {
+    return shardFor(vPageNum).writeBackStamp.get();
+  }
+
+  /**
+   * Waits until an evicted page is no longer being written back, so that its file holds its latest
+   * bytes. Returns at once if the page is not being written back.
+   *
+   * @param vPageNum the virtual page number
+   */
+  public void awaitWriteBack(long vPageNum) {
+    CountDownLatch done = shardFor(vPageNum).writingBack.get(vPageNum);
+    if (done == null) {
+      return;
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Changes the memory budget of this cache, evicting unpinned pages if the cache is now over
+   * budget. Pinned pages are never evicted, so a shrinking cache may stay over budget until they
+   * are unpinned and replaced. The number of shards is fixed when the cache is created, so the
+   * new budget must still hold one page for each of them.
+   *
+   * @param budgetBytes the new memory budget in bytes
+   * @throws IllegalArgumentException if the budget holds fewer pages than there are shards
+   */
+  public void setBudget(long budgetBytes) {
+    if (budgetBytes / this.shards.length < Page.pageSize) {
+      throw new IllegalArgumentException("budget must hold at least one page per shard ("
+                                         + this.shards.length + " shards)");
+    }
+    this.budget = budgetBytes;
+    Map<Long, Page> evicted = new LinkedHashMap<Long, Page>();
+    for (int i = 0; i < this.shards.length; i++) {
+      this.shards[i].setBudget(shardBudget(budgetBytes, this.shards.length, i), evicted);
+    }
+    writeBack(evicted);
+  }
+
+  /**
+   * @return the memory budget of this cache in bytes, as configured
+   */
+  public long getBudget() {
+    return this.budget;
+  }
+
+  /**
+   * @return the number of bytes of pages currently cached
+   */
+  public long getBytesUsed() {
+    long used = 0;
+    for (Shard s : this.shards) {
+      used += s.bytesUsed;
+    }
+    return used;
+  }
+
+  /**
+   * @return the number of pages evicted to make room for other pages
+   */
+  public long getNumEvictions() {
+    return this.numEvictions.get();
+  }
+
+  /**
+   * @return the number of evicted pages that were dirty and had to be written back
+   */
+  public long getNumWriteBacks() {
+    return this.numWriteBacks.get();
+  }
+
+  /**
+   * @return the number of lookups that found their page resident
+   */
+  public long getNumHits() {
+    long hits = 0;
+    for (Shard s : this.shards) {
+      hits += s.hits.get();
+    }
+    return hits;
+  }
+
+  /**
+   * @return the number of lookups that did not find their page resident
+   */
+  public long getNumMisses() {
+    long misses = 0;
+    for (Shard s : this.shards) {
+      misses += s.misses.get();
+    }
+    return misses;
+  }
+
+  /**
+   * @return the fraction of lookups that were hits, or 0 if there have been none
+   */
+  public double getHitRatio() {
+    long hits = getNumHits();
+    long total = hits + getNumMisses();
+    return total == 0 ? 0.0 : ((double) hits) / total;
+  }
+
+  /**
+   * Resets the hit, miss, eviction and write-back counters.
+   */
+  public void resetStats() {
+    for (Shard s : this.shards) {
+      s.hits.set(0);
+      s.misses.set(0);
+    }
+    this.numEvictions.set(0);
+    this.numWriteBacks.set(0);
+  }
+
+  /**
+   * @return the replacement policy used by this cache
+   */
+  public EvictionPolicy.Type getPolicyType() {
+    return this.policyType;
+  }
+
+  /**
+   * Starts a background PageWriter for this cache that writes dirty pages back every
+   * intervalMillis, or sooner when an eviction finds a dirty page. Does nothing if one is running.
+   *
+   * @param intervalMillis the time between passes of the writer
+   * @return the writer
+   */
+  public synchronized PageWriter startWriter(long intervalMillis) {
+    if (this.writer == null) {
+      this.writer = new PageWriter(this, intervalMillis);
+    }
+    this.writer.start();
+    return this.writer;
+  }
+
+  /**
+   * Starts a background PageWriter for this cache with the default interval.
+   *
+   * @return the writer
+   */
+  public PageWriter startWriter() {
+    return startWriter(PageWriter.defaultIntervalMillis);
+  }
+
+  /**
+   * Stops the background PageWriter, if any, waiting for its current pass to finish. Dirty pages
+   * are then only written back on eviction or when their allocator is closed.
+   */
+  public void stopWriter() {
+    PageWriter w = this.writer;
+    if (w != null) {
+      w.stop();
+    }
+  }
+
+  /**
+   * @return the PageWriter of this cache, or null if none has been started
+   */
+  public PageWriter getWriter() {
+    return this.writer;
+  }
+
+  /**
+   * Removes a page from the cache without flushing it. Waits for a running write-back pass to
+   * finish, so that the page can be released safely.
+   *
+   * @param vPageNum the virtual page number
+   * @return the removed Page, or null if it was not resident
+   */
+  public Page remove(long vPageNum) {
+    PageWriter w = this.writer;
+    if (w == null) {
+      return shardFor(vPageNum).remove(vPageNum);
+    }
+    w.getPassLock().lock();
+    try {
+      return shardFor(vPageNum).remove(vPageNum);
+    } finally {
+      w.getPassLock().unlock();
+    }
+  }
+
+  /**
+   * Removes every page whose virtual page number belongs to the given allocator. Waits for a
+   * running write-back pass to finish, so that the pages can be released safely.
+   *
+   * @param allocID the id of the owning PageAllocator
+   * @return the removed pages, for the caller to flush
+   */
+  public List<Page> removeAll(int allocID) {
+    List<Page> removed = new ArrayList<Page>();
+    PageWriter w = this.writer;
+    if (w != null) {
+      w.getPassLock().lock();
+    }
+    try {
+      for (Shard s : this.shards) {
+        s.removeAll(allocID, removed);
+      }
+    } finally {
+      if (w != null) {
+        w.getPassLock().unlock();
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @return the cached pages that would have to be written if they were flushed now
+   */
+  List<Page> getDirtyPages() {
+    return getDirtyPages(-1);
+  }
+
+  /**
+   * @param allocID the id of a PageAllocator
+   * @return the page numbers, within their file, of the pages of allocID that are resident
+   */
+  List<Integer> getResidentPages(int allocID) {
+    List<Integer> resident = new ArrayList<Integer>();
+    for (Shard s : this.shards) {
+      for (Long vPageNum : s.pages.keySet()) {
+        if (allocatorOf(vPageNum) == allocID) {
+          resident.add((int) vPageNum.longValue());
+        }
+      }
+    }
+    return resident;
+  }
+
+  /**
+   * @param allocID the allocator whose pages to return, or -1 for the pages of every allocator
+   * @return the cached pages of allocID that would have to be written if they were flushed now
+   */
+  List<Page> getDirtyPages(int allocID) {
+    List<Page> dirty = new ArrayList<Page>();
+    for (Shard s : this.shards) {
+      for (Map.Entry<Long, Page> e : s.pages.entrySet()) {
+        if ((allocID < 0 || allocatorOf(e.getKey()) == allocID) && e.getValue().needsWrite()) {
+          dirty.add(e.getValue());
+        }
+      }
+    }
+    return dirty;
+  }
+
+  /**
+   * @return the number of pages currently cached
+   */
+  public int size() {
+    int size = 0;
+    for (Shard s : this.shards) {
+      size += s.pages.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return the number of shards in this cache
+   */
+  public int getNumShards() {
+    return this.shards.length;
+  }
+
+  private void writeBack(Map<Long, Page> evicted) {
+    this.numEvictions.addAndGet(evicted.size());
+    boolean wroteBack = false;
+    for (Map.Entry<Long, Page> e : evicted.entrySet()) {
+      Page p = e.getValue();
+      try {
+        if (p.isDirty()) {
+          this.numWriteBacks.incrementAndGet();
+          wroteBack = true;
+          p.flush();
+        }
+      } finally {
+        shardFor(e.getKey()).finishWriteBack(e.getKey());
+      }
+      p.release();
+    }
+    PageWriter w = this.writer;
+    if (wroteBack && w != null) {
+      w.wake();
+    }
+  }
+
+  /**
+   * @return the share of budgetBytes of shard i; the shares add up to budgetBytes
+   */
+  private static long shardBudget(long budgetBytes, int numShards, int i) {
+    return budgetBytes / numShards + (i < budgetBytes % numShards ? 1 : 0);
+  }
+
+  ReentrantLock getShardLock(long vPageNum) {
+    return shardFor(vPageNum).lock;
+  }
+
+  static int allocatorOf(long vPageNum) {
+    return (int) ((vPageNum & 0xFFFFFFFF00000000L) >> 32);
+  }
+
+  private Shard shardFor(long vPageNum) {
+    int h = (int) (vPageNum ^ (vPageNum >>> 32));
+    h ^= (h >>> 16);
+    h *= 0x85EBCA6B;
+    h ^= (h >>> 13);
+    return this.shards[h & this.shardMask];
+  }
+
+  /**
+   * A single stripe of the cache. Lookups use the concurrent map only; the replacement policy and
+   * the byte accounting are only touched under the shard lock, and the map is only modified under
+   * it.
+   *
+   * writingBack holds the evicted dirty pages whose write back has not finished, and writeBackStamp
+   * counts the write backs that have; a page is entered in the first before it leaves the map, and
+   * the second is bumped before the page leaves the first.
+   */
+  private static class Shard implements EvictionPolicy.Victims {
+    private volatile long budget;
+    private volatile long bytesUsed;
+    private final ConcurrentHashMap<Long, Page> pages;
+    private final EvictionPolicy policy;
+    private final ReentrantLock lock;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final ConcurrentHashMap<Long, CountDownLatch> writingBack;
+    private final AtomicLong writeBackStamp;
+
+    private Shard(long budget, EvictionPolicy policy) {
+      this.budget = budget;
+      this.bytesUsed = 0;
+      this.pages = new ConcurrentHashMap<Long, Page>();
+      this.policy = policy;
+      this.lock = new ReentrantLock();
+      this.hits = new AtomicLong(0);
+      this.misses = new AtomicLong(0);
+      this.writingBack = new ConcurrentHashMap<Long, CountDownLatch>();
+      this.writeBackStamp = new AtomicLong(0);
+    }
+
+    private Page get(long vPageNum) {
+      Page p = this.pages.get(vPageNum);
+      if (p == null) {
+        this.misses.incrementAndGet();
+        return null;
+      }
+      this.hits.incrementAndGet();
+      if (this.lock.tryLock()) {
+        try {
+          if (this.pages.get(vPageNum) == p) {
+            this.policy.access(vPageNum);
+          }
+        } finally {
+          this.lock.unlock();
+        }
+      }
+      return p;
+    }
+
+    private Page putIfAbsent(long vPageNum, Page page, long readStamp, Map<Long, Page> evicted) {
+      this.lock.lock();
+      try {
+        Page existing = this.pages.get(vPageNum);
+        if (existing != null) {
+          this.policy.access(vPageNum);
+          return existing;
+        }
+        if (readStamp >= 0 && (this.writingBack.containsKey(vPageNum)
+                               || this.writeBackStamp.get() != readStamp)) {
+          return null;
+        }
+        if (!evictUntil(Math.max(0, this.budget - page.getPageSize()), evicted)) {
+          throw new PageException("buffer pool exhausted -- every page in the shard is pinned");
+        }
+        this.policy.insert(vPageNum);
+        this.pages.put(vPageNum, page);
+        this.bytesUsed += page.getPageSize();
+        return page;
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    private void setBudget(long budget, Map<Long, Page> evicted) {
+      this.lock.lock();
+      try {
+        this.budget = budget;
+        evictUntil(budget, evicted);
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    /**
+     * Evicts unpinned pages chosen by the policy until at most target bytes are in use.
+     *
+     * @return true if the target was reached
+     */
+    private boolean evictUntil(long target, Map<Long, Page> evicted) {
+      while (this.bytesUsed > target) {
+        Long victim = this.policy.evict(this);
+        if (victim == null) {
+          return false;
+        }
+        if (this.pages.get(victim).isDirty()) {
+          this.writingBack.put(victim, new CountDownLatch(1));
+        }
+        Page p = this.pages.remove(victim);
+        evicted.put(victim, p);
+        this.bytesUsed -= p.getPageSize();
+      }
+      return true;
+    }
+
+    /**
+     * Marks the write back of an evicted page as finished, if it was dirty.
+     */
+    private void finishWriteBack(long vPageNum) {
+      if (!this.writingBack.containsKey(vPageNum)) {
+        return;
+      }
+      this.writeBackStamp.incrementAndGet();
+      this.writingBack.remove(vPageNum).countDown();
+    }
+
+    public boolean tryEvict(long vPageNum) {
+      Page p = this.pages.get(vPageNum);
+      return p != null && p.tryEvict();
+    }
+
+    private Page remove(long vPageNum) {
+      this.lock.lock();
+      try {
+        Page p = this.pages.remove(vPageNum);
+        if (p != null) {
+          this.policy.remove(vPageNum);
+          this.bytesUsed -= p.getPageSize();
+        }
+        return p;
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    private void removeAll(int allocID, List<Page> removed) {
+      this.lock.lock();
+      try {
+        for (Long vPageNum : this.pages.keySet()) {
+          if (allocatorOf(vPageNum) == allocID) {
+            Page p = this.pages.remove(vPageNum);
+            removed.add(p);
+            this.policy.remove(vPageNum);
+            this.bytesUsed -= p.getPageSize();
+          }
+        }
+      } finally {
+        this.lock.unlock();
+      }
+    }
+  }
+}
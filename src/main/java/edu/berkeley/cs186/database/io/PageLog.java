@@ -0,0 +1,15 @@
+package edu.berkeley.cs186.database.io;
+
+/**
+ * A write-ahead log covering the pages of a PageAllocator. Pages are stamped with the LSN of the
+ * log record of their last change, and the allocator forces the log up to that LSN before it writes
+ * a page back, so that no change reaches the file before the record describing it.
+ */
+public interface PageLog {
+  /**
+   * Forces the log up to and including the record at lsn to disk.
+   *
+   * @param lsn the LSN of the last record that must be forced
+   */
+  void force(long lsn);
+}
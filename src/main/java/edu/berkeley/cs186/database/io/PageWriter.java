@@ -0,0 +1,254 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the dirty pages of a PageCache back in the background, so that eviction rarely finds a
+ * dirty victim and foreground threads rarely wait for a write.
+ *
+ * Every pass collects the pages of the cache that need writing, groups them by file, and writes
+ * each file's pages in file order; pages that are adjacent in the file are coalesced into a single
+ * write, and a durable file is forced once per pass instead of once per page. A pass runs every
+ * interval, and as soon as an eviction had to write back a dirty page itself.
+ *
+ * A page is pinned from the moment its bytes are copied until they have reached the file, so it
+ * can't be evicted and reread in between. Pages are never removed from the cache during a pass.
+ */
+public class PageWriter {
+  static final long defaultIntervalMillis = 100;
+
+  private static final Comparator<Page> filePosition = new Comparator<Page>() {
+    public int compare(Page a, Page b) {
+      return Long.compare(a.getPosition(), b.getPosition());
+    }
+  };
+
+  private final PageCache cache;
+  private final long intervalMillis;
+  private final ReentrantLock passLock;
+  private final AtomicInteger queueDepth;
+  private final AtomicLong numPasses;
+  private final AtomicLong numPagesWritten;
+  private final AtomicLong numWrites;
+  private final AtomicLong writeNanos;
+  private Thread thread;
+  private boolean wakeRequested;
+
+  PageWriter(PageCache cache, long intervalMillis) {
+    if (intervalMillis < 1) {
+      throw new IllegalArgumentException("interval must be positive");
+    }
+    this.cache = cache;
+    this.intervalMillis = intervalMillis;
+    this.passLock = new ReentrantLock();
+    this.queueDepth = new AtomicInteger(0);
+    this.numPasses = new AtomicLong(0);
+    this.numPagesWritten = new AtomicLong(0);
+    this.numWrites = new AtomicLong(0);
+    this.writeNanos = new AtomicLong(0);
+  }
+
+  /**
+   * Writes back every dirty page of the cache now, on the calling thread.
+   *
+   * @return the number of write operations issued
+   */
+  public int writeDirtyPages() {
+    this.passLock.lock();
+    try {
+      List<Page> dirty = this.cache.getDirtyPages();
+      if (dirty.isEmpty()) {
+        return 0;
+      }
+      this.queueDepth.set(dirty.size());
+      long start = System.nanoTime();
+      int writes = 0;
+      try {
+        for (List<Page> group : groupByBacking(dirty).values()) {
+          writes += flushGroup(group);
+          this.queueDepth.addAndGet(-group.size());
+          this.numPagesWritten.addAndGet(group.size());
+        }
+      } finally {
+        this.queueDepth.set(0);
+        this.numPasses.incrementAndGet();
+        this.numWrites.addAndGet(writes);
+        this.writeNanos.addAndGet(System.nanoTime() - start);
+      }
+      return writes;
+    } finally {
+      this.passLock.unlock();
+    }
+  }
+
+  /**
+   * Writes back the dirty pages among pages, coalescing pages that are adjacent in their file. Used
+   * to flush the pages of an allocator that is being closed.
+   *
+   * @param pages the pages to write back
+   * @return the number of write operations issued
+   */
+  static int writeAll(List<Page> pages) {
+    int writes = 0;
+    for (List<Page> group : groupByBacking(pages).values()) {
+      writes += flushGroup(group);
+    }
+    return writes;
+  }
+
+  /**
+   * @return the number of dirty pages collected by the current pass that have not been written yet
+   */
+  public int getQueueDepth() {
+    return this.queueDepth.get();
+  }
+
+  /**
+   * @return the number of passes that found dirty pages to write
+   */
+  public long getNumPasses() {
+    return this.numPasses.get();
+  }
+
+  /**
+   * @return the number of dirty pages handed to the disk by this writer
+   */
+  public long getNumPagesWritten() {
+    return this.numPagesWritten.get();
+  }
+
+  /**
+   * @return the number of write operations issued; less than the number of pages written when
+   * adjacent pages were coalesced
+   */
+  public long getNumWrites() {
+    return this.numWrites.get();
+  }
+
+  /**
+   * @return the number of pages written per second of time spent writing, or 0 if none have been
+   */
+  public double getPagesPerSecond() {
+    long nanos = this.writeNanos.get();
+    return nanos == 0 ? 0.0 : this.numPagesWritten.get() * 1e9 / nanos;
+  }
+
+  /**
+   * @return true if the background thread is running
+   */
+  public synchronized boolean isRunning() {
+    return this.thread != null;
+  }
+
+  synchronized void start() {
+    if (this.thread != null) {
+      return;
+    }
+    this.thread = new Thread(new Runnable() {
+      public void run() {
+        runPasses();
+      }
+    }, "PageWriter");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  void stop() {
+    Thread t;
+    synchronized (this) {
+      t = this.thread;
+      this.thread = null;
+      notifyAll();
+    }
+    if (t == null) {
+      return;
+    }
+    boolean interrupted = false;
+    while (t.isAlive()) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Asks the background thread to start a pass now rather than at the end of its interval.
+   */
+  synchronized void wake() {
+    if (!this.wakeRequested) {
+      this.wakeRequested = true;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Held while a pass is writing; pages must not be removed from the cache and released while a
+   * pass may still be writing them.
+   */
+  ReentrantLock getPassLock() {
+    return this.passLock;
+  }
+
+  private void runPasses() {
+    Thread self = Thread.currentThread();
+    while (true) {
+      synchronized (this) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.intervalMillis);
+        long remaining;
+        while (this.thread == self && !this.wakeRequested
+               && (remaining = deadline - System.nanoTime()) > 0) {
+          try {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+          } catch (InterruptedException e) {
+            // keep waiting; stop() is the only way to end the thread
+          }
+        }
+        if (this.thread != self) {
+          return;
+        }
+        this.wakeRequested = false;
+      }
+      try {
+        writeDirtyPages();
+      } catch (PageException e) {
+        // the pages stay dirty and are written back on eviction or close instead
+      }
+    }
+  }
+
+  private static Map<PageBacking, List<Page>> groupByBacking(List<Page> pages) {
+    Map<PageBacking, List<Page>> groups = new IdentityHashMap<PageBacking, List<Page>>();
+    for (Page p : pages) {
+      List<Page> group = groups.get(p.getBacking());
+      if (group == null) {
+        group = new ArrayList<Page>();
+        groups.put(p.getBacking(), group);
+      }
+      group.add(p);
+    }
+    return groups;
+  }
+
+  private static int flushGroup(List<Page> group) {
+    Collections.sort(group, filePosition);
+    boolean durable = false;
+    for (Page p : group) {
+      durable |= p.isDurable();
+    }
+    return group.get(0).getBacking().flush(group, durable);
+  }
+}
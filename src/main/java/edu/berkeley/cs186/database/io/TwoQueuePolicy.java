@@ -0,0 +1,88 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The simplified 2Q policy of Johnson and Shasha. A page enters a FIFO probation queue (A1in) the
+ * first time it is read and is only promoted to the main LRU queue (Am) if it is read again after
+ * having been evicted from probation, which is remembered in a queue of page numbers only
+ * (A1out). Pages touched once by a scan therefore never displace the pages in Am.
+ *
+ * The queue sizes are kept relative to the number of resident pages: A1in may hold a quarter of
+ * them and A1out remembers as many page numbers as there are resident pages.
+ */
+class TwoQueuePolicy implements EvictionPolicy {
+  private final LinkedHashSet<Long> a1in;
+  private final LinkedHashMap<Long, Boolean> am;
+  private final LinkedHashSet<Long> a1out;
+
+  TwoQueuePolicy() {
+    this.a1in = new LinkedHashSet<Long>();
+    this.am = new LinkedHashMap<Long, Boolean>(16, 0.75f, true);
+    this.a1out = new LinkedHashSet<Long>();
+  }
+
+  public void insert(long vPageNum) {
+    if (this.a1out.remove(vPageNum)) {
+      this.am.put(vPageNum, Boolean.TRUE);
+    } else {
+      this.a1in.add(vPageNum);
+    }
+  }
+
+  public void access(long vPageNum) {
+    // Re-references while in A1in are treated as correlated and do not promote the page.
+    this.am.get(vPageNum);
+  }
+
+  public void remove(long vPageNum) {
+    if (!this.a1in.remove(vPageNum)) {
+      this.am.remove(vPageNum);
+    }
+  }
+
+  public Long evict(Victims victims) {
+    int resident = this.a1in.size() + this.am.size();
+    Long victim;
+    if (this.a1in.size() > Math.max(1, resident / 4) || this.am.isEmpty()) {
+      victim = evictFrom(this.a1in.iterator(), victims);
+      if (victim != null) {
+        remember(victim, resident);
+        return victim;
+      }
+      return evictFrom(this.am.keySet().iterator(), victims);
+    }
+    victim = evictFrom(this.am.keySet().iterator(), victims);
+    if (victim != null) {
+      return victim;
+    }
+    victim = evictFrom(this.a1in.iterator(), victims);
+    if (victim != null) {
+      remember(victim, resident);
+    }
+    return victim;
+  }
+
+  private void remember(Long vPageNum, int resident) {
+    this.a1out.add(vPageNum);
+    int limit = Math.max(1, resident);
+    Iterator<Long> iter = this.a1out.iterator();
+    while (this.a1out.size() > limit) {
+      iter.next();
+      iter.remove();
+    }
+  }
+
+  private static Long evictFrom(Iterator<Long> iter, Victims victims) {
+    while (iter.hasNext()) {
+      Long vPageNum = iter.next();
+      if (victims.tryEvict(vPageNum)) {
+        iter.remove();
+        return vPageNum;
+      }
+    }
+    return null;
+  }
+}
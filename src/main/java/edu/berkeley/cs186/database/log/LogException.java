@@ -0,0 +1,16 @@
+package edu.berkeley.cs186.database.log;
+
+/**
+ * Exception thrown for errors while reading or writing the write-ahead log.
+ */
+public class LogException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public LogException() {
+    super();
+  }
+
+  public LogException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,245 @@
+package edu.berkeley.cs186.database.log;
+
+import edu.berkeley.cs186.database.table.RecordID;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A record of the write-ahead log.
+ *
+ * Changes to a table are logged physiologically, one record slot at a time: an INSERT carries the
+ * bytes put in the slot, a DELETE the bytes taken out of it, and an UPDATE both. Applying a
+ * change's redo image to its slot (or emptying the slot, if the image is null) repeats the change;
+ * applying its undo image reverts it. Either is idempotent, so a change can be redone or undone
+ * whatever state the slot was left in by a crash.
+ *
+ * The records of a transaction are chained: each holds the LSN of the transaction's previous record,
+ * or -1, so a transaction is rolled back by following the chain from its last record. A
+ * COMPENSATION record logs the undoing of a change, so that a rollback interrupted by a crash picks
+ * up where it stopped: its undoNextLSN is the LSN of the transaction's next change to undo, or -1
+ * if none is left. COMMIT and ABORT end a transaction; ABORT is only logged once all of its
+ * changes have been undone. DROP marks a table as deleted, so that the changes logged to the table
+ * before are not applied to a new table of the same name. CHECKPOINT marks that every change logged
+ * before it has reached the table files.
+ *
+ * Changes to an index are logged physically and belong to no transaction: INDEX_BEGIN is logged
+ * before an insert or delete of a key starts changing the pages of the index, and INDEX_PAGES once
+ * it is done, with the bytes of every page it changed (see BPlusTree.redo). An index change is
+ * undone by the opposite change, made when the record whose keys it changed is undone.
+ *
+ * A record's LSN is its offset in the log file.
+ */
+public class LogRecord {
+  public enum Type {INSERT, DELETE, UPDATE, COMPENSATION, COMMIT, ABORT, DROP, CHECKPOINT, INDEX_BEGIN,
+                    INDEX_PAGES}
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private long lsn;
+  private long prevLSN;
+  private final Type type;
+  private final long transNum;
+  private final String tableName;
+  private final RecordID rid;
+  private final byte[] before;
+  private final byte[] after;
+  private final long undoNextLSN;
+
+  private LogRecord(Type type, long transNum, String tableName, RecordID rid, byte[] before, byte[] after,
+                    long undoNextLSN) {
+    this.lsn = -1;
+    this.prevLSN = -1;
+    this.type = type;
+    this.transNum = transNum;
+    this.tableName = tableName;
+    this.rid = rid;
+    this.before = before;
+    this.after = after;
+    this.undoNextLSN = undoNextLSN;
+  }
+
+  public static LogRecord insert(long transNum, String tableName, RecordID rid, byte[] after) {
+    return new LogRecord(Type.INSERT, transNum, tableName, rid, null, after, -1);
+  }
+
+  public static LogRecord delete(long transNum, String tableName, RecordID rid, byte[] before) {
+    return new LogRecord(Type.DELETE, transNum, tableName, rid, before, null, -1);
+  }
+
+  public static LogRecord update(long transNum, String tableName, RecordID rid, byte[] before, byte[] after) {
+    return new LogRecord(Type.UPDATE, transNum, tableName, rid, before, after, -1);
+  }
+
+  /**
+   * @param undone the change that is being undone
+   * @param undoNextLSN the LSN of the next change of the transaction to undo, or -1
+   * @return a record of the undoing of a change
+   */
+  public static LogRecord compensation(LogRecord undone, long undoNextLSN) {
+    return new LogRecord(Type.COMPENSATION, undone.transNum, undone.tableName, undone.rid, null,
+                         undone.getUndoImage(), undoNextLSN);
+  }
+
+  public static LogRecord commit(long transNum) {
+    return new LogRecord(Type.COMMIT, transNum, "", null, null, null, -1);
+  }
+
+  public static LogRecord abort(long transNum) {
+    return new LogRecord(Type.ABORT, transNum, "", null, null, null, -1);
+  }
+
+  public static LogRecord drop(String tableName) {
+    return new LogRecord(Type.DROP, -1, tableName, null, null, null, -1);
+  }
+
+  public static LogRecord checkpoint() {
+    return new LogRecord(Type.CHECKPOINT, -1, "", null, null, null, -1);
+  }
+
+  public static LogRecord indexBegin(String indexName) {
+    return new LogRecord(Type.INDEX_BEGIN, -1, indexName, null, null, null, -1);
+  }
+
+  /**
+   * @param indexName the index that was changed
+   * @param pages the bytes of the pages of the index that were changed, as BPlusTree encodes them
+   * @return a record of the end of a change to an index
+   */
+  public static LogRecord indexPages(String indexName, byte[] pages) {
+    return new LogRecord(Type.INDEX_PAGES, -1, indexName, null, null, pages, -1);
+  }
+
+  public long getLSN() {
+    return this.lsn;
+  }
+
+  void setLSN(long lsn) {
+    this.lsn = lsn;
+  }
+
+  /**
+   * @return the LSN of the previous record of the same transaction, or -1 if this is its first
+   */
+  public long getPrevLSN() {
+    return this.prevLSN;
+  }
+
+  void setPrevLSN(long prevLSN) {
+    this.prevLSN = prevLSN;
+  }
+
+  public Type getType() {
+    return this.type;
+  }
+
+  public long getTransNum() {
+    return this.transNum;
+  }
+
+  public String getTableName() {
+    return this.tableName;
+  }
+
+  public RecordID getRecordID() {
+    return this.rid;
+  }
+
+  public long getUndoNextLSN() {
+    return this.undoNextLSN;
+  }
+
+  /**
+   * @return true if this record changes a slot of a table: an INSERT, DELETE, UPDATE or
+   * COMPENSATION
+   */
+  public boolean isChange() {
+    return this.rid != null;
+  }
+
+  /**
+   * @return the bytes the slot holds once this change is made, or null if it is left empty; for
+   * INDEX_PAGES, the bytes of the pages that were changed
+   */
+  public byte[] getRedoImage() {
+    return this.after;
+  }
+
+  /**
+   * @return the bytes the slot held before this change was made, or null if it was empty
+   */
+  public byte[] getUndoImage() {
+    return this.before;
+  }
+
+  /**
+   * @return the record, without its LSN, in the form it is stored in the log
+   */
+  byte[] encode() {
+    byte[] name = this.tableName.getBytes(UTF8);
+    int length = 1 + 8 + 8 + 2 + name.length + 4 + 4 + 4 + 4 + 8
+                 + (this.before == null ? 0 : this.before.length) + (this.after == null ? 0 : this.after.length);
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    buf.put((byte) this.type.ordinal());
+    buf.putLong(this.transNum);
+    buf.putLong(this.prevLSN);
+    buf.putShort((short) name.length);
+    buf.put(name);
+    buf.putInt(this.rid == null ? -1 : this.rid.getPageNum());
+    buf.putInt(this.rid == null ? -1 : this.rid.getSlotNumber());
+    putImage(buf, this.before);
+    putImage(buf, this.after);
+    buf.putLong(this.undoNextLSN);
+    return buf.array();
+  }
+
+  /**
+   * Reads a record in the form encode wrote it.
+   *
+   * @param lsn the offset in the log of the record
+   * @param buf the encoded record
+   * @return the record
+   */
+  static LogRecord decode(long lsn, ByteBuffer buf) {
+    Type type = Type.values()[buf.get()];
+    long transNum = buf.getLong();
+    long prevLSN = buf.getLong();
+    byte[] name = new byte[buf.getShort()];
+    buf.get(name);
+    int pageNum = buf.getInt();
+    int slotNum = buf.getInt();
+    byte[] before = getImage(buf);
+    byte[] after = getImage(buf);
+    long undoNextLSN = buf.getLong();
+    RecordID rid = pageNum < 0 ? null : new RecordID(pageNum, slotNum);
+    LogRecord record = new LogRecord(type, transNum, new String(name, UTF8), rid, before, after, undoNextLSN);
+    record.lsn = lsn;
+    record.prevLSN = prevLSN;
+    return record;
+  }
+
+  private static void putImage(ByteBuffer buf, byte[] image) {
+    if (image == null) {
+      buf.putInt(-1);
+    } else {
+      buf.putInt(image.length);
+      buf.put(image);
+    }
+  }
+
+  private static byte[] getImage(ByteBuffer buf) {
+    int length = buf.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] image = new byte[length];
+    buf.get(image);
+    return image;
+  }
+
+  @Override
+  public String toString() {
+    return "LogRecord(" + this.lsn + ", " + this.type + ", transaction " + this.transNum
+           + (this.rid == null ? "" : ", " + this.tableName + " " + this.rid) + ")";
+  }
+}
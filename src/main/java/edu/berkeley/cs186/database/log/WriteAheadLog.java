@@ -0,0 +1,382 @@
+package edu.berkeley.cs186.database.log;
+
+import edu.berkeley.cs186.database.io.PageLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * The write-ahead log of a database: an append-only file of LogRecords, each stored as its length,
+ * a checksum and the encoded record.
+ *
+ * A change is appended to the log before the page it changes is touched. Appending writes the
+ * record to the file but does not force it; a transaction's records are forced when it commits, so
+ * that committing costs one sequential force rather than a force of every page the transaction
+ * changed, and the pages themselves can be written back lazily. Transactions that commit while a
+ * force is under way wait for it and are then covered by a single force of everything appended in
+ * the meantime (group commit).
+ *
+ * Table pages are mapped, and the OS may write a mapped page back at any time. Because a record
+ * reaches the file before its page is changed, the log covers every change a process crash can
+ * leave on disk; after a power failure it does so only for pages the OS wrote back after the log.
+ * Pages that are written back explicitly, as with the CHANNEL backend, are stamped with the LSN of
+ * their last change, and the log is forced up to it before the page is written (see PageLog).
+ *
+ * The log keeps the LSN of the last record of every transaction with changes that has not
+ * committed or aborted, and chains each record of a transaction to the one before, so that a
+ * transaction is rolled back by reading its changes back from the file.
+ *
+ * A checkpoint, run while no change is in progress, writes every table back and then empties the
+ * log if no transaction has changes outstanding, or appends a CHECKPOINT record after which
+ * recovery starts redoing changes.
+ *
+ * When the log is opened, a torn or corrupt record at its end, left by a crash in the middle of an
+ * append, is cut off along with everything after it.
+ */
+public class WriteAheadLog implements Closeable, PageLog {
+  public static final String FILENAME = "database.log";
+  // once the log has grown past this, committing transactions checkpoint the database
+  public static final long CHECKPOINT_BYTES = 4L * 1024 * 1024;
+  // length and checksum of a stored record
+  private static final int RECORD_HEADER_BYTES = 8;
+
+  private final String fName;
+  private final FileChannel fc;
+  private final Object forceLock;
+  private final ReentrantReadWriteLock checkpointLock;
+  // the LSN of the last record of each transaction with changes that has not committed or aborted
+  private final Map<Long, Long> lastLSNs;
+  private final AtomicLong numForces;
+  private long nextLSN;
+  // everything before this offset has been forced
+  private volatile long flushedLSN;
+
+  /**
+   * Opens the log in fName, creating it if it does not exist.
+   *
+   * @param fName the log file
+   */
+  public WriteAheadLog(String fName) {
+    this.fName = fName;
+    this.forceLock = new Object();
+    this.checkpointLock = new ReentrantReadWriteLock();
+    this.lastLSNs = new HashMap<Long, Long>();
+    this.numForces = new AtomicLong(0);
+    try {
+      this.fc = new RandomAccessFile(fName, "rw").getChannel();
+    } catch (IOException e) {
+      throw new LogException("Could not open log " + fName + " ; " + e.getMessage());
+    }
+    this.nextLSN = Long.MAX_VALUE;
+    long end = 0;
+    LogIterator iter = new LogIterator(0);
+    while (iter.hasNext()) {
+      iter.next();
+      end = iter.position;
+    }
+    try {
+      if (end < this.fc.size()) {
+        this.fc.truncate(end);
+        this.fc.force(false);
+      }
+    } catch (IOException e) {
+      throw new LogException("Could not repair log " + fName + " ; " + e.getMessage());
+    }
+    this.nextLSN = end;
+    this.flushedLSN = end;
+  }
+
+  /**
+   * Appends a record to the log, without forcing it.
+   *
+   * @param record the record; its LSN, and the LSN of the previous record of its transaction, are
+   *               set
+   * @return the LSN of the record
+   */
+  public synchronized long append(LogRecord record) {
+    Long prevLSN = this.lastLSNs.get(record.getTransNum());
+    record.setPrevLSN(prevLSN == null ? -1 : prevLSN);
+    byte[] payload = record.encode();
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+    buf.putInt(payload.length);
+    buf.putInt((int) crc.getValue());
+    buf.put(payload);
+    buf.flip();
+    try {
+      while (buf.hasRemaining()) {
+        this.fc.write(buf, this.nextLSN + buf.position());
+      }
+    } catch (IOException e) {
+      throw new LogException("Could not append to log " + this.fName + " ; " + e.getMessage());
+    }
+    long lsn = this.nextLSN;
+    record.setLSN(lsn);
+    this.nextLSN += buf.limit();
+
+    if (record.isChange()) {
+      this.lastLSNs.put(record.getTransNum(), lsn);
+    } else if (record.getType() == LogRecord.Type.COMMIT || record.getType() == LogRecord.Type.ABORT) {
+      this.lastLSNs.remove(record.getTransNum());
+    }
+    return lsn;
+  }
+
+  /**
+   * Forces the log up to and including the record at lsn to disk. If another thread is forcing the
+   * log, this waits for it, and returns at once if that force covered the record.
+   *
+   * @param lsn the LSN of the last record that must be forced
+   */
+  public void force(long lsn) {
+    if (this.flushedLSN > lsn) {
+      return;
+    }
+    synchronized (this.forceLock) {
+      if (this.flushedLSN > lsn) {
+        return;
+      }
+      long end;
+      synchronized (this) {
+        end = this.nextLSN;
+      }
+      try {
+        this.fc.force(false);
+      } catch (IOException e) {
+        throw new LogException("Could not force log " + this.fName + " ; " + e.getMessage());
+      }
+      this.numForces.incrementAndGet();
+      this.flushedLSN = end;
+    }
+  }
+
+  /**
+   * Commits a transaction: appends its COMMIT record and forces the log. A transaction that has
+   * logged no changes has nothing to commit.
+   *
+   * @param transNum the transaction
+   * @return true if the transaction had changes, which are now durable
+   */
+  public boolean commit(long transNum) {
+    long lsn;
+    synchronized (this) {
+      if (!this.lastLSNs.containsKey(transNum)) {
+        return false;
+      }
+      lsn = append(LogRecord.commit(transNum));
+    }
+    force(lsn);
+    return true;
+  }
+
+  /**
+   * @param transNum the transaction
+   * @return the LSN of the transaction's last record, or -1 if it has committed, aborted, or changed
+   * nothing
+   */
+  public synchronized long getLastLSN(long transNum) {
+    Long lsn = this.lastLSNs.get(transNum);
+    return lsn == null ? -1 : lsn;
+  }
+
+  /**
+   * @param lsn the LSN of a record
+   * @return the record
+   */
+  public LogRecord read(long lsn) {
+    LogIterator iter = new LogIterator(lsn);
+    if (!iter.hasNext()) {
+      throw new LogException("No record at " + lsn + " in log " + this.fName);
+    }
+    return iter.next();
+  }
+
+  /**
+   * Marks the start of a change, which a checkpoint waits for; every change to a logged table must
+   * be made between beginChange and endChange.
+   */
+  public void beginChange() {
+    this.checkpointLock.readLock().lock();
+  }
+
+  public void endChange() {
+    this.checkpointLock.readLock().unlock();
+  }
+
+  /**
+   * Takes a checkpoint once the changes in progress are done, and holds back new ones until it is
+   * over. flushTables must write every change made so far to the table files and force them; once it
+   * has, the log is emptied if no transaction has changes outstanding, and otherwise a CHECKPOINT
+   * record is forced.
+   *
+   * @param flushTables writes back and forces every table
+   * @return true if the log was emptied, which starts LSNs over from 0
+   */
+  public boolean checkpoint(Runnable flushTables) {
+    boolean truncated;
+    this.checkpointLock.writeLock().lock();
+    try {
+      flushTables.run();
+      synchronized (this.forceLock) {
+        synchronized (this) {
+          truncated = this.lastLSNs.isEmpty();
+          if (!truncated) {
+            append(LogRecord.checkpoint());
+          } else {
+            try {
+              this.fc.truncate(0);
+            } catch (IOException e) {
+              throw new LogException("Could not truncate log " + this.fName + " ; " + e.getMessage());
+            }
+            this.nextLSN = 0;
+            this.flushedLSN = 0;
+          }
+        }
+        try {
+          this.fc.force(false);
+        } catch (IOException e) {
+          throw new LogException("Could not force log " + this.fName + " ; " + e.getMessage());
+        }
+        this.numForces.incrementAndGet();
+        synchronized (this) {
+          this.flushedLSN = this.nextLSN;
+        }
+      }
+      return truncated;
+    } finally {
+      this.checkpointLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of bytes in the log
+   */
+  public synchronized long size() {
+    return this.nextLSN;
+  }
+
+  /**
+   * @return the number of times the log has been forced to disk
+   */
+  public long getNumForces() {
+    return this.numForces.get();
+  }
+
+  /**
+   * @param fromLSN the LSN of a record, or 0 for the start of the log
+   * @return an iterator over the records of the log from fromLSN on
+   */
+  public Iterator<LogRecord> iterator(long fromLSN) {
+    return new LogIterator(fromLSN);
+  }
+
+  public void close() {
+    try {
+      this.fc.close();
+    } catch (IOException e) {
+      throw new LogException("Could not close log " + this.fName + " ; " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads records from the file, up to the end of the log or the first record that is torn or fails
+   * its checksum.
+   */
+  private class LogIterator implements Iterator<LogRecord> {
+    private long position;
+    private LogRecord nextRecord;
+
+    LogIterator(long fromLSN) {
+      this.position = fromLSN;
+      this.nextRecord = null;
+    }
+
+    public boolean hasNext() {
+      if (this.nextRecord == null) {
+        this.nextRecord = readRecord();
+      }
+      return this.nextRecord != null;
+    }
+
+    public LogRecord next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      LogRecord record = this.nextRecord;
+      this.nextRecord = null;
+      return record;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private LogRecord readRecord() {
+      long end;
+      synchronized (WriteAheadLog.this) {
+        end = nextLSN;
+      }
+      ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+      if (!read(header, this.position, end)) {
+        return null;
+      }
+      int length = header.getInt(0);
+      if (length <= 0 || this.position + RECORD_HEADER_BYTES + length > Math.min(end, size(fc))) {
+        return null;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      if (!read(payload, this.position + RECORD_HEADER_BYTES, end)) {
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(payload.array(), 0, length);
+      if ((int) crc.getValue() != header.getInt(4)) {
+        return null;
+      }
+      payload.flip();
+      LogRecord record;
+      try {
+        record = LogRecord.decode(this.position, payload);
+      } catch (RuntimeException e) {
+        return null;
+      }
+      this.position += RECORD_HEADER_BYTES + length;
+      return record;
+    }
+
+    private boolean read(ByteBuffer buf, long position, long end) {
+      if (position + buf.remaining() > end) {
+        return false;
+      }
+      try {
+        while (buf.hasRemaining()) {
+          if (fc.read(buf, position + buf.position()) < 0) {
+            return false;
+          }
+        }
+      } catch (IOException e) {
+        throw new LogException("Could not read log " + fName + " ; " + e.getMessage());
+      }
+      return true;
+    }
+  }
+
+  private static long size(FileChannel fc) {
+    try {
+      return fc.size();
+    } catch (IOException e) {
+      throw new LogException("Could not read log size ; " + e.getMessage());
+    }
+  }
+}
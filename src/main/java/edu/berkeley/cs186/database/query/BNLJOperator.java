@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.query;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -42,9 +43,11 @@ public class BNLJOperator extends JoinOperator {
   }
 
   /**
-   * An implementation of Iterator that provides an iterator interface for this operator.
+   * An implementation of Iterator that provides an iterator interface for this operator. It keeps
+   * the current block of left pages pinned until it moves to the next block, is used up, or is
+   * closed, which the transaction does when it ends.
    */
-  private class BNLJIterator implements Iterator<Record> {
+  private class BNLJIterator implements Iterator<Record>, Closeable {
     private String leftTableName;
     private String rightTableName;
     private Iterator<Page> leftIterator;
@@ -68,7 +71,7 @@ public class BNLJOperator extends JoinOperator {
       } else {
         this.leftTableName = "Temp" + BNLJOperator.this.getJoinType().toString() + "Operator" + BNLJOperator.this.getLeftColumnName() + "Left";
         BNLJOperator.this.createTempTable(BNLJOperator.this.getLeftSource().getOutputSchema(), leftTableName);
-        Iterator<Record> leftIter = BNLJOperator.this.getLeftSource().iterator();
+        Iterator<Record> leftIter = BNLJOperator.this.getLeftSource().trackedIterator();
         while (leftIter.hasNext()) {
           BNLJOperator.this.addRecord(leftTableName, leftIter.next().getValues());
         }
@@ -79,7 +82,7 @@ public class BNLJOperator extends JoinOperator {
       } else {
         this.rightTableName = "Temp" + BNLJOperator.this.getJoinType().toString() + "Operator" + BNLJOperator.this.getRightColumnName() + "Right";
         BNLJOperator.this.createTempTable(BNLJOperator.this.getRightSource().getOutputSchema(), rightTableName);
-        Iterator<Record> rightIter = BNLJOperator.this.getRightSource().iterator();
+        Iterator<Record> rightIter = BNLJOperator.this.getRightSource().trackedIterator();
         while (rightIter.hasNext()) {
           BNLJOperator.this.addRecord(rightTableName, rightIter.next().getValues());
         }
@@ -93,14 +96,10 @@ public class BNLJOperator extends JoinOperator {
       this.block = new Page[numBuffers - 2];
       this.pageInBlock = 0;
       this.numPagesInBlock = 0;
+      BNLJOperator.this.getTransaction().closeAtEnd(this);
       if (this.leftIterator.hasNext()) {
         assert(this.leftIterator.next().getPageNum() == 0);
-        for (int i = 0; i < numBuffers - 2; i++) {
-          if (this.leftIterator.hasNext()) {
-            this.block[i] = this.leftIterator.next();
-            this.numPagesInBlock++;
-          }
-        }
+        fillBlock();
         if (this.block[this.pageInBlock] != null) {
           this.leftPage = this.block[this.pageInBlock];
           this.leftHeader = BNLJOperator.this.getPageHeader(this.leftTableName, this.leftPage);
@@ -126,6 +125,15 @@ public class BNLJOperator extends JoinOperator {
      * @return true if this iterator has another record to yield, otherwise false
      */
     public boolean hasNext() {
+      try {
+        return advance();
+      } catch (RuntimeException e) {
+        close();
+        throw e;
+      }
+    }
+
+    private boolean advance() {
       if (this.nextRecord != null) {
         return true;
       }
@@ -155,13 +163,7 @@ public class BNLJOperator extends JoinOperator {
             } else {
               if (this.leftIterator.hasNext()) {
                 this.pageInBlock = 0;
-                this.numPagesInBlock = 0;
-                for (int i = 0; i < numBuffers - 2; i++) {
-                  if (this.leftIterator.hasNext()) {
-                    this.block[i] = this.leftIterator.next();
-                    this.numPagesInBlock++;
-                  }
-                }
+                fillBlock();
                 try {
                   this.rightIterator = BNLJOperator.this.getPageIterator(this.rightTableName);
                   this.rightIterator.next();
@@ -178,6 +180,7 @@ public class BNLJOperator extends JoinOperator {
                 this.leftRecord = getNextLeftRecordInBlock();
                 this.rightRecord = getNextRightRecordInPage();
               } else {
+                unpinBlock();
                 return false;
               }
             }
@@ -206,6 +209,37 @@ public class BNLJOperator extends JoinOperator {
 
 
 
+    /**
+     * Loads the next block of left pages, pinning them in the buffer pool so that they stay
+     * resident while every right page is joined against them. A page evicted since the page
+     * iterator returned it is fetched again. The previous block is unpinned.
+     */
+    private void fillBlock() {
+      unpinBlock();
+      for (int i = 0; i < numBuffers - 2; i++) {
+        if (this.leftIterator.hasNext()) {
+          this.block[i] = this.leftIterator.next().pinResident();
+          this.numPagesInBlock++;
+        }
+      }
+    }
+
+    private void unpinBlock() {
+      for (int i = 0; i < this.numPagesInBlock; i++) {
+        this.block[i].unpin();
+      }
+      this.numPagesInBlock = 0;
+    }
+
+    /**
+     * Unpins the current block. The iterator yields no more records once closed.
+     */
+    public void close() {
+      unpinBlock();
+      this.leftRecord = null;
+      this.nextRecord = null;
+    }
+
     private Record getNextLeftRecordInBlock() {
       try {
         while (this.pageInBlock < this.numPagesInBlock) {
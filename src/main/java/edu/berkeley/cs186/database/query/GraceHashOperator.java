@@ -57,8 +57,8 @@ public class GraceHashOperator extends JoinOperator {
     private List<DataType> rightRecordVals;
 
     public GraceHashIterator() throws QueryPlanException, DatabaseException {
-      this.leftIterator = getLeftSource().iterator();
-      this.rightIterator = getRightSource().iterator();
+      this.leftIterator = getLeftSource().trackedIterator();
+      this.rightIterator = getRightSource().trackedIterator();
       leftPartitions = new String[numBuffers - 1];
       rightPartitions = new String[numBuffers - 1];
       this.inMemoryHashTable = new HashMap<DataType, ArrayList<Record>>();
@@ -47,7 +47,7 @@ public class GroupByOperator extends QueryOperator {
    */
   public Iterator<Record> execute() throws QueryPlanException, DatabaseException {
     Map<String, String> hashGroupTempTables = new HashMap<String, String>();
-    Iterator<Record> inputRecords = this.getSource().execute();
+    Iterator<Record> inputRecords = this.getSource().trackedExecute();
 
     while (inputRecords.hasNext()) {
       Record record = inputRecords.next();
@@ -122,7 +122,7 @@ public class GroupByOperator extends QueryOperator {
     private Iterator<Record> rIter;
 
     public GroupByIterator() throws QueryPlanException, DatabaseException {
-      this.sourceIterator = GroupByOperator.this.getSource().iterator();
+      this.sourceIterator = GroupByOperator.this.getSource().trackedIterator();
       this.markerRecord = MarkerRecord.getMarker();
       this.hashGroupTempTables = new HashMap<String, String>();
       this.currCount = 0;
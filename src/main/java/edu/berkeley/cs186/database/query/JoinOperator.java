@@ -75,12 +75,12 @@ public abstract class JoinOperator extends QueryOperator {
    */
   public Iterator<Record> execute() throws QueryPlanException, DatabaseException {
     List<Record> newRecords = new ArrayList<Record>();
-    Iterator<Record> leftIterator = this.leftSource.execute();
+    Iterator<Record> leftIterator = this.leftSource.trackedExecute();
 
     while (leftIterator.hasNext()) {
       Record leftRecord = leftIterator.next();
 
-      Iterator<Record> rightIterator = this.rightSource.execute();
+      Iterator<Record> rightIterator = this.rightSource.trackedExecute();
       while (rightIterator.hasNext()) {
         Record rightRecord = rightIterator.next();
 
@@ -108,6 +108,13 @@ public abstract class JoinOperator extends QueryOperator {
         "getRightSource and getLeftSource and the corresponding set methods.");
   }
 
+  protected List<QueryOperator> getInputs() {
+    List<QueryOperator> inputs = new ArrayList<QueryOperator>();
+    inputs.add(this.leftSource);
+    inputs.add(this.rightSource);
+    return inputs;
+  }
+
   public QueryOperator getLeftSource() {
     return this.leftSource;
   }
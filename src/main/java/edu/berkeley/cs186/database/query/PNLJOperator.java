@@ -68,7 +68,7 @@ public class PNLJOperator extends JoinOperator {
           } else {
               this.leftTableName = "Temp" + PNLJOperator.this.getJoinType().toString() + "Operator" + PNLJOperator.this.getLeftColumnName() + "Left";
               PNLJOperator.this.createTempTable(PNLJOperator.this.getLeftSource().getOutputSchema(), leftTableName);
-              Iterator<Record> leftIter = PNLJOperator.this.getLeftSource().iterator();
+              Iterator<Record> leftIter = PNLJOperator.this.getLeftSource().trackedIterator();
               while (leftIter.hasNext()) {
                   PNLJOperator.this.addRecord(leftTableName, leftIter.next().getValues());
               }
@@ -79,7 +79,7 @@ public class PNLJOperator extends JoinOperator {
           } else {
               this.rightTableName = "Temp" + PNLJOperator.this.getJoinType().toString() + "Operator" + PNLJOperator.this.getRightColumnName() + "Right";
               PNLJOperator.this.createTempTable(PNLJOperator.this.getRightSource().getOutputSchema(), rightTableName);
-              Iterator<Record> rightIter = PNLJOperator.this.getRightSource().iterator();
+              Iterator<Record> rightIter = PNLJOperator.this.getRightSource().trackedIterator();
               while (rightIter.hasNext()) {
                   PNLJOperator.this.addRecord(rightTableName, rightIter.next().getValues());
               }
@@ -1,9 +1,11 @@
 package edu.berkeley.cs186.database.query;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.io.IOStats;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
@@ -14,6 +16,7 @@ public abstract class QueryOperator {
   private Schema operatorSchema;
   protected TableStats stats;
   protected int cost;
+  private final IOStats ioStats = new IOStats();
 
   public enum OperatorType {
     JOIN,
@@ -99,6 +102,65 @@ public abstract class QueryOperator {
 
   public abstract Iterator<Record> iterator() throws QueryPlanException, DatabaseException;
 
+  /**
+   * Like execute, but counts the I/O done while executing this operator, and while iterating over
+   * its results, in this operator's IOStats. Operators pull from their inputs through this method.
+   *
+   * @return an iterator over the results of execute
+   */
+  public Iterator<Record> trackedExecute() throws QueryPlanException, DatabaseException {
+    IOStats previous = this.ioStats.attach();
+    try {
+      return new TrackedIterator(this.execute());
+    } finally {
+      IOStats.detach(previous);
+    }
+  }
+
+  /**
+   * Like iterator, but counts the I/O done while creating the iterator and while iterating in this
+   * operator's IOStats. Operators pull from their inputs through this method.
+   *
+   * @return an iterator over the results of iterator
+   */
+  public Iterator<Record> trackedIterator() throws QueryPlanException, DatabaseException {
+    IOStats previous = this.ioStats.attach();
+    try {
+      return new TrackedIterator(this.iterator());
+    } finally {
+      IOStats.detach(previous);
+    }
+  }
+
+  /**
+   * @return the operators this operator pulls records from
+   */
+  protected List<QueryOperator> getInputs() {
+    List<QueryOperator> inputs = new ArrayList<QueryOperator>();
+    if (this.source != null) {
+      inputs.add(this.source);
+    }
+    return inputs;
+  }
+
+  /**
+   * @return the I/O counters of the work done by this operator itself, excluding its inputs
+   */
+  public IOStats getOwnIOStats() {
+    return this.ioStats;
+  }
+
+  /**
+   * @return the I/O done by this operator and, recursively, by all of its inputs
+   */
+  public IOStats.Snapshot getIOStats() {
+    IOStats.Snapshot total = this.ioStats.snapshot();
+    for (QueryOperator input : this.getInputs()) {
+      total = total.plus(input.getIOStats());
+    }
+    return total;
+  }
+
   /**
    * Utility method that checks to see if a column is found in a schema using dot notation.
    *
@@ -188,4 +250,42 @@ public abstract class QueryOperator {
   public int getIOCost() {
     return this.cost;
   }
+
+  /**
+   * Attributes the I/O done by a wrapped iterator to this operator.
+   */
+  private class TrackedIterator implements Iterator<Record> {
+    private final Iterator<Record> records;
+
+    private TrackedIterator(Iterator<Record> records) {
+      this.records = records;
+    }
+
+    public boolean hasNext() {
+      IOStats previous = QueryOperator.this.ioStats.attach();
+      try {
+        return this.records.hasNext();
+      } finally {
+        IOStats.detach(previous);
+      }
+    }
+
+    public Record next() {
+      IOStats previous = QueryOperator.this.ioStats.attach();
+      try {
+        return this.records.next();
+      } finally {
+        IOStats.detach(previous);
+      }
+    }
+
+    public void remove() {
+      IOStats previous = QueryOperator.this.ioStats.attach();
+      try {
+        this.records.remove();
+      } finally {
+        IOStats.detach(previous);
+      }
+    }
+  }
 }
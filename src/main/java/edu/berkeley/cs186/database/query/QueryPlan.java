@@ -180,7 +180,7 @@ public class QueryPlan {
       this.addSelects();
     }
 
-    return this.finalOperator.execute();
+    return this.finalOperator.trackedExecute();
   }
 
   /**
@@ -222,7 +222,7 @@ public class QueryPlan {
     this.finalOperator = this.minCostOperator(map);
     this.addGroupBy();
     this.addSelects();
-    return this.finalOperator.iterator();
+    return this.finalOperator.trackedIterator();
   }
 
   /**
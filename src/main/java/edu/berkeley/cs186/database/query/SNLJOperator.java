@@ -52,7 +52,7 @@ public class SNLJOperator extends JoinOperator {
     private Record nextRecord;
 
     public SNLJIterator() throws QueryPlanException, DatabaseException {
-      this.leftIterator = SNLJOperator.this.getLeftSource().iterator();
+      this.leftIterator = SNLJOperator.this.getLeftSource().trackedIterator();
       this.rightIterator = null;
       this.leftRecord = null;
       this.nextRecord = null;
@@ -73,7 +73,7 @@ public class SNLJOperator extends JoinOperator {
           if (this.leftIterator.hasNext()) {
             this.leftRecord = this.leftIterator.next();
             try {
-              this.rightIterator = SNLJOperator.this.getRightSource().iterator();
+              this.rightIterator = SNLJOperator.this.getRightSource().trackedIterator();
             } catch (QueryPlanException q) {
               return false;
             } catch (DatabaseException e) {
@@ -149,7 +149,7 @@ public class SelectOperator extends QueryOperator {
    * @throws DatabaseException
    */
   public Iterator<Record> execute() throws QueryPlanException, DatabaseException {
-    Iterator<Record> sourceIterator = this.getSource().execute();
+    Iterator<Record> sourceIterator = this.getSource().trackedExecute();
     List<Record> newRecords = new ArrayList<Record>();
     MarkerRecord markerRecord = MarkerRecord.getMarker();
 
@@ -337,7 +337,7 @@ public class SelectOperator extends QueryOperator {
     private List<DataType> baseValues;
 
     public SelectIterator() throws QueryPlanException, DatabaseException {
-      this.sourceIterator = SelectOperator.this.getSource().iterator();
+      this.sourceIterator = SelectOperator.this.getSource().trackedIterator();
       this.markerRecord = MarkerRecord.getMarker();
       this.nextRecord = null;
       this.prevWasMarker = true;
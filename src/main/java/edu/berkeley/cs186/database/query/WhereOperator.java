@@ -44,7 +44,7 @@ public class WhereOperator extends QueryOperator {
   }
 
   public Iterator<Record> execute() throws QueryPlanException, DatabaseException {
-    Iterator<Record> sourceIterator = this.getSource().execute();
+    Iterator<Record> sourceIterator = this.getSource().trackedExecute();
     List<Record> validRecords = new ArrayList<Record>();
     MarkerRecord markerRecord = MarkerRecord.getMarker();
 
@@ -143,7 +143,7 @@ public class WhereOperator extends QueryOperator {
     private Record nextRecord;
 
     public WhereIterator() throws QueryPlanException, DatabaseException {
-      this.sourceIterator = WhereOperator.this.getSource().iterator();
+      this.sourceIterator = WhereOperator.this.getSource().trackedIterator();
       this.markerRecord = MarkerRecord.getMarker();
       this.nextRecord = null;
     }
@@ -2,30 +2,46 @@ package edu.berkeley.cs186.database.table;
 
 import edu.berkeley.cs186.database.DatabaseException;
   
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * An implementation of Iterator that takes in a RecordID iterator provides iteration over Records
  *
+ * RecordIDs are taken from the RecordID iterator a batch at a time, and the pages that hold the
+ * batch's records are prefetched together, so that records found through an index are read from
+ * the table in block order rather than one random read at a time.
  */
 public class RecordIterator implements Iterator<Record> {
+  private static final int BATCH_SIZE = 64;
+
   private Iterator<RecordID> recordIDIter;
   private Table table; 
+  private ArrayDeque<RecordID> batch;
   
   public RecordIterator(Table table, Iterator<RecordID> recIDIter) {
     this.recordIDIter = recIDIter;
     this.table = table;
+    this.batch = new ArrayDeque<RecordID>();
   }
 
   public boolean hasNext() {
-    return recordIDIter.hasNext();
+    return !batch.isEmpty() || recordIDIter.hasNext();
   }
 
   public Record next() {
     if (hasNext()) {
+      if (batch.isEmpty()) {
+        while (batch.size() < BATCH_SIZE && recordIDIter.hasNext()) {
+          batch.add(recordIDIter.next());
+        }
+        if (batch.size() > 1) {
+          table.prefetch(batch);
+        }
+      }
       try {
-        return table.getRecord(recordIDIter.next());
+        return table.getRecord(batch.poll());
       } catch (DatabaseException e) {
         throw new NoSuchElementException();
       }
@@ -6,17 +6,23 @@ import edu.berkeley.cs186.database.datatypes.DataType;
 import edu.berkeley.cs186.database.datatypes.FloatDataType;
 import edu.berkeley.cs186.database.datatypes.IntDataType;
 import edu.berkeley.cs186.database.datatypes.StringDataType;
+import edu.berkeley.cs186.database.io.IOStats;
 import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.PageCache;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageException;
+import edu.berkeley.cs186.database.log.LogRecord;
+import edu.berkeley.cs186.database.log.WriteAheadLog;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.zip.CRC32;
 
 import java.util.NoSuchElementException;
 import java.util.Iterator;
@@ -37,10 +43,38 @@ import java.io.Closeable;
  * `numEntriesPerPage`: number of records a data page of this table can hold
  * `pageHeaderSize`: physical size (in bytes) of a page header slot bitmap
  * `numRecords`: number of records currently contained in this table
+ *
+ * Data pages are allocated in extents of up to MAX_EXTENT_PAGES pages, so that a growing table
+ * (including the temp tables of joins and group-bys) lands sequentially on disk.
+ *
+ * The header page also holds, after the schema, the table's statistics, record count and pages with
+ * free space as of the last close or checkpoint, so that opening a table does not have to read
+ * every record. They are marked stale on disk by the first change made after they were written,
+ * and are only used if they are intact and agree with the file; otherwise the table is scanned.
+ *
+ * A table opened read-only never writes to its file, and rejects every change. Nothing about it
+ * changes once it is open, so any number of threads may iterate over it and read its records at
+ * once without synchronization.
+ *
+ * A table can be given a WriteAheadLog with setLog. Changes made on behalf of a transaction are
+ * then logged before the page they change is touched, and the table's pages are written back
+ * lazily, without being forced; checkpoint forces them. restoreRecord and clearRecord apply logged
+ * changes again, for rollback and recovery.
+ *
+ * A table can also be given a VersionClock with setVersionClock. The changes made on behalf of
+ * transactions then keep the versions they replace in memory, so that getRecord and
+ * snapshotIterator can read the table as of a snapshot while other transactions change it, without
+ * locks. Versions are dropped by pruneVersions once no snapshot needs them.
  */
 public class Table implements Iterable<Record>, Closeable {
   public static final String FILENAME_PREFIX = "db";
   public static final String FILENAME_EXTENSION = ".table";
+  public static final int MAX_EXTENT_PAGES = 64;
+  // the transaction number of changes that are not logged
+  public static final long NO_TRANSACTION = -1;
+  private static final int STATS_MAGIC = 0x53544154;
+  // magic, length and checksum of the stored statistics
+  private static final int STATS_HEADER_BYTES = 12;
 
   private Schema schema;
   private TreeSet<Integer> freePages;
@@ -53,33 +87,94 @@ public class Table implements Iterable<Record>, Closeable {
   private int numEntriesPerPage;
   private int pageHeaderSize;
   private long numRecords;
+  // offset in the header page of the stored statistics, right after the schema
+  private int statsOffset;
+  // whether the stored statistics are current, so the next change has to mark them stale
+  private boolean statsStored;
+  private boolean readOnly;
+  private WriteAheadLog log;
+  private VersionStore versions;
+
+  /**
+   * Callback used by addRecord to claim a free slot before putting a record in it, for instance by
+   * locking it. A slot that cannot be claimed is skipped, and stays free.
+   */
+  public interface Slots {
+    /**
+     * @param rid a free slot
+     * @return true if the record may be put in the slot
+     */
+    boolean tryClaim(RecordID rid);
+  }
 
   public Table(String tableName) {
     this(tableName, FILENAME_PREFIX);
   }
 
   public Table(String tableName, String filenamePrefix) {
+    this(tableName, filenamePrefix, PageAllocator.getSharedPageCache());
+  }
+
+  /**
+   * This constructor is used for opening an existing table whose pages are cached in the given
+   * buffer pool.
+   *
+   * @param tableName the name of the table
+   * @param filenamePrefix the prefix where the table's files are
+   * @param pageCache the buffer pool for this table's pages
+   */
+  public Table(String tableName, String filenamePrefix, PageCache pageCache) {
+    this(tableName, filenamePrefix, pageCache, false);
+  }
+
+  /**
+   * This constructor is used for opening an existing table, possibly read-only; see
+   * PageAllocator.openReadOnly.
+   *
+   * @param tableName the name of the table
+   * @param filenamePrefix the prefix where the table's files are
+   * @param pageCache the buffer pool for this table's pages
+   * @param readOnly whether to open the table read-only
+   */
+  public Table(String tableName, String filenamePrefix, PageCache pageCache, boolean readOnly) {
     this.tableName = tableName;
+    this.readOnly = readOnly;
 
     String pathname = Paths.get(filenamePrefix, tableName + FILENAME_EXTENSION).toString();
-    this.allocator = new PageAllocator(pathname, false);
+    if (readOnly) {
+      this.allocator = PageAllocator.openReadOnly(pathname, pageCache);
+    } else {
+      this.allocator = new PageAllocator(pathname, false, true, pageCache);
+      this.allocator.setMaxExtentPages(MAX_EXTENT_PAGES);
+    }
     this.readHeaderPage();
 
-    this.stats = new TableStats(this.schema);
-
     this.freePages = new TreeSet<Integer>();
     this.setEntryCounts();
+    this.statsStored = this.readStoredStats();
+    if (!this.statsStored) {
+      this.scanStats();
+    }
+  }
+
+  /**
+   * Rebuilds the statistics, record count and free pages of the table by reading every record.
+   */
+  private void scanStats() {
+    this.stats = new TableStats(this.schema, this.allocator.getPageSize());
+    this.freePages.clear();
     Iterator<Page> pIter = this.allocator.iterator();
     pIter.next();
 
     long freshCountRecords = 0;
+    byte[] header = new byte[this.pageHeaderSize];
 
     while(pIter.hasNext()) {
       Page p = pIter.next();
 
       // add all records in this page to TableStats
       int entryNum = 0;
-      byte[] header = this.readPageHeader(p);
+      this.readPageHeader(p, header);
       while (entryNum < this.numEntriesPerPage) {
         byte b = header[entryNum/8];
         int bitOffset = 7 - (entryNum % 8);
@@ -93,7 +188,6 @@ public class Table implements Iterable<Record>, Closeable {
           byte[] bytes = p.readBytes(offset, entrySize);
 
           Record record = this.schema.decode(bytes);
-          entryNum++;
 
           this.stats.addRecord(record);
         }
@@ -123,13 +217,57 @@ public class Table implements Iterable<Record>, Closeable {
    * @param filenamePrefix the prefix where the table's files will be created
    */
   public Table(Schema schema, String tableName, String filenamePrefix) {
+    this(schema, tableName, filenamePrefix, PageAllocator.getSharedPageCache());
+  }
+
+  /**
+   * This constructor is used for creating a table in some specified directory whose pages are
+   * cached in the given buffer pool.
+   *
+   * @param schema the schema for this table
+   * @param tableName the name of the table
+   * @param filenamePrefix the prefix where the table's files will be created
+   * @param pageCache the buffer pool for this table's pages
+   */
+  public Table(Schema schema, String tableName, String filenamePrefix, PageCache pageCache) {
+    this(schema, tableName, filenamePrefix, pageCache, Page.pageSize);
+  }
+
+  /**
+   * This constructor is used for creating a table with pages of pageSize bytes. Larger pages hold
+   * more records each, which favours scans; smaller pages favour point lookups and updates.
+   *
+   * @param schema the schema for this table
+   * @param tableName the name of the table
+   * @param filenamePrefix the prefix where the table's files will be created
+   * @param pageCache the buffer pool for this table's pages
+   * @param pageSize the size of the table's pages in bytes; see Page.checkPageSize
+   */
+  public Table(Schema schema, String tableName, String filenamePrefix, PageCache pageCache, int pageSize) {
+    this(schema, tableName, filenamePrefix, pageCache, pageSize, PageAllocator.Backend.MMAP);
+  }
+
+  /**
+   * This constructor is used for creating a table whose file is accessed through the given
+   * backend. A table created with the COMPRESSED backend stays compressed when it is reopened.
+   *
+   * @param schema the schema for this table
+   * @param tableName the name of the table
+   * @param filenamePrefix the prefix where the table's files will be created
+   * @param pageCache the buffer pool for this table's pages
+   * @param pageSize the size of the table's pages in bytes; see Page.checkPageSize
+   * @param backend how the table's pages are stored and moved to and from disk
+   */
+  public Table(Schema schema, String tableName, String filenamePrefix, PageCache pageCache, int pageSize,
+               PageAllocator.Backend backend) {
     this.schema = schema;
     this.tableName = tableName;
-    this.stats = new TableStats(this.schema);
 
     this.freePages = new TreeSet<Integer>();
     String pathname = Paths.get(filenamePrefix, tableName + FILENAME_EXTENSION).toString();
-    this.allocator = new PageAllocator(pathname, true);
+    this.allocator = new PageAllocator(pathname, true, true, pageCache, backend, pageSize);
+    this.allocator.setMaxExtentPages(MAX_EXTENT_PAGES);
+    this.stats = new TableStats(this.schema, this.allocator.getPageSize());
 
     this.setEntryCounts();
 
@@ -137,9 +275,105 @@ public class Table implements Iterable<Record>, Closeable {
   }
 
   public void close() {
+    if (!this.readOnly) {
+      this.writeStoredStats();
+    }
     allocator.close();
   }
 
+  /**
+   * Writes every change made to the table to its file, followed by its statistics, so that the
+   * table can be reopened without a scan even if it is not closed.
+   */
+  public void checkpoint() {
+    if (this.readOnly) {
+      return;
+    }
+    this.allocator.flush();
+    this.writeStoredStats();
+    this.allocator.fetchPage(0).flush();
+    this.allocator.force();
+  }
+
+  /**
+   * Logs the changes made to this table on behalf of transactions to log from now on. The table's
+   * pages are no longer forced when they are written back, since the log covers them, but each is
+   * stamped with the LSN of its last change and only written back once the log has been forced up
+   * to it.
+   *
+   * @param log the log of the table's database
+   */
+  public void setLog(WriteAheadLog log) {
+    this.log = log;
+    this.allocator.setDurable(false);
+    this.allocator.setLog(log);
+  }
+
+  /**
+   * Keeps the versions that changes made on behalf of transactions replace from now on, for
+   * snapshots of clock.
+   *
+   * @param clock the version clock of the table's database
+   */
+  public void setVersionClock(VersionClock clock) {
+    this.versions = new VersionStore(clock);
+  }
+
+  /**
+   * Drops the versions that no snapshot can read any more.
+   */
+  public void pruneVersions() {
+    if (this.versions != null) {
+      this.versions.prune();
+    }
+  }
+
+  /**
+   * @return the number of versions of records kept for snapshots
+   */
+  public int getNumVersions() {
+    return this.versions == null ? 0 : this.versions.size();
+  }
+
+  /**
+   * Reads the pages of this table that were in the buffer pool when it was last closed or
+   * checkpointed back in; see PageAllocator.prewarm.
+   *
+   * @return the number of pages read
+   */
+  public int prewarm() {
+    return this.allocator.prewarm();
+  }
+
+  /**
+   * Starts reading the pages that hold the given records into the buffer pool, without waiting for
+   * them; see PageAllocator.prefetch.
+   *
+   * @param rids the records that are about to be read, in any order
+   * @return the number of pages queued
+   */
+  public int prefetch(Collection<RecordID> rids) {
+    TreeSet<Integer> pageNums = new TreeSet<Integer>();
+    for (RecordID rid : rids) {
+      pageNums.add(rid.getPageNum());
+    }
+    return this.allocator.prefetch(pageNums);
+  }
+
+  /**
+   * @return true if this table was opened read-only
+   */
+  public boolean isReadOnly() {
+    return this.readOnly;
+  }
+
+  /**
+   * @return true if this table's pages are stored compressed
+   */
+  public boolean isCompressed() {
+    return this.allocator.isCompressed();
+  }
+
   public Iterator<Record> iterator() {
       return new TableIterator();
   }
@@ -148,6 +382,30 @@ public class Table implements Iterable<Record>, Closeable {
     return this.allocator.iterator();
   }
 
+  /**
+   * @param snapshot a snapshot of the table's VersionClock
+   * @return an iterator over the records of this table as of the snapshot
+   */
+  public Iterator<Record> snapshotIterator(long snapshot) {
+    return new SnapshotIterator(snapshot);
+  }
+
+  /**
+   * @param snapshot a snapshot of the table's VersionClock
+   * @return an iterator over the pages of this table, starting with page 0, whose data pages are
+   * copies that hold the records as of the snapshot
+   */
+  public Iterator<Page> snapshotPageIterator(long snapshot) {
+    return new SnapshotPageIterator(snapshot);
+  }
+
+  /**
+   * @return an iterator over the RecordIDs of every record in this table, in page and slot order
+   */
+  public Iterator<RecordID> recordIDIterator() {
+    return new RecordIDIterator();
+  }
+
   /**
    * Add a new record to this table. The record should be added to the first
    * free slot of the first free page if one exists, otherwise a new page should
@@ -162,36 +420,72 @@ public class Table implements Iterable<Record>, Closeable {
    *         correspond to the schema of this table
    */
   public RecordID addRecord(List<DataType> values) throws DatabaseException {
+    return this.addRecord(values, NO_TRANSACTION);
+  }
+
+  /**
+   * Add a new record to this table on behalf of a transaction, logging it first if the table has a
+   * log; see addRecord(List).
+   *
+   * @param values the values of the record being added
+   * @param transNum the transaction adding the record, or NO_TRANSACTION
+   * @return the RecordID of the added record
+   * @throws DatabaseException if the values passed in to this method do not
+   *         correspond to the schema of this table
+   */
+  public RecordID addRecord(List<DataType> values, long transNum) throws DatabaseException {
+    return this.addRecord(values, transNum, null);
+  }
+
+  /**
+   * Add a new record to this table on behalf of a transaction, in the first free slot that slots
+   * lets it take; see addRecord(List, long).
+   *
+   * @param values the values of the record being added
+   * @param transNum the transaction adding the record, or NO_TRANSACTION
+   * @param slots claims each free slot before the record is put in it, or null to take the first
+   * @return the RecordID of the added record
+   * @throws DatabaseException if the values passed in to this method do not
+   *         correspond to the schema of this table
+   */
+  public RecordID addRecord(List<DataType> values, long transNum, Slots slots) throws DatabaseException {
+    this.checkWritable();
     Record record;
     try {
       record = this.schema.verify(values);
     } catch (SchemaException se) {
       throw new DatabaseException(se.getMessage());
     }
+    this.markStoredStatsStale();
 
     boolean found = false;
     Page page = null;
     int slotNum = 0;
+    Integer nextFree = this.freePages.isEmpty() ? null : this.freePages.first();
 
     while (!found) {
-      if (!this.freePages.isEmpty()) {
-        page = this.allocator.fetchPage(this.freePages.first());
+      if (nextFree != null) {
+        page = this.allocator.fetchPage(nextFree);
       } else {
         int pageNum = this.allocator.allocPage();
         page = this.allocator.fetchPage(pageNum);
         this.freePages.add(page.getPageNum());
       }
       slotNum = 0;
+      // free slots that could not be claimed; the page keeps them for later
+      boolean refused = false;
 
-      byte[] header = this.readPageHeader(page);
-
-      for (byte b : header) {
+      for (int i = 0; i < this.pageHeaderSize; i++) {
+        byte b = page.readByte(i);
         if (b != (byte) 0xFF) {
           for (int j = 7; j >= 0; j--) {
             byte mask = (byte) (1 << j);
             if ((b & mask) == (byte) 0) {
-              found = true;
-              break;
+              if (slots == null || slots.tryClaim(new RecordID(page.getPageNum(), slotNum))) {
+                found = true;
+                break;
+              }
+              refused = true;
             }
 
             slotNum++;
@@ -206,21 +500,31 @@ public class Table implements Iterable<Record>, Closeable {
       }
 
       if (!found) {
-        this.freePages.pollFirst();
+        if (!refused) {
+          this.freePages.remove(page.getPageNum());
+        }
+        nextFree = this.freePages.higher(page.getPageNum());
       }
     }
 
-    this.writeBitToHeader(page, slotNum, (byte) 1);
-
     int offset = this.pageHeaderSize + (slotNum * this.schema.getEntrySize());
     byte[] bytes = this.schema.encode(record);
+    RecordID rid = new RecordID(page.getPageNum(), slotNum);
+    if (this.isLogged(transNum)) {
+      long lsn = this.log.append(LogRecord.insert(transNum, this.tableName, rid, bytes));
+      page.setLSN(lsn);
+    }
+    if (this.isVersioned(transNum)) {
+      this.versions.push(rid, null, transNum);
+    }
 
+    this.writeBitToHeader(page, slotNum, (byte) 1);
     page.writeBytes(offset, bytes.length, bytes);
     this.numRecords++;
 
     this.stats.addRecord(record);
 
-    return new RecordID(page.getPageNum(), slotNum);
+    return rid;
   }
 
   /**
@@ -232,16 +536,39 @@ public class Table implements Iterable<Record>, Closeable {
    * @throws DatabaseException if rid does not correspond to a valid record
    */
   public Record deleteRecord(RecordID rid) throws DatabaseException {
+    return this.deleteRecord(rid, NO_TRANSACTION);
+  }
+
+  /**
+   * Deletes a record on behalf of a transaction, logging it first if the table has a log; see
+   * deleteRecord(RecordID).
+   *
+   * @param rid the RecordID of the record to delete
+   * @param transNum the transaction deleting the record, or NO_TRANSACTION
+   * @return the Record referenced by rid that was removed
+   * @throws DatabaseException if rid does not correspond to a valid record
+   */
+  public Record deleteRecord(RecordID rid, long transNum) throws DatabaseException {
+    this.checkWritable();
     if (!this.checkRecordIDValidity(rid)) {
       throw new DatabaseException("Invalid RecordID " + rid + ".");
     }
 
+    this.markStoredStatsStale();
     Page page = this.allocator.fetchPage(rid.getPageNum());
     int entrySize = this.schema.getEntrySize();
     int slotNum = rid.getSlotNumber();
 
     int offset = this.pageHeaderSize + (entrySize * slotNum);
-    Record oldRecord = this.schema.decode(page.readBytes(offset, entrySize));
+    byte[] oldBytes = page.readBytes(offset, entrySize);
+    Record oldRecord = this.schema.decode(oldBytes);
+    if (this.isLogged(transNum)) {
+      long lsn = this.log.append(LogRecord.delete(transNum, this.tableName, rid, oldBytes));
+      page.setLSN(lsn);
+    }
+    if (this.isVersioned(transNum)) {
+      this.versions.push(rid, oldBytes, transNum);
+    }
 
     this.writeBitToHeader(page, slotNum, (byte) 0);
     this.freePages.add(page.getPageNum());
@@ -273,6 +600,37 @@ public class Table implements Iterable<Record>, Closeable {
     return this.schema.decode(bytes);
   }
 
+  /**
+   * Retrieves a record as of a snapshot, without regard to changes that were not committed when the
+   * snapshot was taken.
+   *
+   * @param rid the RecordID of the record to retrieve
+   * @param snapshot a snapshot of the table's VersionClock
+   * @return the Record referenced by rid as of the snapshot
+   * @throws DatabaseException if rid did not correspond to a valid record as of the snapshot
+   */
+  public Record getRecord(RecordID rid, long snapshot) throws DatabaseException {
+    this.checkSlot(rid);
+    byte[] bytes = null;
+    try {
+      Page page = this.allocator.fetchPage(rid.getPageNum());
+      int slotNum = rid.getSlotNumber();
+      if ((page.readByte(slotNum / 8) & (1 << (7 - slotNum % 8))) != 0) {
+        int entrySize = this.schema.getEntrySize();
+        bytes = page.readBytes(this.pageHeaderSize + (entrySize * slotNum), entrySize);
+      }
+    } catch (PageException pe) {
+      // the page is not allocated
+    }
+    if (this.versions != null) {
+      bytes = this.versions.resolve(rid, bytes, snapshot);
+    }
+    if (bytes == null) {
+      throw new DatabaseException("Invalid RecordID " + rid + ".");
+    }
+    return this.schema.decode(bytes);
+  }
+
   /**
    * Update an existing record with new values. Make sure to update this.stats
    * as necessary.
@@ -284,6 +642,22 @@ public class Table implements Iterable<Record>, Closeable {
    *         if the values do not correspond to the schema of this table
    */
   public Record updateRecord(List<DataType> values, RecordID rid) throws DatabaseException {
+    return this.updateRecord(values, rid, NO_TRANSACTION);
+  }
+
+  /**
+   * Update an existing record on behalf of a transaction, logging it first if the table has a log;
+   * see updateRecord(List, RecordID).
+   *
+   * @param values the new values of the record
+   * @param rid the RecordID of the record to update
+   * @param transNum the transaction updating the record, or NO_TRANSACTION
+   * @return the old version of the record
+   * @throws DatabaseException if rid does not correspond to a valid record or
+   *         if the values do not correspond to the schema of this table
+   */
+  public Record updateRecord(List<DataType> values, RecordID rid, long transNum) throws DatabaseException {
+    this.checkWritable();
     if (!this.checkRecordIDValidity(rid)) {
       throw new DatabaseException("Invalid RecordID " + rid + ".");
     }
@@ -294,15 +668,24 @@ public class Table implements Iterable<Record>, Closeable {
     } catch (SchemaException se) {
       throw new DatabaseException(se.getMessage());
     }
+    this.markStoredStatsStale();
 
     Page page = this.allocator.fetchPage(rid.getPageNum());
     int entrySize = this.schema.getEntrySize();
 
     int offset = this.pageHeaderSize + (entrySize * rid.getSlotNumber());
 
-    Record oldRecord = this.schema.decode(page.readBytes(offset, entrySize));
+    byte[] oldBytes = page.readBytes(offset, entrySize);
+    Record oldRecord = this.schema.decode(oldBytes);
 
     byte[] bytes = this.schema.encode(record);
+    if (this.isLogged(transNum)) {
+      long lsn = this.log.append(LogRecord.update(transNum, this.tableName, rid, oldBytes, bytes));
+      page.setLSN(lsn);
+    }
+    if (this.isVersioned(transNum)) {
+      this.versions.push(rid, oldBytes, transNum);
+    }
 
     page.writeBytes(offset, bytes.length, bytes);
 
@@ -312,6 +695,77 @@ public class Table implements Iterable<Record>, Closeable {
     return oldRecord;
   }
 
+  /**
+   * Puts the encoded record bytes in the slot of rid, whether or not the slot is in use, allocating
+   * its page if the allocation was lost. Used to redo and undo logged changes; nothing is logged.
+   *
+   * @param rid the slot to fill
+   * @param bytes the record, as encoded by the table's schema
+   * @throws DatabaseException if rid is not a data page slot of this table
+   */
+  public void restoreRecord(RecordID rid, byte[] bytes) throws DatabaseException {
+    this.checkWritable();
+    this.checkSlot(rid);
+    this.markStoredStatsStale();
+    if (this.allocator.allocPageAt(rid.getPageNum())) {
+      this.freePages.add(rid.getPageNum());
+    }
+    Page page = this.allocator.fetchPage(rid.getPageNum());
+    int offset = this.pageHeaderSize + (this.schema.getEntrySize() * rid.getSlotNumber());
+    if (this.checkRecordIDValidity(rid)) {
+      this.stats.removeRecord(this.schema.decode(page.readBytes(offset, bytes.length)));
+    } else {
+      this.writeBitToHeader(page, rid.getSlotNumber(), (byte) 1);
+      this.numRecords++;
+      if (!this.spaceOnPage(page)) {
+        this.freePages.remove(page.getPageNum());
+      }
+    }
+    page.writeBytes(offset, bytes.length, bytes);
+    this.stats.addRecord(this.schema.decode(bytes));
+  }
+
+  /**
+   * Empties the slot of rid if it is in use. Used to redo and undo logged changes; nothing is
+   * logged.
+   *
+   * @param rid the slot to empty
+   * @throws DatabaseException if rid is not a data page slot of this table
+   */
+  public void clearRecord(RecordID rid) throws DatabaseException {
+    this.checkWritable();
+    this.checkSlot(rid);
+    if (this.allocator.allocPageAt(rid.getPageNum())) {
+      this.freePages.add(rid.getPageNum());
+      return;
+    }
+    if (!this.checkRecordIDValidity(rid)) {
+      return;
+    }
+    this.markStoredStatsStale();
+    Page page = this.allocator.fetchPage(rid.getPageNum());
+    int entrySize = this.schema.getEntrySize();
+    int offset = this.pageHeaderSize + (entrySize * rid.getSlotNumber());
+    this.stats.removeRecord(this.schema.decode(page.readBytes(offset, entrySize)));
+    this.writeBitToHeader(page, rid.getSlotNumber(), (byte) 0);
+    this.freePages.add(page.getPageNum());
+    this.numRecords--;
+  }
+
+  private void checkSlot(RecordID rid) throws DatabaseException {
+    if (rid.getPageNum() <= 0 || rid.getSlotNumber() < 0 || rid.getSlotNumber() >= this.numEntriesPerPage) {
+      throw new DatabaseException("Invalid RecordID " + rid + ".");
+    }
+  }
+
+  private boolean isLogged(long transNum) {
+    return this.log != null && transNum != NO_TRANSACTION;
+  }
+
+  private boolean isVersioned(long transNum) {
+    return this.versions != null && transNum != NO_TRANSACTION;
+  }
+
   public int getNumEntriesPerPage() {
     return this.numEntriesPerPage;
   }
@@ -351,7 +805,6 @@ public class Table implements Iterable<Record>, Closeable {
       throw new DatabaseException("Page " + rid.getPageNum() + " is not valid in Table " + this.tableName + ".");
     }
 
-    byte[] header = this.readPageHeader(page);
     int slotNum = rid.getSlotNumber();
 
     if (slotNum >= this.numEntriesPerPage) {
@@ -362,7 +815,7 @@ public class Table implements Iterable<Record>, Closeable {
     int bitOffset = 7 - (slotNum % 8);
     byte mask = (byte) (1 << bitOffset);
 
-    byte value = (byte) (header[byteOffset] & mask);
+    byte value = (byte) (page.readByte(byteOffset) & mask);
 
     return value != 0;
   }
@@ -377,7 +830,7 @@ public class Table implements Iterable<Record>, Closeable {
    * Should set this.pageHeaderSize and this.numEntriesPerPage.
    */
   private void setEntryCounts() {
-    this.pageHeaderSize = ((Page.pageSize * 8) / (1 + 8 * this.schema.getEntrySize())) / 8;
+    this.pageHeaderSize = ((this.allocator.getPageSize() * 8) / (1 + 8 * this.schema.getEntrySize())) / 8;
     this.numEntriesPerPage = this.pageHeaderSize * 8;
   }
 
@@ -388,10 +841,8 @@ public class Table implements Iterable<Record>, Closeable {
    * @return true if there exists free space, otherwise false
    */
   private boolean spaceOnPage(Page p) {
-    byte[] header = this.readPageHeader(p);
-
-    for (byte b : header) {
-      if (b != (byte) 0xFF) {
+    for (int i = 0; i < this.pageHeaderSize; i++) {
+      if (p.readByte(i) != (byte) 0xFF) {
         return true;
       }
     }
@@ -406,15 +857,10 @@ public class Table implements Iterable<Record>, Closeable {
    * @return number of record entries in p
    */
   private int numValidEntries(Page p) {
-    byte[] header = this.readPageHeader(p);
     int count = 0;
 
-    for (byte b : header) {
-      for (int mask = 0x01; mask != 0x100; mask <<= 1) {
-        if ((b & (byte) mask) != 0) {
-          count++;
-        }
-      }
+    for (int i = 0; i < this.pageHeaderSize; i++) {
+      count += Integer.bitCount(p.readByte(i) & 0xFF);
     }
 
     return count;
@@ -453,6 +899,7 @@ public class Table implements Iterable<Record>, Closeable {
         numBytesWritten += 4;
       }
     }
+    this.statsOffset = numBytesWritten;
   }
 
   /**
@@ -505,7 +952,109 @@ public class Table implements Iterable<Record>, Closeable {
     }
 
     this.schema = new Schema(fieldNames, fieldTypes);
+    this.statsOffset = numBytesRead;
+  }
 
+  private void checkWritable() throws DatabaseException {
+    if (this.readOnly) {
+      throw new DatabaseException("Table " + this.tableName + " is read-only");
+    }
+  }
+
+  /**
+   * Reads the statistics, record count and free pages stored in the header page, if they are
+   * current: they must be intact, and the table must have as many pages as it had when they were
+   * written.
+   *
+   * @return true if the stored statistics were read
+   */
+  private boolean readStoredStats() {
+    Page headerPage = this.allocator.fetchPage(0);
+    int pageSize = this.allocator.getPageSize();
+    if (this.statsOffset + STATS_HEADER_BYTES > pageSize
+        || headerPage.getInt(this.statsOffset) != STATS_MAGIC) {
+      return false;
+    }
+    int length = headerPage.getInt(this.statsOffset + 4);
+    if (length < 16 || length > pageSize - this.statsOffset - STATS_HEADER_BYTES) {
+      return false;
+    }
+    byte[] bytes = headerPage.readBytes(this.statsOffset + STATS_HEADER_BYTES, length);
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, length);
+    if ((int) crc.getValue() != headerPage.getInt(this.statsOffset + 8)) {
+      return false;
+    }
+
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    long storedNumRecords = buf.getLong();
+    if (buf.getInt() != this.allocator.getNumPages()) {
+      return false;
+    }
+    int numFreePages = buf.getInt();
+    if (numFreePages < 0 || numFreePages > buf.remaining() / 4) {
+      return false;
+    }
+    TreeSet<Integer> storedFreePages = new TreeSet<Integer>();
+    for (int i = 0; i < numFreePages; i++) {
+      storedFreePages.add(buf.getInt());
+    }
+    TableStats storedStats;
+    try {
+      storedStats = TableStats.read(this.schema, pageSize, buf);
+    } catch (RuntimeException e) {
+      return false;
+    }
+    this.numRecords = storedNumRecords;
+    this.freePages = storedFreePages;
+    this.stats = storedStats;
+    return true;
+  }
+
+  /**
+   * Writes the statistics, record count and free pages of the table into the header page. If they
+   * do not fit, none are stored, and the table is scanned when it is next opened.
+   */
+  private void writeStoredStats() {
+    Page headerPage = this.allocator.fetchPage(0);
+    int room = this.allocator.getPageSize() - this.statsOffset - STATS_HEADER_BYTES;
+    int length = 16 + 4 * this.freePages.size() + this.stats.getSerializedSize();
+    if (length > room) {
+      this.markStoredStatsStale();
+      return;
+    }
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    buf.putLong(this.numRecords);
+    buf.putInt(this.allocator.getNumPages());
+    buf.putInt(this.freePages.size());
+    for (int pageNum : this.freePages) {
+      buf.putInt(pageNum);
+    }
+    this.stats.write(buf);
+    CRC32 crc = new CRC32();
+    crc.update(buf.array(), 0, length);
+
+    headerPage.writeBytes(this.statsOffset + STATS_HEADER_BYTES, length, buf.array());
+    headerPage.putInt(this.statsOffset + 4, length);
+    headerPage.putInt(this.statsOffset + 8, (int) crc.getValue());
+    headerPage.putInt(this.statsOffset, STATS_MAGIC);
+    this.statsStored = true;
+  }
+
+  /**
+   * Marks the stored statistics stale before the first change made after they were written, and
+   * forces the header page so that they are never trusted after a crash.
+   */
+  private void markStoredStatsStale() {
+    if (!this.statsStored) {
+      return;
+    }
+    Page headerPage = this.allocator.fetchPage(0);
+    if (this.statsOffset + 4 <= this.allocator.getPageSize()) {
+      headerPage.putInt(this.statsOffset, 0);
+      headerPage.flush();
+    }
+    this.statsStored = false;
   }
 
   /**
@@ -516,22 +1065,21 @@ public class Table implements Iterable<Record>, Closeable {
    * @param value the value of the bit to write (should either be 0 or 1)
    */
   private void writeBitToHeader(Page page, int slotNum, byte value) {
-    byte[] header = this.readPageHeader(page);
     int byteOffset = slotNum / 8;
     int bitOffset = 7 - (slotNum % 8);
+    byte b = page.readByte(byteOffset);
 
     if (value == 0) {
       byte mask = (byte) ~((1 << bitOffset));
 
-      header[byteOffset] = (byte) (header[byteOffset] & mask);
-      page.writeBytes(0, this.pageHeaderSize, header);
+      b = (byte) (b & mask);
     } else {
       byte mask = (byte) (1 << bitOffset);
 
-      header[byteOffset] = (byte) (header[byteOffset] | mask);
+      b = (byte) (b | mask);
     }
 
-    page.writeBytes(0, this.pageHeaderSize, header);
+    page.writeByte(byteOffset, b);
   }
 
   /**
@@ -544,6 +1092,16 @@ public class Table implements Iterable<Record>, Closeable {
     return page.readBytes(0, this.pageHeaderSize);
   }
 
+  /**
+   * Read the slot header of a page into a buffer the caller reuses across pages.
+   *
+   * @param page the page to read from
+   * @param header a buffer of at least getPageHeaderSize() bytes to fill
+   */
+  public void readPageHeader(Page page, byte[] header) {
+    page.readBytes(0, this.pageHeaderSize, header);
+  }
+
   public int getPageHeaderSize() {
     return this.pageHeaderSize;
   }
@@ -554,6 +1112,13 @@ public class Table implements Iterable<Record>, Closeable {
 
   public int getNumPages() { return this.allocator.getNumPages(); }
 
+  /**
+   * @return the I/O counters of this table's file
+   */
+  public IOStats getIOStats() {
+    return this.allocator.getIOStats();
+  }
+
   /**
    * An implementation of Iterator that provides an iterator interface over all
    * of the records in this table.
@@ -567,11 +1132,12 @@ public class Table implements Iterable<Record>, Closeable {
 
     public TableIterator() {
       this.entryNum = 0;
+      this.currHeader = new byte[Table.this.pageHeaderSize];
       this.pageIter = Table.this.allocator.iterator();
       assert(this.pageIter.next().getPageNum() == 0);
       if (this.pageIter.hasNext()) {
         this.currPage = this.pageIter.next();
-        currHeader = Table.this.readPageHeader(this.currPage);
+        Table.this.readPageHeader(this.currPage, this.currHeader);
       }
     }
 
@@ -616,7 +1182,7 @@ public class Table implements Iterable<Record>, Closeable {
         if (this.hasNext()) {
           this.entryNum = 0;
           this.currPage = this.pageIter.next();
-          currHeader = Table.this.readPageHeader(this.currPage);
+          Table.this.readPageHeader(this.currPage, this.currHeader);
         }
       }
 
@@ -627,4 +1193,173 @@ public class Table implements Iterable<Record>, Closeable {
       throw new UnsupportedOperationException();
     }
   }
+
+  /**
+   * An iterator over the RecordIDs of the records in this table, which reads the slot header of
+   * each data page.
+   */
+  private class RecordIDIterator implements Iterator<RecordID> {
+    private Iterator<Page> pageIter;
+    private int pageNum;
+    private byte[] currHeader;
+    private int entryNum;
+
+    public RecordIDIterator() {
+      this.currHeader = new byte[Table.this.pageHeaderSize];
+      this.pageIter = Table.this.allocator.iterator();
+      this.pageIter.next();
+      this.pageNum = -1;
+      this.entryNum = Table.this.numEntriesPerPage;
+    }
+
+    public boolean hasNext() {
+      while (true) {
+        while (this.entryNum < Table.this.numEntriesPerPage) {
+          if ((this.currHeader[this.entryNum / 8] & (1 << (7 - this.entryNum % 8))) != 0) {
+            return true;
+          }
+          this.entryNum++;
+        }
+        if (!this.pageIter.hasNext()) {
+          return false;
+        }
+        Page page = this.pageIter.next();
+        Table.this.readPageHeader(page, this.currHeader);
+        this.pageNum = page.getPageNum();
+        this.entryNum = 0;
+      }
+    }
+
+    public RecordID next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return new RecordID(this.pageNum, this.entryNum++);
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * An iterator over the pages of this table as of a snapshot. Each data page is copied when it is
+   * reached, and every slot of the copy is then resolved against the slot's versions, as
+   * SnapshotIterator does, and written back into the copy along with its header bit.
+   */
+  private class SnapshotPageIterator implements Iterator<Page> {
+    private final long snapshot;
+    private Iterator<Page> pageIter;
+
+    public SnapshotPageIterator(long snapshot) {
+      this.snapshot = snapshot;
+      this.pageIter = Table.this.allocator.iterator();
+    }
+
+    public boolean hasNext() {
+      return this.pageIter.hasNext();
+    }
+
+    public Page next() {
+      Page page = this.pageIter.next();
+      if (page.getPageNum() == 0) {
+        return page;
+      }
+      Page copy = page.copy();
+      VersionStore versions = Table.this.versions;
+      if (versions == null || versions.isEmpty()) {
+        return copy;
+      }
+      int entrySize = Table.this.schema.getEntrySize();
+      byte[] header = Table.this.readPageHeader(copy);
+      for (int slotNum = 0; slotNum < Table.this.numEntriesPerPage; slotNum++) {
+        int offset = Table.this.pageHeaderSize + (entrySize * slotNum);
+        byte[] bytes = null;
+        if ((header[slotNum / 8] & (1 << (7 - slotNum % 8))) != 0) {
+          bytes = copy.readBytes(offset, entrySize);
+        }
+        byte[] resolved = versions.resolve(new RecordID(copy.getPageNum(), slotNum), bytes, this.snapshot);
+        if (resolved == bytes) {
+          continue;
+        }
+        if (resolved == null) {
+          Table.this.writeBitToHeader(copy, slotNum, (byte) 0);
+        } else {
+          copy.writeBytes(offset, entrySize, resolved);
+          Table.this.writeBitToHeader(copy, slotNum, (byte) 1);
+        }
+      }
+      return copy;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * An iterator over the records of this table as of a snapshot. Each slot of a data page is read
+   * from the page first and then resolved against the slot's versions, so that a change made after
+   * the page was read is seen through its version; slots that are empty on the page are resolved
+   * too, in case a record was deleted since the snapshot.
+   */
+  private class SnapshotIterator implements Iterator<Record> {
+    private final long snapshot;
+    private Iterator<Page> pageIter;
+    private Page currPage;
+    private byte[] currHeader;
+    private int entryNum;
+    private Record nextRecord;
+
+    public SnapshotIterator(long snapshot) {
+      this.snapshot = snapshot;
+      this.currHeader = new byte[Table.this.pageHeaderSize];
+      this.pageIter = Table.this.allocator.iterator();
+      this.pageIter.next();
+      this.currPage = null;
+      this.entryNum = Table.this.numEntriesPerPage;
+      this.nextRecord = null;
+    }
+
+    public boolean hasNext() {
+      while (this.nextRecord == null) {
+        if (this.entryNum < Table.this.numEntriesPerPage) {
+          this.nextRecord = this.readSlot(this.entryNum++);
+        } else if (this.pageIter.hasNext()) {
+          this.currPage = this.pageIter.next();
+          Table.this.readPageHeader(this.currPage, this.currHeader);
+          this.entryNum = 0;
+        } else {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public Record next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Record record = this.nextRecord;
+      this.nextRecord = null;
+      return record;
+    }
+
+    private Record readSlot(int slotNum) {
+      byte[] bytes = null;
+      if ((this.currHeader[slotNum / 8] & (1 << (7 - slotNum % 8))) != 0) {
+        int entrySize = Table.this.schema.getEntrySize();
+        bytes = this.currPage.readBytes(Table.this.pageHeaderSize + (entrySize * slotNum), entrySize);
+      }
+      VersionStore versions = Table.this.versions;
+      if (versions != null && !versions.isEmpty()) {
+        bytes = versions.resolve(new RecordID(this.currPage.getPageNum(), slotNum), bytes, this.snapshot);
+      }
+      return bytes == null ? null : Table.this.schema.decode(bytes);
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
@@ -0,0 +1,146 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders the commits and snapshots of one database, for multi-version reads of its tables.
+ *
+ * Every transaction that changes a versioned table is given a Stamp, which the versions of the
+ * records it replaces point to. The stamp is uncommitted until commit gives it the next commit
+ * timestamp, at which point every change of the transaction becomes visible at once. A snapshot is
+ * the last commit timestamp when it was taken: it sees the changes of the transactions that had
+ * committed by then, and none of the others.
+ *
+ * A transaction that is rolled back is never committed, so its changes are never visible. Its
+ * stamp is marked aborted instead, with a timestamp of its own: a snapshot taken before then may
+ * have read a page before the rollback undid it, so the versions of the transaction are kept
+ * until every such snapshot has ended.
+ *
+ * A version is kept until every snapshot that could need it has ended; see getHorizon.
+ */
+public class VersionClock {
+  // the commit timestamp of a transaction that has not committed
+  public static final long UNCOMMITTED = Long.MAX_VALUE;
+
+  private final ConcurrentHashMap<Long, Stamp> stamps;
+  // the number of open snapshots at each timestamp
+  private final TreeMap<Long, Integer> snapshots;
+  private long lastCommit;
+
+  public VersionClock() {
+    this.stamps = new ConcurrentHashMap<Long, Stamp>();
+    this.snapshots = new TreeMap<Long, Integer>();
+    this.lastCommit = 0;
+  }
+
+  /**
+   * @param transNum a transaction that is changing a table
+   * @return the transaction's stamp, which is created by its first change
+   */
+  public Stamp stampFor(long transNum) {
+    Stamp stamp = this.stamps.get(transNum);
+    if (stamp == null) {
+      stamp = new Stamp();
+      Stamp raced = this.stamps.putIfAbsent(transNum, stamp);
+      if (raced != null) {
+        stamp = raced;
+      }
+    }
+    return stamp;
+  }
+
+  /**
+   * @param transNum a transaction
+   * @return the transaction's stamp, or null if it has not changed a versioned table
+   */
+  public Stamp getStamp(long transNum) {
+    return this.stamps.get(transNum);
+  }
+
+  /**
+   * Makes every change of a transaction visible to the snapshots taken from now on.
+   *
+   * @param transNum the transaction
+   */
+  public synchronized void commit(long transNum) {
+    Stamp stamp = this.stamps.remove(transNum);
+    if (stamp != null) {
+      this.lastCommit++;
+      stamp.commitTS = this.lastCommit;
+    }
+  }
+
+  /**
+   * Marks a transaction that has been rolled back as aborted; its changes are never visible. Call
+   * once its changes have been undone.
+   *
+   * @param transNum the transaction
+   */
+  public synchronized void abort(long transNum) {
+    Stamp stamp = this.stamps.remove(transNum);
+    if (stamp != null) {
+      // snapshots taken from now on read the pages after the rollback
+      this.lastCommit++;
+      stamp.abortTS = this.lastCommit;
+    }
+  }
+
+  /**
+   * Takes a snapshot, which must be ended with endSnapshot.
+   *
+   * @return the timestamp of the snapshot
+   */
+  public synchronized long beginSnapshot() {
+    Integer count = this.snapshots.get(this.lastCommit);
+    this.snapshots.put(this.lastCommit, count == null ? 1 : count + 1);
+    return this.lastCommit;
+  }
+
+  public synchronized void endSnapshot(long snapshot) {
+    Integer count = this.snapshots.get(snapshot);
+    if (count == null) {
+      return;
+    }
+    if (count == 1) {
+      this.snapshots.remove(snapshot);
+    } else {
+      this.snapshots.put(snapshot, count - 1);
+    }
+  }
+
+  /**
+   * @return a timestamp such that every change committed at or before it is visible to every open
+   * snapshot and every snapshot taken later, so the versions it replaced are no longer needed
+   */
+  public synchronized long getHorizon() {
+    return this.snapshots.isEmpty() ? this.lastCommit : this.snapshots.firstKey();
+  }
+
+  /**
+   * The commit timestamp of a transaction, shared by every version it created.
+   */
+  public static class Stamp {
+    private volatile long commitTS = UNCOMMITTED;
+    private volatile long abortTS = UNCOMMITTED;
+
+    public long getCommitTimestamp() {
+      return this.commitTS;
+    }
+
+    /**
+     * @return the timestamp at which the transaction was rolled back, or UNCOMMITTED if it was not
+     */
+    public long getAbortTimestamp() {
+      return this.abortTS;
+    }
+
+    /**
+     * @param snapshot the timestamp of a snapshot
+     * @return true if the transaction committed by the time the snapshot was taken
+     */
+    public boolean isVisibleTo(long snapshot) {
+      return this.commitTS <= snapshot;
+    }
+  }
+}
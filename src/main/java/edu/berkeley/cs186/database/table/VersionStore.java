@@ -0,0 +1,135 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The older versions of the records of one table, kept in memory for snapshot reads.
+ *
+ * Before a transaction changes a slot, the bytes the slot holds (or null, if it is empty) are
+ * pushed onto the slot's chain of versions, along with the transaction's stamp. A chain runs from
+ * the newest change to the oldest, and a snapshot reads a slot by walking it: as long as the
+ * change that replaced a version is not visible to the snapshot, the version is what the snapshot
+ * sees. Since a version is pushed before the page is touched, a reader that reads the page first
+ * and the chain after never sees a change it should not. For the same reason, the versions of a
+ * transaction that is rolled back stay in their chains after the rollback, for the readers that
+ * read a page before it was undone; they are pruned once no such reader is left.
+ *
+ * Changes are pushed and pruned under the store's lock; snapshots read without it.
+ */
+class VersionStore {
+  private final VersionClock clock;
+  private final ConcurrentHashMap<RecordID, Version> chains;
+
+  VersionStore(VersionClock clock) {
+    this.clock = clock;
+    this.chains = new ConcurrentHashMap<RecordID, Version>();
+  }
+
+  VersionClock getClock() {
+    return this.clock;
+  }
+
+  /**
+   * Records the bytes of a slot that a transaction is about to change.
+   *
+   * @param rid the slot
+   * @param before the bytes the slot holds, or null if it is empty
+   * @param transNum the transaction
+   */
+  synchronized void push(RecordID rid, byte[] before, long transNum) {
+    this.chains.put(rid, new Version(before, this.clock.stampFor(transNum), this.chains.get(rid)));
+  }
+
+  /**
+   * @param rid a slot
+   * @param current the bytes the slot holds, or null if it is empty; these must be read before
+   *                calling this
+   * @param snapshot the timestamp of a snapshot
+   * @return the bytes the slot held as of the snapshot, or null if it was empty
+   */
+  byte[] resolve(RecordID rid, byte[] current, long snapshot) {
+    byte[] bytes = current;
+    for (Version v = this.chains.get(rid); v != null; v = v.older) {
+      if (v.writer.isVisibleTo(snapshot)) {
+        break;
+      }
+      bytes = v.before;
+    }
+    return bytes;
+  }
+
+  boolean isEmpty() {
+    return this.chains.isEmpty();
+  }
+
+  /**
+   * @return the number of versions kept
+   */
+  synchronized int size() {
+    int size = 0;
+    for (Version head : this.chains.values()) {
+      for (Version v = head; v != null; v = v.older) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Drops the versions that no snapshot, open or to come, can read: those replaced by a change
+   * committed at or before the clock's horizon, and every version older than them. The versions of
+   * a transaction rolled back at or before the horizon are unlinked on their own; the rollback put
+   * back the bytes they hold, so a reader that skips them reads the same.
+   */
+  synchronized void prune() {
+    if (this.chains.isEmpty()) {
+      return;
+    }
+    long horizon = this.clock.getHorizon();
+    Iterator<Map.Entry<RecordID, Version>> iter = this.chains.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<RecordID, Version> chain = iter.next();
+      Version newer = null;
+      for (Version v = chain.getValue(); v != null; v = v.older) {
+        if (v.writer.getCommitTimestamp() <= horizon) {
+          if (newer == null) {
+            iter.remove();
+          } else {
+            newer.older = null;
+          }
+          break;
+        }
+        if (v.writer.getAbortTimestamp() <= horizon) {
+          if (newer == null) {
+            if (v.older == null) {
+              iter.remove();
+            } else {
+              chain.setValue(v.older);
+            }
+          } else {
+            newer.older = v.older;
+          }
+        } else {
+          newer = v;
+        }
+      }
+    }
+  }
+
+  /**
+   * The bytes a slot held before a change, and the stamp of the transaction that made it.
+   */
+  private static class Version {
+    private final byte[] before;
+    private final VersionClock.Stamp writer;
+    private volatile Version older;
+
+    Version(byte[] before, VersionClock.Stamp writer, Version older) {
+      this.before = before;
+      this.writer = writer;
+      this.older = older;
+    }
+  }
+}
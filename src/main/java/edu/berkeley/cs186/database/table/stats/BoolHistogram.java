@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.table.stats;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,6 +28,22 @@ public class BoolHistogram implements Histogram<Boolean> {
     this.buckets = buckets;
   }
 
+  static BoolHistogram read(ByteBuffer buf) {
+    BoolHistogram histogram = new BoolHistogram();
+    histogram.buckets.get(0).increment(buf.getInt());
+    histogram.buckets.get(1).increment(buf.getInt());
+    return histogram;
+  }
+
+  void write(ByteBuffer buf) {
+    buf.putInt(this.buckets.get(0).getCount());
+    buf.putInt(this.buckets.get(1).getCount());
+  }
+
+  int serializedSize() {
+    return 8;
+  }
+
   public BoolHistogram copyWithReduction(float reductionFactor) {
     List<Bucket<Boolean>> copyBuckets = new ArrayList<Bucket<Boolean>>();
 
@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.table.stats;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -19,6 +20,18 @@ public class FloatHistogram implements Histogram<Float> {
     this.histogram = copyHistogram;
   }
 
+  static FloatHistogram read(ByteBuffer buf) {
+    return new FloatHistogram(IntHistogram.read(buf));
+  }
+
+  void write(ByteBuffer buf) {
+    this.histogram.write(buf);
+  }
+
+  int serializedSize() {
+    return this.histogram.serializedSize();
+  }
+
   public FloatHistogram copyWithReduction(float reductionFactor) {
     IntHistogram copyHistogram = this.histogram.copyWithReduction(reductionFactor);
     return new FloatHistogram(copyHistogram);
@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.table.stats;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -21,6 +22,8 @@ public class IntHistogram implements Histogram<Integer>{
   private int rangeMin;
   private int rangeMax;
   private int numDistinct;
+  // distinct entries counted before the histogram was written out and read back
+  private int storedNumDistinct;
 
   private List<Bucket<Integer>> buckets;
   private HashSet<Integer> entrySet;
@@ -58,6 +61,53 @@ public class IntHistogram implements Histogram<Integer>{
     this.buckets = buckets;
   }
 
+  /**
+   * Reads an IntHistogram written by write. Its buckets are exact, and it keeps counting the
+   * entries added to it; its number of distinct entries is estimated from the number written out
+   * plus the distinct entries added since.
+   *
+   * @param buf the buffer to read from, positioned at the histogram
+   * @return the histogram
+   */
+  static IntHistogram read(ByteBuffer buf) {
+    IntHistogram histogram = new IntHistogram();
+    histogram.rangeMin = buf.getInt();
+    histogram.rangeMax = buf.getInt();
+    histogram.storedNumDistinct = buf.getInt();
+    int numBuckets = buf.getInt();
+    histogram.buckets = new ArrayList<Bucket<Integer>>();
+    for (int i = 0; i < numBuckets; i++) {
+      Bucket<Integer> bucket = new Bucket<Integer>(buf.getInt(), buf.getInt());
+      bucket.increment(buf.getInt());
+      histogram.buckets.add(bucket);
+    }
+    return histogram;
+  }
+
+  /**
+   * Writes this histogram to buf, in the format read by read.
+   *
+   * @param buf the buffer to write to
+   */
+  void write(ByteBuffer buf) {
+    buf.putInt(this.rangeMin);
+    buf.putInt(this.rangeMax);
+    buf.putInt(this.getNumDistinct());
+    buf.putInt(this.buckets.size());
+    for (Bucket<Integer> bucket : this.buckets) {
+      buf.putInt(bucket.getStart());
+      buf.putInt(bucket.getEnd());
+      buf.putInt(bucket.getCount());
+    }
+  }
+
+  /**
+   * @return the number of bytes write takes
+   */
+  int serializedSize() {
+    return 16 + 12 * this.buckets.size();
+  }
+
   /**
    * Creates a new IntHistogram that would result from
    * applying the given reduction factor over this.
@@ -314,6 +364,12 @@ public class IntHistogram implements Histogram<Integer>{
   public int getNumDistinct() {
     if (this.estimate) {
       return this.numDistinct;
+    } else if (this.storedNumDistinct > 0) {
+      int numEntries = 0;
+      for (Bucket<Integer> bucket : this.buckets) {
+        numEntries += bucket.getCount();
+      }
+      return Math.max(0, Math.min(this.storedNumDistinct + entrySet.size(), numEntries));
     } else {
       return entrySet.size();
     }
@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.table.stats;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -12,6 +13,8 @@ public class StringHistogram implements Histogram<String> {
 
   private boolean estimate;
   private int numDistinct;
+  // distinct entries counted before the histogram was written out and read back
+  private int storedNumDistinct;
 
   private List<Bucket<String>> buckets;
   private HashSet<String> entrySet;
@@ -34,6 +37,29 @@ public class StringHistogram implements Histogram<String> {
     this.buckets = buckets;
   }
 
+  /**
+   * Reads a StringHistogram written by write; see IntHistogram.read.
+   */
+  static StringHistogram read(ByteBuffer buf) {
+    StringHistogram histogram = new StringHistogram();
+    histogram.storedNumDistinct = buf.getInt();
+    for (Bucket<String> bucket : histogram.buckets) {
+      bucket.increment(buf.getInt());
+    }
+    return histogram;
+  }
+
+  void write(ByteBuffer buf) {
+    buf.putInt(this.getNumDistinct());
+    for (Bucket<String> bucket : this.buckets) {
+      buf.putInt(bucket.getCount());
+    }
+  }
+
+  int serializedSize() {
+    return 4 + 4 * this.buckets.size();
+  }
+
   public StringHistogram copyWithReduction(float reductionFactor) {
     List<Bucket<String>> copyBuckets = new ArrayList<Bucket<String>>();
 
@@ -181,6 +207,12 @@ public class StringHistogram implements Histogram<String> {
   public int getNumDistinct() {
     if (this.estimate) {
       return this.numDistinct;
+    } else if (this.storedNumDistinct > 0) {
+      int numEntries = 0;
+      for (Bucket<String> bucket : this.buckets) {
+        numEntries += bucket.getCount();
+      }
+      return Math.max(0, Math.min(this.storedNumDistinct + entrySet.size(), numEntries));
     } else {
       return entrySet.size();
     }
@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.table.stats;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -15,16 +16,15 @@ import edu.berkeley.cs186.database.io.Page;
  * Note that statistics are an estimate over the data in a table.
  * An instance of TableStats contains a list of Histograms that each
  * provide statistics about individual columns of a schema.
- *
- * YOU SHOULD NOT NEED TO CHANGE ANY OF THE CODE IN THIS CLASS.
  */
 public class TableStats {
   private boolean estimate;
   private int numRecords;
   private int numPages;
+  private int pageSize;
 
   private Schema tableSchema;
-  private List<Histogram> histograms;
+  private List<Histogram<?>> histograms;
 
   /**
    * Creates a new TableStats with a given Schema.
@@ -32,12 +32,23 @@ public class TableStats {
    * @param tableSchema the schema instance associated with the target table
    */
   public TableStats(Schema tableSchema) {
+    this(tableSchema, Page.pageSize);
+  }
+
+  /**
+   * Creates a new TableStats with a given Schema for a table whose pages are pageSize bytes.
+   *
+   * @param tableSchema the schema instance associated with the target table
+   * @param pageSize the size of the target table's pages in bytes
+   */
+  public TableStats(Schema tableSchema, int pageSize) {
     this.estimate = false;
     this.numRecords = 0;
     this.numPages = 0;
+    this.pageSize = pageSize;
 
     this.tableSchema = tableSchema;
-    this.histograms = new ArrayList<Histogram>();
+    this.histograms = new ArrayList<Histogram<?>>();
 
     for (DataType dataType : tableSchema.getFieldTypes()) {
       switch(dataType.type()) {
@@ -67,9 +78,23 @@ public class TableStats {
    * @param histograms a list of histograms associated with the fields in tableSchema
    * @param numRecords the estimate number of records the target table contains
    */
-  public TableStats(Schema tableSchema, List<Histogram> histograms, int numRecords) {
+  public TableStats(Schema tableSchema, List<Histogram<?>> histograms, int numRecords) {
+    this(tableSchema, histograms, numRecords, Page.pageSize);
+  }
+
+  /**
+   * Creates a new TableStats with a schema, a list of histograms,
+   * and an estimate number of records, for pages of pageSize bytes.
+   *
+   * @param tableSchema the schema instance associated with the target table
+   * @param histograms a list of histograms associated with the fields in tableSchema
+   * @param numRecords the estimate number of records the target table contains
+   * @param pageSize the size of the target table's pages in bytes
+   */
+  public TableStats(Schema tableSchema, List<Histogram<?>> histograms, int numRecords, int pageSize) {
     this.estimate = true;
     this.numRecords = numRecords;
+    this.pageSize = pageSize;
 
     this.tableSchema = tableSchema;
     this.histograms = histograms;
@@ -77,6 +102,83 @@ public class TableStats {
     this.numPages = this.calculateNumPages();
   }
 
+  /**
+   * Reads statistics written by write.
+   *
+   * @param tableSchema the schema of the target table
+   * @param pageSize the size of the target table's pages in bytes
+   * @param buf the buffer to read from, positioned at the statistics
+   * @return the statistics
+   */
+  public static TableStats read(Schema tableSchema, int pageSize, ByteBuffer buf) {
+    TableStats stats = new TableStats(tableSchema, pageSize);
+    stats.numRecords = buf.getInt();
+    stats.numPages = stats.calculateNumPages();
+    List<DataType> fieldTypes = tableSchema.getFieldTypes();
+    for (int i = 0; i < fieldTypes.size(); i++) {
+      switch(fieldTypes.get(i).type()) {
+        case INT:
+          stats.histograms.set(i, IntHistogram.read(buf));
+          break;
+        case FLOAT:
+          stats.histograms.set(i, FloatHistogram.read(buf));
+          break;
+        case BOOL:
+          stats.histograms.set(i, BoolHistogram.read(buf));
+          break;
+        case STRING:
+          stats.histograms.set(i, StringHistogram.read(buf));
+          break;
+        default:
+          break;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Writes the record count and histograms of these statistics to buf, so that a table can keep
+   * its statistics across being closed and reopened. Estimated statistics are never written.
+   *
+   * @param buf the buffer to write to; it must have getSerializedSize() bytes remaining
+   */
+  public void write(ByteBuffer buf) {
+    if (this.estimate) {
+      throw new IllegalStateException("estimated statistics can't be written");
+    }
+    buf.putInt(this.numRecords);
+    for (Histogram<?> histogram : this.histograms) {
+      if (histogram instanceof IntHistogram) {
+        ((IntHistogram) histogram).write(buf);
+      } else if (histogram instanceof FloatHistogram) {
+        ((FloatHistogram) histogram).write(buf);
+      } else if (histogram instanceof BoolHistogram) {
+        ((BoolHistogram) histogram).write(buf);
+      } else if (histogram instanceof StringHistogram) {
+        ((StringHistogram) histogram).write(buf);
+      }
+    }
+  }
+
+  /**
+   * @return the number of bytes write takes
+   */
+  public int getSerializedSize() {
+    int size = 4;
+    for (Histogram<?> histogram : this.histograms) {
+      if (histogram instanceof IntHistogram) {
+        size += ((IntHistogram) histogram).serializedSize();
+      } else if (histogram instanceof FloatHistogram) {
+        size += ((FloatHistogram) histogram).serializedSize();
+      } else if (histogram instanceof BoolHistogram) {
+        size += ((BoolHistogram) histogram).serializedSize();
+      } else if (histogram instanceof StringHistogram) {
+        size += ((StringHistogram) histogram).serializedSize();
+      }
+    }
+    return size;
+  }
+
   /**
    * Calculates the estimate number of pages the target table
    * contains - assumes that the table is densely packed.
@@ -84,7 +186,7 @@ public class TableStats {
    * @return the estimate number of pages
    */
   private int calculateNumPages() {
-    int pageHeaderSize = ((Page.pageSize * 8) / (1 + 8 * this.tableSchema.getEntrySize())) / 8;
+    int pageHeaderSize = ((this.pageSize * 8) / (1 + 8 * this.tableSchema.getEntrySize())) / 8;
     int numEntriesPerPage = pageHeaderSize * 8;
     int numPages = (this.numRecords + numEntriesPerPage - 1) / numEntriesPerPage;
 
@@ -104,16 +206,16 @@ public class TableStats {
     for (DataType value : record.getValues()) {
       switch(value.type()) {
         case INT:
-          this.histograms.get(count).addValue(value.getInt());
+          ((IntHistogram) this.histograms.get(count)).addValue(value.getInt());
           break;
         case STRING:
-          this.histograms.get(count).addValue(value.getString());
+          ((StringHistogram) this.histograms.get(count)).addValue(value.getString());
           break;
         case BOOL:
-          this.histograms.get(count).addValue(value.getBool());
+          ((BoolHistogram) this.histograms.get(count)).addValue(value.getBool());
           break;
         case FLOAT:
-          this.histograms.get(count).addValue(value.getFloat());
+          ((FloatHistogram) this.histograms.get(count)).addValue(value.getFloat());
           break;
         default:
           break;
@@ -136,16 +238,16 @@ public class TableStats {
     for (DataType value : record.getValues()) {
       switch(value.type()) {
         case INT:
-          this.histograms.get(count).removeValue(value.getInt());
+          ((IntHistogram) this.histograms.get(count)).removeValue(value.getInt());
           break;
         case STRING:
-          this.histograms.get(count).removeValue(value.getString());
+          ((StringHistogram) this.histograms.get(count)).removeValue(value.getString());
           break;
         case BOOL:
-          this.histograms.get(count).removeValue(value.getBool());
+          ((BoolHistogram) this.histograms.get(count)).removeValue(value.getBool());
           break;
         case FLOAT:
-          this.histograms.get(count).removeValue(value.getFloat());
+          ((FloatHistogram) this.histograms.get(count)).removeValue(value.getFloat());
           break;
         default:
           break;
@@ -197,22 +299,22 @@ public class TableStats {
   public TableStats copyWithPredicate(int index,
                                       QueryPlan.PredicateOperator predicate,
                                       DataType value) {
-    List<Histogram> copyHistograms = new ArrayList<Histogram>();
+    List<Histogram<?>> copyHistograms = new ArrayList<Histogram<?>>();
 
-    Histogram predHistogram = this.histograms.get(index);
+    Histogram<?> predHistogram = this.histograms.get(index);
     float reductionFactor = predHistogram.computeReductionFactor(predicate, value);
 
     for (int i = 0; i < this.histograms.size(); i++) {
       if (i == index) {
         copyHistograms.add(predHistogram.copyWithPredicate(predicate, value));
       } else {
-        Histogram histogram = this.histograms.get(i);
+        Histogram<?> histogram = this.histograms.get(i);
         copyHistograms.add(histogram.copyWithReduction(reductionFactor));
       }
     }
 
     int numRecords = (int) (this.numRecords * reductionFactor);
-    return new TableStats(this.tableSchema, copyHistograms, numRecords);
+    return new TableStats(this.tableSchema, copyHistograms, numRecords, this.pageSize);
   }
 
   /**
@@ -229,7 +331,7 @@ public class TableStats {
                                  int rightIndex) {
     // Assume `this` is the `TableStats` instance for the left relation.
     Schema rightSchema = rightStats.getSchema();
-    List<Histogram> rightHistograms = rightStats.getHistograms();
+    List<Histogram<?>> rightHistograms = rightStats.getHistograms();
 
     List<String> rightFieldNames = rightSchema.getFieldNames();
     List<DataType> rightDataTypes = rightSchema.getFieldTypes();
@@ -261,7 +363,7 @@ public class TableStats {
     int rightNumDistinct = rightStats.getNumDistinct(rightIndex);
     float reductionFactor = 1.0f / Math.max(leftNumDistinct, rightNumDistinct);
 
-    List<Histogram> copyHistograms = new ArrayList<Histogram>();
+    List<Histogram<?>> copyHistograms = new ArrayList<Histogram<?>>();
 
     int leftNumRecords = this.numRecords;
     int rightNumRecords = rightStats.getNumRecords();
@@ -270,10 +372,10 @@ public class TableStats {
     float rightReductionFactor = ((float) inputSize / rightNumRecords) * reductionFactor;
 
     float joinReductionFactor = leftReductionFactor;
-    Histogram joinHistogram = this.histograms.get(leftIndex);
+    Histogram<?> joinHistogram = this.histograms.get(leftIndex);
 
     for (int i = 0; i < this.histograms.size(); i++) {
-      Histogram leftHistogram = this.histograms.get(i);
+      Histogram<?> leftHistogram = this.histograms.get(i);
       if (i == leftIndex) {
         copyHistograms.add(joinHistogram.copyWithReduction(joinReductionFactor));
       } else {
@@ -282,7 +384,7 @@ public class TableStats {
     }
 
     for (int i = 0; i < rightHistograms.size(); i++) {
-      Histogram rightHistogram = rightHistograms.get(i);
+      Histogram<?> rightHistogram = rightHistograms.get(i);
       if (i == rightIndex) {
         copyHistograms.add(joinHistogram.copyWithReduction(joinReductionFactor));
       } else {
@@ -291,7 +393,7 @@ public class TableStats {
     }
 
     int outputSize = (int) (inputSize * reductionFactor);
-    return new TableStats(copySchema, copyHistograms, outputSize);
+    return new TableStats(copySchema, copyHistograms, outputSize, this.pageSize);
   }
 
   /**
@@ -300,7 +402,7 @@ public class TableStats {
    * @param index the index of column in question
    * @return the histogram corresponding to index
    */
-  public Histogram getHistogram(int index) {
+  public Histogram<?> getHistogram(int index) {
     return this.histograms.get(index);
   }
 
@@ -309,7 +411,7 @@ public class TableStats {
    *
    * @return list of histograms
    */
-  public List<Histogram> getHistograms() {
+  public List<Histogram<?>> getHistograms() {
     return this.histograms;
   }
 
@@ -27,7 +27,6 @@ import edu.berkeley.cs186.database.table.TestSchema;
     TestIntDataType.class,
     TestStringDataType.class,
     TestBPlusTree.class,
-    TestLRUCache.class,
     TestPage.class,
     TestPageAllocator.class,
     GroupByOperatorTest.class,
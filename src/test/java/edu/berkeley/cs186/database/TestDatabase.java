@@ -1,9 +1,19 @@
 package edu.berkeley.cs186.database;
 
 import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.concurrency.DeadlockException;
+import edu.berkeley.cs186.database.concurrency.LockManager;
 import edu.berkeley.cs186.database.TestUtils;
 import edu.berkeley.cs186.database.StudentTest;
+import edu.berkeley.cs186.database.datatypes.IntDataType;
+import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.table.*;
+import edu.berkeley.cs186.database.io.EvictionPolicy;
+import edu.berkeley.cs186.database.io.IOStats;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.log.LogRecord;
+import edu.berkeley.cs186.database.log.WriteAheadLog;
 
 import org.junit.After;
 import org.junit.Before;
@@ -18,9 +28,17 @@ import org.junit.experimental.categories.Category;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestDatabase {
   public static final String TestDir = "testDatabase";
@@ -89,6 +107,43 @@ public class TestDatabase {
     t1.end();
   }
   
+  @Test
+  public void testTempTableSpillsUnderPressure() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    File tempDir = new File(this.filename + "temp/");
+    long budget = PageAllocator.getTempMemoryBytes();
+
+    Database.Transaction t1 = db.beginTransaction();
+    t1.createTempTable(s, "temp1");
+    for (int i = 0; i < 1000; i++) {
+      t1.addRecord("temp1", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    // a small temporary table never reaches the file system
+    assertFalse(tempDir.exists());
+    t1.end();
+    assertFalse(tempDir.exists());
+
+    PageAllocator.setTempMemoryBytes(PageAllocator.getTempMemoryUsed() + 8L * Page.pageSize);
+    try {
+      Database.Transaction t2 = db.beginTransaction();
+      t2.createTempTable(s, "temp2");
+      for (int i = 0; i < 5000; i++) {
+        t2.addRecord("temp2", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+      }
+      File spilled = new File(tempDir, "temp2" + Table.FILENAME_EXTENSION);
+      assertTrue(spilled.exists());
+      Iterator<Record> records = t2.getRecordIterator("temp2");
+      for (int i = 0; i < 5000; i++) {
+        assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), records.next());
+      }
+      assertFalse(records.hasNext());
+      t2.end();
+      assertFalse(spilled.exists());
+    } finally {
+      PageAllocator.setTempMemoryBytes(budget);
+    }
+  }
+
   @Test(expected = DatabaseException.class)  
   public void testTransactionTempTable2() throws DatabaseException {
     Schema s = TestUtils.createSchemaWithAllTypes();
@@ -233,4 +288,777 @@ public class TestDatabase {
     }
     t1.end();
   }
+
+  @Test
+  public void testLazyTableOpen() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    List<String> indexNames = new ArrayList<String>();
+    indexNames.add("int");
+    List<String> tableNames = new ArrayList<String>();
+    for (int t = 0; t < 6; t++) {
+      String tableName = "testTable" + t;
+      tableNames.add(tableName);
+      db.createTableWithIndices(s, tableName, indexNames);
+      Database.Transaction t1 = db.beginTransaction();
+      for (int i = 0; i < 100; i++) {
+        t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(t * 1000 + i).getValues());
+      }
+      t1.end();
+    }
+    db.close();
+    // files with a hot list are opened in the background to be prewarmed
+    for (File f : new File(this.filename).listFiles()) {
+      if (f.getName().endsWith(PageAllocator.HOT_LIST_EXTENSION)) {
+        assertTrue(f.delete());
+      }
+    }
+
+    // reopening only finds the tables; each one is opened when it is first used
+    db = new Database(this.filename);
+    for (String tableName : tableNames) {
+      assertFalse(db.isTableOpen(tableName));
+    }
+    assertEquals(0, db.getIOStats("testTable0").getNumFetches());
+    Database.Transaction t1 = db.beginTransaction();
+    assertEquals(100, t1.getNumRecords("testTable0"));
+    t1.end();
+    assertTrue(db.isTableOpen("testTable0"));
+    assertFalse(db.isTableOpen("testTable1"));
+
+    db.openTables(tableNames.subList(1, 4), 3);
+    for (int t = 0; t < 6; t++) {
+      assertEquals(t < 4, db.isTableOpen("testTable" + t));
+    }
+
+    t1 = db.beginTransaction();
+    for (int t = 0; t < 6; t++) {
+      Iterator<Record> recIter = t1.sortedScan("testTable" + t, "int");
+      for (int i = 0; i < 100; i++) {
+        assertEquals(TestUtils.createRecordWithAllTypesWithValue(t * 1000 + i), recIter.next());
+      }
+      assertFalse(recIter.hasNext());
+    }
+    t1.end();
+
+    try {
+      db.openTables(Collections.singletonList("noSuchTable"), 2);
+      fail("opening a table that does not exist should fail");
+    } catch (DatabaseException e) {
+      // expected
+    }
+  }
+
+
+  @Test
+  public void testHotTablesArePrewarmedAtOpen() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    List<String> indexNames = new ArrayList<String>();
+    indexNames.add("int");
+    db.createTableWithIndices(s, "hotTable", indexNames);
+    db.createTable(s, "coldTable");
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 500; i++) {
+      t1.addRecord("hotTable", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+      t1.addRecord("coldTable", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    t1.end();
+    db.close();
+    assertTrue(new File(this.filename, "coldTable" + Table.FILENAME_EXTENSION + PageAllocator.HOT_LIST_EXTENSION).delete());
+
+    // the hot table and its index are opened and read back in without being asked for
+    db = new Database(this.filename);
+    db.awaitPrewarm();
+    assertTrue(db.isTableOpen("hotTable"));
+    assertFalse(db.isTableOpen("coldTable"));
+    IOStats.Snapshot warm = db.getIOStats("hotTable");
+    assertTrue(warm.getNumMisses() > 0);
+
+    t1 = db.beginTransaction();
+    Iterator<Record> recIter = t1.getRecordIterator("hotTable");
+    for (int i = 0; i < 500; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), recIter.next());
+    }
+    assertFalse(recIter.hasNext());
+    t1.end();
+    assertEquals(warm.getNumMisses(), db.getIOStats("hotTable").getNumMisses());
+  }
+  @Test
+  public void testReadOnlyDatabase() throws Exception {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    final String tableName = "testTable1";
+    List<String> indexNames = new ArrayList<String>();
+    indexNames.add("int");
+    db.createTableWithIndices(s, tableName, indexNames);
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 1000; i++) {
+      t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    t1.end();
+    db.close();
+    File tableFile = new File(this.filename, tableName + Table.FILENAME_EXTENSION);
+    long length = tableFile.length();
+    long modified = tableFile.lastModified();
+
+    final Database readOnly = Database.openReadOnly(this.filename, 5);
+    assertTrue(readOnly.isReadOnly());
+    // transactions that never end hold no locks that would keep each other out
+    final Database.Transaction holder = readOnly.beginTransaction();
+    assertEquals(1000, holder.getNumRecords(tableName));
+
+    final List<Integer> counts = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> scanners = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      scanners.add(new Thread(new Runnable() {
+        public void run() {
+          try {
+            Database.Transaction t = readOnly.beginTransaction();
+            int count = 0;
+            Iterator<Record> recIter = t.getRecordIterator(tableName);
+            while (recIter.hasNext()) {
+              assertEquals(TestUtils.createRecordWithAllTypesWithValue(count), recIter.next());
+              count++;
+            }
+            t.end();
+            counts.add(count);
+          } catch (DatabaseException e) {
+            counts.add(-1);
+          }
+        }
+      }));
+    }
+    for (Thread t : scanners) {
+      t.start();
+    }
+    for (Thread t : scanners) {
+      t.join();
+    }
+    assertEquals(Collections.nCopies(4, 1000), counts);
+
+    Iterator<Record> sorted = holder.sortedScan(tableName, "int");
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), sorted.next());
+    }
+    try {
+      holder.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(0).getValues());
+      fail("a read-only database should not be changed");
+    } catch (DatabaseException e) {
+      // expected
+    }
+    try {
+      readOnly.createTable(s, "testTable2");
+      fail("a read-only database should not be changed");
+    } catch (DatabaseException e) {
+      // expected
+    }
+    assertFalse(readOnly.deleteTable(tableName));
+    holder.end();
+    readOnly.close();
+
+    assertEquals(length, tableFile.length());
+    assertEquals(modified, tableFile.lastModified());
+    db = new Database(this.filename);
+  }
+
+  @Test
+  public void testEvictionPolicyPerDatabase() throws DatabaseException {
+    db.close();
+    db = new Database(this.filename, 5, EvictionPolicy.Type.TWO_Q);
+    assertEquals(EvictionPolicy.Type.TWO_Q, db.getBufferPool().getPolicyType());
+    assertNotSame(PageAllocator.getSharedPageCache(), db.getBufferPool());
+
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 500; i++) {
+      t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    Iterator<Record> recIter = t1.getRecordIterator(tableName);
+    for (int i = 0; i < 500; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), recIter.next());
+    }
+    assertFalse(recIter.hasNext());
+    t1.end();
+
+    assertTrue(db.getBufferPool().getNumHits() > 0);
+    assertTrue(db.getBufferPool().getHitRatio() > 0.5);
+  }
+
+  @Test
+  public void testIOStatsPerTable() throws Exception {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    List<String> indexNames = new ArrayList<String>();
+    indexNames.add("int");
+    db.createTableWithIndices(s, tableName, indexNames);
+    db.createTable(s, "testTable2");
+    long idleFetches = db.getIOStats("testTable2").getNumFetches();
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 500; i++) {
+      t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    Iterator<Record> recIter = t1.sortedScan(tableName, "int");
+    while (recIter.hasNext()) {
+      recIter.next();
+    }
+    t1.end();
+
+    IOStats.Snapshot table = db.getIOStats(tableName);
+    assertTrue(table.getNumFetches() > 0);
+    assertEquals(idleFetches, db.getIOStats("testTable2").getNumFetches());
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName tableBean = new ObjectName(IOStats.JMX_DOMAIN + ":type=Table,scope=" + ObjectName.quote(this.filename)
+                                          + ",name=" + ObjectName.quote(tableName));
+    ObjectName indexBean = new ObjectName(IOStats.JMX_DOMAIN + ":type=BPlusTree,scope=" + ObjectName.quote(this.filename)
+                                          + ",name=" + ObjectName.quote(tableName + ",int"));
+    long tableHits = (Long) server.getAttribute(tableBean, "NumHits");
+    long indexHits = (Long) server.getAttribute(indexBean, "NumHits");
+    assertTrue(tableHits > 0);
+    assertTrue(indexHits > 0);
+    assertTrue(table.getNumHits() >= tableHits + indexHits);
+
+    db.close();
+    assertFalse(server.isRegistered(tableBean));
+    assertFalse(server.isRegistered(indexBean));
+    db = new Database(this.filename);
+  }
+
+  @Test
+  public void testCompressedTable() throws Exception {
+    // a buffer pool without a background writer writes each page back once, so the size of the
+    // compressed file does not depend on how often a writer happened to rewrite its pages
+    db.close();
+    db = new Database(this.filename, 5, EvictionPolicy.Type.LRU);
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "plain");
+    db.createCompressedTable(s, "compressed");
+    try {
+      db.createCompressedTable(s, "plain");
+      fail("table names should be unique");
+    } catch (DatabaseException e) {
+      // expected
+    }
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 2000; i++) {
+      Record r = TestUtils.createRecordWithAllTypesWithValue(i);
+      t1.addRecord("plain", r.getValues());
+      t1.addRecord("compressed", r.getValues());
+    }
+    t1.end();
+    db.close();
+
+    long plainBytes = new File(this.filename, "plain.table").length();
+    long compressedBytes = new File(this.filename, "compressed.table").length();
+    assertTrue(plainBytes + " bytes plain, " + compressedBytes + " bytes compressed",
+               compressedBytes * 3 < plainBytes * 2);
+
+    db = new Database(this.filename);
+    Database.Transaction t2 = db.beginTransaction();
+    assertEquals(2000, t2.getNumRecords("compressed"));
+    Iterator<Record> plainIter = t2.getRecordIterator("plain");
+    Iterator<Record> compressedIter = t2.getRecordIterator("compressed");
+    while (plainIter.hasNext()) {
+      assertEquals(plainIter.next(), compressedIter.next());
+    }
+    assertFalse(compressedIter.hasNext());
+    t2.end();
+  }
+
+  @Test
+  public void testRecoveryAfterCrash() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    List<String> indexNames = new ArrayList<String>();
+    indexNames.add("int");
+    db.createTableWithIndices(s, "indexed", indexNames);
+    db.createTable(s, "plain");
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 200; i++) {
+      t1.addRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+      rids.add(t1.addRecord("plain", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    // changes that are never committed
+    Database.Transaction t2 = db.beginTransaction();
+    for (int i = 0; i < 50; i++) {
+      t2.deleteRecord("plain", rids.get(i));
+    }
+    t2.updateRecord("plain", TestUtils.createRecordWithAllTypesWithValue(1000).getValues(), rids.get(100));
+    for (int i = 200; i < 300; i++) {
+      t2.addRecord("plain", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+      t2.addRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+
+    // the database is not closed, as if the process had died
+    db = new Database(this.filename);
+    Database.Transaction t3 = db.beginTransaction();
+    assertEquals(200, t3.getNumRecords("plain"));
+    assertEquals(200, t3.getNumRecords("indexed"));
+    for (int i = 0; i < 200; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), t3.getRecord("plain", rids.get(i)));
+    }
+    Iterator<Record> recIter = t3.sortedScan("indexed", "int");
+    for (int i = 0; i < 200; i++) {
+      assertTrue(recIter.hasNext());
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), recIter.next());
+    }
+    assertFalse(recIter.hasNext());
+    t3.end();
+    assertEquals(0, new File(this.filename, "database.log").length());
+  }
+
+  @Test
+  public void testRecoveryRedoesIndexPages() throws Exception {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    List<String> indexNames = new ArrayList<String>();
+    indexNames.add("int");
+    db.createTableWithIndices(s, "indexed", indexNames);
+    db.checkpoint();
+    Path indexFile = new File(this.filename, "indexed,int.index").toPath();
+    byte[] checkpointed = Files.readAllBytes(indexFile);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 500; i++) {
+      rids.add(t1.addRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+    Database.Transaction t2 = db.beginTransaction();
+    for (int i = 0; i < 100; i++) {
+      t2.deleteRecord("indexed", rids.get(i));
+    }
+    for (int i = 500; i < 600; i++) {
+      t2.addRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+
+    // the process dies before any page of the index changed since the checkpoint is written back;
+    // the file is replaced rather than overwritten, since the old database still maps it
+    Files.delete(indexFile);
+    Files.write(indexFile, checkpointed);
+    db = new Database(this.filename);
+    Database.Transaction t3 = db.beginTransaction();
+    Iterator<Record> recIter = t3.sortedScan("indexed", "int");
+    for (int i = 0; i < 500; i++) {
+      assertTrue(recIter.hasNext());
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), recIter.next());
+    }
+    assertFalse(recIter.hasNext());
+    assertFalse(t3.contains("indexed", "int", new IntDataType(500)));
+    t3.end();
+  }
+
+  @Test
+  public void testRecoveryRebuildsIndexCutShortByCrash() throws Exception {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    List<String> indexNames = new ArrayList<String>();
+    indexNames.add("int");
+    db.createTableWithIndices(s, "indexed", indexNames);
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 200; i++) {
+      t1.addRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    t1.end();
+    Database.Transaction t2 = db.beginTransaction();
+    t2.addRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(200).getValues());
+
+    // the process dies in the middle of a change to the index, leaving its pages in no known state
+    WriteAheadLog log = new WriteAheadLog(new File(this.filename, WriteAheadLog.FILENAME).getPath());
+    log.append(LogRecord.indexBegin("indexed,int"));
+    log.close();
+    Path indexFile = new File(this.filename, "indexed,int.index").toPath();
+    Files.delete(indexFile);
+    Files.write(indexFile, new byte[0]);
+    db = new Database(this.filename);
+    Database.Transaction t3 = db.beginTransaction();
+    Iterator<Record> recIter = t3.sortedScan("indexed", "int");
+    for (int i = 0; i < 200; i++) {
+      assertTrue(recIter.hasNext());
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), recIter.next());
+    }
+    assertFalse(recIter.hasNext());
+    t3.end();
+  }
+
+  @Test
+  public void testTransactionAbort() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    List<String> indexNames = new ArrayList<String>();
+    indexNames.add("int");
+    db.createTableWithIndices(s, "indexed", indexNames);
+    db.createTable(s, "plain");
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    List<RecordID> indexedRids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      indexedRids.add(t1.addRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+      rids.add(t1.addRecord("plain", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    Database.Transaction t2 = db.beginTransaction();
+    t2.deleteRecord("plain", rids.get(0));
+    t2.updateRecord("plain", TestUtils.createRecordWithAllTypesWithValue(100).getValues(), rids.get(1));
+    t2.updateRecord("plain", TestUtils.createRecordWithAllTypesWithValue(101).getValues(), rids.get(1));
+    t2.addRecord("plain", TestUtils.createRecordWithAllTypesWithValue(102).getValues());
+    t2.addRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(102).getValues());
+    t2.deleteRecord("indexed", indexedRids.get(0));
+    t2.updateRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(100).getValues(), indexedRids.get(1));
+    t2.updateRecord("indexed", TestUtils.createRecordWithAllTypesWithValue(101).getValues(), indexedRids.get(1));
+    t2.abort();
+    assertFalse(t2.isActive());
+
+    Database.Transaction t3 = db.beginTransaction();
+    assertEquals(10, t3.getNumRecords("plain"));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), t3.getRecord("plain", rids.get(i)));
+    }
+    assertEquals(10, t3.getNumRecords("indexed"));
+    Iterator<Record> recIter = t3.sortedScan("indexed", "int");
+    for (int i = 0; i < 10; i++) {
+      assertTrue(recIter.hasNext());
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), recIter.next());
+    }
+    assertFalse(recIter.hasNext());
+    // the index entries of every change are undone along with it
+    assertFalse(t3.contains("indexed", "int", new IntDataType(100)));
+    assertFalse(t3.contains("indexed", "int", new IntDataType(101)));
+    assertFalse(t3.contains("indexed", "int", new IntDataType(102)));
+    recIter = t3.lookupKey("indexed", "int", new IntDataType(1));
+    assertTrue(recIter.hasNext());
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(1), recIter.next());
+    assertFalse(recIter.hasNext());
+    t3.end();
+  }
+
+  @Test
+  public void testInsertSkipsSlotFreedByOpenTransaction() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t0 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 5; i++) {
+      rids.add(t0.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t0.end();
+
+    // t1 frees a slot and keeps it locked; t2's insert must not take it, or t1's rollback would
+    // put the deleted record back over t2's
+    Database.Transaction t1 = db.beginTransaction();
+    t1.deleteRecord(tableName, rids.get(2));
+    Database.Transaction t2 = db.beginTransaction();
+    RecordID added = t2.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(100).getValues());
+    assertEquals(rids.get(2).getPageNum(), added.getPageNum());
+    assertFalse(rids.contains(added));
+    assertTrue(t2.locksHeld.containsKey(LockManager.recordName(tableName, added)));
+
+    t1.abort();
+    t2.end();
+
+    Database.Transaction t3 = db.beginTransaction();
+    assertEquals(6, t3.getNumRecords(tableName));
+    for (int i = 0; i < 5; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), t3.getRecord(tableName, rids.get(i)));
+    }
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(100), t3.getRecord(tableName, added));
+    t3.end();
+
+    // once t1 is over, its slot is free to take again
+    Database.Transaction t4 = db.beginTransaction();
+    t4.deleteRecord(tableName, rids.get(2));
+    t4.end();
+    Database.Transaction t5 = db.beginTransaction();
+    assertEquals(rids.get(2), t5.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(200).getValues()));
+    t5.end();
+  }
+
+  @Test
+  public void testReadOnlyTransactionReadsSnapshot() throws Exception {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 100; i++) {
+      rids.add(t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    // t2 holds an exclusive lock on the table, which would block a reader that took locks
+    Database.Transaction t2 = db.beginTransaction();
+    t2.deleteRecord(tableName, rids.get(0));
+    t2.updateRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(1000).getValues(), rids.get(1));
+
+    Database.Transaction reader = db.beginReadOnlyTransaction();
+    assertTrue(reader.isReadOnly());
+    Iterator<Record> iter = reader.getRecordIterator(tableName);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), iter.next());
+    }
+    assertFalse(iter.hasNext());
+    try {
+      reader.addRecord(tableName, TestUtils.createRecordWithAllTypes().getValues());
+      fail("a read-only transaction cannot change a table");
+    } catch (DatabaseException e) {
+      // expected
+    }
+
+    // the reader holds no lock either, so t2 and t3 can commit while it is open
+    t2.end();
+    Database.Transaction t3 = db.beginTransaction();
+    t3.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(2000).getValues());
+    t3.end();
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(0), reader.getRecord(tableName, rids.get(0)));
+
+    reader.queryAs(tableName, "A");
+    reader.queryAs(tableName, "B");
+    QueryPlan query = reader.query("A");
+    query.join("B", "A.int", "B.int");
+    Iterator<Record> joined = query.executeOptimal();
+    int count = 0;
+    while (joined.hasNext()) {
+      joined.next();
+      count++;
+    }
+    assertEquals(100, count);
+    reader.end();
+
+    Database.Transaction t4 = db.beginReadOnlyTransaction();
+    iter = t4.getRecordIterator(tableName);
+    // t3's record took the slot that t2 freed
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(2000), iter.next());
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(1000), iter.next());
+    count = 2;
+    while (iter.hasNext()) {
+      iter.next();
+      count++;
+    }
+    assertEquals(100, count);
+    t4.end();
+  }
+
+  @Test
+  public void testSnapshotPagesOfConcurrentReaders() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+    File tempDir = new File(this.filename + "temp/");
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 2000; i++) {
+      rids.add(t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+    String[] tempFiles = tempDir.list();
+
+    Database.Transaction r1 = db.beginReadOnlyTransaction();
+    Database.Transaction t2 = db.beginTransaction();
+    t2.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(2000).getValues());
+    t2.deleteRecord(tableName, rids.get(0));
+    t2.updateRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(5000).getValues(), rids.get(1));
+
+    // t2 has not committed, so the reader sees none of its changes
+    assertEquals(2000, countSlots(r1, tableName, r1.getPageIterator(tableName)));
+    Iterator<Page> pages = r1.getPageIterator(tableName);
+    pages.next();
+    Page first = pages.next();
+    int entrySize = s.getEntrySize();
+    int headerSize = r1.getPageHeaderSize(tableName);
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(0), s.decode(first.readBytes(headerSize, entrySize)));
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(1), s.decode(first.readBytes(headerSize + entrySize, entrySize)));
+
+    t2.end();
+    Database.Transaction r2 = db.beginReadOnlyTransaction();
+    assertEquals(2000, countSlots(r1, tableName, r1.getPageIterator(tableName)));
+    assertEquals(2000, countSlots(r2, tableName, r2.getPageIterator(tableName)));
+    pages = r2.getPageIterator(tableName);
+    pages.next();
+    first = pages.next();
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(5000), s.decode(first.readBytes(headerSize + entrySize, entrySize)));
+
+    // the pages are read without copying the table
+    assertArrayEquals(tempFiles, tempDir.list());
+    r1.end();
+    r2.end();
+
+    Database.Transaction t3 = db.beginTransaction();
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(5000), t3.getRecord(tableName, rids.get(1)));
+    t3.end();
+  }
+
+  private static int countSlots(Database.Transaction t, String tableName, Iterator<Page> pages)
+      throws DatabaseException {
+    int count = 0;
+    pages.next();
+    while (pages.hasNext()) {
+      byte[] header = t.readPageHeader(tableName, pages.next());
+      for (byte b : header) {
+        count += Integer.bitCount(b & 0xFF);
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testSnapshotReadsDuringRollback() throws Exception {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    final String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t0 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(t0.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t0.end();
+
+    // the reader may read the page while a change to the record is still there, and the versions
+    // of the record after the rollback has undone the change; it must still see the record as it was
+    final RecordID rid = rids.get(5);
+    final Record original = TestUtils.createRecordWithAllTypesWithValue(5);
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicInteger badReads = new AtomicInteger(0);
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (!done.get()) {
+            Database.Transaction r = db.beginReadOnlyTransaction();
+            for (int i = 0; i < 100; i++) {
+              if (!original.equals(r.getRecord(tableName, rid))) {
+                badReads.incrementAndGet();
+              }
+            }
+            r.end();
+          }
+        } catch (DatabaseException e) {
+          badReads.incrementAndGet();
+        }
+      }
+    });
+    reader.start();
+    try {
+      for (int round = 0; round < 4000; round++) {
+        Database.Transaction t = db.beginTransaction();
+        t.updateRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(1000).getValues(), rid);
+        t.abort();
+      }
+    } finally {
+      done.set(true);
+      reader.join();
+    }
+    assertEquals(0, badReads.get());
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 10; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), t1.getRecord(tableName, rids.get(i)));
+    }
+    t1.end();
+  }
+
+  @Test
+  public void testLockEscalation() throws DatabaseException, InterruptedException {
+    final String tableName = "testTable1";
+    db.createTable(TestUtils.createSchemaWithAllTypes(), tableName);
+    final Record input = TestUtils.createRecordWithAllTypes();
+    final Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < Database.LOCK_ESCALATION_THRESHOLD; i++) {
+      t1.addRecord(tableName, input.getValues());
+    }
+    assertEquals(LockManager.LockType.INTENTION_EXCLUSIVE, t1.locksHeld.get(tableName));
+
+    t1.addRecord(tableName, input.getValues());
+    assertEquals(LockManager.LockType.EXCLUSIVE, t1.locksHeld.get(tableName));
+    assertEquals(1, t1.locksHeld.size());
+
+    final Database.Transaction t2 = db.beginTransaction();
+    Thread thread2 = new Thread(new Runnable() {
+      public void run() {
+        try {
+          t2.getRecord(tableName, new RecordID(1, 0));
+        } catch (DatabaseException e) {
+          System.out.println(e.getMessage());
+        }
+      }
+    }, "Transaction 2 Thread");
+    thread2.start();
+    thread2.join(100);
+    assertTrue("Transaction 2 Thread should wait for the table lock", thread2.isAlive());
+
+    t1.end();
+    thread2.join(100);
+    assertFalse("Transaction 2 Thread should have finished", thread2.isAlive());
+    t2.end();
+  }
+
+  @Test
+  public void testDeadlockVictimIsRolledBack() throws DatabaseException, InterruptedException {
+    final String tableName = "testTable1";
+    db.createTable(TestUtils.createSchemaWithAllTypes(), tableName);
+    Database.Transaction t0 = db.beginTransaction();
+    final RecordID rid1 = t0.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(1).getValues());
+    final RecordID rid2 = t0.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(2).getValues());
+    t0.end();
+
+    final Database.Transaction t1 = db.beginTransaction();
+    final Database.Transaction t2 = db.beginTransaction();
+    t1.updateRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(10).getValues(), rid1);
+    t2.updateRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(20).getValues(), rid2);
+
+    final AtomicInteger victims = new AtomicInteger(0);
+    Thread thread1 = new Thread(new Runnable() {
+      public void run() {
+        try {
+          t1.updateRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(11).getValues(), rid2);
+          t1.end();
+        } catch (DeadlockException e) {
+          victims.incrementAndGet();
+        } catch (DatabaseException e) {
+          System.out.println(e.getMessage());
+        }
+      }
+    }, "Transaction 1 Thread");
+    Thread thread2 = new Thread(new Runnable() {
+      public void run() {
+        try {
+          t2.updateRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(21).getValues(), rid1);
+          t2.end();
+        } catch (DeadlockException e) {
+          victims.incrementAndGet();
+        } catch (DatabaseException e) {
+          System.out.println(e.getMessage());
+        }
+      }
+    }, "Transaction 2 Thread");
+    thread1.start();
+    thread2.start();
+    thread1.join(5000);
+    thread2.join(5000);
+    assertFalse("Transaction 1 Thread should have finished", thread1.isAlive());
+    assertFalse("Transaction 2 Thread should have finished", thread2.isAlive());
+
+    // the victim was rolled back by the failed lock request, and the survivor committed
+    assertEquals(1, victims.get());
+    assertFalse(t1.isActive());
+    assertFalse(t2.isActive());
+    Database.Transaction t3 = db.beginTransaction();
+    Record rec1 = t3.getRecord(tableName, rid1);
+    Record rec2 = t3.getRecord(tableName, rid2);
+    if (rec1.equals(TestUtils.createRecordWithAllTypesWithValue(10))) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(11), rec2);
+    } else {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(21), rec1);
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(20), rec2);
+    }
+    t3.end();
+  }
 }
@@ -120,42 +120,53 @@ public class TestDeadlockPrevention {
       }
     }, "Transaction 3 Thread");
 
+    // requests are served in FIFO order, so Transaction 3 waits for Transaction 2, queued ahead of it
+    // on A, as well as for Transaction 2's lock on B: 3 -> 2 -> 1, with no cycle
     AsyncDeadlockTesterThread thread4 = new AsyncDeadlockTesterThread(new Runnable() {
       public void run() {
-        lockMan.acquireLock("B", 3, LockManager.LockType.EXCLUSIVE);
+        lockMan.acquireLock("B", 2, LockManager.LockType.EXCLUSIVE);
       }
-    }, "Transaction 3 Second Thread");
+    }, "Transaction 2 Second Thread");
 
     AsyncDeadlockTesterThread thread5 = new AsyncDeadlockTesterThread(new Runnable() {
       public void run() {
-        lockMan.acquireLock("B", 2, LockManager.LockType.EXCLUSIVE);
+        lockMan.acquireLock("B", 3, LockManager.LockType.EXCLUSIVE);
       }
-    }, "Transaction 2 Second Thread");
+    }, "Transaction 3 Second Thread");
 
     try {
       thread1.start();
+      thread1.join(100);
+      thread1.test();
+      assertFalse("Transaction 1 thread 1 should have finished", thread1.isAlive());
       thread2.start();
+      thread2.join(100);
+      assertTrue("Transaction 2 thread 2 should be waiting", thread2.isAlive());
       thread3.start();
+      thread3.join(100);
+      assertTrue("Transaction 3 thread 3 should be waiting", thread3.isAlive());
       thread4.start();
+      thread4.join(100);
+      thread4.test();
+      assertFalse("Transaction 2 thread 4 should have finished", thread4.isAlive());
       thread5.start();
-      
-      assertFalse("Transaction 1 thread 1 should have finished", thread1.isAlive());
-      assertTrue("Transaction 2 thread 2 should be waiting", thread2.isAlive());
-      assertTrue("Transaction 3 thread 3 should be waiting", thread3.isAlive());
-      assertFalse("Transaction 3 thread 4 should have finished", thread4.isAlive());
-      assertTrue("Transaction 2 thread 5 should have finished", thread5.isAlive());
+      thread5.join(100);
+      assertTrue("Transaction 3 thread 5 should be waiting", thread5.isAlive());
 
       lockMan.releaseLock("A", 1);
       thread2.join(200);
+      thread2.test();
       assertFalse("Transaction 2 thread 2 should have finished", thread2.isAlive());
 
       lockMan.releaseLock("A", 2);
       thread3.join(200);
+      thread3.test();
       assertFalse("Transaction 3 thread 3 should have finished", thread3.isAlive());
 
-      lockMan.releaseLock("B", 3);
+      lockMan.releaseLock("B", 2);
       thread5.join(200);
-      assertFalse("Transaction 2 thread 5 should have finished", thread5.isAlive());
+      thread5.test();
+      assertFalse("Transaction 3 thread 5 should have finished", thread5.isAlive());
 
     } catch (DeadlockException e) {
       fail("No deadlock exists but Deadlock Exception was thrown.");
@@ -380,6 +391,9 @@ public class TestDeadlockPrevention {
       thread3.start();
       thread3.join(500);
       thread3.test();
+      // Transaction 1's release hands A to Transaction 2, whose thread has yet to run
+      thread2.join(500);
+      thread2.test();
     } catch (DeadlockException e) {
       fail("No deadlock exists but DeadlockException thrown");
     }
@@ -721,5 +735,45 @@ public class TestDeadlockPrevention {
 
   }
 
+  @Test
+  public void testDeadlockVictimOwnsFewestLocks() throws InterruptedException {
+    final LockManager lockMan = new LockManager();
+    lockMan.acquireLock("A", 1, LockManager.LockType.EXCLUSIVE);
+    lockMan.acquireLock("C", 1, LockManager.LockType.EXCLUSIVE);
+    lockMan.acquireLock("B", 2, LockManager.LockType.EXCLUSIVE);
 
+    AsyncDeadlockTesterThread thread1 = new AsyncDeadlockTesterThread(new Runnable() {
+      public void run() {
+        lockMan.acquireLock("A", 2, LockManager.LockType.EXCLUSIVE);
+      }
+    }, "Transaction 2 Thread");
+
+    AsyncDeadlockTesterThread thread2 = new AsyncDeadlockTesterThread(new Runnable() {
+      public void run() {
+        lockMan.acquireLock("B", 1, LockManager.LockType.EXCLUSIVE);
+      }
+    }, "Transaction 1 Thread");
+
+    thread1.start();
+    thread1.join(100);
+    assertTrue("Transaction 2 Thread should be blocked", thread1.isAlive());
+
+    // T1 closes the cycle, but T2 owns fewer locks and is aborted instead
+    thread2.start();
+    thread1.join(1000);
+    assertFalse("Transaction 2 Thread should have been aborted", thread1.isAlive());
+    try {
+      thread1.test();
+      fail("Transaction 2 should have been aborted to break the deadlock");
+    } catch (DeadlockException e) {
+      // expected
+    }
+
+    lockMan.releaseLock("B", 2);
+    thread2.join(1000);
+    thread2.test();
+    assertFalse("Transaction 1 Thread should have finished", thread2.isAlive());
+    assertTrue(lockMan.holdsLock("B", 1, LockManager.LockType.EXCLUSIVE));
+    assertTrue(lockMan.getWaitsForGraph().isEmpty());
+  }
 }
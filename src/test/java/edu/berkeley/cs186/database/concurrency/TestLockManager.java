@@ -16,6 +16,9 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.lang.Runnable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TestLockManager {
   private static final String TestDir = "testDatabase";
@@ -69,6 +72,7 @@ public class TestLockManager {
     final Record input = TestUtils.createRecordWithAllTypes();
     final Database.Transaction t1 = db.beginTransaction();
     final Database.Transaction t2 = db.beginTransaction();
+    final AtomicReference<DatabaseException> failure = new AtomicReference<DatabaseException>();
     
     Thread thread1 = new Thread(new Runnable() {
       public void run() {
@@ -76,7 +80,7 @@ public class TestLockManager {
         try {
           t1.addRecord(tableName1, input.getValues());
         } catch (DatabaseException e) {
-          System.out.println(e.getMessage());
+          failure.compareAndSet(null, e);
         }
       }
     }, "Transaction 1 Thread");
@@ -87,7 +91,7 @@ public class TestLockManager {
         try {
           t2.addRecord(tableName2, input.getValues());
         } catch (DatabaseException e) {
-          System.out.println(e.getMessage());
+          failure.compareAndSet(null, e);
         }
       }
     }, "Transaction 2 Thread");
@@ -99,6 +103,9 @@ public class TestLockManager {
     thread2.start();
     thread2.join(1000); //waits for thread to finish (timeout of 1 sec)
     assertFalse("Transaction 2 Thread should have finished", thread2.isAlive());
+    if (failure.get() != null) {
+      throw failure.get();
+    }
     
     t1.end();
     t2.end();
@@ -126,6 +133,7 @@ public class TestLockManager {
     final Database.Transaction t3 = db.beginTransaction();
     final Database.Transaction t4 = db.beginTransaction();
     final Database.Transaction t5 = db.beginTransaction();
+    final AtomicReference<DatabaseException> failure = new AtomicReference<DatabaseException>();
     
     Thread thread1 = new Thread(new Runnable() {
       public void run() {
@@ -133,7 +141,7 @@ public class TestLockManager {
         try {
           t1.addRecord(tableName1, input.getValues());
         } catch (DatabaseException e) {
-          System.out.println(e.getMessage());
+          failure.compareAndSet(null, e);
         }
       }
     }, "Transaction 1 Thread");
@@ -144,7 +152,7 @@ public class TestLockManager {
         try {
           t2.addRecord(tableName2, input.getValues());
         } catch (DatabaseException e) {
-          System.out.println(e.getMessage());
+          failure.compareAndSet(null, e);
         }
       }
     }, "Transaction 2 Thread");
@@ -155,7 +163,7 @@ public class TestLockManager {
         try {
           t3.addRecord(tableName3, input.getValues());
         } catch (DatabaseException e) {
-          System.out.println(e.getMessage());
+          failure.compareAndSet(null, e);
         }
       }
     }, "Transaction 3 Thread");
@@ -166,7 +174,7 @@ public class TestLockManager {
         try {
           t4.addRecord(tableName4, input.getValues());
         } catch (DatabaseException e) {
-          System.out.println(e.getMessage());
+          failure.compareAndSet(null, e);
         }
       }
     }, "Transaction 4 Thread");
@@ -177,7 +185,7 @@ public class TestLockManager {
         try {
           t5.addRecord(tableName5, input.getValues());
         } catch (DatabaseException e) {
-          System.out.println(e.getMessage());
+          failure.compareAndSet(null, e);
         }
       }
     }, "Transaction 5 Thread");
@@ -201,6 +209,9 @@ public class TestLockManager {
     thread5.start();
     thread5.join(1000); //waits for thread to finish (timeout of 1 sec)
     assertFalse("Transaction 5 Thread should have finished", thread5.isAlive());
+    if (failure.get() != null) {
+      throw failure.get();
+    }
     
     t1.end();
     t2.end();
@@ -857,6 +868,187 @@ public class TestLockManager {
     assertTrue(lockMan.holdsLock("A", 4, LockManager.LockType.SHARED));
   }
 
+  @Test
+  public void testIntentionLocksLockManager() throws InterruptedException {
+    final LockManager lockMan = new LockManager();
+    lockMan.acquireLock("A", 1, LockManager.LockType.INTENTION_EXCLUSIVE);
+    lockMan.acquireLock("A", 2, LockManager.LockType.INTENTION_EXCLUSIVE);
+    lockMan.acquireLock("A", 3, LockManager.LockType.INTENTION_SHARED);
+
+    Thread thread4 = new Thread(new Runnable() {
+      public void run() {
+        lockMan.acquireLock("A", 4, LockManager.LockType.SHARED);
+      }
+    }, "Transaction 4 Thread");
+    thread4.start();
+    thread4.join(100);
+    assertTrue("Transaction 4 Thread should wait for the IX holders", thread4.isAlive());
+
+    lockMan.releaseLock("A", 2);
+    // T1 holds IX and asks for S, so it is upgraded to SIX ahead of T4
+    lockMan.acquireLock("A", 1, LockManager.LockType.SHARED);
+    assertTrue(lockMan.holdsLock("A", 1, LockManager.LockType.SHARED_INTENTION_EXCLUSIVE));
+    assertTrue(thread4.isAlive());
+
+    lockMan.releaseLock("A", 1);
+    thread4.join(100);
+    assertFalse("Transaction 4 Thread should have finished", thread4.isAlive());
+    assertTrue(lockMan.holdsLock("A", 3, LockManager.LockType.INTENTION_SHARED));
+    assertTrue(lockMan.holdsLock("A", 4, LockManager.LockType.SHARED));
+
+    lockMan.releaseLock("A", 3);
+    lockMan.releaseLock("A", 4);
+    assertEquals(0, lockMan.getNumLocks());
+  }
+
+  @Test
+  public void testSameTableDifferentRecords() throws DatabaseException, InterruptedException {
+    final String tableName = "testTable1";
+    db.createTable(TestUtils.createSchemaWithAllTypes(), tableName);
+    final Record input = TestUtils.createRecordWithAllTypes();
+    Database.Transaction t0 = db.beginTransaction();
+    final RecordID rid1 = t0.addRecord(tableName, input.getValues());
+    final RecordID rid2 = t0.addRecord(tableName, input.getValues());
+    t0.end();
+
+    final Database.Transaction t1 = db.beginTransaction();
+    final Database.Transaction t2 = db.beginTransaction();
+    final AtomicReference<DatabaseException> failure = new AtomicReference<DatabaseException>();
+    t1.updateRecord(tableName, input.getValues(), rid1);
+
+    Thread thread2 = new Thread(new Runnable() {
+      public void run() {
+        try {
+          t2.updateRecord(tableName, input.getValues(), rid2);
+          t2.addRecord(tableName, input.getValues());
+        } catch (DatabaseException e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    }, "Transaction 2 Thread");
+    thread2.start();
+    thread2.join(100);
+    assertFalse("Transaction 2 Thread should not wait for another record", thread2.isAlive());
+
+    Thread thread3 = new Thread(new Runnable() {
+      public void run() {
+        try {
+          t2.deleteRecord(tableName, rid1);
+        } catch (DatabaseException e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    }, "Transaction 2 Second Thread");
+    thread3.start();
+    thread3.join(100);
+    assertTrue("Transaction 2 Second Thread should wait for Transaction 1's record", thread3.isAlive());
+
+    t1.end();
+    thread3.join(100);
+    assertFalse("Transaction 2 Second Thread should have finished", thread3.isAlive());
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    t2.end();
+  }
+
+  @Test
+  public void testTryAcquireLockDoesNotWait() {
+    LockManager lockMan = new LockManager();
+    lockMan.acquireLock("A", 1, LockManager.LockType.EXCLUSIVE);
+    assertFalse(lockMan.tryAcquireLock("A", 2, LockManager.LockType.SHARED));
+    assertEquals(0, lockMan.getQueueLength("A"));
+    assertFalse(lockMan.holdsLock("A", 2, LockManager.LockType.SHARED));
+    assertTrue(lockMan.tryAcquireLock("A", 1, LockManager.LockType.SHARED));
+
+    lockMan.releaseLock("A", 1);
+    assertTrue(lockMan.tryAcquireLock("A", 2, LockManager.LockType.SHARED));
+    assertTrue(lockMan.tryAcquireLock("A", 3, LockManager.LockType.SHARED));
+    assertTrue(lockMan.holdsLock("A", 2, LockManager.LockType.SHARED));
+    lockMan.releaseLock("A", 2);
+    lockMan.releaseLock("A", 3);
+
+    // a refused request leaves nothing behind to release
+    lockMan.acquireLock("B", 4, LockManager.LockType.SHARED);
+    assertFalse(lockMan.tryAcquireLock("B", 5, LockManager.LockType.EXCLUSIVE));
+    lockMan.releaseLock("B", 4);
+    assertEquals(0, lockMan.getNumLocks());
+  }
+
+  /**
+   * Many transactions contend for one lock, first in a mix of SHARED and EXCLUSIVE requests, then
+   * as a crowd of SHARED requests queued behind an EXCLUSIVE holder, as in
+   * testManySharedPromoteSimultaneousLockManager. A single release must grant the whole crowd.
+   */
+  @Test
+  public void testLockContention() throws InterruptedException {
+    final LockManager lockMan = new LockManager();
+    final int numThreads = 32;
+    final int numRounds = 200;
+    final AtomicInteger readers = new AtomicInteger(0);
+    final AtomicInteger writers = new AtomicInteger(0);
+    final AtomicInteger violations = new AtomicInteger(0);
+
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      final long transNum = i + 1;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int round = 0; round < numRounds; round++) {
+            if ((transNum + round) % 4 == 0) {
+              lockMan.acquireLock("A", transNum, LockManager.LockType.EXCLUSIVE);
+              if (writers.incrementAndGet() != 1 || readers.get() != 0) {
+                violations.incrementAndGet();
+              }
+              writers.decrementAndGet();
+            } else {
+              lockMan.acquireLock("A", transNum, LockManager.LockType.SHARED);
+              readers.incrementAndGet();
+              if (writers.get() != 0) {
+                violations.incrementAndGet();
+              }
+              readers.decrementAndGet();
+            }
+            lockMan.releaseLock("A", transNum);
+          }
+        }
+      }, "Transaction " + transNum + " Thread");
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(0, violations.get());
+    assertEquals(0, lockMan.getNumLocks());
+
+    final int numWaiters = 256;
+    lockMan.acquireLock("B", 0, LockManager.LockType.EXCLUSIVE);
+    final CountDownLatch queued = new CountDownLatch(numWaiters);
+    final CountDownLatch done = new CountDownLatch(numWaiters);
+    for (int i = 0; i < numWaiters; i++) {
+      final long transNum = i + 1;
+      new Thread(new Runnable() {
+        public void run() {
+          queued.countDown();
+          lockMan.acquireLock("B", transNum, LockManager.LockType.SHARED);
+          done.countDown();
+        }
+      }, "Transaction " + transNum + " Thread").start();
+    }
+    queued.await();
+    while (lockMan.getQueueLength("B") < numWaiters) {
+      Thread.sleep(1);
+    }
+    lockMan.releaseLock("B", 0);
+    done.await();
+    assertEquals(0, lockMan.getQueueLength("B"));
+    for (int i = 0; i < numWaiters; i++) {
+      assertTrue(lockMan.holdsLock("B", i + 1, LockManager.LockType.SHARED));
+    }
+  }
+
   /**
    * Test sample, do not modify.
    */
@@ -3,6 +3,8 @@ package edu.berkeley.cs186.database.index;
 import edu.berkeley.cs186.database.table.RecordID;
 import edu.berkeley.cs186.database.datatypes.*;
 import edu.berkeley.cs186.database.StudentTest;
+import edu.berkeley.cs186.database.log.LogRecord;
+import edu.berkeley.cs186.database.log.WriteAheadLog;
 
 import org.junit.After;
 import org.junit.Before;
@@ -14,6 +16,9 @@ import org.junit.rules.Timeout;
 import org.junit.runners.MethodSorters;
 import org.junit.experimental.categories.Category;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.Arrays;
 import java.util.Random;
@@ -365,5 +370,100 @@ public class TestBPlusTree {
     }
     assertFalse(rids.hasNext());
   }
-}
 
+  @Test
+  public void testBPlusTreeDeleteKeyMultipleFullLeafSplit() {
+    // 4 keys, each spanning two leaves
+    for (int i = 0; i < 8*intLeafPageSize; i++) {
+      bp.insertKey(new IntDataType(i / (2*intLeafPageSize)), new RecordID(i / (2*intLeafPageSize), i));
+    }
+    assertFalse(bp.deleteKey(new IntDataType(0), new RecordID(1, 0)));
+    assertFalse(bp.deleteKey(new IntDataType(5), new RecordID(5, 0)));
+
+    // deleting every entry of key 1 empties whole leaves
+    for (int i = 2*intLeafPageSize; i < 4*intLeafPageSize; i++) {
+      assertTrue(bp.deleteKey(new IntDataType(1), new RecordID(1, i)));
+    }
+    assertFalse(bp.containsKey(new IntDataType(1)));
+    // and half of the entries of key 2, from the front
+    for (int i = 4*intLeafPageSize; i < 5*intLeafPageSize; i++) {
+      assertTrue(bp.deleteKey(new IntDataType(2), new RecordID(2, i)));
+    }
+
+    Iterator<RecordID> rids = bp.sortedScan();
+    for (int i = 0; i < 8*intLeafPageSize; i++) {
+      if (i / intLeafPageSize < 2 || i / intLeafPageSize > 4) {
+        assertTrue("iteration " + i, rids.hasNext());
+        assertEquals(i, rids.next().getSlotNumber());
+      }
+    }
+    assertFalse(rids.hasNext());
+
+    rids = bp.lookupKey(new IntDataType(2));
+    for (int i = 5*intLeafPageSize; i < 6*intLeafPageSize; i++) {
+      assertTrue(rids.hasNext());
+      assertEquals(i, rids.next().getSlotNumber());
+    }
+    assertFalse(rids.hasNext());
+
+    rids = bp.sortedScanFrom(new IntDataType(1));
+    assertTrue(rids.hasNext());
+    assertEquals(5*intLeafPageSize, rids.next().getSlotNumber());
+
+    // a deleted entry can be inserted again
+    bp.insertKey(new IntDataType(1), new RecordID(1, 0));
+    rids = bp.lookupKey(new IntDataType(1));
+    assertTrue(rids.hasNext());
+    assertEquals(new RecordID(1, 0), rids.next());
+    assertFalse(rids.hasNext());
+  }
+
+  @Test
+  public void testBPlusTreeRedoLoggedPages() throws Exception {
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    WriteAheadLog log = new WriteAheadLog(new File(tempFolderPath, WriteAheadLog.FILENAME).getPath());
+    bp.setLog(log);
+    bp.checkpoint();
+    Path file = new File(tempFolderPath, testFile + BPlusTree.FILENAME_EXTENSION).toPath();
+    byte[] checkpointed = Files.readAllBytes(file);
+
+    // enough keys, in random order, to split leaves and inner nodes
+    Random rand = new Random(186);
+    int[] keys = new int[2000];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = rand.nextInt(500);
+      bp.insertKey(new IntDataType(keys[i]), new RecordID(keys[i], i));
+    }
+    for (int i = 0; i < keys.length; i += 3) {
+      assertTrue(bp.deleteKey(new IntDataType(keys[i]), new RecordID(keys[i], i)));
+    }
+    bp.close();
+
+    // as if none of the pages changed since the checkpoint had been written back
+    Files.write(file, checkpointed);
+    BPlusTree redone = new BPlusTree(testFile, tempFolderPath);
+    Iterator<LogRecord> records = log.iterator(0);
+    while (records.hasNext()) {
+      LogRecord record = records.next();
+      if (record.getType() == LogRecord.Type.INDEX_PAGES) {
+        redone.redo(record.getRedoImage());
+      }
+    }
+    log.close();
+
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i % 3 != 0, redone.containsEntry(new IntDataType(keys[i]), new RecordID(keys[i], i)));
+    }
+    Iterator<RecordID> rids = redone.sortedScan();
+    int count = 0;
+    int last = -1;
+    while (rids.hasNext()) {
+      int key = rids.next().getPageNum();
+      assertTrue(key >= last);
+      last = key;
+      count++;
+    }
+    assertEquals(keys.length - (keys.length + 2) / 3, count);
+    redone.close();
+  }
+}
@@ -0,0 +1,251 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the LZ codec and the COMPRESSED backend of PageAllocator, including recovery from a torn
+ * tail and compaction on close.
+ */
+public class TestCompressedPages {
+  private final String fName = "TestCompressedPages.temp";
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(60); // 60 seconds max per method tested
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static byte[] roundTrip(byte[] src) {
+    byte[] compressed = new byte[LZCodec.maxCompressedLength(src.length)];
+    int length = new LZCodec().compress(src, src.length, compressed, 0, compressed.length);
+    assertTrue(length >= 0);
+    byte[] out = new byte[src.length];
+    LZCodec.decompress(compressed, 0, length, out, out.length);
+    assertArrayEquals(src, out);
+    return Arrays.copyOf(compressed, length);
+  }
+
+  @Test
+  public void TestLZCodecRoundTrip() {
+    Random random = new Random(186);
+    byte[] noise = new byte[Page.pageSize];
+    random.nextBytes(noise);
+    roundTrip(noise);
+
+    byte[] runs = new byte[Page.pageSize];
+    for (int i = 0; i < runs.length; i++) {
+      runs[i] = (byte) ((i / 100) % 3);
+    }
+    assertTrue(roundTrip(runs).length < Page.pageSize / 20);
+
+    roundTrip(new byte[0]);
+    roundTrip(new byte[] {1, 2, 3});
+    assertTrue(roundTrip(new byte[Page.pageSize]).length < 64);
+
+    // random bytes do not fit in less than they take
+    byte[] dst = new byte[Page.pageSize];
+    assertEquals(-1, new LZCodec().compress(noise, noise.length, dst, 0, Page.pageSize - 1));
+  }
+
+  @Test
+  public void TestLZCodecRejectsCorruptData() {
+    byte[] runs = new byte[Page.pageSize];
+    for (int i = 0; i < runs.length; i++) {
+      runs[i] = (byte) (i % 7);
+    }
+    byte[] compressed = roundTrip(runs);
+    byte[] out = new byte[Page.pageSize];
+    try {
+      LZCodec.decompress(compressed, 0, compressed.length - 1, out, out.length);
+      fail("a truncated page should not decompress");
+    } catch (PageException e) {
+      // expected
+    }
+    try {
+      LZCodec.decompress(compressed, 0, compressed.length, out, out.length - 1);
+      fail("a page should not decompress into a smaller frame");
+    } catch (PageException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void TestCompressedRoundTrip() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, new PageCache(8L * Page.pageSize, 1),
+                                         PageAllocator.Backend.COMPRESSED);
+    assertTrue(pA.isCompressed());
+    writeRecords(pA, 0, 100, 0);
+    checkRecords(pA, 0, 100, 0);
+    assertTrue(pA.freePage(3));
+    pA.close();
+
+    // the file is recognized as compressed whichever backend is asked for
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, new PageCache(8L * Page.pageSize, 1),
+                           PageAllocator.Backend.MMAP);
+    assertTrue(pA.isCompressed());
+    assertEquals(99, pA.getNumPages());
+    checkRecords(pA, 0, 3, 0);
+    checkRecords(pA, 4, 100, 0);
+    try {
+      pA.fetchPage(3);
+      fail("freed page should not be fetchable");
+    } catch (PageException e) {
+      // expected
+    }
+    assertEquals(3, pA.allocPage());
+    pA.close();
+
+    // wiping a compressed file with another backend lays it out uncompressed
+    pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    assertFalse(pA.isCompressed());
+    assertEquals(0, pA.getNumPages());
+    pA.close();
+  }
+
+  @Test
+  public void TestCompressedPageSizes() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false,
+                                         PageAllocator.getSharedPageCache(), PageAllocator.Backend.COMPRESSED,
+                                         16384);
+    for (int i = 0; i < 10; i++) {
+      pA.allocPage();
+      pA.fetchPage(i).writeInt(16380, i);
+    }
+    pA.close();
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false);
+    assertEquals(16384, pA.getPageSize());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, pA.fetchPage(i).readInt(16380));
+    }
+    pA.close();
+  }
+
+  @Test
+  public void TestCompressedFileIsSmaller() throws IOException {
+    File plainFile = tempFolder.newFile("plain" + fName);
+    File compressedFile = tempFolder.newFile("compressed" + fName);
+    PageAllocator plain = new PageAllocator(plainFile.getAbsolutePath(), true, false, new PageCache(8L * Page.pageSize, 1),
+                                            PageAllocator.Backend.CHANNEL);
+    PageAllocator compressed = new PageAllocator(compressedFile.getAbsolutePath(), true, false,
+                                                 new PageCache(8L * Page.pageSize, 1), PageAllocator.Backend.COMPRESSED);
+    writeRecords(plain, 0, 200, 0);
+    writeRecords(compressed, 0, 200, 0);
+    plain.close();
+    compressed.close();
+    assertTrue(plainFile.length() + " bytes plain, " + compressedFile.length() + " bytes compressed",
+               compressedFile.length() * 3 < plainFile.length());
+
+    plain = new PageAllocator(plainFile.getAbsolutePath(), false, false, new PageCache(8L * Page.pageSize, 1),
+                              PageAllocator.Backend.CHANNEL);
+    compressed = new PageAllocator(compressedFile.getAbsolutePath(), false, false, new PageCache(8L * Page.pageSize, 1),
+                                   PageAllocator.Backend.COMPRESSED);
+    plain.getIOStats().reset();
+    compressed.getIOStats().reset();
+    checkRecords(plain, 0, 200, 0);
+    checkRecords(compressed, 0, 200, 0);
+    assertEquals(plain.getIOStats().getNumDiskReads(), compressed.getIOStats().getNumDiskReads());
+    plain.close();
+    compressed.close();
+  }
+
+  @Test
+  public void TestCompressedTornTail() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, new PageCache(8L * Page.pageSize, 1),
+                                         PageAllocator.Backend.COMPRESSED);
+    writeRecords(pA, 0, 20, 0);
+    pA.close();
+    long length = tempFile.length();
+
+    // a half-written record and the zeros of a write that never landed are both cut off
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    ByteBuffer torn = ByteBuffer.allocate(100);
+    torn.putInt(0, 5);
+    torn.putInt(4, 1000);
+    fc.write(torn, length);
+    fc.write(ByteBuffer.allocate(Page.pageSize), length + 100);
+    fc.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, new PageCache(8L * Page.pageSize, 1),
+                           PageAllocator.Backend.COMPRESSED);
+    assertEquals(length, tempFile.length());
+    assertEquals(20, pA.getNumPages());
+    checkRecords(pA, 0, 20, 0);
+    pA.close();
+
+    fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    fc.write(ByteBuffer.allocate(Page.pageSize), length);
+    fc.close();
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, new PageCache(8L * Page.pageSize, 1),
+                           PageAllocator.Backend.COMPRESSED);
+    assertEquals(length, tempFile.length());
+    checkRecords(pA, 0, 20, 0);
+    pA.close();
+  }
+
+  @Test
+  public void TestCompressedCompactsOnClose() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, new PageCache(8L * Page.pageSize, 1),
+                                         PageAllocator.Backend.COMPRESSED);
+    // the cache holds 8 pages, so every pass writes back all 40
+    for (int version = 0; version < 5; version++) {
+      writeRecords(pA, 0, 40, version);
+    }
+    long beforeClose = tempFile.length();
+    pA.close();
+    assertTrue(tempFile.length() * 2 < beforeClose);
+    assertFalse(new File(tempFile.getAbsolutePath() + ".compact").exists());
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, new PageCache(8L * Page.pageSize, 1),
+                           PageAllocator.Backend.COMPRESSED);
+    checkRecords(pA, 0, 40, 4);
+    long compacted = tempFile.length();
+    pA.close();
+    // a file that is mostly live is left as it is
+    assertEquals(compacted, tempFile.length());
+  }
+
+  /**
+   * Fills pages from through to - 1 of pA, allocating those past its end, with fixed-width records
+   * like a table page's: an int key and a space-padded string, which compress well.
+   */
+  private static void writeRecords(PageAllocator pA, int from, int to, int version) {
+    for (int i = from; i < to; i++) {
+      if (i >= pA.getNumPages()) {
+        assertEquals(i, pA.allocPage());
+      }
+      Page p = pA.fetchPage(i);
+      byte[] record = new byte[32];
+      for (int j = 0; j + 32 <= Page.pageSize; j += 32) {
+        Arrays.fill(record, (byte) ' ');
+        ByteBuffer.wrap(record).putInt(0, i * 1000 + j / 32 + version);
+        byte[] name = ("name" + (j / 32)).getBytes();
+        System.arraycopy(name, 0, record, 4, name.length);
+        p.writeBytes(j, 32, record);
+      }
+    }
+  }
+
+  private static void checkRecords(PageAllocator pA, int from, int to, int version) {
+    for (int i = from; i < to; i++) {
+      Page p = pA.fetchPage(i);
+      for (int j = 0; j + 32 <= Page.pageSize; j += 32) {
+        assertEquals(i * 1000 + j / 32 + version, p.readInt(j));
+      }
+    }
+  }
+}
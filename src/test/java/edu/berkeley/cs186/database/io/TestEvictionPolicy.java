@@ -0,0 +1,189 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.rules.TemporaryFolder;
+import java.nio.channels.FileChannel;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.File;
+
+/**
+ * Tests the replacement policies of PageCache on a single shard, where their decisions are fully
+ * deterministic.
+ */
+public class TestEvictionPolicy {
+  private final String fName = "TestEvictionPolicy.temp";
+  private static final int numFrames = 8;
+  private static final int numHot = 4;
+  private FileChannel fc;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(30); // 30 seconds max per method tested
+
+  @Before
+  public void beforeEach() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    this.fc = new RandomAccessFile(tempFile, "rw").getChannel();
+  }
+
+  private static long vPage(int pageNum) {
+    return pageNum & 0xFFFFFFFFL;
+  }
+
+  private PageCache newCache(EvictionPolicy.Type type) {
+    return new PageCache(((long) numFrames) * Page.pageSize, 1, type);
+  }
+
+  /**
+   * Reads a page the way PageAllocator.fetchPage does: a lookup, then an insert on a miss.
+   */
+  private Page touch(PageCache cache, int pageNum) {
+    Page p = cache.get(vPage(pageNum));
+    if (p == null) {
+      p = cache.putIfAbsent(vPage(pageNum), new Page(this.fc, pageNum, pageNum, false));
+    }
+    return p;
+  }
+
+  /**
+   * Runs a few rounds of repeated reads of a small hot set interleaved with one-off reads, then a
+   * sequential scan several times larger than the cache.
+   */
+  private void hotSetThenScan(PageCache cache) {
+    int next = 1000;
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < numHot; i++) {
+        touch(cache, i);
+      }
+      for (int i = 0; i < numFrames / 2; i++) {
+        touch(cache, next++);
+      }
+    }
+    for (int i = 0; i < 10 * numFrames; i++) {
+      touch(cache, next++);
+    }
+  }
+
+  private int numHotResident(PageCache cache) {
+    int resident = 0;
+    for (int i = 0; i < numHot; i++) {
+      if (cache.get(vPage(i)) != null) {
+        resident++;
+      }
+    }
+    return resident;
+  }
+
+  @Test
+  public void TestLRUIsFlushedByScan() {
+    PageCache cache = newCache(EvictionPolicy.Type.LRU);
+    hotSetThenScan(cache);
+    assertEquals(0, numHotResident(cache));
+  }
+
+  @Test
+  public void TestTwoQueueIsScanResistant() {
+    PageCache cache = newCache(EvictionPolicy.Type.TWO_Q);
+    hotSetThenScan(cache);
+    assertEquals(numHot, numHotResident(cache));
+  }
+
+  @Test
+  public void TestLRUKIsScanResistant() {
+    PageCache cache = newCache(EvictionPolicy.Type.LRU_K);
+    hotSetThenScan(cache);
+    assertEquals(numHot, numHotResident(cache));
+  }
+
+  @Test
+  public void TestClockSecondChance() {
+    PageCache cache = newCache(EvictionPolicy.Type.CLOCK);
+    for (int i = 0; i < numFrames; i++) {
+      touch(cache, i);
+    }
+    // page 0 is referenced, so the hand passes over it and evicts page 1 instead
+    touch(cache, 0);
+    touch(cache, numFrames);
+    assertNotNull(cache.get(vPage(0)));
+    assertNull(cache.get(vPage(1)));
+    assertEquals(numFrames, cache.size());
+  }
+
+  @Test
+  public void TestPoliciesSkipPinnedPages() {
+    for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+      PageCache cache = newCache(type);
+      Page pinned = touch(cache, 0);
+      assertTrue(pinned.pin());
+      for (int i = 1; i < 10 * numFrames; i++) {
+        touch(cache, i);
+        assertTrue(cache.size() <= numFrames);
+      }
+      assertSame(type.toString(), pinned, cache.get(vPage(0)));
+      pinned.unpin();
+    }
+  }
+
+  @Test(expected = PageException.class)
+  public void TestPoliciesFailWhenAllPinned() {
+    PageCache cache = newCache(EvictionPolicy.Type.CLOCK);
+    for (int i = 0; i < numFrames; i++) {
+      assertTrue(touch(cache, i).pin());
+    }
+    touch(cache, numFrames);
+  }
+
+  @Test
+  public void TestPoliciesTrackRemovedPages() {
+    for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+      PageCache cache = newCache(type);
+      for (int i = 0; i < numFrames; i++) {
+        touch(cache, i);
+      }
+      for (int i = 0; i < numFrames; i += 2) {
+        assertNotNull(cache.remove(vPage(i)));
+      }
+      for (int i = numFrames; i < 4 * numFrames; i++) {
+        touch(cache, i);
+        assertTrue(cache.size() <= numFrames);
+      }
+      assertEquals(type.toString(), numFrames, cache.size());
+    }
+  }
+
+  /**
+   * Compares the hit ratios of the policies on the same mixed workload: each round touches the
+   * hot set and then scans as many cold pages as there are frames. LRU and CLOCK let every scan
+   * flush the hot set, so they never hit; the scan-resistant policies keep the hot set and hit on
+   * every hot touch.
+   */
+  @Test
+  public void TestHitRatios() {
+    for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+      PageCache cache = newCache(type);
+      hotSetThenScan(cache);
+      cache.resetStats();
+      for (int round = 0; round < 20; round++) {
+        for (int i = 0; i < numHot; i++) {
+          touch(cache, i);
+        }
+        for (int i = 0; i < numFrames; i++) {
+          touch(cache, 5000 + round * numFrames + i);
+        }
+      }
+      assertEquals(20 * (numHot + numFrames), cache.getNumHits() + cache.getNumMisses());
+      if (type == EvictionPolicy.Type.LRU || type == EvictionPolicy.Type.CLOCK) {
+        assertEquals(type.toString(), 0.0, cache.getHitRatio(), 1e-9);
+      } else {
+        assertEquals(type.toString(), 20 * numHot, cache.getNumHits());
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.rules.TemporaryFolder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing benchmarks for the io package. Their results depend on the machine, so they only run
+ * when asked for with -Dbenchmarks=true, and the measured numbers are reported in the assertion
+ * messages.
+ */
+public class TestIOBenchmarks {
+  private final String fName = "TestIOBenchmarks.temp";
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(60); // 60 seconds max per method tested
+
+  @Before
+  public void beforeEach() {
+    assumeTrue(Boolean.getBoolean("benchmarks"));
+  }
+
+  private FileChannel newChannel() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    return new RandomAccessFile(tempFile, "rw").getChannel();
+  }
+
+  private static long vPage(int allocID, int pageNum) {
+    return (((long) allocID) << 32) | (((long) pageNum) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Cache hits take no shared lock, so hit throughput should grow with the number of readers:
+   * with one reader per core (up to four), it must reach at least half of linear scaling.
+   */
+  @Test
+  public void TestPageCacheHitScaling() throws Exception {
+    int cores = Runtime.getRuntime().availableProcessors();
+    assumeTrue(cores > 1);
+
+    int numKeys = 512;
+    FileChannel fc = newChannel();
+    PageCache cache = new PageCache(((long) 1024) * Page.pageSize);
+    for (int i = 0; i < numKeys; i++) {
+      cache.putIfAbsent(vPage(3, i), new Page(fc, i, i, false));
+    }
+
+    int numThreads = Math.min(cores, 4);
+    measureHits(cache, numKeys, numThreads, 200);
+    long single = measureHits(cache, numKeys, 1, 500);
+    long multi = measureHits(cache, numKeys, numThreads, 500);
+    assertTrue("1 reader: " + single + " hits/sec, " + numThreads + " readers: " + multi + " hits/sec",
+               multi * 2 >= single * numThreads);
+  }
+
+  private static long measureHits(final PageCache cache, final int numKeys, int numThreads,
+                                  long millis) throws InterruptedException {
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    final AtomicLong ops = new AtomicLong(0);
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int offset = t * 97;
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          long count = 0;
+          int i = offset;
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          while (!stop.get()) {
+            for (int j = 0; j < 256; j++) {
+              if (cache.get(vPage(3, i % numKeys)) != null) {
+                count++;
+              }
+              i++;
+            }
+          }
+          ops.addAndGet(count);
+        }
+      });
+      threads[t].start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    Thread.sleep(millis);
+    stop.set(true);
+    for (Thread t : threads) {
+      t.join();
+    }
+    long elapsed = System.nanoTime() - begin;
+    return ops.get() * 1000000000L / Math.max(1, elapsed);
+  }
+
+  /**
+   * Slicing a page out of a mapped segment must make cache misses cheaper than mapping each
+   * page on its own.
+   */
+  @Test
+  public void TestMappedSegmentsMissLatency() throws IOException {
+    int numBlocks = 2048;
+    FileChannel fc = newChannel();
+    ByteBuffer bb = ByteBuffer.allocate(Page.pageSize);
+    for (int i = 0; i < numBlocks; i++) {
+      bb.clear();
+      bb.putInt(0, i);
+      fc.write(bb, ((long) i) * Page.pageSize);
+    }
+    MappedSegments segments = new MappedSegments(fc);
+    segments.newPage(0, 0, false);
+
+    long perPage = Long.MAX_VALUE;
+    long sliced = Long.MAX_VALUE;
+    for (int run = 0; run < 5; run++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < numBlocks; i++) {
+        new Page(fc, i, i, false);
+      }
+      perPage = Math.min(perPage, (System.nanoTime() - start) / numBlocks);
+
+      start = System.nanoTime();
+      for (int i = 0; i < numBlocks; i++) {
+        segments.newPage(i, i, false);
+      }
+      sliced = Math.min(sliced, (System.nanoTime() - start) / numBlocks);
+    }
+    assertTrue("mmap per page: " + perPage + " ns, segment slice: " + sliced + " ns",
+               sliced < perPage);
+  }
+
+  /**
+   * Times a sequential scan and a random update workload over a cache much smaller than the file on
+   * the MMAP and CHANNEL backends. Neither backend may take more than four times as long per page
+   * as the other on either workload.
+   */
+  @Test
+  public void TestBackendScanAndUpdateTimes() throws IOException {
+    int numPages = 4000;
+    PageAllocator.Backend[] backends = {PageAllocator.Backend.MMAP, PageAllocator.Backend.CHANNEL};
+    long[] scanNanos = new long[backends.length];
+    long[] updateNanos = new long[backends.length];
+    for (int b = 0; b < backends.length; b++) {
+      File tempFile = tempFolder.newFile(backends[b] + fName);
+      PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false,
+                                           new PageCache(256L * Page.pageSize), backends[b]);
+      for (int i = 0; i < numPages; i++) {
+        pA.allocPage();
+        Page p = pA.fetchPage(i);
+        for (int j = 0; j < 1024; j++) {
+          p.writeInt(j*4, i*1024 + j);
+        }
+      }
+
+      scanNanos[b] = Long.MAX_VALUE;
+      updateNanos[b] = Long.MAX_VALUE;
+      int page = 17;
+      for (int run = 0; run < 5; run++) {
+        long start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < numPages; i++) {
+          Page p = pA.fetchPage(i);
+          for (int j = 0; j < 1024; j += 64) {
+            sum += p.readInt(j*4);
+          }
+        }
+        scanNanos[b] = Math.min(scanNanos[b], (System.nanoTime() - start) / numPages);
+        assertTrue(sum > 0);
+
+        start = System.nanoTime();
+        for (int i = 0; i < numPages; i++) {
+          page = (page * 31 + 7) % numPages;
+          Page p = pA.fetchPage(page);
+          p.writeInt(4, p.readInt(4) + 1);
+        }
+        updateNanos[b] = Math.min(updateNanos[b], (System.nanoTime() - start) / numPages);
+      }
+      pA.close();
+    }
+
+    String times = "scan: MMAP " + scanNanos[0] + " ns/page, CHANNEL " + scanNanos[1]
+        + " ns/page; update: MMAP " + updateNanos[0] + " ns/page, CHANNEL " + updateNanos[1] + " ns/page";
+    assertTrue(times, scanNanos[0] <= 4 * scanNanos[1] && scanNanos[1] <= 4 * scanNanos[0]);
+    assertTrue(times, updateNanos[0] <= 4 * updateNanos[1] && updateNanos[1] <= 4 * updateNanos[0]);
+  }
+}
@@ -0,0 +1,148 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Tests the per-file I/O counters of PageAllocator, their attribution to threads, and their JMX view.
+ */
+public class TestIOStats {
+  private final String fName = "TestIOStats.temp";
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(30); // 30 seconds max per method tested
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private PageAllocator newAllocator(String name, PageCache cache, PageAllocator.Backend backend)
+      throws IOException {
+    File tempFile = tempFolder.newFile(name + fName);
+    return new PageAllocator(tempFile.getAbsolutePath(), true, false, cache, backend);
+  }
+
+  @Test
+  public void TestIOStatsCountsHitsAndMisses() throws IOException {
+    PageAllocator pA = newAllocator("a", new PageCache(64L * Page.pageSize), PageAllocator.Backend.CHANNEL);
+    for (int i = 0; i < 10; i++) {
+      pA.allocPage();
+    }
+    pA.close();
+
+    File tempFile = new File(tempFolder.getRoot(), "a" + fName);
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, new PageCache(64L * Page.pageSize),
+                           PageAllocator.Backend.CHANNEL);
+    IOStats stats = pA.getIOStats();
+    stats.reset();
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < 10; i++) {
+        pA.fetchPage(i);
+      }
+    }
+    IOStats.Snapshot snapshot = stats.snapshot();
+    assertEquals(10, snapshot.getNumMisses());
+    assertEquals(10, snapshot.getNumHits());
+    assertEquals(20, snapshot.getNumFetches());
+    assertEquals(0.5, snapshot.getHitRatio(), 1e-9);
+    assertEquals(10, snapshot.getNumDiskReads());
+    assertEquals(0, snapshot.getNumDiskWrites());
+    long histogramTotal = 0;
+    for (long count : snapshot.getFetchLatencyHistogram()) {
+      histogramTotal += count;
+    }
+    assertEquals(20, histogramTotal);
+    assertTrue(snapshot.getMeanFetchNanos() > 0);
+    assertTrue(snapshot.getFetchNanosAtPercentile(0.5) <= snapshot.getFetchNanosAtPercentile(0.99));
+
+    pA.fetchPage(0).writeInt(0, 1);
+    pA.close();
+    assertEquals(1, stats.getNumDiskWrites());
+  }
+
+  @Test
+  public void TestIOStatsArePerFile() throws IOException {
+    PageCache cache = new PageCache(64L * Page.pageSize);
+    PageAllocator busy = newAllocator("busy", cache, PageAllocator.Backend.MMAP);
+    PageAllocator idle = newAllocator("idle", cache, PageAllocator.Backend.MMAP);
+    idle.getIOStats().reset();
+    for (int i = 0; i < 40; i++) {
+      busy.allocPage();
+    }
+    assertTrue(busy.getIOStats().snapshot().getNumFetches() >= 40);
+    assertTrue(busy.getIOStats().getBytesMapped() > 0);
+    assertEquals(IOStats.Snapshot.EMPTY.toString(), idle.getIOStats().snapshot().toString());
+    busy.close();
+    idle.close();
+  }
+
+  @Test
+  public void TestIOStatsAttachedToThread() throws IOException {
+    PageAllocator pA = newAllocator("a", new PageCache(64L * Page.pageSize), PageAllocator.Backend.CHANNEL);
+    pA.allocPage();
+    IOStats operator = new IOStats();
+    IOStats inner = new IOStats();
+
+    IOStats previous = operator.attach();
+    assertNull(previous);
+    pA.fetchPage(0);
+    IOStats outer = inner.attach();
+    assertSame(operator, outer);
+    pA.fetchPage(0);
+    pA.fetchPage(0);
+    IOStats.detach(outer);
+    IOStats.detach(previous);
+    pA.fetchPage(0);
+
+    assertEquals(1, operator.getNumHits());
+    assertEquals(2, inner.getNumHits());
+    assertEquals(3, operator.snapshot().plus(inner.snapshot()).getNumHits());
+    assertTrue(pA.getIOStats().getNumHits() >= 4);
+    pA.close();
+  }
+
+  @Test
+  public void TestIOStatsSnapshotArithmetic() throws IOException {
+    PageAllocator pA = newAllocator("a", new PageCache(64L * Page.pageSize), PageAllocator.Backend.CHANNEL);
+    pA.allocPage();
+    IOStats.Snapshot before = pA.getIOStats().snapshot();
+    for (int i = 0; i < 5; i++) {
+      pA.fetchPage(0);
+    }
+    IOStats.Snapshot delta = pA.getIOStats().snapshot().minus(before);
+    assertEquals(5, delta.getNumHits());
+    assertEquals(0, delta.getNumMisses());
+    assertEquals(10, delta.plus(delta).getNumHits());
+    assertEquals(0, IOStats.Snapshot.EMPTY.getFetchNanosAtPercentile(0.99));
+    assertEquals(0.0, IOStats.Snapshot.EMPTY.getHitRatio(), 0);
+    pA.close();
+  }
+
+  @Test
+  public void TestIOStatsMBean() throws Exception {
+    PageAllocator pA = newAllocator("a", new PageCache(64L * Page.pageSize), PageAllocator.Backend.CHANNEL);
+    pA.allocPage();
+    pA.fetchPage(0);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = pA.getIOStats().register("PageAllocator", tempFolder.getRoot().getPath(), "a,b=c");
+    assertTrue(server.isRegistered(name));
+    assertEquals(pA.getIOStats().getNumHits(), server.getAttribute(name, "NumHits"));
+    // registering again under the same name replaces the MBean
+    IOStats other = new IOStats();
+    assertEquals(name, other.register("PageAllocator", tempFolder.getRoot().getPath(), "a,b=c"));
+    assertEquals(0L, server.getAttribute(name, "NumHits"));
+
+    server.invoke(name, "reset", new Object[0], new String[0]);
+    IOStats.unregister(name);
+    assertFalse(server.isRegistered(name));
+    IOStats.unregister(name);
+    pA.close();
+  }
+}
@@ -0,0 +1,100 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.rules.TemporaryFolder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.File;
+
+/**
+ * Tests segment-level mapping of pages.
+ */
+public class TestMappedSegments {
+  private final String fName = "TestMappedSegments.temp";
+  private FileChannel fc;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(60); // 60 seconds max per method tested
+
+  @Before
+  public void beforeEach() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    this.fc = new RandomAccessFile(tempFile, "rw").getChannel();
+  }
+
+  private void fill(int numBlocks) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(Page.pageSize);
+    for (int i = 0; i < numBlocks; i++) {
+      bb.clear();
+      bb.putInt(0, i);
+      this.fc.write(bb, ((long) i) * Page.pageSize);
+    }
+  }
+
+  @Test
+  public void TestMappedSegmentsSlicesExistingBlocks() throws IOException {
+    fill(200);
+    MappedSegments segments = new MappedSegments(this.fc, 64L * Page.pageSize);
+    for (int i = 0; i < 200; i++) {
+      Page p = segments.newPage(i, i, false);
+      assertEquals(i, p.readInt(0));
+      assertEquals(i, p.getPageNum());
+    }
+    // one mapping per full segment; the 8-block tail is too small to be worth mapping as a whole
+    assertEquals(3, segments.getNumMappings());
+    assertEquals(200L * Page.pageSize, this.fc.size());
+  }
+
+  @Test
+  public void TestMappedSegmentsWritesReachFile() throws IOException {
+    fill(100);
+    MappedSegments segments = new MappedSegments(this.fc, 64L * Page.pageSize);
+    Page p = segments.newPage(70, 70, true);
+    p.writeInt(8, 12345);
+    assertTrue(p.isDirty());
+    p.flush();
+    assertFalse(p.isDirty());
+
+    ByteBuffer bb = ByteBuffer.allocate(4);
+    this.fc.read(bb, 70L * Page.pageSize + 8);
+    assertEquals(12345, bb.getInt(0));
+
+    // neighbouring slices of the same mapping do not see each other's positions or data
+    Page q = segments.newPage(71, 71, true);
+    assertEquals(71, q.readInt(0));
+    assertEquals(0, q.readInt(8));
+  }
+
+  @Test
+  public void TestMappedSegmentsDoNotGrowFile() throws IOException {
+    fill(10);
+    MappedSegments segments = new MappedSegments(this.fc);
+    segments.newPage(3, 3, false);
+    assertEquals(10L * Page.pageSize, this.fc.size());
+
+    // a block past the end of the file grows it exactly as mapping that page alone would
+    segments.newPage(12, 12, false).writeInt(0, 7);
+    assertEquals(13L * Page.pageSize, this.fc.size());
+  }
+
+  @Test
+  public void TestMappedSegmentsRemapGeometrically() throws IOException {
+    MappedSegments segments = new MappedSegments(this.fc);
+    for (int i = 0; i < 4096; i++) {
+      segments.newPage(i, i, false).writeInt(0, i);
+    }
+    for (int i = 0; i < 4096; i++) {
+      assertEquals(i, segments.newPage(i, i, false).readInt(0));
+    }
+    assertTrue(segments.getNumMappings() <= 12);
+  }
+}
@@ -0,0 +1,142 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests the MEMORY backend of PageAllocator: memory-resident files, their shared budget, and
+ * spilling to disk.
+ */
+public class TestMemoryBacking {
+  private final String fName = "TestMemoryBacking.temp";
+  private long budget;
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(30); // 30 seconds max per method tested
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Before
+  public void beforeEach() {
+    this.budget = PageAllocator.getTempMemoryBytes();
+  }
+
+  @After
+  public void afterEach() {
+    PageAllocator.setTempMemoryBytes(this.budget);
+  }
+
+  private File tempFile(String name) {
+    return new File(new File(tempFolder.getRoot(), "temp"), name + fName);
+  }
+
+  private PageAllocator newAllocator(File file) {
+    return new PageAllocator(file.getPath(), true, true, new PageCache(8L * Page.pageSize, 1),
+                             PageAllocator.Backend.MEMORY);
+  }
+
+  @Test
+  public void TestMemoryBackingNeverTouchesDisk() throws IOException {
+    long used = PageAllocator.getTempMemoryUsed();
+    File file = tempFile("a");
+    PageAllocator pA = newAllocator(file);
+
+    // the cache holds 8 pages, so most of these are evicted and fetched again
+    writePages(pA, 0, 100);
+    checkPages(pA, 0, 100);
+    assertTrue(pA.freePage(5));
+    assertEquals(99, pA.getNumPages());
+    assertEquals(5, pA.allocPage());
+    pA.syncMetadata();
+
+    assertTrue(pA.isMemoryResident());
+    assertFalse(file.getParentFile().exists());
+    assertEquals(0, pA.getIOStats().getNumDiskReads());
+    assertEquals(0, pA.getIOStats().getNumDiskWrites());
+    assertTrue(PageAllocator.getTempMemoryUsed() >= used + 100L * Page.pageSize);
+
+    pA.close();
+    assertFalse(file.getParentFile().exists());
+    assertEquals(used, PageAllocator.getTempMemoryUsed());
+  }
+
+  @Test
+  public void TestMemoryBackingSpills() throws IOException {
+    long used = PageAllocator.getTempMemoryUsed();
+    PageAllocator.setTempMemoryBytes(used + 32L * Page.pageSize);
+    File file = tempFile("a");
+    PageAllocator pA = newAllocator(file);
+    writePages(pA, 0, 20);
+    assertTrue(pA.isMemoryResident());
+    assertFalse(file.exists());
+
+    writePages(pA, 20, 100);
+    assertFalse(pA.isMemoryResident());
+    assertTrue(file.exists());
+    assertTrue(pA.getIOStats().getNumDiskWrites() >= 22);
+    // the spilled file gives its memory back to the budget
+    assertEquals(used, PageAllocator.getTempMemoryUsed());
+    checkPages(pA, 0, 100);
+
+    pA.close();
+    assertFalse(file.exists());
+    assertEquals(used, PageAllocator.getTempMemoryUsed());
+  }
+
+  @Test
+  public void TestMemoryBackingBudgetIsShared() throws IOException {
+    long used = PageAllocator.getTempMemoryUsed();
+    PageAllocator.setTempMemoryBytes(used + 32L * Page.pageSize);
+    PageAllocator first = newAllocator(tempFile("first"));
+    PageAllocator second = newAllocator(tempFile("second"));
+    writePages(first, 0, 25);
+    writePages(second, 0, 10);
+    assertTrue(first.isMemoryResident());
+    assertFalse(second.isMemoryResident());
+    checkPages(first, 0, 25);
+    checkPages(second, 0, 10);
+
+    // memory given back by a dropped file can be used by new ones
+    first.close();
+    second.close();
+    PageAllocator third = newAllocator(tempFile("third"));
+    writePages(third, 0, 25);
+    assertTrue(third.isMemoryResident());
+    third.close();
+    assertEquals(used, PageAllocator.getTempMemoryUsed());
+  }
+
+  /**
+   * Fills pages from through to - 1 of pA, allocating those past its end, so that int j of page i
+   * holds i*1024 + j.
+   */
+  private static void writePages(PageAllocator pA, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (i >= pA.getNumPages()) {
+        assertEquals(i, pA.allocPage());
+      }
+      Page p = pA.fetchPage(i);
+      for (int j = 0; j < 1024; j++) {
+        p.writeInt(j*4, i*1024 + j);
+      }
+    }
+  }
+
+  private static void checkPages(PageAllocator pA, int from, int to) {
+    for (int i = from; i < to; i++) {
+      Page p = pA.fetchPage(i);
+      assertEquals(i, p.getPageNum());
+      for (int j = 0; j < 1024; j++) {
+        assertEquals(i*1024 + j, p.readInt(j*4));
+      }
+    }
+  }
+}
@@ -13,6 +13,9 @@ import java.io.RandomAccessFile;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 
 /**
 * Tests Page.java
@@ -148,4 +151,132 @@ public class TestPage {
     fc.close();
   }
 
+
+  @Test
+  public void TestPageTypedAccessors() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    Page p = new Page(fc, 0, 0);
+    p.putInt(0, 0x01020304);
+    p.putShort(4, (short) -2);
+    p.putLong(6, Long.MIN_VALUE + 7);
+    p.putFloat(Page.pageSize - 4, 1.5f);
+    assertTrue(p.isDirty());
+
+    assertEquals(0x01020304, p.getInt(0));
+    assertEquals(0x01020304, p.readInt(0));
+    assertEquals((byte) 0x01, p.readByte(0));
+    assertEquals((short) -2, p.getShort(4));
+    assertEquals(Long.MIN_VALUE + 7, p.getLong(6));
+    assertEquals(1.5f, p.getFloat(Page.pageSize - 4), 0.0f);
+
+    try {
+      p.getLong(Page.pageSize - 4);
+      fail("a read past the end of the page should fail");
+    } catch (PageException e) {
+      // expected
+    }
+    try {
+      p.putInt(-1, 0);
+      fail("a write before the start of the page should fail");
+    } catch (PageException e) {
+      // expected
+    }
+    fc.close();
+  }
+
+  @Test
+  public void TestPageSliceIsReadOnlyView() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    Page p = new Page(fc, 0, 0);
+    p.putInt(100, 42);
+    ByteBuffer view = p.slice(100, 8);
+    assertEquals(8, view.remaining());
+    assertEquals(42, view.getInt());
+
+    // the view sees later writes, and reading it leaves the page alone
+    p.putInt(104, 43);
+    assertEquals(43, view.getInt());
+    assertEquals(42, p.getInt(100));
+    try {
+      view.putInt(0, 1);
+      fail("the view should be read-only");
+    } catch (ReadOnlyBufferException e) {
+      // expected
+    }
+    fc.close();
+  }
+
+  @Test
+  public void TestPageConcurrentReaders() throws Exception {
+    File tempFile = tempFolder.newFile(fName);
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    final Page p = new Page(fc, 0, 0);
+    for (int i = 0; i < Page.pageSize; i += 4) {
+      p.putInt(i, i);
+    }
+    final boolean[] failed = new boolean[1];
+    Thread[] readers = new Thread[4];
+    for (int t = 0; t < readers.length; t++) {
+      readers[t] = new Thread(new Runnable() {
+        public void run() {
+          byte[] buf = new byte[128];
+          for (int n = 0; n < 20000; n++) {
+            int offset = (n * 68) % (Page.pageSize - 128) & ~3;
+            p.readBytes(offset, 128, buf);
+            if (ByteBuffer.wrap(buf).getInt(0) != offset || p.getInt(offset + 64) != offset + 64) {
+              failed[0] = true;
+            }
+          }
+        }
+      });
+      readers[t].start();
+    }
+    for (Thread t : readers) {
+      t.join();
+    }
+    assertFalse(failed[0]);
+    fc.close();
+  }
+
+  /**
+   * Compares the bytes allocated per read of an int through a copied byte array, as readInt used
+   * to, with the absolute accessor, measured with the JVM's per-thread allocation counter.
+   */
+  @Test
+  public void TestPageAccessorAllocationRate() throws IOException {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    long thread = Thread.currentThread().getId();
+    File tempFile = tempFolder.newFile(fName);
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    Page p = new Page(fc, 0, 0);
+    int ops = 200000;
+
+    long copied = 0;
+    long absolute = 0;
+    for (int run = 0; run < 3; run++) {
+      long before = threads.getThreadAllocatedBytes(thread);
+      long sum = 0;
+      for (int i = 0; i < ops; i++) {
+        sum += ByteBuffer.wrap(p.readBytes((i * 4) % Page.pageSize, 4)).getInt();
+      }
+      copied = threads.getThreadAllocatedBytes(thread) - before;
+
+      before = threads.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < ops; i++) {
+        sum += p.getInt((i * 4) % Page.pageSize);
+      }
+      absolute = threads.getThreadAllocatedBytes(thread) - before;
+      assertEquals(0, sum);
+    }
+    String allocated = "copied " + copied / ops + " bytes/op, absolute " + absolute / ops + " bytes/op";
+    assertTrue(allocated, absolute < copied);
+    assertTrue(allocated, absolute / ops < 1);
+    fc.close();
+  }
 }
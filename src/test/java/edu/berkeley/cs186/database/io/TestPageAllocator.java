@@ -13,10 +13,15 @@ import java.io.RandomAccessFile;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.io.File;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
 * Tests PageAllocator.java
@@ -444,5 +449,520 @@ public class TestPageAllocator {
     }
   }
 
+  @Test
+  public void TestPageAllocatorReusesLowestFreePage() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    for (int i = 0; i < Page.pageSize + 10; i++) {
+      assertEquals(i, pA.allocPage());
+    }
+    assertTrue(pA.freePage(Page.pageSize + 3));
+    assertTrue(pA.freePage(70));
+    assertTrue(pA.freePage(5));
+    assertFalse(pA.freePage(5));
+    pA.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false);
+    assertEquals(Page.pageSize + 7, pA.getNumPages());
+    assertEquals(5, pA.allocPage());
+    assertEquals(70, pA.allocPage());
+    assertEquals(Page.pageSize + 3, pA.allocPage());
+    assertEquals(Page.pageSize + 10, pA.allocPage());
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorTranslationReadsNoHeaderPages() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    for (int i = 0; i < 100; i++) {
+      pA.allocPage();
+    }
+    pA.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, PageAllocator.Backend.CHANNEL);
+    long reads = PageAllocator.getNumDiskReads();
+    for (int i = 0; i < 100; i++) {
+      pA.fetchPage(i);
+    }
+    // one read per data page; the master and header pages are not consulted
+    assertEquals(100, PageAllocator.getNumDiskReads() - reads);
+
+    reads = PageAllocator.getNumDiskReads();
+    boolean thrown = false;
+    try {
+      pA.fetchPage(100);
+    } catch (PageException e) {
+      thrown = true;
+    }
+    assertTrue(thrown);
+    assertEquals(0, PageAllocator.getNumDiskReads() - reads);
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorDurableAllocBatchesMetadata() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, true,
+                                         new PageCache(4096L * Page.pageSize));
+    int numAllocs = 2000;
+    long writes = PageAllocator.getNumDiskWrites();
+    for (int i = 0; i < numAllocs; i++) {
+      assertEquals(i, pA.allocPage());
+    }
+    // the master and header pages are forced once per batch, not once per allocation
+    assertTrue(PageAllocator.getNumDiskWrites() - writes < numAllocs / 50);
 
+    pA.syncMetadata();
+    pA.close();
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, true);
+    assertEquals(numAllocs, pA.getNumPages());
+    assertEquals(numAllocs, pA.allocPage());
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorRebuildsCountsFromHeaders() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    for (int i = 0; i < 100; i++) {
+      pA.allocPage();
+    }
+    assertTrue(pA.freePage(10));
+    pA.close();
+
+    // a torn batch: the master page disagrees with the header pages it counts
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    ByteBuffer bb = ByteBuffer.allocate(8);
+    bb.putInt(0, 3);
+    bb.putInt(4, 42);
+    fc.write(bb, 0);
+    fc.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false);
+    assertEquals(99, pA.getNumPages());
+    assertEquals(10, pA.allocPage());
+    assertEquals(100, pA.allocPage());
+    pA.fetchPage(99);
+    pA.close();
+
+    // the repaired counts were written back
+    fc = new RandomAccessFile(tempFile, "r").getChannel();
+    bb.clear();
+    fc.read(bb, 0);
+    assertEquals(101, bb.getInt(0));
+    assertEquals(0, bb.getInt(4));
+    fc.close();
+  }
+
+  @Test
+  public void TestPageAllocatorAllocExtent() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    assertEquals(0, pA.allocExtent(10));
+    // the file is preallocated to hold the whole extent, but none of it is allocated yet
+    FileChannel fc = new RandomAccessFile(tempFile, "r").getChannel();
+    assertEquals(byteEstimate(9) + Page.pageSize, fc.size());
+    assertEquals(0, pA.getNumPages());
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i, pA.allocPage());
+    }
+    assertEquals(20, pA.getNumPages());
+
+    // a gap of two free pages only fits extents of up to two pages
+    assertTrue(pA.freePage(5));
+    assertTrue(pA.freePage(6));
+    assertEquals(20, pA.allocExtent(3));
+    assertEquals(5, pA.allocExtent(2));
+    assertEquals(5, pA.allocPage());
+    assertEquals(6, pA.allocPage());
+    assertEquals(20, pA.allocPage());
+    pA.close();
+    assertEquals(byteEstimate(22) + Page.pageSize, fc.size());
+    fc.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false);
+    assertEquals(21, pA.getNumPages());
+    assertEquals(21, pA.allocPage());
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorExtentsGrowGeometrically() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    pA.setMaxExtentPages(16);
+    assertEquals(0, pA.allocPage());
+    assertTrue(pA.freePage(0));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, pA.allocPage());
+    }
+    pA.close();
+    FileChannel fc = new RandomAccessFile(tempFile, "r").getChannel();
+    // the last extent reserved 16 pages, some of which are still unused
+    assertTrue(fc.size() >= byteEstimate(99) + Page.pageSize);
+    assertTrue(fc.size() <= byteEstimate(99 + 16) + Page.pageSize);
+    fc.close();
+  }
+
+  @Test
+  public void TestPageAllocatorExtentsAcrossSync() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    pA.setMaxExtentPages(16);
+    for (int i = 0; i < 40; i++) {
+      assertEquals(i, pA.allocPage());
+    }
+    assertTrue(pA.freePage(5));
+    pA.syncMetadata();
+    // extents are still reserved after the sync, so the one-page gap is skipped
+    for (int i = 40; i < 60; i++) {
+      assertEquals(i, pA.allocPage());
+    }
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorExtentSpansBatches() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    for (int i = 0; i < 10; i++) {
+      pA.allocPage();
+    }
+    assertTrue(pA.freePage(3));
+    // the extent outlives the metadata batches written while it is used up, so the hole at page 3
+    // is not filled halfway through
+    int first = pA.allocExtent(1200);
+    assertEquals(10, first);
+    for (int i = 0; i < 1200; i++) {
+      assertEquals(first + i, pA.allocPage());
+    }
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorPageSizes() throws IOException {
+    int[] sizes = new int[] {16384, 65536};
+    for (PageAllocator.Backend backend : PageAllocator.Backend.values()) {
+      if (backend == PageAllocator.Backend.MEMORY) {
+        // memory-resident files are never reopened
+        continue;
+      }
+      for (int size : sizes) {
+        File tempFile = new File(tempFolder.getRoot(), backend + "" + size + fName);
+        PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false,
+                                             PageAllocator.getSharedPageCache(), backend, size);
+        assertEquals(size, pA.getPageSize());
+        for (int i = 0; i < 20; i++) {
+          assertEquals(i, pA.allocPage());
+          Page p = pA.fetchPage(i);
+          assertEquals(size, p.getPageSize());
+          p.writeInt(0, i);
+          p.writeInt(size - 4, -i);
+        }
+        pA.close();
+        if (backend != PageAllocator.Backend.COMPRESSED) {
+          assertTrue(tempFile.length() >= 22L * size);
+        }
+
+        // the stored page size wins over the one asked for
+        pA = new PageAllocator(tempFile.getAbsolutePath(), false, false);
+        assertEquals(size, pA.getPageSize());
+        assertEquals(20, pA.getNumPages());
+        for (int i = 0; i < 20; i++) {
+          Page p = pA.fetchPage(i);
+          assertEquals(i, p.readInt(0));
+          assertEquals(-i, p.readInt(size - 4));
+        }
+        pA.close();
+
+        // wiping lays the file out again with the new page size
+        pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+        assertEquals(Page.pageSize, pA.getPageSize());
+        assertEquals(0, pA.getNumPages());
+        assertEquals(0, pA.allocPage());
+        pA.close();
+        pA = new PageAllocator(tempFile.getAbsolutePath(), false, false);
+        assertEquals(Page.pageSize, pA.getPageSize());
+        assertEquals(1, pA.getNumPages());
+        pA.close();
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void TestPageAllocatorRejectsBadPageSize() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    new PageAllocator(tempFile.getAbsolutePath(), true, false, PageAllocator.getSharedPageCache(),
+                      PageAllocator.Backend.MMAP, 6000);
+  }
+
+  @Test
+  public void TestPageAllocatorMixedPageSizesShareCache() throws IOException {
+    PageCache cache = new PageCache(64L * Page.pageSize, 1);
+    PageAllocator small = new PageAllocator(tempFolder.newFile("small" + fName).getAbsolutePath(), true,
+                                            false, cache, PageAllocator.Backend.CHANNEL);
+    PageAllocator large = new PageAllocator(tempFolder.newFile("large" + fName).getAbsolutePath(), true,
+                                            false, cache, PageAllocator.Backend.CHANNEL, 65536);
+    for (int i = 0; i < 40; i++) {
+      small.allocPage();
+      large.allocPage();
+      small.fetchPage(i).writeInt(0, i);
+      large.fetchPage(i).writeInt(65532, i);
+      // the cache is charged each page's own size
+      assertTrue(cache.getBytesUsed() <= cache.getBudget());
+    }
+    assertTrue(cache.getNumEvictions() > 0);
+    for (int i = 0; i < 40; i++) {
+      assertEquals(i, small.fetchPage(i).readInt(0));
+      assertEquals(i, large.fetchPage(i).readInt(65532));
+    }
+    small.close();
+    large.close();
+    assertEquals(0, cache.getBytesUsed());
+  }
+
+  @Test
+  public void TestPageAllocatorPrewarm() throws IOException {
+    File file = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(file.getAbsolutePath(), true, false, new PageCache(32L * Page.pageSize, 1),
+                                         PageAllocator.Backend.CHANNEL);
+    for (int i = 0; i < 100; i++) {
+      pA.allocPage();
+      pA.fetchPage(i).writeInt(0, i);
+    }
+    // pages 60 to 79 are the most recently used, so they are resident when the file is closed
+    for (int i = 60; i < 80; i++) {
+      assertEquals(i, pA.fetchPage(i).readInt(0));
+    }
+    pA.close();
+    assertTrue(new File(file.getAbsolutePath() + PageAllocator.HOT_LIST_EXTENSION).exists());
+
+    PageCache cache = new PageCache(32L * Page.pageSize, 1);
+    pA = new PageAllocator(file.getAbsolutePath(), false, false, cache, PageAllocator.Backend.CHANNEL);
+    assertTrue(pA.freePage(70));
+    int numLoaded = pA.prewarm();
+    assertTrue(numLoaded >= 19);
+    assertTrue(numLoaded <= 31);
+    long misses = cache.getNumMisses();
+    for (int i = 60; i < 80; i++) {
+      if (i != 70) {
+        assertEquals(i, pA.fetchPage(i).readInt(0));
+      }
+    }
+    assertEquals(misses, cache.getNumMisses());
+    pA.close();
+
+    // prewarm stops when the cache is full rather than evicting what it has read
+    cache = new PageCache(8L * Page.pageSize, 1);
+    pA = new PageAllocator(file.getAbsolutePath(), false, false, cache, PageAllocator.Backend.CHANNEL);
+    assertTrue(pA.prewarm() <= 8);
+    assertEquals(0, cache.getNumEvictions());
+    pA.close();
+
+    // wiping the file drops its list
+    pA = new PageAllocator(file.getAbsolutePath(), true, false, new PageCache(8L * Page.pageSize, 1),
+                           PageAllocator.Backend.CHANNEL);
+    assertEquals(0, pA.prewarm());
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorPinResidentRefetchesEvictedPage() throws IOException {
+    File file = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(file.getAbsolutePath(), true, false, new PageCache(4L * Page.pageSize, 1),
+                                         PageAllocator.Backend.CHANNEL);
+    for (int i = 0; i < 10; i++) {
+      pA.allocPage();
+      pA.fetchPage(i).writeInt(0, i);
+    }
+    Page first = pA.fetchPage(0);
+    for (int i = 1; i < 10; i++) {
+      pA.fetchPage(i);
+    }
+    assertFalse(first.pin());
+
+    Page resident = first.pinResident();
+    assertNotSame(first, resident);
+    assertTrue(resident.isPinned());
+    assertEquals(0, resident.readInt(0));
+    for (int i = 1; i < 10; i++) {
+      pA.fetchPage(i);
+    }
+    assertSame(resident, pA.fetchPage(0));
+    resident.unpin();
+
+    // a resident page is pinned in place
+    assertSame(resident, resident.pinResident());
+    resident.unpin();
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorSavesHotListPeriodically() throws IOException, InterruptedException {
+    File file = tempFolder.newFile(fName);
+    File hotList = new File(file.getAbsolutePath() + PageAllocator.HOT_LIST_EXTENSION);
+    long interval = PageAllocator.getHotListSaveMillis();
+    PageAllocator.setHotListSaveMillis(20);
+    try {
+      PageAllocator pA = new PageAllocator(file.getAbsolutePath(), true, false, new PageCache(32L * Page.pageSize, 1),
+                                           PageAllocator.Backend.CHANNEL);
+      for (int i = 0; i < 10; i++) {
+        pA.allocPage();
+        pA.fetchPage(i).writeInt(0, i);
+      }
+      // the list is saved while the file is open, and saved again after it is lost
+      for (int round = 0; round < 2; round++) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!hotList.exists() && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+        assertTrue(hotList.exists());
+        assertTrue(hotList.delete());
+      }
+      pA.close();
+
+      // a closed file is no longer saved
+      assertTrue(hotList.delete());
+      Thread.sleep(100);
+      assertFalse(hotList.exists());
+    } finally {
+      PageAllocator.setHotListSaveMillis(interval);
+    }
+  }
+
+  @Test
+  public void TestPageAllocatorIteratorReadsAhead() throws IOException, InterruptedException {
+    File file = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(file.getAbsolutePath(), true, false, new PageCache(512L * Page.pageSize, 1),
+                                         PageAllocator.Backend.CHANNEL);
+    for (int i = 0; i < 300; i++) {
+      pA.allocPage();
+      pA.fetchPage(i).writeInt(0, i);
+    }
+    for (int i = 0; i < 300; i += 7) {
+      assertTrue(pA.freePage(i));
+    }
+    pA.close();
+
+    PageCache cache = new PageCache(512L * Page.pageSize, 1);
+    pA = new PageAllocator(file.getAbsolutePath(), false, false, cache, PageAllocator.Backend.CHANNEL);
+    long misses = cache.getNumMisses();
+    Iterator<Page> iter = pA.iterator();
+    int expected = 1;
+    while (iter.hasNext()) {
+      Page p = iter.next();
+      assertEquals(expected, p.getPageNum());
+      assertEquals(expected, p.readInt(0));
+      expected += expected % 7 == 6 ? 2 : 1;
+      // leave the read-ahead time to get ahead of the scan
+      Thread.sleep(1);
+    }
+    assertEquals(300, expected);
+    assertTrue(cache.getNumMisses() - misses < 150);
+    pA.close();
+    assertTrue(pA.getNumPagesReadAhead() > 150);
+
+    // nothing is read ahead into a cache too small to hold a window
+    pA = new PageAllocator(file.getAbsolutePath(), false, false, new PageCache(4L * Page.pageSize, 1),
+                           PageAllocator.Backend.CHANNEL);
+    iter = pA.iterator();
+    while (iter.hasNext()) {
+      iter.next();
+    }
+    pA.close();
+    assertEquals(0, pA.getNumPagesReadAhead());
+  }
+
+  @Test
+  public void TestPageAllocatorReadOnly() throws IOException {
+    File file = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(file.getAbsolutePath(), true);
+    for (int i = 0; i < 50; i++) {
+      pA.allocPage();
+      pA.fetchPage(i).writeInt(0, i);
+    }
+    pA.freePage(10);
+    pA.close();
+    new File(file.getAbsolutePath() + PageAllocator.HOT_LIST_EXTENSION).delete();
+    long length = file.length();
+    long modified = file.lastModified();
+
+    pA = PageAllocator.openReadOnly(file.getAbsolutePath(), new PageCache(16L * Page.pageSize, 1));
+    assertTrue(pA.isReadOnly());
+    assertEquals(49, pA.getNumPages());
+    int count = 0;
+    for (Page p : pA) {
+      assertEquals(p.getPageNum(), p.readInt(0));
+      count++;
+    }
+    assertEquals(49, count);
+    try {
+      pA.allocPage();
+      fail("a read-only file should not allocate pages");
+    } catch (PageException e) {
+      // expected
+    }
+    try {
+      pA.freePage(5);
+      fail("a read-only file should not free pages");
+    } catch (PageException e) {
+      // expected
+    }
+    try {
+      pA.fetchPage(5).writeInt(0, 100);
+      fail("a read-only page should not be writable");
+    } catch (ReadOnlyBufferException e) {
+      // expected
+    }
+    pA.flush();
+    pA.close();
+    assertEquals(length, file.length());
+    assertEquals(modified, file.lastModified());
+    assertFalse(new File(file.getAbsolutePath() + PageAllocator.HOT_LIST_EXTENSION).exists());
+
+    try {
+      PageAllocator.openReadOnly(tempFolder.newFile("empty" + fName).getAbsolutePath(),
+                                 PageAllocator.getSharedPageCache());
+      fail("an empty file should not open read-only");
+    } catch (PageException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void TestPageAllocatorAsyncReads() throws IOException, InterruptedException, ExecutionException {
+    File file = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(file.getAbsolutePath(), true, false, new PageCache(512L * Page.pageSize, 1),
+                                         PageAllocator.Backend.CHANNEL);
+    for (int i = 0; i < 300; i++) {
+      pA.allocPage();
+      pA.fetchPage(i).writeInt(0, i);
+    }
+    pA.close();
+
+    PageCache cache = new PageCache(512L * Page.pageSize, 1);
+    pA = new PageAllocator(file.getAbsolutePath(), false, false, cache, PageAllocator.Backend.CHANNEL);
+    List<Integer> pageNums = new ArrayList<Integer>();
+    for (int i = 0; i < 200; i++) {
+      pageNums.add(i);
+    }
+    Collections.shuffle(pageNums, new Random(186));
+    assertEquals(200, pA.prefetch(pageNums));
+    // pages that are queued, being read or cached are not queued again
+    assertEquals(0, pA.prefetch(pageNums.subList(0, 10)));
+    for (int i = 0; i < 200; i++) {
+      assertEquals(i, pA.fetchPage(i).readInt(0));
+    }
+    // the random requests were merged into runs of adjacent blocks
+    assertEquals(200, pA.getNumPagesReadAsync());
+    assertTrue(pA.getNumAsyncReads() < 50);
+
+    Future<Page> f = pA.fetchPageAsync(250);
+    assertEquals(250, f.get().readInt(0));
+    assertEquals(250, f.get().getPageNum());
+    // a cached page completes at once
+    assertTrue(pA.fetchPageAsync(250).isDone());
+    pA.close();
+  }
 }
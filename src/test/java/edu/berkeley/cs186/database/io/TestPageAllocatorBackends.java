@@ -0,0 +1,379 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import java.nio.channels.FileChannel;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests PageAllocator with the CHANNEL I/O backend, and compares the I/O it does against MMAP on a
+ * scan-heavy and an update-heavy workload.
+ */
+public class TestPageAllocatorBackends {
+  private final String fName = "TestPageAllocatorBackends.temp";
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(60); // 60 seconds max per method tested
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void TestChannelBackendRoundTrip() throws IOException {
+    for (boolean durable : new boolean[] {false, true}) {
+      File tempFile = tempFolder.newFile(durable + fName);
+      PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, durable, new PageCache(64L * Page.pageSize, 4),
+                                           PageAllocator.Backend.CHANNEL);
+      writePages(pA, 300);
+      checkPages(pA, 0, 300);
+      pA.close();
+
+      pA = new PageAllocator(tempFile.getAbsolutePath(), false, durable, new PageCache(64L * Page.pageSize, 4),
+                             PageAllocator.Backend.CHANNEL);
+      assertEquals(300, pA.getNumPages());
+      checkPages(pA, 0, 300);
+      pA.close();
+
+      // the file written through the channel backend reads back the same with mmap
+      pA = new PageAllocator(tempFile.getAbsolutePath(), false, durable);
+      checkPages(pA, 0, 300);
+      pA.close();
+    }
+  }
+
+  @Test
+  public void TestChannelBackendFree() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false,
+                                         PageAllocator.Backend.CHANNEL);
+    writePages(pA, 10);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(pA.freePage(i));
+      assertFalse(pA.freePage(i));
+    }
+    pA.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, PageAllocator.Backend.CHANNEL);
+    assertEquals(5, pA.getNumPages());
+    for (int i = 0; i < 5; i++) {
+      try {
+        pA.fetchPage(i);
+        fail("freed page " + i + " should not be fetchable");
+      } catch (PageException e) {
+        // expected
+      }
+    }
+    checkPages(pA, 5, 10);
+    assertEquals(0, pA.allocPage());
+    pA.close();
+  }
+
+  @Test
+  public void TestChannelBackendStalePageForwards() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageCache cache = new PageCache(4L * Page.pageSize, 1);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, cache,
+                                         PageAllocator.Backend.CHANNEL);
+    writePages(pA, 20);
+    Page stale = pA.fetchPage(0);
+    checkPages(pA, 1, 20);
+    assertNotSame(stale, pA.getPageCache().get(((long) 0) << 32));
+
+    // page 0 has been evicted and its frame reused, but the old reference still sees page 0
+    assertEquals(5, stale.readInt(5*4));
+    stale.writeInt(0, -1);
+    assertEquals(-1, pA.fetchPage(0).readInt(0));
+    pA.close();
+  }
+
+  /**
+   * Rewrites the whole of page 0 and reads it back while another thread fetches other pages
+   * through the same four-page cache, so that page 0 is evicted again and again under the writes.
+   * No write may be lost to an eviction, or land in a frame that has been handed to another page.
+   */
+  @Test
+  public void TestChannelBackendAccessDuringEviction() throws Exception {
+    File tempFile = tempFolder.newFile(fName);
+    PageCache cache = new PageCache(4L * Page.pageSize, 1);
+    final PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, cache,
+                                               PageAllocator.Backend.CHANNEL);
+    writePages(pA, 20);
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicInteger corrupted = new AtomicInteger(0);
+    Thread scanner = new Thread(new Runnable() {
+      public void run() {
+        while (!done.get()) {
+          for (int i = 1; i < 20; i++) {
+            if (pA.fetchPage(i).readInt(4) != i*1024 + 1) {
+              corrupted.incrementAndGet();
+            }
+          }
+        }
+      }
+    });
+    scanner.start();
+    int lost = 0;
+    byte[] bytes = new byte[Page.pageSize];
+    ByteBuffer written = ByteBuffer.wrap(bytes);
+    try {
+      for (int i = 0; i < 100000; i++) {
+        for (int j = 0; j < Page.pageSize; j += 4) {
+          written.putInt(j, i);
+        }
+        pA.fetchPage(0).writeBytes(0, Page.pageSize, bytes);
+        if (!Arrays.equals(bytes, pA.fetchPage(0).readBytes())) {
+          lost++;
+        }
+      }
+    } finally {
+      done.set(true);
+      scanner.join();
+    }
+    assertEquals(0, lost);
+    assertEquals(0, corrupted.get());
+    pA.close();
+  }
+
+  /**
+   * Caches page 0 of pA dirty, holding 42, in a frame whose write back blocks until release is
+   * counted down, and fetches page 1 on another thread, which evicts page 0 from the one-page cache.
+   *
+   * @return the evicting thread, once the write back of page 0 has started
+   */
+  private Thread startBlockedWriteBack(final PageAllocator pA, FileChannel fc,
+                                       final CountDownLatch release) throws InterruptedException {
+    final CountDownLatch writing = new CountDownLatch(1);
+    ChannelBacking blocking = new ChannelBacking(fc) {
+      public void flush(ByteBuffer data, long position, boolean durable) {
+        writing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new PageException(e.getMessage());
+        }
+        super.flush(data, position, durable);
+      }
+    };
+    // the first data page of a file is its third block
+    Page p = blocking.newPage(2, 0, false, null);
+    p.writeInt(0, 42);
+    assertSame(p, pA.getPageCache().putIfAbsent(pA.translatePageNum(0), p));
+
+    Thread evicter = new Thread(new Runnable() {
+      public void run() {
+        pA.fetchPage(1);
+      }
+    });
+    evicter.start();
+    writing.await();
+    return evicter;
+  }
+
+  private PageAllocator twoPageChannelFile(File tempFile) {
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false,
+                                         new PageCache(Page.pageSize, 1), PageAllocator.Backend.CHANNEL);
+    assertEquals(0, pA.allocPage());
+    assertEquals(1, pA.allocPage());
+    pA.flush();
+    return pA;
+  }
+
+  @Test
+  public void TestChannelBackendRefetchDuringWriteBack() throws Exception {
+    File tempFile = tempFolder.newFile(fName);
+    final PageAllocator pA = twoPageChannelFile(tempFile);
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    CountDownLatch release = new CountDownLatch(1);
+    Thread evicter = startBlockedWriteBack(pA, fc, release);
+
+    final AtomicInteger value = new AtomicInteger(-1);
+    Thread fetcher = new Thread(new Runnable() {
+      public void run() {
+        value.set(pA.fetchPage(0).readInt(0));
+      }
+    });
+    fetcher.start();
+    fetcher.join(200);
+    assertTrue("the fetch should wait for the write back", fetcher.isAlive());
+
+    release.countDown();
+    evicter.join();
+    fetcher.join();
+    assertEquals(42, value.get());
+    assertEquals(42, pA.fetchPage(0).readInt(0));
+    pA.close();
+    fc.close();
+  }
+
+  @Test
+  public void TestChannelBackendAsyncReadDuringWriteBack() throws Exception {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = twoPageChannelFile(tempFile);
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    CountDownLatch release = new CountDownLatch(1);
+    Thread evicter = startBlockedWriteBack(pA, fc, release);
+
+    // the scheduler reads the old bytes of page 0, which are refused and read again after the write
+    Future<Page> f = pA.fetchPageAsync(0);
+    Thread.sleep(200);
+    assertFalse("the read should wait for the write back", f.isDone());
+
+    release.countDown();
+    evicter.join();
+    assertEquals(42, f.get().readInt(0));
+    pA.close();
+    fc.close();
+  }
+
+  @Test
+  public void TestChannelBackendCountsDiskIO() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, new PageCache(64L * Page.pageSize, 4),
+                                         PageAllocator.Backend.CHANNEL);
+    writePages(pA, 10);
+    long reads = PageAllocator.getNumDiskReads();
+    long writes = PageAllocator.getNumDiskWrites();
+    checkPages(pA, 0, 10);
+    assertEquals(reads, PageAllocator.getNumDiskReads());
+    pA.close();
+    // the ten adjacent dirty data pages are coalesced into one write on close, then the master page
+    assertTrue(PageAllocator.getNumDiskWrites() - writes >= 2);
+  }
+
+  @Test
+  public void TestChannelBackendForcesLogBeforeWriteBack() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    final FileChannel fc = new RandomAccessFile(tempFile, "r").getChannel();
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false,
+                                         new PageCache(4L * Page.pageSize, 1),
+                                         PageAllocator.Backend.CHANNEL);
+    assertEquals(0, pA.allocPage());
+    // the first data page of a file is its third block
+    final long position = 2L * Page.pageSize;
+    final long[] forcedLSN = {-1};
+    final int[] onDiskWhenForced = {-1};
+    pA.setLog(new PageLog() {
+      public void force(long lsn) {
+        ByteBuffer bb = ByteBuffer.allocate(4);
+        try {
+          fc.read(bb, position);
+        } catch (IOException e) {
+          throw new PageException(e.getMessage());
+        }
+        forcedLSN[0] = lsn;
+        onDiskWhenForced[0] = bb.getInt(0);
+      }
+    });
+
+    Page p = pA.fetchPage(0);
+    p.setLSN(41);
+    p.setLSN(42);
+    p.setLSN(40);
+    p.writeInt(0, 99);
+    for (int i = 1; i < 8; i++) {
+      pA.fetchPage(pA.allocPage());
+    }
+
+    // page 0 was evicted: the log was forced up to its last change before the page was written
+    assertEquals(42, forcedLSN[0]);
+    assertEquals(0, onDiskWhenForced[0]);
+    assertEquals(99, pA.fetchPage(0).readInt(0));
+    assertEquals(-1, pA.fetchPage(0).getLSN());
+    pA.close();
+    fc.close();
+  }
+
+  @Test
+  public void TestChannelBackendFileSize() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false,
+                                         PageAllocator.Backend.CHANNEL);
+    writePages(pA, 10);
+    pA.close();
+    FileChannel fc = new RandomAccessFile(tempFile, "r").getChannel();
+    assertEquals(Page.pageSize * 12L, fc.size());
+    fc.close();
+  }
+
+  /**
+   * Runs a sequential scan and a random update workload over a cache much smaller than the file
+   * on both backends. CHANNEL pays one counted read per cache miss, while MMAP leaves reads to
+   * the kernel and counts none; either way, every update must survive eviction.
+   */
+  @Test
+  public void TestBackendWorkloads() throws IOException {
+    int numPages = 2000;
+    PageAllocator.Backend[] backends = {PageAllocator.Backend.MMAP, PageAllocator.Backend.CHANNEL};
+    for (PageAllocator.Backend backend : backends) {
+      File tempFile = tempFolder.newFile(backend + fName);
+      PageCache cache = new PageCache(256L * Page.pageSize);
+      PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, cache, backend);
+      writePages(pA, numPages);
+
+      pA.getIOStats().reset();
+      for (int pass = 0; pass < 3; pass++) {
+        checkPages(pA, 0, numPages);
+      }
+      IOStats stats = pA.getIOStats();
+      assertEquals(backend.toString(), 3 * numPages, stats.getNumHits() + stats.getNumMisses());
+      if (backend == PageAllocator.Backend.CHANNEL) {
+        assertEquals(stats.getNumMisses(), stats.getNumDiskReads());
+      } else {
+        assertEquals(0, stats.getNumDiskReads());
+      }
+
+      int page = 17;
+      for (int i = 0; i < 3 * numPages; i++) {
+        page = (page * 31 + 7) % numPages;
+        Page p = pA.fetchPage(page);
+        p.writeInt(4, p.readInt(4) + 1);
+      }
+      pA.close();
+
+      pA = new PageAllocator(tempFile.getAbsolutePath(), false, false);
+      long updates = 0;
+      for (int i = 0; i < numPages; i++) {
+        updates += pA.fetchPage(i).readInt(4) - (i*1024 + 1);
+      }
+      assertEquals(backend.toString(), 3 * numPages, updates);
+      pA.close();
+    }
+  }
+
+  /**
+   * Fills the first numPages pages of pA, allocating those past its end, so that int j of page i
+   * holds i*1024 + j.
+   */
+  private static void writePages(PageAllocator pA, int numPages) {
+    for (int i = 0; i < numPages; i++) {
+      if (i >= pA.getNumPages()) {
+        assertEquals(i, pA.allocPage());
+      }
+      Page p = pA.fetchPage(i);
+      for (int j = 0; j < 1024; j++) {
+        p.writeInt(j*4, i*1024 + j);
+      }
+    }
+  }
+
+  private static void checkPages(PageAllocator pA, int from, int to) {
+    for (int i = from; i < to; i++) {
+      Page p = pA.fetchPage(i);
+      assertEquals(i, p.getPageNum());
+      for (int j = 0; j < 1024; j++) {
+        assertEquals(i*1024 + j, p.readInt(j*4));
+      }
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import org.junit.rules.TemporaryFolder;
+import java.nio.channels.FileChannel;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tests the sharded PageCache buffer pool, including pinning and write-back.
+ */
+public class TestPageCache {
+  private final String fName = "TestPageCache.temp";
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(30); // 30 seconds max per method tested
+
+  private static long vPage(int allocID, int pageNum) {
+    return (((long) allocID) << 32) | (((long) pageNum) & 0xFFFFFFFFL);
+  }
+
+  private static long pages(int n) {
+    return ((long) n) * Page.pageSize;
+  }
+
+  private FileChannel newChannel() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    return new RandomAccessFile(tempFile, "rw").getChannel();
+  }
+
+  private Page[] newPages(int n, boolean durable) throws IOException {
+    FileChannel fc = newChannel();
+    Page[] result = new Page[n];
+    for (int i = 0; i < n; i++) {
+      result[i] = new Page(fc, i, i, durable);
+    }
+    return result;
+  }
+
+  private Page[] newPages(int n) throws IOException {
+    return newPages(n, false);
+  }
+
+  @Test
+  public void TestPageCacheCapacity() throws IOException {
+    Page[] p = newPages(1000);
+    PageCache cache = new PageCache(pages(64), 4);
+    for (int i = 0; i < 1000; i++) {
+      cache.putIfAbsent(vPage(0, i), p[i]);
+      assertTrue(cache.size() <= 64);
+      assertTrue(cache.getBytesUsed() <= cache.getBudget());
+    }
+    assertEquals(64, cache.size());
+    assertEquals(1000 - 64, cache.getNumEvictions());
+  }
+
+  @Test
+  public void TestPageCachePutIfAbsent() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    Page p = new Page(fc, 0, 0, false);
+    Page q = new Page(fc, 1, 1, false);
+    PageCache cache = new PageCache(pages(16), 1);
+    assertSame(p, cache.putIfAbsent(vPage(0, 1), p));
+    assertSame(p, cache.putIfAbsent(vPage(0, 1), q));
+    assertSame(p, cache.get(vPage(0, 1)));
+    assertSame(p, cache.remove(vPage(0, 1)));
+    assertNull(cache.get(vPage(0, 1)));
+  }
+
+  @Test
+  public void TestPageCacheLRUWithinShard() throws IOException {
+    Page[] p = newPages(5);
+    PageCache cache = new PageCache(pages(4), 1);
+    for (int i = 0; i < 4; i++) {
+      cache.putIfAbsent(vPage(0, i), p[i]);
+    }
+    assertNotNull(cache.get(vPage(0, 0)));
+    cache.putIfAbsent(vPage(0, 4), p[4]);
+    assertNotNull(cache.get(vPage(0, 0)));
+    assertNull(cache.get(vPage(0, 1)));
+  }
+
+  @Test
+  public void TestPageCacheRemoveAll() throws IOException {
+    Page[] p = newPages(200);
+    PageCache cache = new PageCache(pages(1024));
+    for (int i = 0; i < 100; i++) {
+      cache.putIfAbsent(vPage(1, i), p[i]);
+      cache.putIfAbsent(vPage(2, i), p[100 + i]);
+    }
+    List<Page> removed = cache.removeAll(1);
+    assertEquals(100, removed.size());
+    assertEquals(100, cache.size());
+    for (int i = 0; i < 100; i++) {
+      assertNull(cache.get(vPage(1, i)));
+      assertNotNull(cache.get(vPage(2, i)));
+    }
+  }
+
+  @Test
+  public void TestPageCacheHitDoesNotBlockOnShardLock() throws Exception {
+    Page p = newPages(1)[0];
+    final PageCache cache = new PageCache(pages(64), 4);
+    final long key = vPage(0, 7);
+    cache.putIfAbsent(key, p);
+
+    final ReentrantLock shardLock = cache.getShardLock(key);
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread holder = new Thread(new Runnable() {
+      public void run() {
+        shardLock.lock();
+        try {
+          locked.countDown();
+          done.await();
+        } catch (InterruptedException e) {
+          // fall through and release
+        } finally {
+          shardLock.unlock();
+        }
+      }
+    });
+    holder.start();
+    assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+    for (int i = 0; i < 1000; i++) {
+      assertSame(p, cache.get(key));
+    }
+
+    done.countDown();
+    holder.join();
+  }
+
+  @Test
+  public void TestPageCacheConcurrentMisses() throws Exception {
+    final FileChannel fc = newChannel();
+    final PageCache cache = new PageCache(pages(256));
+    int numThreads = 8;
+    Thread[] threads = new Thread[numThreads];
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    for (int t = 0; t < numThreads; t++) {
+      final int seed = t;
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < 5000; i++) {
+            int pageNum = (i * 31 + seed) % 1000;
+            long key = vPage(seed % 2, pageNum);
+            int blockNum = (seed % 2) * 1000 + pageNum;
+            Page resident = cache.get(key);
+            if (resident == null) {
+              resident = cache.putIfAbsent(key, new Page(fc, blockNum, blockNum, false));
+            }
+            if (resident.getPageNum() != blockNum) {
+              failed.set(true);
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertFalse(failed.get());
+    assertTrue(cache.size() <= 256);
+  }
+
+  @Test
+  public void TestPageCachePinnedPagesAreNotEvicted() throws IOException {
+    Page[] p = newPages(8);
+    PageCache cache = new PageCache(pages(4), 1);
+    for (int i = 0; i < 4; i++) {
+      cache.putIfAbsent(vPage(0, i), p[i]);
+    }
+    assertTrue(p[0].pin());
+    assertTrue(p[1].pin());
+    for (int i = 4; i < 8; i++) {
+      cache.putIfAbsent(vPage(0, i), p[i]);
+    }
+    assertSame(p[0], cache.get(vPage(0, 0)));
+    assertSame(p[1], cache.get(vPage(0, 1)));
+    assertNull(cache.get(vPage(0, 2)));
+    assertEquals(4, cache.size());
+
+    // an evicted page can no longer be pinned, so callers know to fetch it again
+    assertFalse(p[2].pin());
+
+    p[0].unpin();
+    p[1].unpin();
+    assertFalse(p[0].isPinned());
+  }
+
+  @Test(expected = PageException.class)
+  public void TestPageCacheAllPinned() throws IOException {
+    Page[] p = newPages(3);
+    PageCache cache = new PageCache(pages(2), 1);
+    for (int i = 0; i < 2; i++) {
+      cache.putIfAbsent(vPage(0, i), p[i]);
+      assertTrue(p[i].pin());
+    }
+    cache.putIfAbsent(vPage(0, 2), p[2]);
+  }
+
+  @Test(expected = PageException.class)
+  public void TestPageUnpinWithoutPin() throws IOException {
+    newPages(1)[0].unpin();
+  }
+
+  @Test
+  public void TestPageCacheWritesBackOnlyDirtyPages() throws IOException {
+    Page[] p = newPages(4, true);
+    PageCache cache = new PageCache(pages(2), 1);
+    cache.putIfAbsent(vPage(0, 0), p[0]);
+    cache.putIfAbsent(vPage(0, 1), p[1]);
+    p[1].writeByte(0, (byte) 7);
+    assertFalse(p[0].isDirty());
+    assertTrue(p[1].isDirty());
+
+    cache.putIfAbsent(vPage(0, 2), p[2]);
+    cache.putIfAbsent(vPage(0, 3), p[3]);
+    assertEquals(2, cache.getNumEvictions());
+    assertEquals(1, cache.getNumWriteBacks());
+    assertFalse(p[1].isDirty());
+  }
+
+  @Test
+  public void TestPageCacheShrinkBudget() throws IOException {
+    Page[] p = newPages(8);
+    PageCache cache = new PageCache(pages(8), 1);
+    for (int i = 0; i < 8; i++) {
+      cache.putIfAbsent(vPage(0, i), p[i]);
+    }
+    assertTrue(p[0].pin());
+    cache.setBudget(pages(2));
+    assertEquals(pages(2), cache.getBudget());
+    assertEquals(2, cache.size());
+    assertSame(p[0], cache.get(vPage(0, 0)));
+    assertSame(p[7], cache.get(vPage(0, 7)));
+    p[0].unpin();
+  }
+
+  @Test
+  public void TestPageCacheSmallBudgetHasFewerShards() throws IOException {
+    PageCache cache = new PageCache(pages(5), 16);
+    assertEquals(4, cache.getNumShards());
+    assertEquals(pages(5), cache.getBudget());
+
+    // the shares of the shards add up to the budget, so no more than five pages are cached
+    Page[] p = newPages(100);
+    for (int i = 0; i < 100; i++) {
+      cache.putIfAbsent(vPage(0, i), p[i]);
+      assertTrue(cache.getBytesUsed() <= pages(5));
+    }
+
+    cache.setBudget(pages(4) + 100);
+    assertEquals(pages(4) + 100, cache.getBudget());
+    try {
+      cache.setBudget(pages(3));
+      fail("a budget of fewer pages than shards should be refused");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(pages(4) + 100, cache.getBudget());
+  }
+}
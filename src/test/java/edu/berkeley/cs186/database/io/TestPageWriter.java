@@ -0,0 +1,157 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests the background PageWriter: coalescing of adjacent pages, write-back in file order, and
+ * keeping eviction from having to write dirty pages itself.
+ */
+public class TestPageWriter {
+  private final String fName = "TestPageWriter.temp";
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(60); // 60 seconds max per method tested
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private PageAllocator newAllocator(PageCache cache, boolean durable) throws IOException {
+    File tempFile = tempFolder.newFile(durable + fName);
+    return new PageAllocator(tempFile.getAbsolutePath(), true, durable, cache,
+                             PageAllocator.Backend.CHANNEL);
+  }
+
+  @Test
+  public void TestPageWriterCoalescesAdjacentPages() throws IOException {
+    PageCache cache = new PageCache(1024L * Page.pageSize, 4);
+    PageWriter writer = new PageWriter(cache, PageWriter.defaultIntervalMillis);
+    PageAllocator pA = newAllocator(cache, false);
+    for (int i = 0; i < 100; i++) {
+      pA.allocPage();
+    }
+    writePages(pA, 0, 100, 0);
+    assertEquals(100, cache.getDirtyPages().size());
+
+    // the data pages of the first header page are contiguous in the file
+    assertEquals(2, writer.writeDirtyPages());
+    assertEquals(100, writer.getNumPagesWritten());
+    assertEquals(2, writer.getNumWrites());
+    assertEquals(0, writer.getQueueDepth());
+    assertTrue(writer.getPagesPerSecond() > 0);
+    assertEquals(0, cache.getDirtyPages().size());
+    assertEquals(0, writer.writeDirtyPages());
+
+    // every other page is dirty, so no two dirty pages are adjacent
+    for (int i = 0; i < 100; i += 2) {
+      pA.fetchPage(i).writeInt(0, -i);
+    }
+    assertEquals(50, writer.writeDirtyPages());
+    pA.close();
+  }
+
+  @Test
+  public void TestPageWriterWritesCurrentData() throws IOException {
+    for (boolean durable : new boolean[] {false, true}) {
+      PageCache cache = new PageCache(64L * Page.pageSize, 4);
+      PageWriter writer = cache.startWriter(1);
+      PageAllocator pA = newAllocator(cache, durable);
+      for (int i = 0; i < 300; i++) {
+        pA.allocPage();
+      }
+      writePages(pA, 0, 300, 0);
+      writePages(pA, 0, 300, 7);
+      cache.stopWriter();
+      assertFalse(writer.isRunning());
+      checkPages(pA, 0, 300, 7);
+      pA.close();
+
+      File tempFile = new File(tempFolder.getRoot(), durable + fName);
+      pA = new PageAllocator(tempFile.getAbsolutePath(), false, durable, new PageCache(64L * Page.pageSize),
+                             PageAllocator.Backend.CHANNEL);
+      checkPages(pA, 0, 300, 7);
+      pA.close();
+    }
+  }
+
+  @Test
+  public void TestPageWriterRunsAheadOfEviction() throws IOException {
+    PageCache cache = new PageCache(64L * Page.pageSize, 1);
+    PageAllocator pA = newAllocator(cache, false);
+    for (int i = 0; i < 64; i++) {
+      pA.allocPage();
+    }
+    writePages(pA, 0, 64, 0);
+    for (int i = 64; i < 128; i++) {
+      pA.allocPage();
+    }
+    long foreground = cache.getNumWriteBacks();
+    assertTrue(foreground > 0);
+
+    // with the writer draining the cache first, scanning new pages evicts only clean pages
+    PageWriter writer = cache.startWriter();
+    writePages(pA, 64, 128, 0);
+    writer.writeDirtyPages();
+    cache.resetStats();
+    for (int i = 128; i < 192; i++) {
+      pA.allocPage();
+    }
+    assertEquals(0, cache.getNumWriteBacks());
+    assertTrue(cache.getNumEvictions() > 0);
+    cache.stopWriter();
+    checkPages(pA, 64, 128, 0);
+    pA.close();
+  }
+
+  @Test
+  public void TestPageWriterIsWokenByDirtyEviction() throws IOException, InterruptedException {
+    PageCache cache = new PageCache(16L * Page.pageSize, 1);
+    PageWriter writer = cache.startWriter(60000);
+    PageAllocator pA = newAllocator(cache, false);
+    for (int i = 0; i < 32; i++) {
+      pA.allocPage();
+      pA.fetchPage(i).writeInt(0, i);
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (writer.getNumPasses() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertTrue(writer.getNumPasses() > 0);
+    cache.stopWriter();
+    for (int i = 0; i < 32; i++) {
+      assertEquals(i, pA.fetchPage(i).readInt(0));
+    }
+    pA.close();
+  }
+
+  /**
+   * Fills pages from through to - 1 of pA, allocating those past its end, so that int j of page i
+   * holds value + i*1024 + j.
+   */
+  private static void writePages(PageAllocator pA, int from, int to, int value) {
+    for (int i = from; i < to; i++) {
+      if (i >= pA.getNumPages()) {
+        assertEquals(i, pA.allocPage());
+      }
+      Page p = pA.fetchPage(i);
+      for (int j = 0; j < 1024; j++) {
+        p.writeInt(j*4, value + i*1024 + j);
+      }
+    }
+  }
+
+  private static void checkPages(PageAllocator pA, int from, int to, int value) {
+    for (int i = from; i < to; i++) {
+      Page p = pA.fetchPage(i);
+      assertEquals(i, p.getPageNum());
+      for (int j = 0; j < 1024; j++) {
+        assertEquals(value + i*1024 + j, p.readInt(j*4));
+      }
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package edu.berkeley.cs186.database.log;
+
+import edu.berkeley.cs186.database.table.RecordID;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+
+public class TestWriteAheadLog {
+  private String fName;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(10); // 10 seconds max per method tested
+
+  @Before
+  public void beforeEach() throws Exception {
+    this.fName = new File(tempFolder.newFolder("testLog"), WriteAheadLog.FILENAME).getPath();
+  }
+
+  @Test
+  public void testAppendAndRead() {
+    WriteAheadLog log = new WriteAheadLog(this.fName);
+    byte[] before = new byte[] {1, 2, 3};
+    byte[] after = new byte[] {4, 5};
+    long lsn1 = log.append(LogRecord.insert(7, "t", new RecordID(1, 2), after));
+    long lsn2 = log.append(LogRecord.update(7, "t", new RecordID(1, 2), before, after));
+    long lsn3 = log.append(LogRecord.delete(8, "u", new RecordID(3, 0), before));
+    assertEquals(0, lsn1);
+    assertTrue(lsn2 > lsn1 && lsn3 > lsn2);
+
+    LogRecord r = log.read(lsn2);
+    assertEquals(LogRecord.Type.UPDATE, r.getType());
+    assertEquals(lsn2, r.getLSN());
+    assertEquals(7, r.getTransNum());
+    assertEquals("t", r.getTableName());
+    assertEquals(new RecordID(1, 2), r.getRecordID());
+    assertArrayEquals(before, r.getUndoImage());
+    assertArrayEquals(after, r.getRedoImage());
+    assertEquals(lsn1, r.getPrevLSN());
+    assertEquals(-1, log.read(lsn3).getPrevLSN());
+    assertNull(log.read(lsn1).getUndoImage());
+    assertEquals(lsn2, log.getLastLSN(7));
+
+    Iterator<LogRecord> iter = log.iterator(0);
+    assertEquals(lsn1, iter.next().getLSN());
+    assertEquals(lsn2, iter.next().getLSN());
+    assertEquals(lsn3, iter.next().getLSN());
+    assertFalse(iter.hasNext());
+    log.close();
+  }
+
+  @Test
+  public void testCommit() {
+    WriteAheadLog log = new WriteAheadLog(this.fName);
+    assertFalse(log.commit(1));
+    assertEquals(0, log.getNumForces());
+
+    log.append(LogRecord.insert(1, "t", new RecordID(1, 0), new byte[] {1}));
+    assertTrue(log.commit(1));
+    assertEquals(1, log.getNumForces());
+    assertEquals(-1, log.getLastLSN(1));
+    assertFalse(log.commit(1));
+    long size = log.size();
+    log.close();
+
+    log = new WriteAheadLog(this.fName);
+    assertEquals(size, log.size());
+    Iterator<LogRecord> iter = log.iterator(0);
+    assertEquals(LogRecord.Type.INSERT, iter.next().getType());
+    assertEquals(LogRecord.Type.COMMIT, iter.next().getType());
+    assertFalse(iter.hasNext());
+    log.close();
+  }
+
+  @Test
+  public void testTornTail() throws Exception {
+    WriteAheadLog log = new WriteAheadLog(this.fName);
+    log.append(LogRecord.insert(1, "t", new RecordID(1, 0), new byte[] {1}));
+    long lsn = log.append(LogRecord.insert(1, "t", new RecordID(1, 1), new byte[] {2}));
+    long size = log.size();
+    log.close();
+
+    RandomAccessFile f = new RandomAccessFile(this.fName, "rw");
+    f.setLength(size - 3);
+    f.close();
+
+    log = new WriteAheadLog(this.fName);
+    assertEquals(lsn, log.size());
+    assertEquals(lsn, new File(this.fName).length());
+    long next = log.append(LogRecord.insert(1, "t", new RecordID(1, 2), new byte[] {3}));
+    assertEquals(lsn, next);
+    assertEquals(new RecordID(1, 2), log.read(next).getRecordID());
+    log.close();
+  }
+
+  @Test
+  public void testCheckpoint() {
+    WriteAheadLog log = new WriteAheadLog(this.fName);
+    final int[] numFlushes = new int[1];
+    Runnable flush = new Runnable() {
+      public void run() {
+        numFlushes[0]++;
+      }
+    };
+
+    log.append(LogRecord.insert(1, "t", new RecordID(1, 0), new byte[] {1}));
+    log.append(LogRecord.insert(2, "t", new RecordID(1, 1), new byte[] {2}));
+    log.commit(1);
+    assertFalse(log.checkpoint(flush));
+    Iterator<LogRecord> iter = log.iterator(0);
+    LogRecord last = null;
+    while (iter.hasNext()) {
+      last = iter.next();
+    }
+    assertEquals(LogRecord.Type.CHECKPOINT, last.getType());
+
+    long lsn = log.append(LogRecord.compensation(log.read(log.getLastLSN(2)), -1));
+    assertEquals(LogRecord.Type.COMPENSATION, log.read(lsn).getType());
+    assertEquals(-1, log.read(lsn).getUndoNextLSN());
+    log.append(LogRecord.abort(2));
+    assertTrue(log.checkpoint(flush));
+    assertEquals(2, numFlushes[0]);
+    assertEquals(0, log.size());
+    assertFalse(log.iterator(0).hasNext());
+    log.close();
+  }
+}
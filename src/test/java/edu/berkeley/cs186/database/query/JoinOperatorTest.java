@@ -380,6 +380,43 @@ public class JoinOperatorTest {
     assertTrue(count == 165888);
   }
 
+  @Test(timeout=5000)
+  public void testBNLJUnpinsBlockOfAbandonedIterator() throws QueryPlanException, DatabaseException, IOException {
+    File tempDir = tempFolder.newFolder("joinTest");
+    Database d = new Database(tempDir.getAbsolutePath(), 5);
+    Database.Transaction transaction = d.beginTransaction();
+    d.createTable(TestUtils.createSchemaWithAllTypes(), "leftTable");
+    d.createTable(TestUtils.createSchemaWithAllTypes(), "rightTable");
+    List<DataType> vals = TestUtils.createRecordWithAllTypesWithValue(1).getValues();
+    for (int i = 0; i < 288 * 4; i++) {
+      transaction.addRecord("leftTable", vals);
+    }
+    transaction.addRecord("rightTable", vals);
+
+    QueryOperator s1 = new SequentialScanOperator(transaction, "leftTable");
+    QueryOperator s2 = new SequentialScanOperator(transaction, "rightTable");
+    QueryOperator joinOperator = new BNLJOperator(s1, s2, "int", "int", transaction);
+    Iterator<Record> outputIterator = joinOperator.iterator();
+    assertTrue(outputIterator.hasNext());
+    outputIterator.next();
+
+    // the first block of three left pages stays pinned while the iterator is open
+    Iterator<Page> pages = transaction.getPageIterator("leftTable");
+    pages.next();
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i < 3, pages.next().isPinned());
+    }
+    transaction.end();
+
+    transaction = d.beginTransaction();
+    pages = transaction.getPageIterator("leftTable");
+    while (pages.hasNext()) {
+      assertFalse(pages.next().isPinned());
+    }
+    transaction.end();
+    d.close();
+  }
+
   @Test(timeout=5000)
   public void testBNLJOutputOrderUsingOneBuffer() throws QueryPlanException, DatabaseException, IOException {
     File tempDir = tempFolder.newFolder("joinTest");
@@ -762,4 +799,26 @@ public class JoinOperatorTest {
     assertTrue(count == 82944);
 
   }
+
+  @Test(timeout=10000)
+  public void testJoinIOStats() throws QueryPlanException, DatabaseException, IOException {
+    TestSourceOperator sourceOperator = new TestSourceOperator(100);
+    File tempDir = tempFolder.newFolder("joinTest");
+    Database.Transaction transaction = new Database(tempDir.getAbsolutePath()).beginTransaction();
+    JoinOperator joinOperator = new PNLJOperator(sourceOperator, sourceOperator, "int", "int", transaction);
+
+    Iterator<Record> outputIterator = joinOperator.trackedIterator();
+    int numRecords = 0;
+    while (outputIterator.hasNext()) {
+      outputIterator.next();
+      numRecords++;
+    }
+    assertEquals(100*100, numRecords);
+
+    // the sources are in memory, so all page fetches are the join's own, of its temp tables
+    assertEquals(0, sourceOperator.getIOStats().getNumFetches());
+    assertTrue(joinOperator.getOwnIOStats().snapshot().getNumFetches() > 0);
+    assertEquals(joinOperator.getOwnIOStats().snapshot().getNumFetches(),
+                 joinOperator.getIOStats().getNumFetches());
+  }
 }
@@ -6,6 +6,8 @@ import edu.berkeley.cs186.database.StudentTest;
 import edu.berkeley.cs186.database.datatypes.*;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.RecordID;
+import edu.berkeley.cs186.database.table.stats.BoolHistogram;
+import edu.berkeley.cs186.database.io.IOStats;
 import edu.berkeley.cs186.database.io.PageAllocator;
 
 import org.junit.After;
@@ -21,6 +23,7 @@ import org.junit.rules.Timeout;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Iterator;
+import java.util.Random;
 import java.io.IOException;
 
 import static org.junit.Assert.*;
@@ -127,6 +130,24 @@ public class TestTable {
     assertEquals(0, rid.getSlotNumber());
   }
 
+  @Test
+  public void testTableGrowthBatchesMetadata() throws DatabaseException {
+    Record input = TestUtils.createRecordWithAllTypes();
+    int numEntriesPerPage = table.getNumEntriesPerPage();
+    int numRecords = 500 * numEntriesPerPage;
+
+    long writes = table.getIOStats().getNumDiskWrites();
+    for (int i = 0; i < numRecords; i++) {
+      table.addRecord(input.getValues());
+    }
+    // forcing allocation metadata on every new page would cost at least two writes per page
+    assertTrue(table.getIOStats().getNumDiskWrites() - writes < 500);
+
+    RecordID rid = table.addRecord(input.getValues());
+    assertEquals(501, rid.getPageNum());
+    assertEquals(0, rid.getSlotNumber());
+  }
+
   @Test
   public void testRecordUpdate() throws DatabaseException {
     Record input = TestUtils.createRecordWithAllTypes();
@@ -427,7 +448,201 @@ public class TestTable {
       assertEquals(input, r);
     }
     assertFalse(iRec.hasNext());
-  }   
+  }
+
+  @Test
+  public void testTablePageSizes() throws DatabaseException {
+    Record input = TestUtils.createRecordWithAllTypes();
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    int numRecords = 20000;
+    int[] sizes = new int[] {4096, 16384, 65536};
+    long lastScanFetches = Long.MAX_VALUE;
+    for (int size : sizes) {
+      String tableName = TABLENAME + size;
+      Table t = new Table(this.schema, tableName, tempFolderPath, PageAllocator.getSharedPageCache(), size);
+      assertEquals(((size * 8) / (1 + 8 * this.schema.getEntrySize())) / 8 * 8, t.getNumEntriesPerPage());
+      List<RecordID> rids = new ArrayList<RecordID>();
+      for (int i = 0; i < numRecords; i++) {
+        input.getValues().get(1).setInt(i);
+        rids.add(t.addRecord(input.getValues()));
+      }
+      t.close();
+
+      // reopening picks the page size up from the file
+      t = new Table(tableName, tempFolderPath);
+      assertEquals(((size * 8) / (1 + 8 * this.schema.getEntrySize())) / 8 * 8, t.getNumEntriesPerPage());
+      IOStats.Snapshot before = t.getIOStats().snapshot();
+      int count = 0;
+      for (Record r : t) {
+        assertEquals(count++, r.getValues().get(1).getInt());
+      }
+      assertEquals(numRecords, count);
+
+      // larger pages hold more records, so the same scan fetches fewer of them
+      long scanFetches = t.getIOStats().snapshot().minus(before).getNumFetches();
+      assertTrue(size + "-byte pages: " + scanFetches + " fetches", scanFetches < lastScanFetches);
+      lastScanFetches = scanFetches;
+
+      Random random = new Random(size);
+      for (int i = 0; i < numRecords; i++) {
+        int j = random.nextInt(numRecords);
+        assertEquals(j, t.getRecord(rids.get(j)).getValues().get(1).getInt());
+      }
+      t.close();
+    }
+  }
+
+  @Test
+  public void testTableStatsPersisted() throws DatabaseException {
+    Record input = TestUtils.createRecordWithAllTypes();
+    for (int i = 0; i < 5000; i++) {
+      input.getValues().get(1).setInt(i % 100);
+      table.addRecord(input.getValues());
+    }
+    table.deleteRecord(new RecordID(1, 0));
+    int numDataPages = table.getNumDataPages();
+    assertTrue(numDataPages > 10);
+    table.close();
 
+    // reopening reads the statistics back instead of every page
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    this.table = new Table(TABLENAME, tempFolderPath);
+    assertTrue(table.getIOStats().snapshot().getNumFetches() < 5);
+    assertEquals(4999, table.getNumRecords());
+    assertEquals(4999, table.getStats().getNumRecords());
+    assertEquals(100, table.getStats().getNumDistinct(1));
+    assertEquals(4999, ((BoolHistogram) table.getStats().getHistogram(0)).getEntriesInRange(true, null));
+
+    // the slot freed before the close is reused
+    assertEquals(new RecordID(1, 0), table.addRecord(input.getValues()));
+    assertEquals(5000, table.getNumRecords());
+  }
 
+  @Test
+  public void testTableStatsStaleAfterCrash() throws DatabaseException {
+    Record input = TestUtils.createRecordWithAllTypes();
+    for (int i = 0; i < 500; i++) {
+      table.addRecord(input.getValues());
+    }
+    table.checkpoint();
+    for (int i = 0; i < 500; i++) {
+      table.addRecord(input.getValues());
+    }
+
+    // the table is never closed, so the statistics written by the checkpoint are stale, and the
+    // table is scanned instead
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    Table reopened = new Table(TABLENAME, tempFolderPath);
+    assertTrue(reopened.getIOStats().snapshot().getNumFetches() >= reopened.getNumDataPages());
+    assertEquals(1000, reopened.getNumRecords());
+    assertEquals(1000, reopened.getStats().getNumRecords());
+    reopened.close();
+  }
+
+  @Test
+  public void testTableScanReadsEveryRecord() throws DatabaseException {
+    Record input = TestUtils.createRecordWithAllTypes();
+    for (int i = 0; i < 100; i++) {
+      input.getValues().get(1).setInt(i);
+      table.addRecord(input.getValues());
+    }
+
+    // the table is not closed, so opening it again scans its pages, and every record in adjacent
+    // slots has to reach the statistics
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    Table reopened = new Table(TABLENAME, tempFolderPath);
+    assertEquals(100, reopened.getNumRecords());
+    assertEquals(100, reopened.getStats().getNumRecords());
+    assertEquals(100, reopened.getStats().getNumDistinct(1));
+    reopened.close();
+  }
+
+  @Test
+  public void testSnapshotReads() throws DatabaseException {
+    VersionClock clock = new VersionClock();
+    table.setVersionClock(clock);
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 300; i++) {
+      rids.add(table.addRecord(TestUtils.createRecordWithAllTypesWithValue(i).getValues(), 1));
+    }
+    long before = clock.beginSnapshot();
+    clock.commit(1);
+    long snapshot = clock.beginSnapshot();
+
+    // transaction 2 changes the table after the snapshot
+    table.deleteRecord(rids.get(0), 2);
+    table.updateRecord(TestUtils.createRecordWithAllTypesWithValue(1000).getValues(), rids.get(1), 2);
+    RecordID added = table.addRecord(TestUtils.createRecordWithAllTypesWithValue(1001).getValues(), 2);
+    assertEquals(rids.get(0), added);
+    // the versions of transaction 1 are kept for the snapshot taken before it committed
+    assertEquals(303, table.getNumVersions());
+
+    assertFalse(table.snapshotIterator(before).hasNext());
+    for (int round = 0; round < 2; round++) {
+      Iterator<Record> iter = table.snapshotIterator(snapshot);
+      for (int i = 0; i < 300; i++) {
+        assertTrue(iter.hasNext());
+        assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), iter.next());
+      }
+      assertFalse(iter.hasNext());
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(0), table.getRecord(rids.get(0), snapshot));
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(1), table.getRecord(rids.get(1), snapshot));
+      // committing transaction 2 does not change what the open snapshot sees
+      clock.commit(2);
+      table.pruneVersions();
+    }
+    assertEquals(303, table.getNumVersions());
+
+    long after = clock.beginSnapshot();
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(1001), table.getRecord(added, after));
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(1000), table.getRecord(rids.get(1), after));
+    try {
+      table.getRecord(rids.get(299), before);
+      fail("the record was not committed as of the snapshot");
+    } catch (DatabaseException e) {
+      // expected
+    }
+
+    clock.endSnapshot(before);
+    clock.endSnapshot(snapshot);
+    clock.endSnapshot(after);
+    table.pruneVersions();
+    assertEquals(0, table.getNumVersions());
+  }
+
+  @Test
+  public void testRolledBackVersionsKeptForOpenSnapshots() throws DatabaseException {
+    VersionClock clock = new VersionClock();
+    table.setVersionClock(clock);
+    Record original = TestUtils.createRecordWithAllTypesWithValue(1);
+    RecordID rid = table.addRecord(original.getValues(), 1);
+    clock.commit(1);
+    table.pruneVersions();
+    long snapshot = clock.beginSnapshot();
+
+    // transaction 2 changes the record and is rolled back, as Database.rollback does it
+    table.updateRecord(TestUtils.createRecordWithAllTypesWithValue(1000).getValues(), rid, 2);
+    table.restoreRecord(rid, table.getSchema().encode(original));
+    clock.abort(2);
+    long after = clock.beginSnapshot();
+    table.pruneVersions();
+
+    // the open snapshot may have read the page before the rollback, so the version stays
+    assertEquals(1, table.getNumVersions());
+    assertEquals(original, table.getRecord(rid, snapshot));
+    assertEquals(original, table.getRecord(rid, after));
+
+    // transaction 3 changes the record again, above the rolled back version
+    table.updateRecord(TestUtils.createRecordWithAllTypesWithValue(2000).getValues(), rid, 3);
+    clock.endSnapshot(snapshot);
+    table.pruneVersions();
+    assertEquals(1, table.getNumVersions());
+    assertEquals(original, table.getRecord(rid, after));
+    clock.commit(3);
+    assertEquals(original, table.getRecord(rid, after));
+
+    clock.endSnapshot(after);
+    table.pruneVersions();
+    assertEquals(0, table.getNumVersions());
+  }
 }
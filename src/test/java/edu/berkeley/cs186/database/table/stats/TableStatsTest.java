@@ -12,6 +12,7 @@ import static org.junit.Assert.*;
 import edu.berkeley.cs186.database.datatypes.*;
 import edu.berkeley.cs186.database.query.QueryPlan.PredicateOperator;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,6 +24,41 @@ import edu.berkeley.cs186.database.query.QueryPlan.PredicateOperator;
 
 public class TableStatsTest {
 
+  @Test(timeout=1000)
+  public void testTableStatsSerialization() {
+    Schema schema = TestUtils.createSchemaWithAllTypes();
+    TableStats stats = new TableStats(schema);
+    Record record = TestUtils.createRecordWithAllTypes();
+    for (int i = 0; i < 100; i++) {
+      record.getValues().get(1).setInt(i % 40);
+      record.getValues().get(3).setFloat(i / 2);
+      stats.addRecord(record);
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate(stats.getSerializedSize());
+    stats.write(buf);
+    assertFalse(buf.hasRemaining());
+    buf.flip();
+    TableStats read = TableStats.read(schema, 4096, buf);
+    assertFalse(buf.hasRemaining());
+
+    assertEquals(stats.getNumRecords(), read.getNumRecords());
+    assertEquals(stats.getNumPages(), read.getNumPages());
+    for (int i = 0; i < schema.getFieldNames().size(); i++) {
+      assertEquals(stats.getNumDistinct(i), read.getNumDistinct(i));
+    }
+    assertEquals(40, read.getNumDistinct(1));
+    assertEquals(((IntHistogram) stats.getHistogram(1)).getEntriesInRange(10, 20),
+        ((IntHistogram) read.getHistogram(1)).getEntriesInRange(10, 20));
+    assertEquals(100, ((BoolHistogram) read.getHistogram(0)).getEntriesInRange(true, null));
+
+    // the read statistics go on counting
+    record.getValues().get(1).setInt(1000);
+    read.addRecord(record);
+    assertEquals(101, read.getNumRecords());
+    assertEquals(41, read.getNumDistinct(1));
+  }
+
   @Test(timeout=1000)
   public void testTableStats() {
     Schema schema = TestUtils.createSchemaWithAllTypes();